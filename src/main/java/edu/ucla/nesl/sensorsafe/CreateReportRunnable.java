@@ -40,6 +40,8 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 
 import edu.ucla.nesl.sensorsafe.db.DatabaseConnector;
 import edu.ucla.nesl.sensorsafe.db.StreamDatabaseDriver;
+import edu.ucla.nesl.sensorsafe.db.TupleBatch;
+import edu.ucla.nesl.sensorsafe.db.TupleDownsampler;
 import edu.ucla.nesl.sensorsafe.db.UserDatabaseDriver;
 import edu.ucla.nesl.sensorsafe.model.Channel;
 import edu.ucla.nesl.sensorsafe.model.Stream;
@@ -416,14 +418,16 @@ public class CreateReportRunnable implements Runnable {
 				return false;
 			}
 			
-			Object[] tuple = new Object[db.getStoredStreamInfo().channels.size() + 1];
+			TupleBatch batch = new TupleBatch(stream.channels, TupleBatch.FETCH_ROWS);
 			int timestamp;
 			Coord coords[] = new Coord[(int)numSamples];
 			int idx = 0;
-			while (db.getNextTuple(tuple)) {
-				timestamp = (int)(((Long)tuple[0] - startTimestamp) / 1000);
-				coords[idx] = new Coord(timestamp, (Double)tuple[1], (Double)tuple[2]);
-				idx++;
+			while (db.getNextTuples(batch, TupleBatch.FETCH_ROWS) > 0) {
+				for (int row = 0; row < batch.getSize(); row++) {
+					timestamp = (int)((TupleBatch.toMillis(batch.getTimestamp(row)) - startTimestamp) / 1000);
+					coords[idx] = new Coord(timestamp, batch.getDouble(row, 0), batch.getDouble(row, 1));
+					idx++;
+				}
 			}
 
 			List<Coord> clusteredCoords = gpsClustering(coords);
@@ -576,7 +580,7 @@ public class CreateReportRunnable implements Runnable {
 		try {
 			db = DatabaseConnector.getStreamDatabase();
 
-			boolean isData = db.prepareQuery(requestingUser, streamOwner, streamName, startTime, endTime, null, null, 0, 0, 0, true, null);
+			boolean isData = db.prepareQuery(requestingUser, streamOwner, streamName, startTime, endTime, null, null, 0, 0, 0, false, null);
 			Stream stream = db.getStoredStreamInfo();
 
 			if (!isData) {
@@ -584,48 +588,47 @@ public class CreateReportRunnable implements Runnable {
 				return null;
 			}
 
-			if (stream.num_samples > width) {
-				db.close();
-				db = DatabaseConnector.getStreamDatabase();
-				int skipEveryNth = (int) (stream.num_samples / width);
-				isData = db.prepareQuery(requestingUser, streamOwner, streamName, startTime, endTime, null, null, 0, 0, skipEveryNth, false, null);
-				stream = db.getStoredStreamInfo();
-
-				if (!isData) {
-					Log.error("isData null");
-					return null;
-				}
-			}
-
 			// Prepare data
 			XYSeries[] series = null;
 			long minTsInterval = Long.MAX_VALUE;  // to determine whether to use marker on the plot.
 			long prevTimestamp = -1;
-			Object[] tuple = new Object[db.getStoredStreamInfo().channels.size() + 1];
-			while (db.getNextTuple(tuple)) {
+			// Keeps the minimum and the maximum per pixel, in the same pass that reads the tuples.
+			TupleDownsampler downsampler = new TupleDownsampler(stream.channels, TupleDownsampler.Method.MINMAX, width * 2);
+			TupleBatch batch = new TupleBatch(stream.channels, TupleBatch.FETCH_ROWS);
+			TupleBatch points = new TupleBatch(stream.channels);
+			while (db.getNextTuples(batch, TupleBatch.FETCH_ROWS) > 0) {
+				downsampler.add(batch);
+			}
+			downsampler.finish(points);
+			if (points.getSize() > 0) {
 				// Init XYSeries array
 				if (series == null) {
-					series = new XYSeries[tuple.length - 1];
+					series = new XYSeries[points.getNumChannels()];
 					for (int i = 0; i < series.length; i++) {
 						series[i] = new XYSeries(stream.channels.get(i).name); 
 					}
 				}
 
-				long timestamp = ((Long)tuple[0]).longValue();
-				for (int i = 1; i < tuple.length; i++) {
-					try {
-						series[i-1].add(timestamp, (Number)tuple[i]);
-					} catch (ClassCastException e) {
-						continue;
+				for (int row = 0; row < points.getSize(); row++) {
+					long timestamp = TupleBatch.toMillis(points.getTimestamp(row));
+					for (int i = 0; i < series.length; i++) {
+						if (!points.isNumeric(i)) {
+							continue;
+						}
+						if (points.isNull(row, i)) {
+							series[i].add(timestamp, null);
+						} else {
+							series[i].add(timestamp, points.getDouble(row, i));
+						}
 					}
-				}
 
-				long diff = timestamp - prevTimestamp;
-				if (diff > 0 && diff < minTsInterval) {
-					minTsInterval = diff;
-				}
+					long diff = timestamp - prevTimestamp;
+					if (diff > 0 && diff < minTsInterval) {
+						minTsInterval = diff;
+					}
 
-				prevTimestamp = timestamp;
+					prevTimestamp = timestamp;
+				}
 			}
 
 			db.close();
@@ -806,16 +809,18 @@ public class CreateReportRunnable implements Runnable {
 				Log.info("No data shared with " + OTHER_USER_NAME + " for " + streamName);
 				return shareflags;
 			}
-			Object[] tuple = new Object[db.getStoredStreamInfo().channels.size() + 1];
+			TupleBatch batch = new TupleBatch(db.getStoredStreamInfo().channels, TupleBatch.FETCH_ROWS);
 			long todayMillis = startDate.getMillis();
-			while (db.getNextTuple(tuple)) {
-				long timestamp = (Long)tuple[0];
-				//Log.info("timestamp: " + timestamp);
-				int idx = (int)((timestamp - todayMillis) / 1000 / DUMMY_STREAM_INTERVAL);
-				if (idx >= size) {
-					Log.error("idx >= size, timestamp = " + fmt.print(new DateTime(timestamp)) + ", idx = " + idx + ", size = " + size);
-				} else {
-					shareflags[idx] = 1;
+			while (db.getNextTuples(batch, TupleBatch.FETCH_ROWS) > 0) {
+				for (int row = 0; row < batch.getSize(); row++) {
+					long timestamp = TupleBatch.toMillis(batch.getTimestamp(row));
+					//Log.info("timestamp: " + timestamp);
+					int idx = (int)((timestamp - todayMillis) / 1000 / DUMMY_STREAM_INTERVAL);
+					if (idx >= size) {
+						Log.error("idx >= size, timestamp = " + fmt.print(new DateTime(timestamp)) + ", idx = " + idx + ", size = " + size);
+					} else {
+						shareflags[idx] = 1;
+					}
 				}
 			}
 			return shareflags;
@@ -0,0 +1,40 @@
+package edu.ucla.nesl.sensorsafe.api;
+
+import javax.annotation.security.RolesAllowed;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.SecurityContext;
+
+import com.wordnik.swagger.annotations.Api;
+import com.wordnik.swagger.annotations.ApiOperation;
+import com.wordnik.swagger.annotations.ApiResponse;
+import com.wordnik.swagger.annotations.ApiResponses;
+
+import edu.ucla.nesl.sensorsafe.auth.Roles;
+import edu.ucla.nesl.sensorsafe.ingest.IngestService;
+import edu.ucla.nesl.sensorsafe.model.IngestWatermarks;
+
+@Path("/ingest")
+@Produces(MediaType.APPLICATION_JSON)
+@Api(value = "/ingest", description = "Operations about asynchronous ingest.")
+public class IngestResource {
+
+	@Context
+	private SecurityContext securityContext;
+
+	@RolesAllowed(Roles.OWNER)
+	@GET
+	@Path("/watermarks")
+	@ApiOperation(value = "Get durable and applied sequence watermarks of the owner's asynchronous ingest requests.", notes = "TBD")
+	@ApiResponses(value = {
+			@ApiResponse(code = 500, message = "Internal Server Error")
+	})
+	public IngestWatermarks doGetWatermarks() {
+		String ownerName = securityContext.getUserPrincipal().getName();
+		return new IngestWatermarks(IngestService.getDurableSeq(ownerName), IngestService.getAppliedSeq(ownerName), 
+				IngestService.getNumRejected(ownerName), IngestService.getNumFailed(ownerName));
+	}
+}
@@ -0,0 +1,33 @@
+package edu.ucla.nesl.sensorsafe.api;
+
+import javax.annotation.security.RolesAllowed;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+
+import com.wordnik.swagger.annotations.Api;
+import com.wordnik.swagger.annotations.ApiOperation;
+import com.wordnik.swagger.annotations.ApiResponse;
+import com.wordnik.swagger.annotations.ApiResponses;
+
+import edu.ucla.nesl.sensorsafe.auth.Roles;
+import edu.ucla.nesl.sensorsafe.db.QueryResultCache;
+import edu.ucla.nesl.sensorsafe.model.QueryCacheStats;
+
+@Path("/query_cache")
+@Produces(MediaType.APPLICATION_JSON)
+@Api(value = "/query_cache", description = "Operations about the query result cache.")
+public class QueryCacheResource {
+
+	@RolesAllowed(Roles.ADMIN)
+	@GET
+	@Path("/stats")
+	@ApiOperation(value = "Get hit ratio and memory use of the query result cache.", notes = "TBD")
+	@ApiResponses(value = {
+			@ApiResponse(code = 500, message = "Internal Server Error")
+	})
+	public QueryCacheStats doGetStats() {
+		return QueryResultCache.getStats();
+	}
+}
@@ -2,23 +2,30 @@ package edu.ucla.nesl.sensorsafe.api;
 
 import java.awt.Font;
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.ByteArrayInputStream;
-import java.io.DataOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
 import java.sql.Timestamp;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.UUID;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipException;
 
 import javax.annotation.security.PermitAll;
 import javax.annotation.security.RolesAllowed;
@@ -29,6 +36,7 @@ import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
@@ -37,16 +45,13 @@ import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.SecurityContext;
 import javax.ws.rs.core.StreamingOutput;
-
-import net.minidev.json.JSONArray;
-import net.minidev.json.JSONObject;
-import net.minidev.json.JSONValue;
+import javax.ws.rs.core.Variant;
 
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
 import org.jfree.chart.ChartRenderingInfo;
 import org.jfree.chart.JFreeChart;
 import org.jfree.chart.axis.DateAxis;
@@ -60,23 +65,36 @@ import org.jfree.data.xy.XYSeries;
 import org.jfree.data.xy.XYSeriesCollection;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.AnnotationIntrospector;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.module.jaxb.JaxbAnnotationIntrospector;
 import com.wordnik.swagger.annotations.Api;
 import com.wordnik.swagger.annotations.ApiOperation;
 import com.wordnik.swagger.annotations.ApiParam;
 import com.wordnik.swagger.annotations.ApiResponse;
 import com.wordnik.swagger.annotations.ApiResponses;
 
-import edu.ucla.nesl.sensorsafe.CreateReportRunnable;
 import edu.ucla.nesl.sensorsafe.auth.Roles;
 import edu.ucla.nesl.sensorsafe.db.DatabaseConnector;
+import edu.ucla.nesl.sensorsafe.db.StreamCursor;
 import edu.ucla.nesl.sensorsafe.db.StreamDatabaseDriver;
+import edu.ucla.nesl.sensorsafe.db.TupleBatch;
+import edu.ucla.nesl.sensorsafe.db.TupleDownsampler;
+import edu.ucla.nesl.sensorsafe.db.TupleMerger;
+import edu.ucla.nesl.sensorsafe.db.TuplePrefetcher;
+import edu.ucla.nesl.sensorsafe.ingest.IngestRecord;
+import edu.ucla.nesl.sensorsafe.ingest.IngestService;
+import edu.ucla.nesl.sensorsafe.ingest.StreamingIngestSession;
 import edu.ucla.nesl.sensorsafe.model.Channel;
+import edu.ucla.nesl.sensorsafe.model.IngestReceipt;
 import edu.ucla.nesl.sensorsafe.model.ResponseMsg;
 import edu.ucla.nesl.sensorsafe.model.Stream;
+import edu.ucla.nesl.sensorsafe.tools.BinaryTupleFormat;
 import edu.ucla.nesl.sensorsafe.tools.Log;
+import edu.ucla.nesl.sensorsafe.tools.SingleEntryZipInputStream;
+import edu.ucla.nesl.sensorsafe.tools.TupleColumnarWriter;
+import edu.ucla.nesl.sensorsafe.tools.TupleCsvWriter;
+import edu.ucla.nesl.sensorsafe.tools.TupleGorillaWriter;
+import edu.ucla.nesl.sensorsafe.tools.TupleJsonWriter;
+import edu.ucla.nesl.sensorsafe.tools.TupleNdjsonWriter;
+import edu.ucla.nesl.sensorsafe.tools.TupleWriter;
 import edu.ucla.nesl.sensorsafe.tools.WebExceptionBuilder;
 
 @Path("/streams")
@@ -87,8 +105,34 @@ public class StreamResource {
 
 	private static final int ROW_LIMIT_WITHOUT_HTTP_STREAMING = 100;
 	private static final long MAX_PLOT_DATA_LIMIT = 100000;
-	private static final String TEMP_ZIP_FILE_PREFIX = "/tmp/zip_file_";
 	private static final int BUFFER_SIZE = 4096;
+	private static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+
+	// Batches read ahead of the response by HTTP streaming reads; 0 reads on the request thread.
+	private static final int PREFETCH_BATCHES = Integer.getInteger("sensorsafe.query.prefetch_batches", 4);
+
+	// Time stream reads may spend in the database, excluding writing the response; 0 for none. A role's
+	// own sensorsafe.query.timeout_ms.<role> overrides it.
+	private static final long QUERY_TIMEOUT_MS = Long.getLong("sensorsafe.query.timeout_ms", 300000);
+
+	// Streams of a multi-stream read; each holds a database connection until the response is written.
+	private static final int MAX_STREAMS_PER_REQUEST = Integer.getInteger("sensorsafe.query.max_streams", 8);
+
+	// Prepares the queries of multi-stream reads in parallel. Each thread opens a connection, so keep it
+	// below the size of the connection pool; other queries wait in the queue.
+	private static final int QUERY_THREADS = Integer.getInteger("sensorsafe.query.prepare_threads", 8);
+	private static final ThreadPoolExecutor queryPool = new ThreadPoolExecutor(QUERY_THREADS, QUERY_THREADS, 
+			60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+	static {
+		queryPool.allowCoreThreadTimeOut(true);
+	}
+
+	private static final MediaType TUPLE_CSV_TYPE = MediaType.valueOf(TupleCsvWriter.MEDIA_TYPE);
+	private static final MediaType TUPLE_NDJSON_TYPE = MediaType.valueOf(TupleNdjsonWriter.MEDIA_TYPE);
+	private static final MediaType TUPLE_COLUMNAR_TYPE = MediaType.valueOf(TupleColumnarWriter.MEDIA_TYPE);
+	private static final MediaType TUPLE_GORILLA_TYPE = MediaType.valueOf(TupleGorillaWriter.MEDIA_TYPE);
+	private static final List<Variant> TUPLE_VARIANTS = Variant.mediaTypes(
+			MediaType.APPLICATION_JSON_TYPE, TUPLE_CSV_TYPE, TUPLE_NDJSON_TYPE, TUPLE_COLUMNAR_TYPE, TUPLE_GORILLA_TYPE).add().build();
 
 	private static final String GET_STREAM_NOTES =
 			"<BR>"
@@ -127,10 +171,46 @@ public class StreamResource {
 					+ "- NoisyAggregateRange(expression, epsilon)<BR>"
 					+ "&emsp;  epsilon-differentially private version of the function.<BR>"
 					+ "<BR>"
-					+ "+ expression: MIN, MAX, MEDIAN, SUM, AVG, FIRST, LAST, or Nth.<BR>"
-					+ "&emsp;  e.g., min($value), max($value), median($value), sum($value), avg($value), first($value), last($value), Nth($value, 10)<BR>"
+					+ "+ expression: MIN, MAX, MEDIAN, SUM, AVG, FIRST, LAST, Nth, pN (percentile), or DISTINCT.<BR>"
+					+ "&emsp;  e.g., min($value), max($value), median($value), sum($value), avg($value), first($value), last($value), Nth($value, 10), p50($value), p99($value), distinct($label)<BR>"
+					+ "&emsp;  pN and DISTINCT are approximate and fast over long ranges: the rank of a percentile is within about 1.65% with 99% confidence,<BR>"
+					+ "&emsp;  and DISTINCT, which also takes text channels, has a standard error of about 1.6%. MEDIAN and Nth are exact.<BR>"
+					+ "&emsp;  MEDIAN buckets of more than about a million values are evaluated by the database, which is slower.<BR>"
 					+ "+ calendar: 1min, 15min, 30min, 1hour, 1day, 1week, 1month, or 1year<BR>"
 					+ "+ epsilon: Prameter to e-differentially private noise generator. The smaller, the more private. Typical value smaller than 0.1.<BR>"
+					+ "<BR>"
+					+ "<BR>"
+					+ "<b>output format</b><BR>"
+					+ "<BR>"
+					+ "Selected by the Accept header:<BR>"
+					+ "&emsp; - application/json (default): the stream with a \"tuples\" array.<BR>"
+					+ "&emsp; - text/csv: a header line followed by one line per tuple.<BR>"
+					+ "&emsp; - application/x-ndjson: the stream on the first line followed by one tuple per line.<BR>"
+					+ "&emsp; - application/x-sensorsafe-columnar: record batches of a timestamp column and one typed column per channel.<BR>"
+					+ "&emsp; - application/x-sensorsafe-gorilla: compressed blocks of delta-of-delta timestamps and XOR-ed values (see TupleGorillaReader).<BR>"
+					+ "<BR>"
+					+ "<BR>"
+					+ "<b>pagination</b><BR>"
+					+ "<BR>"
+					+ "If a page returns limit tuples, it comes with a cursor for the next page: \"next_cursor\" in JSON, a last { \"next_cursor\" } line in NDJSON, "
+					+ "a last \"# next_cursor=..\" line in CSV, and in the columnar and Gorilla formats an int32 -1, an int32 length and the UTF-8 cursor "
+					+ "before the int32 0 end (TupleGorillaReader.getNextCursor()). When http_streaming is false, it is also in the X-Next-Cursor header. "
+					+ "Pass it as cursor, with the same start_time, end_time, filter and aggregator, "
+					+ "to get the next page. Unlike offset, a cursor does not get slower as the page gets deeper.<BR>"
+					+ "<BR>"
+					+ "<b>downsample</b><BR>"
+					+ "<BR>"
+					+ "downsample=N reduces the whole time range to about N tuples for charts, in one pass, ignoring limit. It cannot be combined with offset or cursor.<BR>"
+					+ "- downsample_method=minmax (default): per bucket of consecutive tuples, the tuples with the minimum and the maximum of each numeric channel, so that spikes are kept.<BR>"
+					+ "- downsample_method=lttb: Largest-Triangle-Three-Buckets on the first numeric channel, over its per-bucket minima and maxima; N tuples, or fewer for short results.<BR>"
+					+ "<BR>";
+
+	private static final String GET_STREAMS_NOTES =
+			"Streams are read through separate connections in parallel, each under its own rules, and merged by timestamp.<BR>"
+					+ "Channels are named STREAM_NAME.CHANNEL_NAME and the output formats are those of GET /streams/{stream_name}.<BR>"
+					+ "<BR>"
+					+ "- align=false: one row per tuple of any stream, in time order. The channels of the other streams are null.<BR>"
+					+ "- align=true: one row per timestamp. Tuples of the streams with the same timestamp are joined, and streams without a tuple at that timestamp are null.<BR>"
 					+ "<BR>";
 
 	@Context
@@ -139,6 +219,9 @@ public class StreamResource {
 	@Context
 	private HttpSession session;
 
+	@Context
+	private Request request;
+
 	@RolesAllowed({ Roles.OWNER, Roles.CONSUMER })
 	@GET
 	@ApiOperation(value = "Get list of streams", notes = "TBD")
@@ -236,7 +319,9 @@ public class StreamResource {
 	@ApiResponses(value = {
 			@ApiResponse(code = 500, message = "Interval Server Error")
 	})
-	public ResponseMsg doPostStreamCsv(@PathParam("stream_name") String streamName,
+	public Response doPostStreamCsv(@PathParam("stream_name") String streamName,
+			@ApiParam(name = "async", value = "If true, the data is stored in the ingest log and applied later. Responds with 202 and a sequence number. Default value is false.") 
+			@DefaultValue("false") @QueryParam("async") boolean isAsync,
 			@ApiParam(name = "str_tuple", 
 			value = "<pre>Usage:\n"
 					+ "timestamp, 1st_channel, 2nd_channel, 3rd_channel, ..\n"
@@ -249,13 +334,25 @@ public class StreamResource {
 					+ "2013-01-01 09:20:13.12345, 11.4, 3.2, 1.5\n"
 					+ "2013-01-01 09:20:14.12345, 10.4, 4.2, 7.5\n"
 					+ "</pre>")
-	String data) throws JsonProcessingException {
+	InputStream data) throws JsonProcessingException {
 
 		String ownerName = securityContext.getUserPrincipal().getName();
+		if (isAsync) {
+			long seq;
+			try {
+				seq = IngestService.submitCsv(ownerName, streamName, data);
+			} catch (IOException | InterruptedException | IllegalStateException e) {
+				throw WebExceptionBuilder.buildInternalServerError(e);
+			} catch (IllegalArgumentException e) {
+				throw WebExceptionBuilder.buildBadRequest(e);
+			}
+			return Response.status(Response.Status.ACCEPTED).entity(new IngestReceipt("Accepted.", seq)).build();
+		}
+
 		StreamDatabaseDriver db = null;
 		try {
 			db = DatabaseConnector.getStreamDatabase();
-			db.bulkLoad(ownerName, streamName, data);
+			db.bulkLoad(ownerName, streamName, new InputStreamReader(data, StandardCharsets.UTF_8));
 		} catch (SQLException | IOException | ClassNotFoundException | NamingException | NoSuchAlgorithmException e) {
 			throw WebExceptionBuilder.buildInternalServerError(e);
 		} catch (IllegalArgumentException e) {
@@ -269,114 +366,19 @@ public class StreamResource {
 				}
 			}
 		}
-		return new ResponseMsg("Successfully completed bulkloading.");
-	}
-
-	private String newUUIDString() {
-		String tmp = UUID.randomUUID().toString();
-		return tmp.replaceAll("-", "");
+		return Response.ok(new ResponseMsg("Successfully completed bulkloading.")).build();
 	}
 
-	public static String unzip(String zipFile, String location) throws IOException {
-		int size;
-		byte[] buffer = new byte[BUFFER_SIZE];
-
-		if ( !location.endsWith("/") ) {
-			location += "/";
-		}
-		File f = new File(location);
-		if(!f.isDirectory()) {
-			f.mkdirs();
-		}
-		ZipInputStream zin = new ZipInputStream(new BufferedInputStream(new FileInputStream(zipFile), BUFFER_SIZE));
-		String fileName = null;
+	private Response submitAsync(String ownerName, String streamName, byte format, byte[] data) throws JsonProcessingException {
+		long seq;
 		try {
-			ZipEntry ze = null;
-
-			while ((ze = zin.getNextEntry()) != null) {
-				String path = location + ze.getName();
-				File unzipFile = new File(path);
-
-				if (ze.isDirectory()) {
-					throw new UnsupportedOperationException("Error: The zip file contains directory.");
-				} else {
-					if (fileName != null) {
-						throw new UnsupportedOperationException("Error: The zip file contains more than a single file.");
-					}
-
-					fileName = path;
-
-					// check for and create parent directories if they don't exist
-					File parentDir = unzipFile.getParentFile();
-					if ( null != parentDir ) {
-						if ( !parentDir.isDirectory() ) {
-							parentDir.mkdirs();
-						}
-					}
-
-					// unzip the file
-					FileOutputStream out = new FileOutputStream(unzipFile, false);
-					BufferedOutputStream fout = new BufferedOutputStream(out, BUFFER_SIZE);
-					try {
-						while ( (size = zin.read(buffer, 0, BUFFER_SIZE)) != -1 ) {
-							fout.write(buffer, 0, size);
-						}
-						zin.closeEntry();
-					}
-					finally {
-						fout.flush();
-						fout.close();
-					}
-				}
-			}
-		}
-		finally {
-			zin.close();
-		}
-
-		return fileName;
-	}
-
-	private static String readEntireFile(String filename) throws IOException {
-		FileReader in = new FileReader(filename);
-		StringBuilder contents = new StringBuilder();
-		char[] buffer = new char[BUFFER_SIZE];
-		int read = 0;
-		do {
-			contents.append(buffer, 0, read);
-			read = in.read(buffer);
-		} while (read >= 0);
-		in.close();
-		return contents.toString();
-	}
-
-	public static void deleteFile(File file) {
-		if(file.isDirectory()) {
-			//directory is empty, then delete it
-			if(file.list().length == 0) {
-				file.delete();
-			} else {
-				//list all the directory contents
-				String files[] = file.list();
-
-				for (String temp : files) {
-					//construct the file structure
-					File fileDelete = new File(file, temp);
-
-					//recursive delete
-					deleteFile(fileDelete);
-				}
-
-				//check the directory again, if empty then delete it
-				if(file.list().length == 0) {
-					file.delete();
-				}
-			}
-
-		} else {
-			//if file, then delete it
-			file.delete();
+			seq = IngestService.submit(ownerName, streamName, format, data);
+		} catch (IOException | InterruptedException | IllegalStateException e) {
+			throw WebExceptionBuilder.buildInternalServerError(e);
+		} catch (IllegalArgumentException e) {
+			throw WebExceptionBuilder.buildBadRequest(e);
 		}
+		return Response.status(Response.Status.ACCEPTED).entity(new IngestReceipt("Accepted.", seq)).build();
 	}
 
 	@RolesAllowed(Roles.OWNER)
@@ -400,80 +402,65 @@ public class StreamResource {
 					+ "2013-01-01 09:20:13.12345, 11.4, 3.2, 1.5\n"
 					+ "2013-01-01 09:20:14.12345, 10.4, 4.2, 7.5\n"
 					+ "</pre>")
-	byte[] data) throws JsonProcessingException {
+	InputStream data) throws JsonProcessingException {
 
-		// check if report generation is ongoing.
-		synchronized (CreateReportRunnable.reportLock) {
-			File lockFile = new File(CreateReportRunnable.REPORT_LOCK_FILE);
-			if (lockFile.exists()) {
-				throw WebExceptionBuilder.buildBadRequest("Report creation job is running..");
-			}
-		}
-		
-		// Create temporary file
-		DataOutputStream os = null;
-		File file = null;
-		String zipFileName = null;
-		String unzipFolderName = null;
+		InputStream in;
 		try {
-			unzipFolderName = TEMP_ZIP_FILE_PREFIX + newUUIDString(); 
-			zipFileName = unzipFolderName + ".zip";
-			file = new File(zipFileName);
-			if (file.exists()) {
-				file.delete();				
-			}
-			file.createNewFile();
-
-			os = new DataOutputStream(new FileOutputStream(file));
-			os.write(data);
+			in = new SingleEntryZipInputStream(new BufferedInputStream(data, BUFFER_SIZE));
+		} catch (ZipException | IllegalArgumentException e) {
+			throw WebExceptionBuilder.buildBadRequest(e);
 		} catch (IOException e) {
-			deleteTempZipFiles(zipFileName, unzipFolderName);
 			throw WebExceptionBuilder.buildInternalServerError(e);
-		} finally {
-			try {
-				if (os != null)
-					os.close();
-			} catch (IOException e) {
-				throw WebExceptionBuilder.buildInternalServerError(e);
-			}
 		}
+		bulkLoadCompressed(streamName, in);
 
-		// Unzip the file.
-		String unzippedFileName = null;
-		try {
-			unzippedFileName = unzip(zipFileName, unzipFolderName);
-		} catch (IOException | UnsupportedOperationException e) {
-			deleteTempZipFiles(zipFileName, unzipFolderName);
-			throw WebExceptionBuilder.buildInternalServerError(e);
-		}
+		return new ResponseMsg("Successfully completed zip bulkloading.");
+	}
 
-		// Check unzipped filename
-		if (unzippedFileName == null) {
-			deleteTempZipFiles(zipFileName, unzipFolderName);
-			throw WebExceptionBuilder.buildBadRequest("Problem with Zip file.");
-		}
-		
-		// Read the file into memory.
-		String unzippedData = null;
+	@RolesAllowed(Roles.OWNER)
+	@POST
+	@Path("/{stream_name}.gz")
+	@Consumes("application/gzip")
+	@ApiOperation(value = "Load gzip compressed csv file to a stream.", notes = "TBD")
+	@ApiResponses(value = {
+			@ApiResponse(code = 500, message = "Interval Server Error")
+	})
+	public ResponseMsg doPostStreamGzip(@PathParam("stream_name") String streamName,
+			@ApiParam(name = "str_tuple", 
+			value = "<pre>Usage: attach a gzip file with the following content:\n"
+					+ "timestamp, 1st_channel, 2nd_channel, 3rd_channel, ..\n"
+					+ "timestamp, 1st_channel, 2nd_channel, 3rd_channel, ..\n"
+					+ ".\n"
+					+ ".\n"
+					+ "\n"
+					+ "e.g.,\n"
+					+ "2013-01-01 09:20:12.12345, 12.4, 1.2, 5.5\n"
+					+ "2013-01-01 09:20:13.12345, 11.4, 3.2, 1.5\n"
+					+ "2013-01-01 09:20:14.12345, 10.4, 4.2, 7.5\n"
+					+ "</pre>")
+	InputStream data) throws JsonProcessingException {
+
+		InputStream in;
 		try {
-			unzippedData = readEntireFile(unzippedFileName);
+			in = new GZIPInputStream(data, BUFFER_SIZE);
 		} catch (IOException e) {
-			deleteTempZipFiles(zipFileName, unzipFolderName);
-			throw WebExceptionBuilder.buildInternalServerError(e);
+			throw WebExceptionBuilder.buildBadRequest(e);
 		}
+		bulkLoadCompressed(streamName, in);
 
-		if (unzippedData.length() <= 0) {
-			deleteTempZipFiles(zipFileName, unzipFolderName);
-			throw WebExceptionBuilder.buildBadRequest("Empty data.");
-		}
-		
-		// Pass unzipped data to database
+		return new ResponseMsg("Successfully completed gzip bulkloading.");
+	}
+
+	private void bulkLoadCompressed(String streamName, InputStream in) throws JsonProcessingException {
 		String ownerName = securityContext.getUserPrincipal().getName();
 		StreamDatabaseDriver db = null;
 		try {
 			db = DatabaseConnector.getStreamDatabase();
-			db.bulkLoad(ownerName, streamName, unzippedData);
-		} catch (SQLException | IOException | ClassNotFoundException | NamingException | NoSuchAlgorithmException e) {
+			db.bulkLoad(ownerName, streamName, new InputStreamReader(in, StandardCharsets.UTF_8));
+		} catch (ZipException e) {
+			// A corrupt archive is only found while reading it.
+			throw WebExceptionBuilder.buildBadRequest(e);
+		} catch (SQLException | IOException | ClassNotFoundException | NamingException | NoSuchAlgorithmException | UnsupportedOperationException e) {
 			throw WebExceptionBuilder.buildInternalServerError(e);
 		} catch (IllegalArgumentException e) {
 			throw WebExceptionBuilder.buildBadRequest(e.getClass().getSimpleName() + ": " + e.getMessage());
@@ -485,31 +472,170 @@ public class StreamResource {
 					e.printStackTrace();
 				}
 			}
-			
-			deleteTempZipFiles(zipFileName, unzipFolderName);
 		}
+	}
 
-		return new ResponseMsg("Successfully completed zip bulkloading.");
+	@RolesAllowed(Roles.OWNER)
+	@POST
+	@Path("/{stream_name}")
+	@Consumes(BinaryTupleFormat.MEDIA_TYPE)
+	@ApiOperation(value = "Add tuples to the stream in the binary tuple format.", notes = "TBD")
+	@ApiResponses(value = {
+			@ApiResponse(code = 500, message = "Interval Server Error")
+	})
+	public ResponseMsg doPostStreamBinary(
+			@PathParam("stream_name") String streamName, 
+			@ApiParam(name = "data", 
+			value = "<pre>Usage: a single frame\n"
+					+ "frame_length  int32, number of bytes that follow in this frame\n"
+					+ "num_tuples    varint\n"
+					+ "base_time     int64, epoch microseconds\n"
+					+ "num_tuples times:\n"
+					+ "  time_delta  zigzag varint, microseconds since the previous tuple (base_time for the first)\n"
+					+ "  values      per channel: float as 8-byte double, int as int32, text as varint length + UTF-8\n"
+					+ "\n"
+					+ "Fixed-width fields are big-endian.</pre>")
+			InputStream data) throws JsonProcessingException {
+
+		int numTuples = addBinaryFrames(streamName, data, false);
+		return new ResponseMsg("Successfully added " + numTuples + " tuples.");
+	}
+
+	@RolesAllowed(Roles.OWNER)
+	@POST
+	@Path("/{stream_name}.bin")
+	@Consumes(BinaryTupleFormat.MEDIA_TYPE)
+	@ApiOperation(value = "Load a sequence of binary tuple frames to a stream.", notes = "TBD")
+	@ApiResponses(value = {
+			@ApiResponse(code = 500, message = "Interval Server Error")
+	})
+	public ResponseMsg doPostStreamBinaryBulk(
+			@PathParam("stream_name") String streamName, 
+			@ApiParam(name = "data", 
+			value = "<pre>Usage: one or more frames, each written in its own transaction\n"
+					+ "frame_length  int32, number of bytes that follow in this frame\n"
+					+ "num_tuples    varint\n"
+					+ "base_time     int64, epoch microseconds\n"
+					+ "num_tuples times:\n"
+					+ "  time_delta  zigzag varint, microseconds since the previous tuple (base_time for the first)\n"
+					+ "  values      per channel: float as 8-byte double, int as int32, text as varint length + UTF-8\n"
+					+ "\n"
+					+ "Fixed-width fields are big-endian.</pre>")
+			InputStream data) throws JsonProcessingException {
+
+		int numTuples = addBinaryFrames(streamName, data, true);
+		return new ResponseMsg("Successfully added " + numTuples + " tuples.");
+	}
+
+	private int addBinaryFrames(String streamName, InputStream data, boolean isBulk) throws JsonProcessingException {
+		String ownerName = securityContext.getUserPrincipal().getName();
+		StreamDatabaseDriver db = null;
+		int numTuples = 0;
+		try {
+			db = DatabaseConnector.getStreamDatabase();
+			TupleBatch batch = db.createTupleBatch(ownerName, streamName);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(data, BUFFER_SIZE));
+			ByteBuffer buf = BinaryTupleFormat.readFrame(in, null);
+			if (buf == null) {
+				throw new IllegalArgumentException("Empty data.");
+			}
+			if (!isBulk && in.read() != -1) {
+				throw new IllegalArgumentException("Only a single frame is allowed. Use /streams/" + streamName + ".bin for multiple frames.");
+			}
+			do {
+				batch.clear();
+				BinaryTupleFormat.decodeFrame(buf, batch);
+				numTuples += db.addTuples(ownerName, streamName, batch);
+			} while ((buf = BinaryTupleFormat.readFrame(in, buf)) != null);
+		} catch (ClassNotFoundException | IOException | NamingException | SQLException e) {
+			throw WebExceptionBuilder.buildInternalServerError(e);
+		} catch (IllegalArgumentException e) {
+			throw WebExceptionBuilder.buildBadRequest(isBulk && numTuples > 0 ? e.getMessage() + " (" + numTuples + " tuples were added before the error.)" : e.getMessage());
+		} finally {
+			if (db != null) {
+				try {
+					db.close();
+				} catch (SQLException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		return numTuples;
 	}
 
-	private void deleteTempZipFiles(String zipFileName, String unzipFolderName) {
-		// Delete temporary files
-		File zipFile = new File(zipFileName);
-		File zipFolder = new File(unzipFolderName);
-		deleteFile(zipFile);
-		deleteFile(zipFolder);
+	@RolesAllowed(Roles.OWNER)
+	@POST
+	@Path("/{stream_name}/ingest")
+	@Consumes({ TupleNdjsonWriter.MEDIA_TYPE, BinaryTupleFormat.MEDIA_TYPE })
+	@Produces(TupleNdjsonWriter.MEDIA_TYPE)
+	@ApiOperation(value = "Open a long-lived connection that adds tuples to the stream as they arrive.", notes = "TBD")
+	@ApiResponses(value = {
+			@ApiResponse(code = 500, message = "Interval Server Error")
+	})
+	public StreamingOutput doPostStreamIngest(
+			@PathParam("stream_name") final String streamName,
+			@HeaderParam("Content-Type") String contentType,
+			@ApiParam(name = "data", 
+			value = "<pre>Usage: a chunked request body that is sent for as long as the connection is open.\n"
+					+ "application/x-ndjson: one tuple (or batch of tuples) per line, as in POST /streams/{stream_name}\n"
+					+ "application/x-sensorsafe-tuples: a sequence of binary tuple frames\n"
+					+ "\n"
+					+ "Tuples are written in micro-batches. The response is a chunked stream of acknowledgements, one per line:\n"
+					+ "{ \"acked\": lines (or frames) added or rejected so far, \"added\": tuples added so far,\n"
+					+ "  \"rejected\": lines (or frames) rejected so far, \"pending\": lines (or frames) waiting to be written,\n"
+					+ "  \"error\": last error, \"done\": true on the last acknowledgement }</pre>")
+			final InputStream data) throws JsonProcessingException {
+
+		final String ownerName = securityContext.getUserPrincipal().getName();
+		final boolean isBinary = contentType != null && MediaType.valueOf(contentType).isCompatible(MediaType.valueOf(BinaryTupleFormat.MEDIA_TYPE));
+
+		// Fail before the response starts if the stream does not exist.
+		StreamDatabaseDriver db = null;
+		try {
+			db = DatabaseConnector.getStreamDatabase();
+			db.createTupleBatch(ownerName, streamName);
+		} catch (ClassNotFoundException | IOException | NamingException | SQLException e) {
+			throw WebExceptionBuilder.buildInternalServerError(e);
+		} catch (IllegalArgumentException e) {
+			throw WebExceptionBuilder.buildBadRequest(e);
+		} finally {
+			if (db != null) {
+				try {
+					db.close();
+				} catch (SQLException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		return new StreamingOutput() {
+			@Override
+			public void write(OutputStream output) throws IOException, WebApplicationException {
+				try {
+					new StreamingIngestSession(ownerName, streamName, isBinary, data).run(output);
+				} catch (SQLException | ClassNotFoundException | NamingException e) {
+					e.printStackTrace();
+					throw WebExceptionBuilder.buildInternalServerError(e);
+				} catch (IllegalArgumentException e) {
+					e.printStackTrace();
+					throw WebExceptionBuilder.buildBadRequest(e);
+				}
+			}
+		};
 	}
 
 	@RolesAllowed(Roles.OWNER)
 	@POST
 	@Path("/{stream_name}")
 	@Consumes(MediaType.APPLICATION_JSON)
-	@ApiOperation(value = "Add a new tuple to the stream.", notes = "TBD")
+	@ApiOperation(value = "Add a new tuple (or a batch of tuples) to the stream.", notes = "TBD")
 	@ApiResponses(value = {
 			@ApiResponse(code = 500, message = "Interval Server Error")
 	})
-	public ResponseMsg doPostStream(
+	public Response doPostStream(
 			@PathParam("stream_name") String streamName, 
+			@ApiParam(name = "async", value = "If true, the data is stored in the ingest log and applied later. Responds with 202 and a sequence number. Default value is false.") 
+			@DefaultValue("false") @QueryParam("async") boolean isAsync,
 			@ApiParam(name = "str_tuple", 
 			value = "<pre>Usage:\n"
 					+ "[ timestamp, 1st_channel, 2nd_channel, 3rd_channel, .. ]\n"
@@ -526,14 +652,24 @@ public class StreamResource {
 					+ "  e.g., { \"timestamp\": null\n"
 					+ "          \"tuple\": [ 12.4, 1.2, 5.5 ] }\n"
 					+ "\n"
-					+ "If timestamp is null, current server time will be used.</pre>") 
+					+ "If timestamp is null, current server time will be used.\n"
+					+ "\n"
+					+ "Batch: a JSON array of tuples in either form above is written at once.\n"
+					+ "\n"
+					+ "  e.g., [ [ \"2013-01-01 09:20:12.12345\", 12.4, 1.2, 5.5 ],\n"
+					+ "          [ \"2013-01-01 09:20:13.12345\", 11.4, 3.2, 1.5 ] ]</pre>") 
 			String strTuple) throws JsonProcessingException {
 
 		String ownerName = securityContext.getUserPrincipal().getName();
+		if (isAsync) {
+			return submitAsync(ownerName, streamName, IngestRecord.FORMAT_JSON, strTuple.getBytes(StandardCharsets.UTF_8));
+		}
+
 		StreamDatabaseDriver db = null;
+		int numTuples;
 		try {
 			db = DatabaseConnector.getStreamDatabase();
-			db.addTuple(ownerName, streamName, strTuple);
+			numTuples = db.addTuple(ownerName, streamName, strTuple);
 		} catch (ClassNotFoundException | IOException | NamingException | SQLException e) {
 			e.printStackTrace();
 			throw WebExceptionBuilder.buildInternalServerError(e);
@@ -549,7 +685,10 @@ public class StreamResource {
 				}
 			}
 		}
-		return new ResponseMsg("Successfully added the tuple.");
+		if (numTuples == 1) {
+			return Response.ok(new ResponseMsg("Successfully added the tuple.")).build();
+		}
+		return Response.ok(new ResponseMsg("Successfully added " + numTuples + " tuples.")).build();
 	}
 
 	@RolesAllowed({ Roles.OWNER, Roles.CONSUMER })
@@ -588,55 +727,56 @@ public class StreamResource {
 
 		try {
 			db = DatabaseConnector.getStreamDatabase();
+			db.setQueryTimeout(getQueryTimeout());
 
-			boolean isData = db.prepareQuery(requestingUser, streamOwner, streamName, startTime, endTime, aggregator, filter, 0, 0, 0, true, null);
+			boolean isData = db.prepareQuery(requestingUser, streamOwner, streamName, startTime, endTime, aggregator, filter, 0, 0, 0, false, null);
 			Stream stream = db.getStoredStreamInfo();
 
 			if (!isData) {
 				return Response.ok("No data").build();
 			}
 
-			if (stream.num_samples > width) {
-				db.close();
-				db = DatabaseConnector.getStreamDatabase();
-				int skipEveryNth = (int) (stream.num_samples / width);
-				isData = db.prepareQuery(requestingUser, streamOwner, streamName, startTime, endTime, aggregator, filter, 0, 0, skipEveryNth, true, null);
-				stream = db.getStoredStreamInfo();
-				
-				if (!isData) {
-					return Response.ok("No data").build();
-				}
-			}
-			
 			// Prepare data
 			XYSeries[] series = null;
 			long minTsInterval = Long.MAX_VALUE;  // to determine whether to use marker on the plot.
 			long prevTimestamp = -1;
-			Object[] tuple = new Object[db.getStoredStreamInfo().channels.size() + 1];
-			while (db.getNextTuple(tuple)) {
+			// Keeps the minimum and the maximum per pixel, in the same pass that reads the tuples.
+			TupleDownsampler downsampler = new TupleDownsampler(stream.channels, TupleDownsampler.Method.MINMAX, width * 2);
+			TupleBatch batch = new TupleBatch(stream.channels, TupleBatch.FETCH_ROWS);
+			TupleBatch points = new TupleBatch(stream.channels);
+			while (db.getNextTuples(batch, TupleBatch.FETCH_ROWS) > 0) {
+				downsampler.add(batch);
+			}
+			downsampler.finish(points);
+			if (points.getSize() > 0) {
 				// Init XYSeries array
 				if (series == null) {
-					series = new XYSeries[tuple.length - 1];
+					series = new XYSeries[points.getNumChannels()];
 					for (int i = 0; i < series.length; i++) {
 						series[i] = new XYSeries(stream.channels.get(i).name); 
 					}
 				}
 
-				long timestamp = ((Long)tuple[0]).longValue();
-				for (int i = 1; i < tuple.length; i++) {
-					try {
-						series[i-1].add(timestamp, (Number)tuple[i]);
-					} catch (ClassCastException e) {
-						continue;
+				for (int row = 0; row < points.getSize(); row++) {
+					long timestamp = TupleBatch.toMillis(points.getTimestamp(row));
+					for (int i = 0; i < series.length; i++) {
+						if (!points.isNumeric(i)) {
+							continue;
+						}
+						if (points.isNull(row, i)) {
+							series[i].add(timestamp, null);
+						} else {
+							series[i].add(timestamp, points.getDouble(row, i));
+						}
 					}
-				}
 
-				long diff = timestamp - prevTimestamp;
-				if (diff > 0 && diff < minTsInterval) {
-					minTsInterval = diff;
-				}
+					long diff = timestamp - prevTimestamp;
+					if (diff > 0 && diff < minTsInterval) {
+						minTsInterval = diff;
+					}
 
-				prevTimestamp = timestamp;
+					prevTimestamp = timestamp;
+				}
 			}
 
 			XYSeriesCollection xyDataset = new XYSeriesCollection();
@@ -685,6 +825,9 @@ public class StreamResource {
 			
 			// Send streamed
 			return Response.ok(new ByteArrayInputStream(imageData)).build();
+		} catch (SQLTimeoutException e) {
+			e.printStackTrace();
+			throw WebExceptionBuilder.buildServiceUnavailable(e);
 		} catch (ClassNotFoundException | IOException | NamingException | SQLException | UnsupportedOperationException e) {
 			e.printStackTrace();
 			throw WebExceptionBuilder.buildInternalServerError(e);
@@ -705,11 +848,12 @@ public class StreamResource {
 	@RolesAllowed({ Roles.OWNER, Roles.CONSUMER })
 	@GET
 	@Path("/{stream_name}")
+	@Produces({ MediaType.APPLICATION_JSON, TupleCsvWriter.MEDIA_TYPE, TupleNdjsonWriter.MEDIA_TYPE, TupleColumnarWriter.MEDIA_TYPE, TupleGorillaWriter.MEDIA_TYPE })
 	@ApiOperation(value = "Retrieve the stream.", notes = GET_STREAM_NOTES)
 	@ApiResponses(value = {
 			@ApiResponse(code = 500, message = "Internal Server Error")
 	})
-	public Object doGetStream(
+	public Response doGetStream(
 			@PathParam("stream_name") 					final String streamName,			
 			@ApiParam(name = "stream_owner", value = "If null, get currently authenticated user's streams.")
 			@QueryParam("stream_owner")					final String streamOwnerParam,
@@ -725,6 +869,12 @@ public class StreamResource {
 			@DefaultValue("100") @QueryParam("limit") 	final int limit,
 			@ApiParam(name = "offset", value = "Default value is 0.") 
 			@QueryParam("offset") 						final int offset,
+			@ApiParam(name = "cursor", value = "Continuation token from the previous page. Please refer to the above Implementation Notes.") 
+			@QueryParam("cursor") 						final String cursorParam,
+			@ApiParam(name = "downsample", value = "Number of points for charts. Please refer to the above Implementation Notes.") 
+			@QueryParam("downsample") 					final int downsample,
+			@ApiParam(name = "downsample_method", value = "minmax or lttb. Default value is minmax.") 
+			@QueryParam("downsample_method") 			final String downsampleMethodParam,
 			@ApiParam(name = "http_streaming", value = "Default value is true.") 
 			@DefaultValue("false") @QueryParam("http_streaming") final boolean isHttpStreaming
 			) throws JsonProcessingException {
@@ -732,45 +882,55 @@ public class StreamResource {
 		StreamDatabaseDriver db = null;
 		final String requestingUser = securityContext.getUserPrincipal().getName();		
 		final String streamOwner = streamOwnerParam == null ? requestingUser : streamOwnerParam;
+		final MediaType mediaType = selectTupleMediaType();
+		final long queryTimeout = getQueryTimeout();
 		try {
 			db = DatabaseConnector.getStreamDatabase();
-			if (!isHttpStreaming && limit > ROW_LIMIT_WITHOUT_HTTP_STREAMING) {
+			db.setQueryTimeout(queryTimeout);
+			if (!isHttpStreaming && (downsample > 0 ? downsample : limit) > ROW_LIMIT_WITHOUT_HTTP_STREAMING) {
 				throw WebExceptionBuilder.buildBadRequest("Too mcuh data requested without HTTP streaming.");
 			}
 
+			// Downsampling reads the whole range, and needs no count of its rows.
+			final TupleDownsampler.Method downsampleMethod = TupleDownsampler.parseMethod(downsampleMethodParam);
+			final boolean isDownsample = downsample > 0;
+			final int queryLimit = isDownsample ? 0 : limit;
+			if (isDownsample && (offset > 0 || cursorParam != null)) {
+				throw WebExceptionBuilder.buildBadRequest("Downsampling cannot be used with offset or cursor.");
+			}
+
+			// Offset paging keeps working as before, without a cursor.
+			int fingerprint = StreamCursor.fingerprint(requestingUser, streamOwner, streamName, startTime, endTime, filter, aggregator);
+			final StreamCursor cursor;
+			if (isDownsample) {
+				cursor = null;
+			} else if (cursorParam != null) {
+				cursor = StreamCursor.decode(cursorParam, fingerprint);
+			} else if (offset == 0 && limit > 0) {
+				cursor = new StreamCursor(fingerprint);
+			} else {
+				cursor = null;
+			}
+
 			if (!isHttpStreaming) {
-				boolean isData = db.prepareQuery(requestingUser, streamOwner, streamName, startTime, endTime, aggregator, filter, limit, offset, 0, false, null);
-				String strJson = getStreamJsonPrefix(db.getStoredStreamInfo());
-				if (isData) {
-					Object[] tuple = db.getNextTuple();
-					if (tuple != null) {
-						strJson += convertTupleToJsonString(tuple);
-						while ((tuple = db.getNextTuple()) != null) {
-							strJson += "," + convertTupleToJsonString(tuple);
-						}
-					}
-				} 
-				return strJson + "]}";
+				boolean isData = db.prepareQuery(requestingUser, streamOwner, streamName, startTime, endTime, aggregator, filter, queryLimit, offset, cursor, 0, false, null);
+				ByteArrayOutputStream output = new ByteArrayOutputStream();
+				String nextCursor = writeStream(db, isData, mediaType, output, cursor, limit, downsample, downsampleMethod, 0);
+				return Response.ok(output.toByteArray(), mediaType).header(NEXT_CURSOR_HEADER, nextCursor).build();
 			} else {
-				return new StreamingOutput() {
+				return Response.ok(new StreamingOutput() {
 					@Override
 					public void write(OutputStream output) throws IOException, WebApplicationException {
 						StreamDatabaseDriver db = null;
 						try {
 							db = DatabaseConnector.getStreamDatabase();
-							boolean isData = db.prepareQuery(requestingUser, streamOwner, streamName, startTime, endTime, aggregator, filter, limit, offset, 0, false, null);
-							String strJson = getStreamJsonPrefix(db.getStoredStreamInfo());
-							IOUtils.write(strJson, output);
-							if (isData) {
-								Object[] tuple = db.getNextTuple();
-								if (tuple != null) {
-									IOUtils.write(convertTupleToJsonString(tuple), output);
-									while((tuple = db.getNextTuple()) != null) {
-										IOUtils.write("," + convertTupleToJsonString(tuple), output);
-									}
-								}
-							}
-							IOUtils.write("]}", output);
+							db.setQueryTimeout(queryTimeout);
+							boolean isData = db.prepareQuery(requestingUser, streamOwner, streamName, startTime, endTime, aggregator, filter, queryLimit, offset, cursor, 0, false, null);
+							// The headers are sent before the cursor is known, so only the body has it.
+							writeStream(db, isData, mediaType, output, cursor, limit, downsample, downsampleMethod, PREFETCH_BATCHES);
+						} catch (SQLTimeoutException e) {
+							e.printStackTrace();
+							throw WebExceptionBuilder.buildServiceUnavailable(e);
 						} catch (SQLException | ClassNotFoundException | NamingException | UnsupportedOperationException e) {
 							e.printStackTrace();
 							throw WebExceptionBuilder.buildInternalServerError(e);
@@ -787,8 +947,11 @@ public class StreamResource {
 							}
 						}
 					}
-				};
+				}, mediaType).build();
 			}
+		} catch (SQLTimeoutException e) {
+			e.printStackTrace();
+			throw WebExceptionBuilder.buildServiceUnavailable(e);
 		} catch (ClassNotFoundException | IOException | NamingException | SQLException | UnsupportedOperationException e) {
 			e.printStackTrace();
 			throw WebExceptionBuilder.buildInternalServerError(e);
@@ -806,21 +969,233 @@ public class StreamResource {
 		}
 	}	
 
-	private String convertTupleToJsonString(Object[] tuple) {
-		Timestamp ts = new Timestamp(((Long)tuple[0]).longValue());
-		tuple[0] = ts.toString();
-		JSONArray jsonArray = new JSONArray();
-		jsonArray.addAll(Arrays.asList(tuple));
-		return jsonArray.toString();
+	@RolesAllowed({ Roles.OWNER, Roles.CONSUMER })
+	@GET
+	@Path("/{stream_names: [^/,]+(,[^/,]+)+}")
+	@Produces({ MediaType.APPLICATION_JSON, TupleCsvWriter.MEDIA_TYPE, TupleNdjsonWriter.MEDIA_TYPE, TupleColumnarWriter.MEDIA_TYPE, TupleGorillaWriter.MEDIA_TYPE })
+	@ApiOperation(value = "Retrieve several streams of an owner in one time-ordered response.", notes = GET_STREAMS_NOTES)
+	@ApiResponses(value = {
+			@ApiResponse(code = 500, message = "Internal Server Error")
+	})
+	public Response doGetStreams(
+			@ApiParam(name = "stream_names", value = "Comma separated stream names, e.g., accelerometer,activity,stress. At most 8 by default (sensorsafe.query.max_streams).")
+			@PathParam("stream_names") 					String streamNamesParam,			
+			@ApiParam(name = "stream_owner", value = "If null, get currently authenticated user's streams.")
+			@QueryParam("stream_owner")					String streamOwnerParam,
+			@ApiParam(name = "start_time", value = "Expected format: YYYY-MM-DD HH:MM:SS.[SSSSS]")
+			@QueryParam("start_time") 					final String startTime, 
+			@ApiParam(name = "end_time", value = "Expected format: YYYY-MM-DD HH:MM:SS.[SSSSS]")
+			@QueryParam("end_time") 					final String endTime,
+			@ApiParam(name = "filter", value = "Applied to every stream. Please refer to the Implementation Notes of GET /streams/{stream_name}.")
+			@QueryParam("filter") 						final String filter,
+			@ApiParam(name = "align", value = "Default value is false.") 
+			@DefaultValue("false") @QueryParam("align") final boolean isAligned
+			) throws JsonProcessingException {
+
+		final String requestingUser = securityContext.getUserPrincipal().getName();		
+		final String streamOwner = streamOwnerParam == null ? requestingUser : streamOwnerParam;
+		final String[] streamNames = streamNamesParam.split(",");
+		if (streamNames.length > MAX_STREAMS_PER_REQUEST) {
+			throw WebExceptionBuilder.buildBadRequest("Too many streams. At most " + MAX_STREAMS_PER_REQUEST + " streams can be read at once.");
+		}
+		final MediaType mediaType = selectTupleMediaType();
+		final long queryTimeout = getQueryTimeout();
+
+		// Open one connection per stream and prepare the queries in parallel, each under its own rules.
+		final StreamDatabaseDriver[] dbs = new StreamDatabaseDriver[streamNames.length];
+		final boolean[] isData = new boolean[streamNames.length];
+		try {
+			List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+			for (int i = 0; i < streamNames.length; i++) {
+				final int idx = i;
+				futures.add(queryPool.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() throws Exception {
+						dbs[idx] = DatabaseConnector.getStreamDatabase();
+						dbs[idx].setQueryTimeout(queryTimeout);
+						return dbs[idx].prepareQuery(requestingUser, streamOwner, streamNames[idx], startTime, endTime, null, filter, 0, 0, 0, false, null);
+					}
+				}));
+			}
+			ExecutionException error = null;
+			for (int i = 0; i < streamNames.length; i++) {
+				try {
+					isData[i] = futures.get(i).get();
+				} catch (ExecutionException e) {
+					// Keep waiting, so that no query is running when the connections are closed.
+					error = error == null ? e : error;
+				}
+			}
+			if (error != null) {
+				throw error;
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			closeAll(dbs);
+			Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+			cause.printStackTrace();
+			if (cause instanceof IllegalArgumentException) {
+				throw WebExceptionBuilder.buildBadRequest((IllegalArgumentException)cause);
+			} else if (cause instanceof SQLTimeoutException) {
+				throw WebExceptionBuilder.buildServiceUnavailable((SQLTimeoutException)cause);
+			}
+			throw WebExceptionBuilder.buildInternalServerError(cause instanceof Exception ? (Exception)cause : e);
+		}
+
+		// The streams' channels, prefixed with the stream names, in one table. Streams that the rules do not
+		// allow to read have no channels.
+		final Stream merged = new Stream();
+		merged.name = streamNamesParam;
+		merged.owner = streamOwner;
+		merged.channels = new ArrayList<Channel>();
+		final int[] channelOffsets = new int[streamNames.length];
+		for (int i = 0; i < streamNames.length; i++) {
+			channelOffsets[i] = merged.channels.size();
+			if (isData[i]) {
+				for (Channel channel : dbs[i].getStoredStreamInfo().channels) {
+					merged.channels.add(new Channel(streamNames[i] + "." + channel.name, channel.type));
+				}
+			}
+		}
+
+		return Response.ok(new StreamingOutput() {
+			@Override
+			public void write(OutputStream output) throws IOException, WebApplicationException {
+				TuplePrefetcher[] sources = new TuplePrefetcher[dbs.length];
+				try {
+					for (int i = 0; i < dbs.length; i++) {
+						int end = i + 1 < dbs.length ? channelOffsets[i + 1] : merged.channels.size();
+						sources[i] = new TuplePrefetcher(dbs[i], merged.channels.subList(channelOffsets[i], end), 
+								Math.max(PREFETCH_BATCHES, 1), TupleBatch.FETCH_ROWS);
+					}
+					TupleMerger merger = new TupleMerger(sources, channelOffsets, isAligned);
+					TupleWriter writer = createTupleWriter(mediaType, output, merged);
+					TupleBatch batch = new TupleBatch(merged.channels, TupleBatch.FETCH_ROWS);
+					while (merger.next(batch, TupleBatch.FETCH_ROWS) > 0) {
+						writer.writeTuples(batch);
+					}
+					writer.close();
+				} catch (SQLTimeoutException e) {
+					e.printStackTrace();
+					throw WebExceptionBuilder.buildServiceUnavailable(e);
+				} catch (SQLException | UnsupportedOperationException e) {
+					e.printStackTrace();
+					throw WebExceptionBuilder.buildInternalServerError(e);
+				} catch (IllegalArgumentException e) {
+					e.printStackTrace();
+					throw WebExceptionBuilder.buildBadRequest(e);
+				} finally {
+					for (TuplePrefetcher source : sources) {
+						if (source != null) {
+							source.close();
+						}
+					}
+					closeAll(dbs);
+				}
+			}
+		}, mediaType).build();
 	}
 
-	private String getStreamJsonPrefix(Stream stream) throws JsonProcessingException {
-		ObjectMapper mapper = new ObjectMapper();
-		AnnotationIntrospector introspector = new JaxbAnnotationIntrospector();
-		mapper.setAnnotationIntrospector(introspector);
-		JSONObject json = (JSONObject)JSONValue.parse(mapper.writeValueAsString(stream));
-		String strJson = json.toString();
-		return strJson.substring(0, strJson.length() - 1) + ",\"tuples\":[";
+	private void closeAll(StreamDatabaseDriver[] dbs) {
+		for (StreamDatabaseDriver db : dbs) {
+			if (db != null) {
+				try {
+					db.close();
+				} catch (SQLException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private long getQueryTimeout() {
+		long timeout = QUERY_TIMEOUT_MS;
+		for (String role : new String[] { Roles.ADMIN, Roles.OWNER, Roles.CONSUMER }) {
+			if (securityContext.isUserInRole(role)) {
+				timeout = Long.getLong("sensorsafe.query.timeout_ms." + role, timeout);
+				break;
+			}
+		}
+		return Math.max(timeout, 0);
+	}
+
+	// Output format from the Accept header; JSON unless another supported format is preferred.
+	private MediaType selectTupleMediaType() {
+		Variant variant = request.selectVariant(TUPLE_VARIANTS);
+		return variant == null ? MediaType.APPLICATION_JSON_TYPE : variant.getMediaType();
+	}
+
+	private TupleWriter createTupleWriter(MediaType mediaType, OutputStream output, Stream stream) throws IOException {
+		if (mediaType.isCompatible(TUPLE_CSV_TYPE)) {
+			return new TupleCsvWriter(output, stream);
+		} else if (mediaType.isCompatible(TUPLE_NDJSON_TYPE)) {
+			return new TupleNdjsonWriter(output, stream);
+		} else if (mediaType.isCompatible(TUPLE_COLUMNAR_TYPE)) {
+			return new TupleColumnarWriter(output, stream);
+		} else if (mediaType.isCompatible(TUPLE_GORILLA_TYPE)) {
+			return new TupleGorillaWriter(output, stream);
+		}
+		return new TupleJsonWriter(output, stream);
+	}
+
+	// Returns the cursor of the next page, or null if this is the last page.
+	// With downsample > 0, at most about that many tuples are selected from the result as it is read, and written at its end.
+	// With prefetchBatches > 0, tuples are read on another thread while the previous batches are written.
+	private String writeStream(StreamDatabaseDriver db, boolean isData, MediaType mediaType, OutputStream output, StreamCursor cursor, int limit, 
+			int downsample, TupleDownsampler.Method downsampleMethod, int prefetchBatches) throws SQLException, IOException {
+		Stream stream = db.getStoredStreamInfoWithStatistics();
+		TupleWriter writer = createTupleWriter(mediaType, output, stream);
+		int numTuples = 0;
+		if (isData) {
+			TuplePrefetcher prefetcher = null;
+			TupleBatch batch = null;
+			TupleDownsampler downsampler = null;
+			TupleBatch points = null;
+			if (downsample > 0) {
+				downsampler = new TupleDownsampler(stream.channels, downsampleMethod, downsample);
+				points = new TupleBatch(stream.channels);
+			}
+			try {
+				if (prefetchBatches > 0) {
+					prefetcher = new TuplePrefetcher(db, stream.channels, prefetchBatches, TupleBatch.FETCH_ROWS);
+				} else {
+					batch = new TupleBatch(stream.channels, TupleBatch.FETCH_ROWS);
+				}
+				while (true) {
+					if (prefetcher != null) {
+						batch = prefetcher.next();
+						if (batch == null) {
+							break;
+						}
+					} else if (db.getNextTuples(batch, TupleBatch.FETCH_ROWS) == 0) {
+						break;
+					}
+					if (downsampler != null) {
+						downsampler.add(batch);
+						continue;
+					}
+					writer.writeTuples(batch);
+					if (cursor != null) {
+						cursor.advance(batch);
+					}
+					numTuples += batch.getSize();
+				}
+				if (downsampler != null) {
+					downsampler.finish(points);
+					writer.writeTuples(points);
+				}
+			} finally {
+				if (prefetcher != null) {
+					prefetcher.close();
+				}
+			}
+		}
+		String nextCursor = null;
+		if (cursor != null && numTuples == limit) {
+			nextCursor = cursor.encode();
+			writer.setNextCursor(nextCursor);
+		}
+		writer.close();
+		return nextCursor;
 	}
 
 	@RolesAllowed(Roles.OWNER)
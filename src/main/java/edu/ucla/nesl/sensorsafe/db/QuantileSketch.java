@@ -0,0 +1,190 @@
+package edu.ucla.nesl.sensorsafe.db;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+// KLL quantile sketch (Karnin, Lang and Liberty, 2016) of a set of doubles. Level h holds values that stand
+// for 2^h values each. When the sketch is over its capacity, the lowest full level is sorted and every other
+// value, from a random offset, moves up a level. The sketches of disjoint sets, e.g., of rollup buckets or
+// of streams, merge into a sketch of their union with the same error bound.
+//
+// With the default K = 200, the rank of getQuantile(q) is within about 1.65% of q * n with 99% confidence,
+// in at most about 3 * K values. Up to K values the result is exact, and min and max are always exact.
+public class QuantileSketch {
+
+	private static final int K = Integer.getInteger("sensorsafe.sketch.quantile_k", 200);
+	private static final int MIN_LEVEL_CAPACITY = 8;
+	private static final byte FORMAT = 1;
+
+	private double[][] levels = { new double[MIN_LEVEL_CAPACITY] };
+	private int[] sizes = new int[1];
+	private int numStored;
+	private int capacity = getCapacity(0);
+	private long numValues;
+	private double min;
+	private double max;
+
+	public long getNumValues() {
+		return numValues;
+	}
+
+	public void add(double value) {
+		addMinMax(value, value);
+		numValues++;
+		append(0, value);
+		compress();
+	}
+
+	public void merge(QuantileSketch other) {
+		if (other.numValues == 0) {
+			return;
+		}
+		addMinMax(other.min, other.max);
+		numValues += other.numValues;
+		for (int h = 0; h < other.levels.length; h++) {
+			for (int i = 0; i < other.sizes[h]; i++) {
+				append(h, other.levels[h][i]);
+			}
+		}
+		compress();
+	}
+
+	// The value of rank ceil(q * n), 0 <= q <= 1, or NaN if the sketch is empty.
+	public double getQuantile(double q) {
+		if (numValues == 0) {
+			return Double.NaN;
+		} else if (q <= 0) {
+			return min;
+		} else if (q >= 1) {
+			return max;
+		}
+
+		// Merges the sorted levels, from the smallest value up.
+		int[] positions = new int[levels.length];
+		for (int h = 0; h < levels.length; h++) {
+			Arrays.sort(levels[h], 0, sizes[h]);
+		}
+		double target = q * numValues;
+		long rank = 0;
+		while (true) {
+			int next = -1;
+			for (int h = 0; h < levels.length; h++) {
+				if (positions[h] < sizes[h] && (next < 0 || levels[h][positions[h]] < levels[next][positions[next]])) {
+					next = h;
+				}
+			}
+			if (next < 0) {
+				return max;
+			}
+			double value = levels[next][positions[next]++];
+			rank += 1L << next;
+			if (rank >= target) {
+				return value;
+			}
+		}
+	}
+
+	private void addMinMax(double otherMin, double otherMax) {
+		if (numValues == 0) {
+			min = otherMin;
+			max = otherMax;
+		} else {
+			min = Math.min(min, otherMin);
+			max = Math.max(max, otherMax);
+		}
+	}
+
+	private void append(int h, double value) {
+		while (h >= levels.length) {
+			levels = Arrays.copyOf(levels, levels.length + 1);
+			sizes = Arrays.copyOf(sizes, sizes.length + 1);
+			levels[levels.length - 1] = new double[MIN_LEVEL_CAPACITY];
+			updateCapacity();
+		}
+		if (sizes[h] == levels[h].length) {
+			levels[h] = Arrays.copyOf(levels[h], levels[h].length * 2);
+		}
+		levels[h][sizes[h]++] = value;
+		numStored++;
+	}
+
+	private void updateCapacity() {
+		capacity = 0;
+		for (int h = 0; h < levels.length; h++) {
+			capacity += getCapacity(h);
+		}
+	}
+
+	// Capacities shrink by 2/3 per level below the top one.
+	private int getCapacity(int h) {
+		int depth = levels.length - 1 - h;
+		return Math.max(MIN_LEVEL_CAPACITY, (int)Math.ceil(K * Math.pow(2.0 / 3.0, depth)));
+	}
+
+	private void compress() {
+		while (numStored > capacity) {
+			for (int h = 0; h < levels.length; h++) {
+				if (sizes[h] >= getCapacity(h)) {
+					compact(h);
+					break;
+				}
+			}
+		}
+	}
+
+	// Moves every other value of level h up a level. With an odd number of values, the smallest one stays.
+	private void compact(int h) {
+		double[] level = levels[h];
+		int size = sizes[h];
+		Arrays.sort(level, 0, size);
+		int kept = size % 2;
+		int offset = ThreadLocalRandom.current().nextBoolean() ? 1 : 0;
+		sizes[h] = kept;
+		numStored -= size - kept;
+		for (int i = kept + offset; i < size; i += 2) {
+			append(h + 1, level[i]);
+		}
+	}
+
+	public byte[] toBytes() {
+		ByteBuffer buffer = ByteBuffer.allocate(1 + 8 * 3 + 1 + 4 * levels.length + 8 * numStored);
+		buffer.put(FORMAT);
+		buffer.putLong(numValues);
+		buffer.putDouble(min);
+		buffer.putDouble(max);
+		buffer.put((byte)levels.length);
+		for (int h = 0; h < levels.length; h++) {
+			buffer.putInt(sizes[h]);
+			for (int i = 0; i < sizes[h]; i++) {
+				buffer.putDouble(levels[h][i]);
+			}
+		}
+		return buffer.array();
+	}
+
+	public static QuantileSketch fromBytes(byte[] bytes) {
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		if (buffer.get() != FORMAT) {
+			throw new IllegalArgumentException("Unknown quantile sketch format.");
+		}
+		QuantileSketch sketch = new QuantileSketch();
+		sketch.numValues = buffer.getLong();
+		sketch.min = buffer.getDouble();
+		sketch.max = buffer.getDouble();
+		int numLevels = buffer.get();
+		sketch.levels = new double[numLevels][];
+		sketch.sizes = new int[numLevels];
+		for (int h = 0; h < numLevels; h++) {
+			int size = buffer.getInt();
+			sketch.levels[h] = new double[Math.max(MIN_LEVEL_CAPACITY, size)];
+			sketch.sizes[h] = size;
+			for (int i = 0; i < size; i++) {
+				sketch.levels[h][i] = buffer.getDouble();
+			}
+			sketch.numStored += size;
+		}
+		sketch.updateCapacity();
+		return sketch;
+	}
+}
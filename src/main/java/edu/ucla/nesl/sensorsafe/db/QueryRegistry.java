@@ -0,0 +1,107 @@
+package edu.ucla.nesl.sensorsafe.db;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import edu.ucla.nesl.sensorsafe.tools.Log;
+
+// Queries with a timeout, from StreamDatabaseDriver.setQueryTimeout() until close(). A daemon thread
+// cancels the running statement or fetch of every query past its deadline. A query that has been waiting
+// for its caller for IDLE_TIMEOUT_MS, e.g., because the response that would have read and closed it is
+// never written, is closed, so that its connection and temp objects are released. Running queries are
+// only cancelled; their callers close them.
+public class QueryRegistry {
+
+	private static final long REAP_INTERVAL_MS = Long.getLong("sensorsafe.query.reap_interval_ms", 1000);
+	private static final long IDLE_TIMEOUT_MS = Long.getLong("sensorsafe.query.idle_timeout_ms", 600000);
+
+	public interface Query {
+		// Epoch milliseconds by which the running statement or fetch must finish, or 0 if none is running.
+		long getWorkDeadline();
+
+		// Epoch milliseconds since which the query has been waiting for its caller.
+		long getIdleSince();
+
+		// Interrupts the running statement or fetch from another thread.
+		void cancel();
+
+		// Closes the query unless it has been used since idleSince.
+		void closeIfIdleSince(long idleSince) throws SQLException;
+	}
+
+	private static final Set<Query> queries = Collections.newSetFromMap(new IdentityHashMap<Query, Boolean>());
+	private static final Set<Query> cancelled = Collections.newSetFromMap(new IdentityHashMap<Query, Boolean>());
+
+	private static final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "QueryReaper");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	static {
+		reaper.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				reap();
+			}
+		}, REAP_INTERVAL_MS, REAP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+	}
+
+	public static synchronized void register(Query query) {
+		queries.add(query);
+		cancelled.remove(query);
+	}
+
+	public static synchronized void unregister(Query query) {
+		queries.remove(query);
+		cancelled.remove(query);
+	}
+
+	private static void reap() {
+		long now = System.currentTimeMillis();
+		List<Query> toCancel = new ArrayList<Query>();
+		List<Query> toClose = new ArrayList<Query>();
+		List<Long> idleSinces = new ArrayList<Long>();
+		synchronized (QueryRegistry.class) {
+			for (Query query : queries) {
+				long deadline = query.getWorkDeadline();
+				if (deadline > 0) {
+					if (deadline <= now && cancelled.add(query)) {
+						toCancel.add(query);
+					}
+					continue;
+				}
+				long idleSince = query.getIdleSince();
+				if (idleSince + IDLE_TIMEOUT_MS <= now) {
+					toClose.add(query);
+					idleSinces.add(idleSince);
+				}
+			}
+		}
+
+		// Outside the lock, since cancel() and close talk to the database.
+		for (Query query : toCancel) {
+			Log.info("Cancelling a query past its deadline.");
+			query.cancel();
+		}
+		for (int i = 0; i < toClose.size(); i++) {
+			Log.info("Closing an abandoned query.");
+			try {
+				toClose.get(i).closeIfIdleSince(idleSinces.get(i));
+			} catch (SQLException | RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
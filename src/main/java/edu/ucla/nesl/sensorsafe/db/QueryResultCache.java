@@ -0,0 +1,271 @@
+package edu.ucla.nesl.sensorsafe.db;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import edu.ucla.nesl.sensorsafe.model.QueryCacheStats;
+import edu.ucla.nesl.sensorsafe.model.Stream;
+
+// Results of recent stream queries, so that dashboards re-issuing the same query skip rule resolution,
+// aggregation and the scan. Bounded by total size in bytes (least recently used first) and by a TTL.
+//
+// A key is the normalized query plus the policy version of the stream owner, which is bumped whenever
+// the owner's rules, macros or templates change, so results computed under old rules are never served.
+// Writes invalidate the entries whose query range overlaps the written range on the queried stream, and
+// any entry that reads the stream through a condition. A result is recorded while its query is read and
+// is only stored if no write touched it in the meantime, which is checked against a short log of recent
+// writes.
+public class QueryResultCache {
+
+	private static final long MAX_BYTES = Long.getLong("sensorsafe.query_cache.max_bytes", 64L * 1024 * 1024);
+	private static final long MAX_ENTRY_BYTES = Long.getLong("sensorsafe.query_cache.max_entry_bytes", 4L * 1024 * 1024);
+	private static final long TTL_MS = Long.getLong("sensorsafe.query_cache.ttl_ms", 30000);
+	private static final int WRITE_LOG_SIZE = 1024;
+
+	private static class Entry {
+		String owner;
+		int streamId;
+		int[] otherStreamIds;
+		long startMicros;
+		long endMicros;
+		Stream stream;
+		Stream descriptor;
+		long numSamples;
+		TupleBatch tuples;
+		long bytes;
+		long expireTime;
+
+		boolean isAffectedBy(int writeStreamId, long minMicros, long maxMicros) {
+			if (writeStreamId == streamId) {
+				return minMicros <= endMicros && maxMicros >= startMicros;
+			}
+			for (int id : otherStreamIds) {
+				if (id == writeStreamId) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private static class Write {
+		final long generation;
+		final int streamId;
+		final long minMicros;
+		final long maxMicros;
+
+		Write(long generation, int streamId, long minMicros, long maxMicros) {
+			this.generation = generation;
+			this.streamId = streamId;
+			this.minMicros = minMicros;
+			this.maxMicros = maxMicros;
+		}
+	}
+
+	// A cached result handed to a query. Stream copies are private to the caller; tuples are shared and
+	// must not be modified.
+	public static class Result {
+		public final Stream stream;
+		public final Stream descriptor;
+		public final TupleBatch tuples;
+
+		Result(Stream stream, Stream descriptor, TupleBatch tuples) {
+			this.stream = stream;
+			this.descriptor = descriptor;
+			this.tuples = tuples;
+		}
+	}
+
+	// Collects the result of one query while it is read, to be stored when the read completes.
+	public static class Recorder {
+		private final String key;
+		private final long generation;
+		private final Entry entry = new Entry();
+
+		private Recorder(String key, long generation) {
+			this.key = key;
+			this.generation = generation;
+		}
+
+		// Returns false once the result is too large to be cached; the recorder should be dropped then.
+		public boolean record(TupleBatch batch) {
+			entry.tuples.addRows(batch, 0, batch.getSize());
+			return entry.tuples.estimateBytes() <= MAX_ENTRY_BYTES;
+		}
+
+		// Stores the result if nothing changed it since the query started.
+		public void finish() {
+			put(key, generation, entry);
+		}
+	}
+
+	private static final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private static final Map<String, Long> policyVersions = new HashMap<String, Long>();
+	private static final ArrayDeque<Write> writeLog = new ArrayDeque<Write>();
+
+	private static long generation;
+	private static long usedBytes;
+	private static long numHits;
+	private static long numMisses;
+	private static long numEvictions;
+	private static long numInvalidations;
+
+	public static boolean isEnabled() {
+		return MAX_BYTES > 0;
+	}
+
+	// Normalized key of a query under the current policy version of the owner.
+	public static synchronized String getKey(String requestingUser, String owner, String streamName, Object... params) {
+		Long version = policyVersions.get(owner);
+		StringBuilder key = new StringBuilder();
+		key.append(version == null ? 0 : version).append('\0')
+				.append(requestingUser).append('\0')
+				.append(owner).append('\0')
+				.append(streamName);
+		for (Object param : params) {
+			key.append('\0').append(param);
+		}
+		return key.toString();
+	}
+
+	public static synchronized Result get(String key) {
+		Entry entry = entries.get(key);
+		if (entry != null && entry.expireTime < System.currentTimeMillis()) {
+			remove(key, entry);
+			entry = null;
+		}
+		if (entry == null) {
+			numMisses++;
+			return null;
+		}
+		numHits++;
+		Stream stream = new Stream(entry.stream);
+		stream.num_samples = entry.numSamples;
+		return new Result(stream, new Stream(entry.descriptor), entry.tuples);
+	}
+
+	// Taken when a query that missed the cache starts, for newRecorder().
+	public static synchronized long getGeneration() {
+		return generation;
+	}
+
+	// Records the result of a query that started at generation. startMicros and endMicros are the query
+	// range, Long.MIN_VALUE and Long.MAX_VALUE if open. otherStreamIds are the streams read by conditions.
+	public static Recorder newRecorder(String key, long generation, String owner, int streamId, Collection<Integer> otherStreamIds,
+			long startMicros, long endMicros, Stream stream, Stream descriptor) {
+		Recorder recorder = new Recorder(key, generation);
+		Entry entry = recorder.entry;
+		entry.owner = owner;
+		entry.streamId = streamId;
+		entry.otherStreamIds = new int[otherStreamIds.size()];
+		int i = 0;
+		for (int id : otherStreamIds) {
+			entry.otherStreamIds[i++] = id;
+		}
+		entry.startMicros = startMicros;
+		entry.endMicros = endMicros;
+		entry.stream = new Stream(stream);
+		entry.numSamples = stream.num_samples;
+		entry.descriptor = new Stream(descriptor);
+		entry.tuples = new TupleBatch(stream.channels);
+		return recorder;
+	}
+
+	private static synchronized void put(String key, long startGeneration, Entry entry) {
+		// The write log must reach back to when the query started.
+		if (startGeneration < generation && (writeLog.isEmpty() || writeLog.peekFirst().generation > startGeneration + 1)) {
+			return;
+		}
+		for (Write write : writeLog) {
+			if (write.generation > startGeneration && entry.isAffectedBy(write.streamId, write.minMicros, write.maxMicros)) {
+				return;
+			}
+		}
+
+		entry.bytes = entry.tuples.estimateBytes() + key.length() * 2L;
+		entry.expireTime = System.currentTimeMillis() + TTL_MS;
+		Entry old = entries.get(key);
+		if (old != null) {
+			remove(key, old);
+		}
+		entries.put(key, entry);
+		usedBytes += entry.bytes;
+
+		Iterator<Entry> iter = entries.values().iterator();
+		while (usedBytes > MAX_BYTES && iter.hasNext()) {
+			Entry eldest = iter.next();
+			iter.remove();
+			usedBytes -= eldest.bytes;
+			numEvictions++;
+		}
+	}
+
+	private static void remove(String key, Entry entry) {
+		entries.remove(key);
+		usedBytes -= entry.bytes;
+	}
+
+	// Called after tuples in [minMicros, maxMicros] of the stream were written or deleted.
+	public static synchronized void invalidateRange(int streamId, long minMicros, long maxMicros) {
+		generation++;
+		writeLog.addLast(new Write(generation, streamId, minMicros, maxMicros));
+		if (writeLog.size() > WRITE_LOG_SIZE) {
+			writeLog.removeFirst();
+		}
+
+		Iterator<Entry> iter = entries.values().iterator();
+		while (iter.hasNext()) {
+			Entry entry = iter.next();
+			if (entry.isAffectedBy(streamId, minMicros, maxMicros)) {
+				iter.remove();
+				usedBytes -= entry.bytes;
+				numInvalidations++;
+			}
+		}
+	}
+
+	public static void invalidateStream(int streamId) {
+		invalidateRange(streamId, Long.MIN_VALUE, Long.MAX_VALUE);
+	}
+
+	// Called after rules, macros or templates of the owner changed.
+	public static synchronized void invalidatePolicies(String owner) {
+		Long version = policyVersions.get(owner);
+		policyVersions.put(owner, version == null ? 1 : version + 1);
+
+		Iterator<Entry> iter = entries.values().iterator();
+		while (iter.hasNext()) {
+			Entry entry = iter.next();
+			if (owner.equals(entry.owner)) {
+				iter.remove();
+				usedBytes -= entry.bytes;
+				numInvalidations++;
+			}
+		}
+	}
+
+	public static synchronized void clear() {
+		generation++;
+		writeLog.clear();
+		numInvalidations += entries.size();
+		entries.clear();
+		usedBytes = 0;
+	}
+
+	public static synchronized QueryCacheStats getStats() {
+		QueryCacheStats stats = new QueryCacheStats();
+		stats.hits = numHits;
+		stats.misses = numMisses;
+		stats.hitRatio = numHits + numMisses > 0 ? (double)numHits / (numHits + numMisses) : 0;
+		stats.entries = entries.size();
+		stats.usedBytes = usedBytes;
+		stats.maxBytes = MAX_BYTES;
+		stats.evictions = numEvictions;
+		stats.invalidations = numInvalidations;
+		return stats;
+	}
+}
@@ -0,0 +1,100 @@
+package edu.ucla.nesl.sensorsafe.db;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+import javax.xml.bind.DatatypeConverter;
+
+// Position in the result of a stream query, for keyset pagination.
+// A page resumes at "timestamp >= last timestamp", skipping only the rows at the last timestamp that were
+// already returned, so the cost of a page does not depend on how deep it is. The fingerprint of the query
+// is kept in the token so that a cursor is not used with a different query.
+//
+// Token: URL-safe base64 of version byte, int64 last timestamp in epoch microseconds, int32 number of rows
+// returned at the last timestamp, int32 query fingerprint.
+public class StreamCursor {
+
+	private static final byte VERSION = 1;
+	private static final int TOKEN_LENGTH = 17;
+
+	private final int fingerprint;
+	private long timestamp;
+	private int numAtTimestamp;
+
+	public StreamCursor(int fingerprint) {
+		this.fingerprint = fingerprint;
+	}
+
+	// Fingerprint of the parameters that define a query result, regardless of page size.
+	public static int fingerprint(String... params) {
+		CRC32 crc32 = new CRC32();
+		for (String param : params) {
+			if (param != null) {
+				crc32.update(param.getBytes(StandardCharsets.UTF_8));
+			}
+			crc32.update(param == null ? 1 : 0);
+		}
+		return (int)crc32.getValue();
+	}
+
+	public static StreamCursor decode(String token, int fingerprint) {
+		StringBuilder base64 = new StringBuilder(token.replace('-', '+').replace('_', '/'));
+		while (base64.length() % 4 != 0) {
+			base64.append('=');
+		}
+		byte[] bytes;
+		try {
+			bytes = DatatypeConverter.parseBase64Binary(base64.toString());
+		} catch (IllegalArgumentException e) {
+			bytes = null;
+		}
+		if (bytes == null || bytes.length != TOKEN_LENGTH || bytes[0] != VERSION) {
+			throw new IllegalArgumentException("Invalid cursor.");
+		}
+		ByteBuffer buf = ByteBuffer.wrap(bytes, 1, TOKEN_LENGTH - 1);
+		StreamCursor cursor = new StreamCursor(fingerprint);
+		cursor.timestamp = buf.getLong();
+		cursor.numAtTimestamp = buf.getInt();
+		if (buf.getInt() != fingerprint || cursor.numAtTimestamp <= 0) {
+			throw new IllegalArgumentException("Cursor does not belong to this query.");
+		}
+		return cursor;
+	}
+
+	public String encode() {
+		ByteBuffer buf = ByteBuffer.allocate(TOKEN_LENGTH);
+		buf.put(VERSION);
+		buf.putLong(timestamp);
+		buf.putInt(numAtTimestamp);
+		buf.putInt(fingerprint);
+		String token = DatatypeConverter.printBase64Binary(buf.array());
+		return token.replace('+', '-').replace('/', '_').replace("=", "");
+	}
+
+	// False until the cursor is decoded from a token or advanced over a row.
+	public boolean hasPosition() {
+		return numAtTimestamp > 0;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public int getNumAtTimestamp() {
+		return numAtTimestamp;
+	}
+
+	// Moves the cursor past the rows of the batch, which follow the current position in timestamp order.
+	public void advance(TupleBatch batch) {
+		for (int row = 0; row < batch.getSize(); row++) {
+			long ts = batch.getTimestamp(row);
+			if (numAtTimestamp > 0 && ts == timestamp) {
+				numAtTimestamp++;
+			} else {
+				timestamp = ts;
+				numAtTimestamp = 1;
+			}
+		}
+	}
+}
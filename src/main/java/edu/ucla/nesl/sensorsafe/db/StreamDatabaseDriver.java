@@ -1,6 +1,7 @@
 package edu.ucla.nesl.sensorsafe.db;
 
 import java.io.IOException;
+import java.io.Reader;
 import java.security.NoSuchAlgorithmException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -25,7 +26,13 @@ public interface StreamDatabaseDriver extends DatabaseDriver {
 	
 	public void createStream(Stream stream) throws SQLException, ClassNotFoundException;
 	
-	public void addTuple(String owner, String streamName, String strTuple) throws SQLException;
+	public int addTuple(String owner, String streamName, String strTuple) throws SQLException;
+
+	public TupleBatch createTupleBatch(String owner, String streamName) throws SQLException;
+
+	public void decodeTuples(String owner, String streamName, String strTuple, TupleBatch batch) throws SQLException;
+
+	public int addTuples(String owner, String streamName, TupleBatch batch) throws SQLException;
 	
 	public boolean prepareQuery(String requestingUser,	 String streamOwner
 			, String streamName, String startTime, String endTime
@@ -34,6 +41,15 @@ public interface StreamDatabaseDriver extends DatabaseDriver {
 			, boolean isUpdateNumSamples
 			, String streamForRules) 
 					throws SQLException, JsonProcessingException, ClassNotFoundException;
+
+	// Same as above, but resumes after the position of cursor (if not null) instead of skipping offset rows.
+	public boolean prepareQuery(String requestingUser,	 String streamOwner
+			, String streamName, String startTime, String endTime
+			, String aggregator, String filter
+			, int limit, int offset, StreamCursor cursor, int skipEveryNth
+			, boolean isUpdateNumSamples
+			, String streamForRules) 
+					throws SQLException, JsonProcessingException, ClassNotFoundException;
 	
 	public Stream getStream(String owner, String name) 	throws SQLException;
 	
@@ -49,6 +65,8 @@ public interface StreamDatabaseDriver extends DatabaseDriver {
 
 	public void bulkLoad(String owner, String streamName, String data) throws SQLException, IOException, NoSuchAlgorithmException;
 
+	public void bulkLoad(String owner, String streamName, Reader data) throws SQLException, IOException, NoSuchAlgorithmException;
+
 	public void addOrUpdateMacro(String owner, Macro macro) throws SQLException;
 
 	public List<Macro> getMacros(String owner) throws SQLException;
@@ -67,10 +85,23 @@ public interface StreamDatabaseDriver extends DatabaseDriver {
 
 	public Stream getStoredStreamInfo();
 
+	public Stream getStoredStreamInfoWithStatistics() throws SQLException;
+
 	public Object[] getNextTuple() throws SQLException;
 
 	public ResultSet getStoredResultSet();
 
 	public boolean getNextTuple(Object[] tuple) throws SQLException;
 
+	// Clears batch and fills it with up to maxRows next tuples of the prepared query. Returns the number of tuples, 0 at the end.
+	public int getNextTuples(TupleBatch batch, int maxRows) throws SQLException;
+
+	// Milliseconds the following queries may spend executing statements and fetching rows, 0 for none. Time
+	// the caller spends between fetches, e.g., writing to a slow client, does not count. Statements past it
+	// fail with SQLTimeoutException, and QueryRegistry closes the driver if it is left unread.
+	public void setQueryTimeout(long timeoutMs);
+
+	// Cancels the running statement, if any, from another thread. The query fails with SQLTimeoutException.
+	public void cancel();
+
 }
@@ -0,0 +1,275 @@
+package edu.ucla.nesl.sensorsafe.db;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.ucla.nesl.sensorsafe.model.Channel;
+
+// Columnar buffer of tuples for one stream schema.
+// Timestamps are epoch microseconds. Each channel has one primitive column: double for float channels,
+// int for int channels, and dictionary codes for text channels. Null values, which only come from query
+// results, are tracked per channel once the first one is set. The buffer is meant to be cleared and
+// reused, so that steady-state decoding does not allocate per tuple.
+public class TupleBatch {
+
+	public static final byte TYPE_FLOAT = 0;
+	public static final byte TYPE_INT = 1;
+	public static final byte TYPE_TEXT = 2;
+
+	// Rows per StreamDatabaseDriver.getNextTuples() call when reading query results.
+	public static final int FETCH_ROWS = 4096;
+
+	private static final int DEFAULT_CAPACITY = 256;
+
+	private final byte[] types;
+	private int size;
+	private long[] timestamps;
+	private final double[][] doubleColumns;
+	private final int[][] intColumns;
+	private final boolean[][] nullColumns;
+
+	private final List<String> dictionary = new ArrayList<String>();
+	private final Map<String, Integer> dictionaryCodes = new HashMap<String, Integer>();
+
+	public TupleBatch(List<Channel> channels) {
+		this(channels, DEFAULT_CAPACITY);
+	}
+
+	public TupleBatch(List<Channel> channels, int capacity) {
+		types = new byte[channels.size()];
+		doubleColumns = new double[channels.size()][];
+		intColumns = new int[channels.size()][];
+		nullColumns = new boolean[channels.size()][];
+		timestamps = new long[capacity];
+		for (int i = 0; i < types.length; i++) {
+			String type = channels.get(i).type;
+			if (type.equals("float")) {
+				types[i] = TYPE_FLOAT;
+				doubleColumns[i] = new double[capacity];
+			} else if (type.equals("int")) {
+				types[i] = TYPE_INT;
+				intColumns[i] = new int[capacity];
+			} else if (type.equals("text")) {
+				types[i] = TYPE_TEXT;
+				intColumns[i] = new int[capacity];
+			} else {
+				throw new IllegalArgumentException("Unsupported channel type: " + type);
+			}
+		}
+	}
+
+	public boolean isSchemaOf(List<Channel> channels) {
+		if (channels.size() != types.length) {
+			return false;
+		}
+		for (int i = 0; i < types.length; i++) {
+			String type = channels.get(i).type;
+			if (!(types[i] == TYPE_FLOAT && type.equals("float"))
+					&& !(types[i] == TYPE_INT && type.equals("int"))
+					&& !(types[i] == TYPE_TEXT && type.equals("text"))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public int getNumChannels() {
+		return types.length;
+	}
+
+	public byte getType(int channel) {
+		return types[channel];
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public void clear() {
+		for (boolean[] nulls : nullColumns) {
+			if (nulls != null) {
+				Arrays.fill(nulls, 0, size, false);
+			}
+		}
+		size = 0;
+		dictionary.clear();
+		dictionaryCodes.clear();
+	}
+
+	// Appends a row with the given timestamp and returns its index. Values are set with the setters.
+	public int addRow(long timestampMicros) {
+		if (size == timestamps.length) {
+			grow();
+		}
+		timestamps[size] = timestampMicros;
+		return size++;
+	}
+
+	// Drops the rows from index size on, e.g., the rows of a request that turned out to be malformed.
+	public void truncate(int size) {
+		if (size < this.size) {
+			this.size = Math.max(size, 0);
+		}
+	}
+
+	private void grow() {
+		int capacity = Math.max(timestamps.length * 2, DEFAULT_CAPACITY);
+		timestamps = Arrays.copyOf(timestamps, capacity);
+		for (int i = 0; i < types.length; i++) {
+			if (doubleColumns[i] != null) {
+				doubleColumns[i] = Arrays.copyOf(doubleColumns[i], capacity);
+			}
+			if (intColumns[i] != null) {
+				intColumns[i] = Arrays.copyOf(intColumns[i], capacity);
+			}
+			if (nullColumns[i] != null) {
+				nullColumns[i] = Arrays.copyOf(nullColumns[i], capacity);
+			}
+		}
+	}
+
+	public long getTimestamp(int row) {
+		return timestamps[row];
+	}
+
+	public void setTimestamp(int row, long timestampMicros) {
+		timestamps[row] = timestampMicros;
+	}
+
+	public double getDouble(int row, int channel) {
+		return types[channel] == TYPE_INT ? intColumns[channel][row] : doubleColumns[channel][row];
+	}
+
+	public void setDouble(int row, int channel, double value) {
+		doubleColumns[channel][row] = value;
+		if (nullColumns[channel] != null) {
+			nullColumns[channel][row] = false;
+		}
+	}
+
+	public int getInt(int row, int channel) {
+		return intColumns[channel][row];
+	}
+
+	public void setInt(int row, int channel, int value) {
+		intColumns[channel][row] = value;
+		if (nullColumns[channel] != null) {
+			nullColumns[channel][row] = false;
+		}
+	}
+
+	public String getText(int row, int channel) {
+		if (isNull(row, channel)) {
+			return null;
+		}
+		return dictionary.get(intColumns[channel][row]);
+	}
+
+	public void setText(int row, int channel, String value) {
+		Integer code = dictionaryCodes.get(value);
+		if (code == null) {
+			code = dictionary.size();
+			dictionary.add(value);
+			dictionaryCodes.put(value, code);
+		}
+		intColumns[channel][row] = code;
+		if (nullColumns[channel] != null) {
+			nullColumns[channel][row] = false;
+		}
+	}
+
+	public boolean isNull(int row, int channel) {
+		return nullColumns[channel] != null && nullColumns[channel][row];
+	}
+
+	// Numeric getters return 0 for a null value.
+	public void setNull(int row, int channel) {
+		if (nullColumns[channel] == null) {
+			nullColumns[channel] = new boolean[timestamps.length];
+		}
+		nullColumns[channel][row] = true;
+		if (doubleColumns[channel] != null) {
+			doubleColumns[channel][row] = 0;
+		} else {
+			intColumns[channel][row] = 0;
+		}
+	}
+
+	// Appends numRows rows of from, starting at fromRow. from must have the same schema.
+	public void addRows(TupleBatch from, int fromRow, int numRows) {
+		for (int fromIdx = fromRow; fromIdx < fromRow + numRows; fromIdx++) {
+			copyValues(from, fromIdx, addRow(from.timestamps[fromIdx]), 0);
+		}
+	}
+
+	// Sets the channels from channelOffset on of row to the values of fromRow. The channels of from must
+	// match those channels of this batch.
+	public void copyValues(TupleBatch from, int fromRow, int row, int channelOffset) {
+		for (int fromChannel = 0; fromChannel < from.types.length; fromChannel++) {
+			int i = channelOffset + fromChannel;
+			if (from.isNull(fromRow, fromChannel)) {
+				setNull(row, i);
+			} else if (types[i] == TYPE_FLOAT) {
+				setDouble(row, i, from.doubleColumns[fromChannel][fromRow]);
+			} else if (types[i] == TYPE_INT) {
+				setInt(row, i, from.intColumns[fromChannel][fromRow]);
+			} else {
+				setText(row, i, from.getText(fromRow, fromChannel));
+			}
+		}
+	}
+
+	// Approximate heap size in bytes, counting allocated capacity rather than rows.
+	public long estimateBytes() {
+		long bytes = timestamps.length * 8L;
+		for (int i = 0; i < types.length; i++) {
+			if (doubleColumns[i] != null) {
+				bytes += doubleColumns[i].length * 8L;
+			}
+			if (intColumns[i] != null) {
+				bytes += intColumns[i].length * 4L;
+			}
+			if (nullColumns[i] != null) {
+				bytes += nullColumns[i].length;
+			}
+		}
+		for (String text : dictionary) {
+			// String, char array and map entry overheads.
+			bytes += 96 + text.length() * 2L;
+		}
+		return bytes;
+	}
+
+	public boolean isNumeric(int channel) {
+		return types[channel] != TYPE_TEXT;
+	}
+
+	// Sets ts to the given epoch microseconds and returns it.
+	public static Timestamp toTimestamp(long micros, Timestamp ts) {
+		long seconds = micros / 1000000;
+		int microsOfSecond = (int)(micros % 1000000);
+		if (microsOfSecond < 0) {
+			microsOfSecond += 1000000;
+			seconds--;
+		}
+		ts.setTime(seconds * 1000);
+		ts.setNanos(microsOfSecond * 1000);
+		return ts;
+	}
+
+	public static long toMillis(long micros) {
+		return micros >= 0 ? micros / 1000 : (micros - 999) / 1000;
+	}
+
+	public static long toMicros(Timestamp ts) {
+		long seconds = ts.getTime() / 1000;
+		if (ts.getTime() % 1000 < 0) {
+			seconds--;
+		}
+		return seconds * 1000000 + ts.getNanos() / 1000;
+	}
+}
@@ -0,0 +1,269 @@
+package edu.ucla.nesl.sensorsafe.db;
+
+import java.util.List;
+
+import edu.ucla.nesl.sensorsafe.model.Channel;
+
+// Reduces a time-ordered query result to at most numPoints tuples for charts, in one pass over the result
+// and without knowing its number of rows in advance. Results of at most numPoints rows are kept whole.
+// Selected tuples are copied whole.
+//
+//   MINMAX: the rows are split into buckets of 2^k consecutive rows, and per bucket the tuples with the
+//           minimum and the maximum of every numeric channel are kept, in time order, so that spikes
+//           survive. Whenever there are maxBuckets buckets, pairs of them are merged and the bucket size
+//           doubles. The minimum and the maximum of a merged bucket are among the tuples kept for its halves,
+//           so the result is the same as with buckets sized from the number of rows up front.
+//   LTTB:   Largest-Triangle-Three-Buckets on the first numeric channel, over the minimum and the maximum of
+//           that channel in PRESELECT_RATIO times as many buckets (MinMaxLTTB, Van Der Donckt et al., 2023):
+//           the first and the last tuple, and per bucket the tuple that forms the largest triangle with the
+//           previously selected tuple and the average of the next bucket.
+//
+// At most numPoints raw rows and the kept tuples are in memory. Everything is appended by finish().
+public class TupleDownsampler {
+
+	public static enum Method { MINMAX, LTTB };
+
+	private static final int PRESELECT_RATIO = 4;
+
+	private final Method method;
+	private final List<Channel> channels;
+	private final int numPoints;
+	private final int keyChannel;
+	private final int maxBuckets;
+
+	// The rows so far while there are at most numPoints of them, then null.
+	private TupleBatch raw;
+
+	// Tuples kept for the complete buckets, bucketStarts[b] being the first one of bucket b.
+	private TupleBatch kept;
+	private final int[] bucketStarts;
+	private int numBuckets;
+
+	// Rows of the current bucket, and the size of the buckets in rows.
+	private TupleBatch bucket;
+	private long numBucketRows;
+	private long bucketSize = 1;
+
+	private final TupleBatch first;
+	private final TupleBatch last;
+
+	public TupleDownsampler(List<Channel> channels, Method method, int numPoints) {
+		if (numPoints < 3) {
+			throw new IllegalArgumentException("At least 3 points are required for downsampling.");
+		}
+		this.method = method;
+		this.channels = channels;
+		this.numPoints = numPoints;
+		raw = new TupleBatch(channels);
+		kept = new TupleBatch(channels);
+		bucket = new TupleBatch(channels);
+		first = new TupleBatch(channels, 1);
+		last = new TupleBatch(channels, 1);
+
+		int key = -1;
+		for (int i = 0; i < channels.size() && key < 0; i++) {
+			if (raw.isNumeric(i)) {
+				key = i;
+			}
+		}
+		keyChannel = key;
+
+		// An even number, so that merged buckets start at multiples of the doubled size.
+		int buckets = method == Method.MINMAX ? numPoints / 2 : numPoints * PRESELECT_RATIO / 2;
+		maxBuckets = Math.max(2, buckets & ~1);
+		bucketStarts = new int[maxBuckets + 1];
+	}
+
+	public static Method parseMethod(String method) {
+		if (method == null) {
+			return Method.MINMAX;
+		}
+		try {
+			return Method.valueOf(method.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Unknown downsampling method: " + method);
+		}
+	}
+
+	// Reads the rows of batch. The selected tuples are appended by finish().
+	public void add(TupleBatch batch) {
+		if (batch.getSize() == 0) {
+			return;
+		}
+		if (first.getSize() == 0) {
+			first.addRows(batch, 0, 1);
+		}
+		last.clear();
+		last.addRows(batch, batch.getSize() - 1, 1);
+
+		if (raw != null) {
+			if (raw.getSize() + batch.getSize() <= numPoints) {
+				raw.addRows(batch, 0, batch.getSize());
+			} else {
+				raw = null;
+			}
+		}
+
+		for (int row = 0; row < batch.getSize(); row++) {
+			bucket.addRows(batch, row, 1);
+			if (++numBucketRows == bucketSize) {
+				closeBucket();
+			}
+		}
+	}
+
+	private void closeBucket() {
+		bucketStarts[numBuckets++] = kept.getSize();
+		selectMinMax(bucket, 0, bucket.getSize(), kept);
+		bucket.clear();
+		numBucketRows = 0;
+		if (numBuckets == maxBuckets) {
+			mergeBuckets();
+		}
+	}
+
+	// Merges pairs of buckets and doubles the bucket size.
+	private void mergeBuckets() {
+		TupleBatch merged = new TupleBatch(channels, kept.getSize());
+		bucketStarts[numBuckets] = kept.getSize();
+		for (int b = 0; b < numBuckets; b += 2) {
+			int start = bucketStarts[b];
+			bucketStarts[b / 2] = merged.getSize();
+			selectMinMax(kept, start, bucketStarts[b + 2], merged);
+		}
+		numBuckets /= 2;
+		kept = merged;
+		bucketSize *= 2;
+	}
+
+	// Appends the selected tuples to out.
+	public void finish(TupleBatch out) {
+		if (first.getSize() == 0) {
+			return;
+		}
+		if (raw != null) {
+			out.addRows(raw, 0, raw.getSize());
+			return;
+		}
+		if (bucket.getSize() > 0) {
+			bucketStarts[numBuckets++] = kept.getSize();
+			selectMinMax(bucket, 0, bucket.getSize(), kept);
+			bucket.clear();
+		}
+		if (method == Method.MINMAX) {
+			out.addRows(kept, 0, kept.getSize());
+		} else {
+			selectLargestTriangles(out);
+		}
+	}
+
+	// Appends the rows [from, to) of in that hold the minimum or the maximum of a channel to out, in order.
+	// MINMAX looks at every numeric channel, LTTB at its key channel only. Without any, the first row is kept.
+	private void selectMinMax(TupleBatch in, int from, int to, TupleBatch out) {
+		boolean[] isSelected = new boolean[to - from];
+		boolean hasNumeric = false;
+		for (int i = 0; i < in.getNumChannels(); i++) {
+			if (!in.isNumeric(i) || (method == Method.LTTB && i != keyChannel)) {
+				continue;
+			}
+			hasNumeric = true;
+			int minRow = -1;
+			int maxRow = -1;
+			for (int row = from; row < to; row++) {
+				if (in.isNull(row, i)) {
+					continue;
+				}
+				double value = in.getDouble(row, i);
+				if (minRow < 0 || value < in.getDouble(minRow, i)) {
+					minRow = row;
+				}
+				if (maxRow < 0 || value > in.getDouble(maxRow, i)) {
+					maxRow = row;
+				}
+			}
+			if (minRow >= 0) {
+				isSelected[minRow - from] = true;
+				isSelected[maxRow - from] = true;
+			}
+		}
+		if (!hasNumeric && to > from) {
+			isSelected[0] = true;
+		}
+		for (int row = from; row < to; row++) {
+			if (isSelected[row - from]) {
+				out.addRows(in, row, 1);
+			}
+		}
+	}
+
+	// LTTB over the first tuple, the preselected tuples and the last tuple.
+	private void selectLargestTriangles(TupleBatch out) {
+		TupleBatch points = new TupleBatch(channels, kept.getSize() + 2);
+		points.addRows(first, 0, 1);
+		for (int row = 0; row < kept.getSize(); row++) {
+			long ts = kept.getTimestamp(row);
+			if (ts != first.getTimestamp(0) && ts != last.getTimestamp(0)) {
+				points.addRows(kept, row, 1);
+			}
+		}
+		points.addRows(last, 0, 1);
+
+		int n = points.getSize();
+		if (n <= numPoints) {
+			out.addRows(points, 0, n);
+			return;
+		}
+
+		// Buckets of the points between the first and the last one.
+		double every = (double)(n - 2) / (numPoints - 2);
+		int selected = 0;
+		out.addRows(points, 0, 1);
+		for (int b = 0; b < numPoints - 2; b++) {
+			int start = (int)Math.floor(b * every) + 1;
+			int end = (int)Math.floor((b + 1) * every) + 1;
+			int nextEnd = Math.min((int)Math.floor((b + 2) * every) + 1, n);
+
+			// Relative to the selected tuple, so that epoch microseconds keep their precision.
+			long selectedTimestamp = points.getTimestamp(selected);
+			double selectedValue = keyValue(points, selected);
+			double nextX = 0;
+			double nextY = 0;
+			int count = 0;
+			for (int row = end; row < nextEnd; row++) {
+				double value = keyValue(points, row);
+				if (!Double.isNaN(value)) {
+					nextX += points.getTimestamp(row) - selectedTimestamp;
+					nextY += value - selectedValue;
+					count++;
+				}
+			}
+
+			int bestRow = start;
+			if (count > 0 && !Double.isNaN(selectedValue)) {
+				nextX /= count;
+				nextY /= count;
+				double bestArea = -1;
+				for (int row = start; row < end; row++) {
+					double value = keyValue(points, row);
+					if (Double.isNaN(value)) {
+						continue;
+					}
+					double x = points.getTimestamp(row) - selectedTimestamp;
+					double y = value - selectedValue;
+					double area = Math.abs(x * nextY - nextX * y);
+					if (area > bestArea) {
+						bestArea = area;
+						bestRow = row;
+					}
+				}
+			}
+			out.addRows(points, bestRow, 1);
+			selected = bestRow;
+		}
+		out.addRows(points, n - 1, 1);
+	}
+
+	private double keyValue(TupleBatch batch, int row) {
+		return keyChannel < 0 || batch.isNull(row, keyChannel) ? Double.NaN : batch.getDouble(row, keyChannel);
+	}
+}
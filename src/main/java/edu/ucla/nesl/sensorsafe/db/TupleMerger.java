@@ -0,0 +1,70 @@
+package edu.ucla.nesl.sensorsafe.db;
+
+import java.io.IOException;
+import java.sql.SQLException;
+
+// Merges the time-ordered results of several queries into batches that have the channels of all of them,
+// the channels of source i starting at channelOffsets[i]. Interleaved, every source tuple becomes one row
+// with the channels of the other sources null. Aligned, the tuples of the sources with the same timestamp
+// are joined into one row, and sources without a tuple at that timestamp are null.
+public class TupleMerger {
+
+	private final TuplePrefetcher[] sources;
+	private final int[] channelOffsets;
+	private final boolean isAligned;
+	private final TupleBatch[] batches;
+	private final int[] positions;
+	private final boolean[] isDone;
+
+	public TupleMerger(TuplePrefetcher[] sources, int[] channelOffsets, boolean isAligned) {
+		this.sources = sources;
+		this.channelOffsets = channelOffsets;
+		this.isAligned = isAligned;
+		batches = new TupleBatch[sources.length];
+		positions = new int[sources.length];
+		isDone = new boolean[sources.length];
+	}
+
+	// Replaces the content of batch with up to maxRows merged rows. Returns the number of rows, 0 at the end.
+	public int next(TupleBatch batch, int maxRows) throws SQLException, IOException {
+		batch.clear();
+		while (batch.getSize() < maxRows) {
+			long timestamp = Long.MAX_VALUE;
+			boolean hasTuple = false;
+			for (int i = 0; i < sources.length; i++) {
+				if (fill(i)) {
+					timestamp = Math.min(timestamp, batches[i].getTimestamp(positions[i]));
+					hasTuple = true;
+				}
+			}
+			if (!hasTuple) {
+				break;
+			}
+
+			int row = batch.addRow(timestamp);
+			for (int i = 0; i < batch.getNumChannels(); i++) {
+				batch.setNull(row, i);
+			}
+			for (int i = 0; i < sources.length; i++) {
+				if (fill(i) && batches[i].getTimestamp(positions[i]) == timestamp) {
+					batch.copyValues(batches[i], positions[i], row, channelOffsets[i]);
+					positions[i]++;
+					if (!isAligned) {
+						break;
+					}
+				}
+			}
+		}
+		return batch.getSize();
+	}
+
+	// Makes sure source i has a current tuple. Returns false if it has no more tuples.
+	private boolean fill(int i) throws SQLException, IOException {
+		while (!isDone[i] && (batches[i] == null || positions[i] >= batches[i].getSize())) {
+			batches[i] = sources[i].next();
+			positions[i] = 0;
+			isDone[i] = batches[i] == null;
+		}
+		return !isDone[i];
+	}
+}
@@ -0,0 +1,161 @@
+package edu.ucla.nesl.sensorsafe.db;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import edu.ucla.nesl.sensorsafe.model.Channel;
+
+// Reads the result of a prepared query on a separate thread, ahead of the caller, so that database round
+// trips overlap with encoding and writing the response. The reader fills a fixed ring of batches; once
+// all of them are waiting for the caller, it stops reading until one is handed back, so memory stays
+// bounded and a slow client slows down the cursor. The driver must not be used by the caller until
+// close() returns.
+//
+// At most MAX_READERS readers run at a time. When they are all busy, the prefetcher reads on the caller's
+// thread instead, without reading ahead.
+public class TuplePrefetcher implements Closeable {
+
+	private static final long POLL_MS = 100;
+
+	private static final int MAX_READERS = Integer.getInteger("sensorsafe.query.prefetch_threads", 32);
+
+	private static final ThreadPoolExecutor readerPool = new ThreadPoolExecutor(0, MAX_READERS, 
+			60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+
+	private static final TupleBatch END = new TupleBatch(new ArrayList<Channel>(), 1);
+
+	private final StreamDatabaseDriver db;
+	private final int batchRows;
+	private final BlockingQueue<TupleBatch> freeBatches;
+	private final BlockingQueue<TupleBatch> fullBatches;
+	private final Future<?> reader;
+	private volatile boolean isClosed;
+	private volatile boolean isDone;
+	private volatile Exception error;
+	private TupleBatch current;
+
+	public TuplePrefetcher(StreamDatabaseDriver db, List<Channel> channels, int numBatches, int batchRows) {
+		this.db = db;
+		this.batchRows = batchRows;
+		freeBatches = new ArrayBlockingQueue<TupleBatch>(numBatches);
+		fullBatches = new ArrayBlockingQueue<TupleBatch>(numBatches + 1);
+		for (int i = 0; i < numBatches; i++) {
+			freeBatches.add(new TupleBatch(channels, batchRows));
+		}
+
+		Future<?> future;
+		try {
+			future = readerPool.submit(new Runnable() {
+				@Override
+				public void run() {
+					read();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			future = null;
+		}
+		reader = future;
+	}
+
+	private void read() {
+		try {
+			while (!isClosed) {
+				TupleBatch batch = freeBatches.poll(POLL_MS, TimeUnit.MILLISECONDS);
+				if (batch == null) {
+					continue;
+				}
+				if (db.getNextTuples(batch, batchRows) == 0) {
+					break;
+				}
+				fullBatches.add(batch);
+			}
+		} catch (SQLException | RuntimeException e) {
+			error = e;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			isDone = true;
+			// There is always room: the ring holds at most every batch plus END.
+			fullBatches.add(END);
+		}
+	}
+
+	// Returns the next batch, or null after the last one. The batch returned by the previous call is
+	// handed back to the reader, so it must not be used anymore.
+	public TupleBatch next() throws SQLException, IOException {
+		if (current != null) {
+			freeBatches.add(current);
+			current = null;
+		}
+		if (reader == null) {
+			return readOnCallerThread();
+		}
+
+		TupleBatch batch;
+		try {
+			batch = fullBatches.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+
+		if (batch == END) {
+			fullBatches.add(END);
+			if (error instanceof SQLException) {
+				throw (SQLException)error;
+			} else if (error instanceof RuntimeException) {
+				throw (RuntimeException)error;
+			}
+			return null;
+		}
+		current = batch;
+		return batch;
+	}
+
+	private TupleBatch readOnCallerThread() throws SQLException {
+		if (isDone) {
+			return null;
+		}
+		TupleBatch batch = freeBatches.poll();
+		if (db.getNextTuples(batch, batchRows) == 0) {
+			isDone = true;
+			freeBatches.add(batch);
+			return null;
+		}
+		current = batch;
+		return batch;
+	}
+
+	// Stops the reader and waits for it, so that the driver can be used or closed again. If the caller
+	// gives up early, e.g., because the client disconnected, the fetch in progress is cancelled.
+	@Override
+	public void close() throws IOException {
+		isClosed = true;
+		if (reader == null) {
+			return;
+		}
+		if (!isDone) {
+			db.cancel();
+		}
+		try {
+			reader.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+}
@@ -16,6 +16,8 @@ public class Aggregator {
 	
 	private static Map<Type, String[]> aggregatorNameMap = new HashMap<Type, String[]>();
 	private static String NOISY_PREFIX = "Noisy"; 
+	private static final Pattern SKETCH_PATTERN = Pattern.compile("(^|[^a-z0-9_])(p[0-9]+(\\.[0-9]+)?|distinct)\\s*\\(");
+	private static final Pattern DISTINCT_ARGUMENT_PATTERN = Pattern.compile("distinct\\s*\\(\\s*$");
 	
 	static {
 		aggregatorNameMap.put(Type.AGGREGATE_BY, new String[] { "AggregateBy", "DownSample" });
@@ -29,6 +31,7 @@ public class Aggregator {
 	public List<Channel> targetStreamChannels;
 	public boolean isNoisy = false;
 	public boolean isAvgAggregator = false;
+	public boolean isSketchAggregator = false;
 	public double epsilon = Double.NaN;
 	
 	public Aggregator(String expr, List<Channel> channels) {
@@ -109,6 +112,15 @@ public class Aggregator {
 		} else {
 			isAvgAggregator = false;
 		}
+
+		// Percentiles and distinct counts are evaluated only with sketches, not in SQL.
+		Matcher sketchMatcher = SKETCH_PATTERN.matcher(sqlExpression.toLowerCase());
+		while (sketchMatcher.find()) {
+			isSketchAggregator = true;
+			if (isNoisy && sketchMatcher.group(2).equals("distinct")) {
+				throw new IllegalArgumentException("Noisy distinct aggregate is not supported.");
+			}
+		}
 		
 		// Set aggregate channel names and convert sql expression channel names.
 		String oriSqlExpression = sqlExpression;
@@ -208,7 +220,9 @@ public class Aggregator {
 			Matcher integerMatcher = integerPattern.matcher(column);
 			while (integerMatcher.find()) {
 				int channelNum = Integer.valueOf(integerMatcher.group());
-				if (!targetStreamChannels.get(channelNum-1).type.equals("float")
+				boolean isDistinct = DISTINCT_ARGUMENT_PATTERN.matcher(sqlExpression.substring(0, columnMatcher.start()).toLowerCase()).find();
+				if (!isDistinct 
+						&& !targetStreamChannels.get(channelNum-1).type.equals("float")
 						&& !targetStreamChannels.get(channelNum-1).type.equals("int")) {
 					throw new IllegalArgumentException("Aggregate on non-numeric data type is not allowed.");
 				}
@@ -0,0 +1,224 @@
+package edu.ucla.nesl.sensorsafe.db.informix;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+import edu.ucla.nesl.sensorsafe.model.Channel;
+
+// Parses and validates a block of bulkload lines on all cores.
+// The block is split at line boundaries into ranges, each range rewrites its lines in place
+// (so the output keeps the input order) and returns a min/max partial per channel and of the timestamps.
+// The error reported is the one of the first malformed line in the block.
+class BulkLoadParser {
+
+	private static final ForkJoinPool pool = new ForkJoinPool();
+
+	private static final int MIN_RANGE_SIZE = 2048;
+
+	private final String delimiter;
+	private final DateTimeFormatter fmt;
+	private final DateTimeFormatter sqlFmt;
+	private final int numChannels;
+	private final boolean[] isFloat;
+	private final boolean[] isInt;
+
+	BulkLoadParser(List<Channel> channels, String delimiter, DateTimeFormatter fmt, String sqlPattern) {
+		this.delimiter = delimiter;
+		this.fmt = fmt;
+		this.sqlFmt = DateTimeFormat.forPattern(sqlPattern);
+		this.numChannels = channels.size();
+		this.isFloat = new boolean[numChannels];
+		this.isInt = new boolean[numChannels];
+		for (int i = 0; i < numChannels; i++) {
+			String type = channels.get(i).type;
+			isFloat[i] = type.equals("float");
+			isInt[i] = type.equals("int");
+		}
+	}
+
+	private static class Partial {
+		final double[] min;
+		final double[] max;
+		long minTime = Long.MAX_VALUE;
+		long maxTime = Long.MIN_VALUE;
+		long errorLine = Long.MAX_VALUE;
+		String errorMsg;
+
+		Partial(int numChannels) {
+			min = new double[numChannels];
+			max = new double[numChannels];
+			for (int i = 0; i < numChannels; i++) {
+				min[i] = Double.POSITIVE_INFINITY;
+				max[i] = Double.NEGATIVE_INFINITY;
+			}
+		}
+
+		void merge(Partial other) {
+			for (int i = 0; i < min.length; i++) {
+				if (other.min[i] < min[i]) {
+					min[i] = other.min[i];
+				}
+				if (other.max[i] > max[i]) {
+					max[i] = other.max[i];
+				}
+			}
+			minTime = Math.min(minTime, other.minTime);
+			maxTime = Math.max(maxTime, other.maxTime);
+			if (other.errorLine < errorLine) {
+				errorLine = other.errorLine;
+				errorMsg = other.errorMsg;
+			}
+		}
+	}
+
+	private class ParseTask extends RecursiveTask<Partial> {
+		private static final long serialVersionUID = 3958047745437180376L;
+
+		private final String[] lines;
+		private final int from;
+		private final int to;
+		private final long firstLineNumber;
+		private final AtomicLong firstErrorLine;
+
+		ParseTask(String[] lines, int from, int to, long firstLineNumber, AtomicLong firstErrorLine) {
+			this.lines = lines;
+			this.from = from;
+			this.to = to;
+			this.firstLineNumber = firstLineNumber;
+			this.firstErrorLine = firstErrorLine;
+		}
+
+		@Override
+		protected Partial compute() {
+			if (to - from <= MIN_RANGE_SIZE) {
+				return parseRange(lines, from, to, firstLineNumber, firstErrorLine);
+			}
+			int mid = (from + to) >>> 1;
+			ParseTask left = new ParseTask(lines, from, mid, firstLineNumber, firstErrorLine);
+			ParseTask right = new ParseTask(lines, mid, to, firstLineNumber, firstErrorLine);
+			right.fork();
+			Partial result = left.compute();
+			result.merge(right.join());
+			return result;
+		}
+	}
+
+	// Rewrites lines[0..numLines) into the bulkload format and folds channel values into min/max, and
+	// timestamps (epoch milliseconds) into timeRange[0] and timeRange[1].
+	// firstLineNumber is the input line number of lines[0], used for error messages.
+	void parse(String[] lines, int numLines, long firstLineNumber, double[] min, double[] max, long[] timeRange) {
+		AtomicLong firstErrorLine = new AtomicLong(Long.MAX_VALUE);
+		Partial result;
+		if (numLines <= MIN_RANGE_SIZE) {
+			result = parseRange(lines, 0, numLines, firstLineNumber, firstErrorLine);
+		} else {
+			result = pool.invoke(new ParseTask(lines, 0, numLines, firstLineNumber, firstErrorLine));
+		}
+
+		if (result.errorMsg != null) {
+			throw new IllegalArgumentException(result.errorMsg);
+		}
+
+		for (int i = 0; i < numChannels; i++) {
+			if (result.min[i] < min[i]) {
+				min[i] = result.min[i];
+			}
+			if (result.max[i] > max[i]) {
+				max[i] = result.max[i];
+			}
+		}
+		timeRange[0] = Math.min(timeRange[0], result.minTime);
+		timeRange[1] = Math.max(timeRange[1], result.maxTime);
+	}
+
+	private Partial parseRange(String[] lines, int from, int to, long firstLineNumber, AtomicLong firstErrorLine) {
+		Partial partial = new Partial(numChannels);
+		for (int idx = from; idx < to; idx++) {
+			long lineNumber = firstLineNumber + idx;
+
+			// Stop early once an earlier line is known to be malformed.
+			if (firstErrorLine.get() < lineNumber) {
+				break;
+			}
+
+			String error = parseLine(lines, idx, lineNumber, partial);
+			if (error != null) {
+				partial.errorLine = lineNumber;
+				partial.errorMsg = error;
+				long cur;
+				while ((cur = firstErrorLine.get()) > lineNumber) {
+					if (firstErrorLine.compareAndSet(cur, lineNumber)) {
+						break;
+					}
+				}
+				break;
+			}
+		}
+		return partial;
+	}
+
+	private String parseLine(String[] lines, int idx, long lineNumber, Partial partial) {
+		String line = lines[idx];
+		int pos = line.indexOf(delimiter);
+		if (pos < 0) {
+			return "Malformed input line " + lineNumber + ": " + line;
+		}
+
+		String timestamp = line.substring(0, pos);
+		String values = line.substring(pos + delimiter.length());
+
+		DateTime dt;
+		try {
+			dt = fmt.parseDateTime(timestamp);
+		} catch (IllegalArgumentException e) {
+			return "Unable to parse timestamp at line " + lineNumber + ": " + timestamp;
+		}
+		long time = dt.getMillis();
+		if (time < partial.minTime) {
+			partial.minTime = time;
+		}
+		if (time > partial.maxTime) {
+			partial.maxTime = time;
+		}
+
+		// Fold numeric channels without splitting the value columns into an array.
+		int start = 0;
+		for (int i = 0; i < numChannels; i++) {
+			if (start > values.length()) {
+				if (isFloat[i] || isInt[i]) {
+					return "Malformed input line " + lineNumber + ": " + line;
+				}
+				break;
+			}
+			int end = values.indexOf(delimiter, start);
+			if (end < 0) {
+				end = values.length();
+			}
+			if (isFloat[i] || isInt[i]) {
+				String col = values.substring(start, end);
+				double value;
+				try {
+					value = isFloat[i] ? Double.parseDouble(col) : Integer.parseInt(col.trim());
+				} catch (NumberFormatException e) {
+					return "Invalid value at line " + lineNumber + ": " + col;
+				}
+				if (value < partial.min[i]) {
+					partial.min[i] = value;
+				}
+				if (value > partial.max[i]) {
+					partial.max[i] = value;
+				}
+			}
+			start = end + delimiter.length();
+		}
+
+		lines[idx] = dt.toString(sqlFmt) + delimiter + values;
+		return null;
+	}
+}
@@ -0,0 +1,183 @@
+package edu.ucla.nesl.sensorsafe.db.informix;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.NamingException;
+
+import edu.ucla.nesl.sensorsafe.model.Channel;
+import edu.ucla.nesl.sensorsafe.model.Statistics;
+import edu.ucla.nesl.sensorsafe.tools.Log;
+
+// In-memory min/max per (stream, channel), written behind to channel_statistics.
+// Ingest only touches this map; a background thread persists the channels that changed
+// since the last flush, and readers merge the in-memory value with the persisted one.
+public class ChannelStatisticsAccumulator {
+
+	private static final long FLUSH_INTERVAL_MS = Long.getLong("sensorsafe.statistics.flush_interval_ms", 5000);
+
+	private static final ConcurrentMap<String, MinMax> entries = new ConcurrentHashMap<String, MinMax>();
+
+	private static ScheduledExecutorService flusher;
+
+	private static class MinMax {
+		final int streamId;
+		final String streamName;
+		final String channelName;
+		final AtomicLong minBits = new AtomicLong(Double.doubleToLongBits(Double.POSITIVE_INFINITY));
+		final AtomicLong maxBits = new AtomicLong(Double.doubleToLongBits(Double.NEGATIVE_INFINITY));
+		final AtomicBoolean isDirty = new AtomicBoolean(false);
+
+		MinMax(int streamId, String streamName, String channelName) {
+			this.streamId = streamId;
+			this.streamName = streamName;
+			this.channelName = channelName;
+		}
+
+		double getMin() {
+			return Double.longBitsToDouble(minBits.get());
+		}
+
+		double getMax() {
+			return Double.longBitsToDouble(maxBits.get());
+		}
+
+		boolean isEmpty() {
+			return getMin() > getMax();
+		}
+
+		void update(double min, double max) {
+			boolean isChanged = false;
+			long cur;
+			while (Double.longBitsToDouble(cur = minBits.get()) > min) {
+				if (minBits.compareAndSet(cur, Double.doubleToLongBits(min))) {
+					isChanged = true;
+					break;
+				}
+			}
+			while (Double.longBitsToDouble(cur = maxBits.get()) < max) {
+				if (maxBits.compareAndSet(cur, Double.doubleToLongBits(max))) {
+					isChanged = true;
+					break;
+				}
+			}
+			if (isChanged) {
+				isDirty.set(true);
+			}
+		}
+	}
+
+	private static String getKey(int streamId, String channelName) {
+		return streamId + "/" + channelName;
+	}
+
+	public static void update(int streamId, String streamName, String channelName, double min, double max) {
+		String key = getKey(streamId, channelName);
+		MinMax entry = entries.get(key);
+		if (entry == null) {
+			MinMax newEntry = new MinMax(streamId, streamName, channelName);
+			entry = entries.putIfAbsent(key, newEntry);
+			if (entry == null) {
+				entry = newEntry;
+			}
+		}
+		entry.update(min, max);
+	}
+
+	// Merge the not yet persisted values into channel.statistics.
+	public static void merge(int streamId, Channel channel) {
+		MinMax entry = entries.get(getKey(streamId, channel.name));
+		if (entry == null || entry.isEmpty()) {
+			return;
+		}
+		double min = entry.getMin();
+		double max = entry.getMax();
+		if (channel.statistics == null) {
+			channel.statistics = new Statistics(min, max);
+		} else {
+			channel.statistics.min = Math.min(channel.statistics.min, min);
+			channel.statistics.max = Math.max(channel.statistics.max, max);
+		}
+	}
+
+	public static void discard(int streamId) {
+		String prefix = streamId + "/";
+		for (String key : entries.keySet()) {
+			if (key.startsWith(prefix)) {
+				entries.remove(key);
+			}
+		}
+	}
+
+	public static synchronized void flush() {
+		InformixStreamDatabase db = null;
+		try {
+			for (Map.Entry<String, MinMax> item : entries.entrySet()) {
+				MinMax entry = item.getValue();
+				if (!entry.isDirty.compareAndSet(true, false)) {
+					continue;
+				}
+				try {
+					if (db == null) {
+						db = new InformixStreamDatabase();
+					}
+					// The stream may have been deleted since the entry was marked dirty.
+					if (entries.get(item.getKey()) == entry) {
+						db.writeChannelStatistics(entry.streamId, entry.streamName, entry.channelName, entry.getMin(), entry.getMax());
+					}
+				} catch (SQLException | IOException | NamingException | ClassNotFoundException e) {
+					entry.isDirty.set(true);
+					throw e;
+				}
+			}
+		} catch (SQLException | IOException | NamingException | ClassNotFoundException e) {
+			Log.error("Failed to flush channel statistics: " + e.getMessage());
+		} finally {
+			if (db != null) {
+				try {
+					db.close();
+				} catch (SQLException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	public static synchronized void start() {
+		if (flusher != null) {
+			return;
+		}
+		flusher = Executors.newSingleThreadScheduledExecutor();
+		flusher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+	}
+
+	public static void stop() {
+		ScheduledExecutorService executor;
+		synchronized (ChannelStatisticsAccumulator.class) {
+			executor = flusher;
+			flusher = null;
+		}
+		if (executor != null) {
+			executor.shutdown();
+			try {
+				executor.awaitTermination(FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		flush();
+	}
+}
@@ -1,36 +1,47 @@
 package edu.ucla.nesl.sensorsafe.db.informix;
 
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
 import java.security.NoSuchAlgorithmException;
 import java.sql.Array;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
 import java.sql.Statement;
 import java.sql.Struct;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.naming.NamingException;
 
-import net.minidev.json.JSONArray;
-import net.minidev.json.JSONObject;
-import net.minidev.json.JSONValue;
-
 import org.apache.commons.lang.StringUtils;
 import org.joda.time.DateTime;
 import org.joda.time.Duration;
@@ -38,7 +49,11 @@ import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
 import org.joda.time.format.ISODateTimeFormat;
 
+import edu.ucla.nesl.sensorsafe.db.QueryRegistry;
+import edu.ucla.nesl.sensorsafe.db.QueryResultCache;
+import edu.ucla.nesl.sensorsafe.db.StreamCursor;
 import edu.ucla.nesl.sensorsafe.db.StreamDatabaseDriver;
+import edu.ucla.nesl.sensorsafe.db.TupleBatch;
 import edu.ucla.nesl.sensorsafe.model.Channel;
 import edu.ucla.nesl.sensorsafe.model.Macro;
 import edu.ucla.nesl.sensorsafe.model.Rule;
@@ -49,7 +64,7 @@ import edu.ucla.nesl.sensorsafe.model.TemplateParameterDefinition;
 import edu.ucla.nesl.sensorsafe.tools.DiffPrivNoiseGenerator;
 import edu.ucla.nesl.sensorsafe.tools.Log;
 
-public class InformixStreamDatabase extends InformixDatabaseDriver implements StreamDatabaseDriver {
+public class InformixStreamDatabase extends InformixDatabaseDriver implements StreamDatabaseDriver, QueryRegistry.Query {
 
 	public InformixStreamDatabase() throws SQLException, IOException,
 	NamingException, ClassNotFoundException {
@@ -59,6 +74,9 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 	private static final String ORIGIN_TIMESTAMP = "2000-01-01 00:00:00.00000";
 
 	private static final String BULK_LOAD_DATA_FILE_NAME_PREFIX = "/tmp/bulkload_data_";
+	private static final int BULK_LOAD_CHUNK_ROWS = Integer.getInteger("sensorsafe.bulkload.chunk_rows", 1000000);
+	private static final int BULK_LOAD_PEEK_LIMIT = 1024 * 1024;
+	private static final int BULK_LOAD_PARSE_BLOCK_ROWS = 65536;
 
 	private static final String SQL_DATE_TIME_PATTERN_WITH_FRACTION = "yyyy-MM-dd HH:mm:ss.SSSSS";
 	private static final String SQL_DATE_TIME_PATTERN = "yyyy-MM-dd HH:mm:ss";
@@ -70,70 +88,245 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 	//private static final int BULKLOAD_FLAG = TSOPEN_REDUCED_LOG;
 	private static final int BULKLOAD_FLAG = 0;
 
+	// Evaluate aggregators in the JVM while reading, when StreamingAggregator supports them.
+	private static final boolean IS_STREAMING_AGGREGATION_ENABLED = !Boolean.getBoolean("sensorsafe.query.sql_aggregation");
+
+	// Rows per round trip when reading query results.
+	private static final int QUERY_FETCH_SIZE = Integer.getInteger("sensorsafe.query.fetch_size", TupleBatch.FETCH_ROWS);
+
+	// AggregateRange over a bounded range of at least two PARTITION_MIN_MS is split into up to PARTITIONS
+	// time partitions, read concurrently on their own connections. PARTITION_THREADS bounds the partitions
+	// that run at once over all queries, and so the connections they take from the pool.
+	private static final int PARTITIONS = Integer.getInteger("sensorsafe.query.aggregate_partitions", 4);
+	private static final int PARTITION_THREADS = Integer.getInteger("sensorsafe.query.aggregate_threads", Runtime.getRuntime().availableProcessors());
+	private static final long PARTITION_MIN_MS = Long.getLong("sensorsafe.query.aggregate_partition_min_ms", 24 * 60 * 60 * 1000L);
+
+	private static final ExecutorService partitionPool = Executors.newFixedThreadPool(Math.max(1, PARTITION_THREADS), new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "AggregatePartition");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
 	private PreparedStatement storedPstmt;
 	private ResultSet storedResultSet;
 	private Stream storedStream;
-	private List<String> storedTempTables = new ArrayList<String>();
-	private String storedTempViewName;
-	private String storedTempRowTypeName;
+	private Stream storedStreamDescriptor;
+	private boolean isStoredNumSamplesUpdated;
+	// Drop statements of the temp objects of the current query, the latest first.
+	private final LinkedList<String> storedCleanups = new LinkedList<String>();
+
+	// Drop statements that failed, e.g., on a broken connection. Retried once by the next cleanup of any
+	// driver, since row types and virtual tables outlive the session.
+	private static final Set<String> pendingCleanups = Collections.synchronizedSet(new LinkedHashSet<String>());
+
+	// Time the current query may spend in statements and fetches, the time spent so far, and its running
+	// statement for cancel(). Written by the thread using the driver, read by QueryRegistry and partition threads.
+	private volatile long queryTimeoutMs;
+	private volatile long usedMs;
+	private volatile long workStart;
+	private volatile long workDeadline;
+	private volatile long idleSince;
+	private volatile Statement runningStmt;
+	private volatile boolean isCancelled;
+	private volatile boolean isAbandoned;
+	private final Set<Statement> partitionStmts = Collections.synchronizedSet(new HashSet<Statement>());
+
+	// Query result served from QueryResultCache, or the recorder of a result to be cached.
+	private TupleBatch storedCachedTuples;
+	private int storedCachedRow;
+	private QueryResultCache.Recorder storedRecorder;
+
+	// Streams other than the queried one that the current query reads through conditions.
+	private Set<Integer> queryOtherStreamIds = new HashSet<Integer>();
+
+	private void addCleanup(String sql) {
+		storedCleanups.addFirst(sql);
+	}
+
+	// Runs every cleanup even if some fail, and throws the first failure of this driver's own.
+	private void dropTemps() throws SQLException {
+		if (conn == null) {
+			pendingCleanups.addAll(storedCleanups);
+			storedCleanups.clear();
+			return;
+		}
+		List<String> cleanups = new ArrayList<String>(storedCleanups);
+		int numOwn = cleanups.size();
+		storedCleanups.clear();
+		synchronized (pendingCleanups) {
+			cleanups.addAll(pendingCleanups);
+			pendingCleanups.clear();
+		}
 
-	private void dropStoredTempRowTypeName() throws SQLException {
-		if (storedTempRowTypeName != null) {
+		SQLException error = null;
+		for (int i = 0; i < cleanups.size(); i++) {
+			String sql = cleanups.get(i);
 			Statement stmt = null;
 			try {
 				stmt = conn.createStatement();
-				String sql = "DROP ROW TYPE IF EXISTS " + storedTempRowTypeName + " RESTRICT;";
 				Log.info(sql);
-				stmt.execute(sql);				
+				stmt.execute(sql);
+			} catch (SQLException e) {
+				if (i < numOwn) {
+					pendingCleanups.add(sql);
+					error = error == null ? e : error;
+				} else {
+					Log.error("Giving up: " + sql);
+				}
 			} finally {
 				if (stmt != null) {
-					stmt.close();
+					try {
+						stmt.close();
+					} catch (SQLException e) {
+						error = error == null ? e : error;
+					}
 				}
 			}
-			storedTempRowTypeName = null;
+		}
+		if (error != null) {
+			throw error;
 		}
 	}
 
-	private void dropStoredTempTables() throws SQLException {
-		if (!storedTempTables.isEmpty()) {
-			Statement stmt = null;
-			for (String table : storedTempTables) {
+	@Override
+	public synchronized void setQueryTimeout(long timeoutMs) {
+		queryTimeoutMs = timeoutMs;
+		usedMs = 0;
+		isCancelled = false;
+		idleSince = System.currentTimeMillis();
+		if (timeoutMs > 0) {
+			QueryRegistry.register(this);
+		} else {
+			QueryRegistry.unregister(this);
+		}
+	}
+
+	// Starts counting the time of a statement or fetch against the timeout.
+	private void beginWork() throws SQLTimeoutException {
+		checkDeadline();
+		long now = System.currentTimeMillis();
+		workStart = now;
+		if (queryTimeoutMs > 0) {
+			workDeadline = now + queryTimeoutMs - usedMs;
+		}
+	}
+
+	// Stops counting, e.g., while the caller writes the fetched tuples to a slow client.
+	private void endWork() {
+		long now = System.currentTimeMillis();
+		if (workStart > 0) {
+			usedMs += now - workStart;
+			workStart = 0;
+		}
+		workDeadline = 0;
+		idleSince = now;
+	}
+
+	private long getRemainingMs() {
+		long deadline = workDeadline;
+		return deadline > 0 ? deadline - System.currentTimeMillis() : queryTimeoutMs - usedMs;
+	}
+
+	@Override
+	public long getWorkDeadline() {
+		return workDeadline;
+	}
+
+	@Override
+	public long getIdleSince() {
+		return idleSince;
+	}
+
+	// Called by QueryRegistry. The lock waits for a fetch in progress, which then moves idleSince.
+	@Override
+	public synchronized void closeIfIdleSince(long idleSince) throws SQLException {
+		if (workDeadline == 0 && this.idleSince == idleSince && conn != null) {
+			isAbandoned = true;
+			close();
+		}
+	}
+
+	@Override
+	public void cancel() {
+		isCancelled = true;
+		List<Statement> stmts;
+		synchronized (partitionStmts) {
+			stmts = new ArrayList<Statement>(partitionStmts);
+		}
+		stmts.add(runningStmt);
+		for (Statement stmt : stmts) {
+			if (stmt != null) {
 				try {
-					stmt = conn.createStatement();
-					String sql = "DROP TABLE IF EXISTS " + table;
-					Log.info(sql);
-					stmt.execute(sql);				
-				} finally {
-					if (stmt != null) {
-						stmt.close();
-					}
+					stmt.cancel();
+				} catch (SQLException e) {
+					e.printStackTrace();
 				}
 			}
-			storedTempTables.clear();
 		}
 	}
 
-	private void dropStoredTempView() throws SQLException {
-		if (storedTempViewName != null) {
-			Statement stmt = null;
-			try {
-				stmt = conn.createStatement();
-				String sql = "DROP VIEW IF EXISTS " + storedTempViewName;
-				Log.info(sql);
-				stmt.execute(sql);				
-			} finally {
-				if (stmt != null) {
-					stmt.close();
-				}
-			}
-			storedTempViewName = null;
+	// track() for the statements that RollupTiers prepares on conn for the query.
+	private final RollupTiers.StatementTracker rollupTracker = new RollupTiers.StatementTracker() {
+		@Override
+		public <T extends Statement> T track(T stmt) throws SQLException {
+			return InformixStreamDatabase.this.track(stmt);
+		}
+	};
+
+	// Applies the remaining time of the query to stmt and makes it the statement cancel() interrupts.
+	private <T extends Statement> T track(T stmt) throws SQLException {
+		runningStmt = stmt;
+		try {
+			checkDeadline();
+		} catch (SQLTimeoutException e) {
+			stmt.close();
+			throw e;
+		}
+		setStatementTimeout(stmt);
+		return stmt;
+	}
+
+	private void setStatementTimeout(Statement stmt) throws SQLException {
+		if (queryTimeoutMs > 0) {
+			stmt.setQueryTimeout((int)Math.max(1, (getRemainingMs() + 999) / 1000));
+		}
+	}
+
+	private void checkDeadline() throws SQLTimeoutException {
+		if (isAbandoned) {
+			throw new SQLTimeoutException("Query was closed after waiting too long to be read.");
+		}
+		if (isCancelled) {
+			throw new SQLTimeoutException("Query was cancelled.");
+		}
+		if (queryTimeoutMs > 0 && getRemainingMs() <= 0) {
+			throw new SQLTimeoutException("Query exceeded its deadline.");
+		}
+	}
+
+	// The driver reports an interrupted statement as a plain SQLException.
+	private SQLException toTimeoutIfInterrupted(SQLException e) {
+		if (!(e instanceof SQLTimeoutException) && (isCancelled || isAbandoned || (queryTimeoutMs > 0 && getRemainingMs() <= 0))) {
+			return new SQLTimeoutException(isCancelled ? "Query was cancelled." : "Query exceeded its deadline.", e);
 		}
+		return e;
 	}
 
+	// QueryRegistry only closes a driver that is waiting for its caller; the caller then sees SQLTimeoutException.
 	@Override
-	public void close() throws SQLException {
-		dropTemps();
-		super.close();
+	public synchronized void close() throws SQLException {
+		QueryRegistry.unregister(this);
+		if (conn == null) {
+			return;
+		}
+		try {
+			cleanUpStoredInfo();
+		} finally {
+			super.close();
+		}
 	}
 
 	@Override
@@ -160,10 +353,12 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 			stmt1 = conn.createStatement();
 			stmt1.execute("DROP TABLE IF EXISTS streams;");
 			stmt1.execute("DROP TABLE IF EXISTS rules;");
+			RollupTiers.dropTables(conn);
 			stmt1.execute("DELETE FROM CalendarPatterns WHERE cp_name = 'every_sec';");
 			stmt1.execute("DELETE FROM CalendarTable WHERE c_name = 'sec_cal';");
 
 			initializeDatabase();
+			QueryResultCache.clear();
 		} finally {
 			if (stmt1 != null) 
 				stmt1.close();
@@ -222,6 +417,14 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 				createChannelStatisticsTable(conn);
 			}
 
+			pstmt.setString(1, "rollups");
+			rset = pstmt.executeQuery();
+			if (!rset.next()) {
+				RollupTiers.createTables(conn);
+			} else {
+				RollupTiers.upgradeTables(conn);
+			}
+
 			pstmt.close();
 
 			// Add type map information for calendars
@@ -314,7 +517,7 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 		}*/
 	}
 
-	private static void calculateChannelStatistics(Connection conn, Stream s, Channel c, int channelId) throws SQLException {
+	private void calculateChannelStatistics(Connection conn, Stream s, Channel c, int channelId) throws SQLException {
 
 		if (!c.type.equals("float") && !c.type.equals("int")) {
 			return;
@@ -595,6 +798,7 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 			if (pstmt != null) 
 				pstmt.close();
 		}
+		QueryResultCache.invalidatePolicies(owner);
 	}
 
 
@@ -739,6 +943,7 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 			if (pstmt != null)
 				pstmt.close();
 		}
+		QueryResultCache.invalidatePolicies(owner);
 	}
 
 	@Override
@@ -753,6 +958,7 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 			if (pstmt != null)
 				pstmt.close();
 		}
+		QueryResultCache.invalidatePolicies(owner);
 	}
 
 	@Override
@@ -780,6 +986,8 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 
 		// Create a virtual table.
 		createVirtualTable(stream);
+
+		StreamRegistry.invalidate(stream.owner, stream.name);
 	}
 
 	private boolean isStreamNameExist(String owner, String streamName) throws SQLException {
@@ -941,119 +1149,123 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 	}
 
 	@Override
-	public void addTuple(String owner, String streamName, String strTuple) throws SQLException {
+	public int addTuple(String owner, String streamName, String strTuple) throws SQLException {
 		// Check if stream name exists.
-		if ( !isStreamNameExist(owner, streamName) )
+		Stream stream = findStreamDescriptor(owner, streamName);
+		if (stream == null)
 			throw new IllegalArgumentException("Stream name (" + streamName + ") does not exists.");
 
-		Stream stream = getStream(owner, streamName);
-		TimestampValues tsValues = parseStrTuple(strTuple, stream.getChannelFormatPrefix());
+		TupleBatch batch = JsonTupleDecoder.borrowBatch(stream.channels);
+		try {
+			JsonTupleDecoder.get(stream).decode(strTuple, batch);
+			return addTuples(stream, batch);
+		} finally {
+			JsonTupleDecoder.releaseBatch(batch);
+		}
+	}
 
-		putTimeseriesElement(stream, tsValues);
-		updateChannelStatistics(stream, tsValues);
+	@Override
+	public TupleBatch createTupleBatch(String owner, String streamName) throws SQLException {
+		Stream stream = findStreamDescriptor(owner, streamName);
+		if (stream == null)
+			throw new IllegalArgumentException("Stream name (" + streamName + ") does not exists.");
+		return new TupleBatch(stream.channels);
 	}
 
-	private void updateChannelStatistics(Stream stream, TimestampValues tsValues) throws SQLException {
-		int i = 1;
-		String format[] = stream.getChannelFormatPrefix().split("_");
-		for (Channel c : stream.channels){
-			if (isNumeric(c)) {
-				double value;
-				Object valueObj = tsValues.values.get(i-1);
-				if (format[i-1].equals("float")) {
-					if (valueObj instanceof Double) {
-						value = (Double)valueObj;
-					} else if (valueObj instanceof Integer) {
-						value = (Integer)valueObj;
-					} else {
-						throw new IllegalStateException("Can't determine value type.");
-					}
-				} else if (format[i-1].equals("int")) {
-					value = (Integer)valueObj;
-				} else {
-					throw new IllegalStateException("Format is not numeric.");
-				}
+	// Appends the JSON tuples to batch without writing them.
+	@Override
+	public void decodeTuples(String owner, String streamName, String strTuple, TupleBatch batch) throws SQLException {
+		Stream stream = findStreamDescriptor(owner, streamName);
+		if (stream == null)
+			throw new IllegalArgumentException("Stream name (" + streamName + ") does not exists.");
+		JsonTupleDecoder.get(stream).decode(strTuple, batch);
+	}
 
-				if (c.statistics == null) {
-					insertOrUpdateChannelStatistics(stream.id, stream.name, c.name, value, value);
-				} else {
-					double min = c.statistics.min;
-					double max = c.statistics.max;
-					if (min > value) {
-						updateChannelStatisticsMin(stream.name, c.name, value);
-					}
-					if (max < value) {
-						updateChannelStatisticsMax(stream.name, c.name, value);
-					}
-				}
-			}
-			i++;
-		}
+	@Override
+	public int addTuples(String owner, String streamName, TupleBatch batch) throws SQLException {
+		Stream stream = findStreamDescriptor(owner, streamName);
+		if (stream == null)
+			throw new IllegalArgumentException("Stream name (" + streamName + ") does not exists.");
+		return addTuples(stream, batch);
 	}
 
-	private void insertOrUpdateChannelStatistics(int streamId, String streamName, String channelName, double min, double max) throws SQLException {
+	private int addTuples(Stream stream, TupleBatch batch) throws SQLException {
+		String format[] = stream.getChannelFormatPrefix().split("_");
+		if (!batch.isSchemaOf(stream.channels)) {
+			throwInvalidTupleFormat(format);
+		}
+		if (batch.getSize() == 0) {
+			return 0;
+		}
 
-		// Check if there is existing statistics
-		PreparedStatement pstmt = null;
-		String sql = "SELECT * FROM channel_statistics WHERE stream_name = ? AND channel_name = ?;";
-		boolean isUpdate;
-		try {
-			pstmt = conn.prepareStatement(sql);
-			pstmt.setString(1, streamName);
-			pstmt.setString(2, channelName);
-			ResultSet rset = pstmt.executeQuery();
-			if (rset.next()) {
-				isUpdate = true;
-				sql = "UPDATE channel_statistics SET "
-						+ "min_value = ?, "
-						+ "max_value = ? "
-						+ "WHERE id = ? AND stream_name = ? AND channel_name = ?;";
-			} else {
-				isUpdate = false;
-				sql = "INSERT INTO channel_statistics VALUES (?,?,?,?,?)";		
+		putTimeseriesElements(stream, format, batch);
+		updateChannelStatistics(stream, batch);
+		invalidateCachedResults(stream, batch);
+		return batch.getSize();
+	}
+
+	private void invalidateCachedResults(Stream stream, TupleBatch batch) {
+		long min = Long.MAX_VALUE;
+		long max = Long.MIN_VALUE;
+		for (int row = 0; row < batch.getSize(); row++) {
+			long ts = batch.getTimestamp(row);
+			if (ts < min) {
+				min = ts;
 			}
-		} finally {
-			if (pstmt != null) {
-				pstmt.close();
+			if (ts > max) {
+				max = ts;
 			}
 		}
+		QueryResultCache.invalidateRange(stream.id, min, max);
+	}
 
-		// update/insert statistics
-		try {
-			pstmt = conn.prepareStatement(sql);
-			if (isUpdate) {
-				pstmt.setDouble(1, min);
-				pstmt.setDouble(2, max);
-				pstmt.setInt(3, streamId);
-				pstmt.setString(4, streamName);
-				pstmt.setString(5, channelName);
-			} else {
-				pstmt.setInt(1, streamId);
-				pstmt.setString(2, streamName);
-				pstmt.setString(3, channelName);
-				pstmt.setDouble(4, min);
-				pstmt.setDouble(5, max);
-			}
-			pstmt.executeUpdate();
-		} finally {
-			if (pstmt != null) {
-				pstmt.close();
+	private void updateChannelStatistics(Stream stream, TupleBatch batch) {
+		for (int i = 0; i < batch.getNumChannels(); i++) {
+			if (batch.isNumeric(i)) {
+				double min = Double.POSITIVE_INFINITY;
+				double max = Double.NEGATIVE_INFINITY;
+				for (int row = 0; row < batch.getSize(); row++) {
+					double value = batch.getDouble(row, i);
+					if (value < min) {
+						min = value;
+					}
+					if (value > max) {
+						max = value;
+					}
+				}
+				ChannelStatisticsAccumulator.update(stream.id, stream.name, stream.channels.get(i).name, min, max);
 			}
 		}
 	}
 
-	private void updateChannelStatisticsMax(String streamName, String channelName, double value) throws SQLException {
-		String updateSql = "UPDATE channel_statistics SET "
-				+ "max_value = ? "
-				+ "WHERE stream_name = ? AND channel_name = ?;";
+	void repairRollups() throws SQLException {
+		RollupTiers.repair(conn);
+	}
+
+	void writeChannelStatistics(int streamId, String streamName, String channelName, double min, double max) throws SQLException {
+		insertOrUpdateChannelStatistics(streamId, streamName, channelName, min, max);
+	}
 
+	// Merges min and max into the stored statistics in the UPDATE itself, so that concurrent writers, e.g.,
+	// flushes of ChannelStatisticsAccumulator, don't overwrite each other's values.
+	private void insertOrUpdateChannelStatistics(int streamId, String streamName, String channelName, double min, double max) throws SQLException {
+		if (updateChannelStatistics(streamId, channelName, min, max)) {
+			return;
+		}
 		PreparedStatement pstmt = null;
 		try {
-			pstmt = conn.prepareStatement(updateSql);
-			pstmt.setDouble(1, value);
+			pstmt = conn.prepareStatement("INSERT INTO channel_statistics VALUES (?,?,?,?,?)");
+			pstmt.setInt(1, streamId);
 			pstmt.setString(2, streamName);
 			pstmt.setString(3, channelName);
+			pstmt.setDouble(4, min);
+			pstmt.setDouble(5, max);
 			pstmt.executeUpdate();
+		} catch (SQLException e) {
+			// Another writer inserted the row first.
+			if (!updateChannelStatistics(streamId, channelName, min, max)) {
+				throw e;
+			}
 		} finally {
 			if (pstmt != null) {
 				pstmt.close();
@@ -1061,19 +1273,20 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 		}
 	}
 
-	private void updateChannelStatisticsMin(String streamName, String channelName, double value) throws SQLException {
-
-		String updateSql = "UPDATE channel_statistics SET "
-				+ "min_value = ? "
-				+ "WHERE stream_name = ? AND channel_name = ?;";
-
+	private boolean updateChannelStatistics(int streamId, String channelName, double min, double max) throws SQLException {
 		PreparedStatement pstmt = null;
 		try {
-			pstmt = conn.prepareStatement(updateSql);
-			pstmt.setDouble(1, value);
-			pstmt.setString(2, streamName);
-			pstmt.setString(3, channelName);
-			pstmt.executeUpdate();
+			pstmt = conn.prepareStatement("UPDATE channel_statistics SET "
+					+ "min_value = CASE WHEN min_value IS NULL OR min_value > ? THEN ? ELSE min_value END, "
+					+ "max_value = CASE WHEN max_value IS NULL OR max_value < ? THEN ? ELSE max_value END "
+					+ "WHERE id = ? AND channel_name = ?;");
+			pstmt.setDouble(1, min);
+			pstmt.setDouble(2, min);
+			pstmt.setDouble(3, max);
+			pstmt.setDouble(4, max);
+			pstmt.setInt(5, streamId);
+			pstmt.setString(6, channelName);
+			return pstmt.executeUpdate() > 0;
 		} finally {
 			if (pstmt != null) {
 				pstmt.close();
@@ -1081,122 +1294,97 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 		}
 	}
 
-	private boolean isNumeric(Channel c) {
-		if (c.type.equals("float") || c.type.equals("int")) {
-			return true;
-		} else {
-			return false;
-		}
-	}
-
-	private void putTimeseriesElement(Stream stream, TimestampValues tsValues) throws SQLException {
-
-		String format[] = stream.getChannelFormatPrefix().split("_");
-
-		if (format.length != tsValues.values.size()) {
-			throwInvalidTupleFormat(format);
-		}
-
+	private String getPutElemSql(Stream stream, int numValues) {
 		String sql = "UPDATE " + stream.getStreamTableName() + " "
 				+ "SET tuples = PutElem(tuples, "
 				+ "row(?,";
-		for (int i = 0; i < tsValues.values.size(); i++) {
+		for (int i = 0; i < numValues; i++) {
 			sql += "?,";
 		}
 		sql = sql.substring(0, sql.length() - 1);
 		sql += ")::" + stream.getRowTypeName() +") WHERE id = ?";
+		return sql;
+	}
+
+	private void handlePutElemException(SQLException e, String[] format) throws SQLException {
+		if (e.toString().contains("Extra characters at the end of a datetime or interval."))
+			throw new IllegalArgumentException(ExceptionMessages.MSG_INVALID_TIMESTAMP_FORMAT);
+		else if (e.toString().contains("No cast from ROW")) 
+			throwInvalidTupleFormat(format);
+		else 
+			throw e;
+	}
 
+	private void putTimeseriesElements(Stream stream, String[] format, TupleBatch batch) throws SQLException {
+		String sql = getPutElemSql(stream, format.length);
+
+		// The rollups are updated in the same transaction.
 		PreparedStatement pstmt = null;
+		boolean isCommitted = false;
 		try {
+			pstmt = conn.prepareStatement("BEGIN WORK");
+			pstmt.execute();
+			pstmt.close();
+
 			pstmt = conn.prepareStatement(sql);
-			pstmt.setTimestamp(1, tsValues.timestamp);
-			int i;
-			for (i = 0; i < tsValues.values.size(); i++) {
-				Object value = tsValues.values.get(i);
-				if (format[i].equals("int")) {
-					pstmt.setInt(i+2, (Integer)value);
-				} else if (format[i].equals("float")) {
-					if (value instanceof Double ) {
-						pstmt.setDouble(i+2, (Double)value);
-					} else if (value instanceof Integer) {
-						pstmt.setInt(i+2, (Integer)value);
-					} else {
-						throwInvalidTupleFormat(format);
+			Timestamp ts = new Timestamp(0);
+			int idParam = batch.getNumChannels() + 2;
+			for (int row = 0; row < batch.getSize(); row++) {
+				pstmt.setTimestamp(1, TupleBatch.toTimestamp(batch.getTimestamp(row), ts));
+				for (int i = 0; i < batch.getNumChannels(); i++) {
+					switch (batch.getType(i)) {
+					case TupleBatch.TYPE_FLOAT:
+						pstmt.setDouble(i + 2, batch.getDouble(row, i));
+						break;
+					case TupleBatch.TYPE_INT:
+						pstmt.setInt(i + 2, batch.getInt(row, i));
+						break;
+					default:
+						pstmt.setString(i + 2, batch.getText(row, i));
 					}
-				} else if (format[i].equals("text")) {
-					pstmt.setString(i+2, (String)value);
-				} else {
-					throwInvalidTupleFormat(format);
 				}
+				pstmt.setInt(idParam, stream.id);
+				pstmt.addBatch();
 			}
-			pstmt.setInt(i + 2, stream.id);
-			pstmt.executeUpdate();
+			pstmt.executeBatch();
+			pstmt.close();
+			pstmt = null;
+
+			RollupTiers.add(conn, stream, batch);
+
+			pstmt = conn.prepareStatement("COMMIT WORK");
+			pstmt.execute();
+			isCommitted = true;
 		} catch (SQLException e) {
-			if (e.toString().contains("Extra characters at the end of a datetime or interval."))
-				throw new IllegalArgumentException(ExceptionMessages.MSG_INVALID_TIMESTAMP_FORMAT);
-			else if (e.toString().contains("No cast from ROW")) 
-				throwInvalidTupleFormat(format);
-			else 
-				throw e;
-		} catch (ClassCastException e) {
-			throwInvalidTupleFormat(format);
+			handlePutElemException(e, format);
 		} finally {
 			if (pstmt != null) 
 				pstmt.close();
-		}
-	}
-
-	private TimestampValues parseStrTuple(String strTuple, String prefix) {
-		Object objTuple = JSONValue.parse(strTuple);
-		List<Object> values = new ArrayList<Object>();
-		Timestamp timestamp = null;
-
-		if (objTuple instanceof JSONArray) {
-			boolean isFirst = true;
-
-			for (Object obj: (JSONArray)objTuple) {
-				if (isFirst) {
-					if (obj == null)
-						timestamp = new Timestamp(System.currentTimeMillis());
-					else {
-						timestamp = parseTimestamp(obj);
-					}
-					isFirst = false;
-				} else {
-					values.add(obj);
-				}
-			}
-		} else if (objTuple instanceof JSONObject) {
-			JSONObject json = (JSONObject)objTuple;
-			Object objTimestamp = json.get("timestamp");
-			if (objTimestamp == null) {
-				timestamp = new Timestamp(System.currentTimeMillis());
-			} else {
-				timestamp = parseTimestamp(objTimestamp);
-			}
-			JSONArray tuples = (JSONArray)json.get("tuple");
-
-			for (Object obj: tuples) {
-				values.add(obj);
+			if (!isCommitted) {
+				rollbackWork();
 			}
-		} else {
-			throwInvalidTupleFormat(prefix.split("_"));
 		}
-
-		return new TimestampValues(timestamp, values);
 	}
 
-	private Timestamp parseTimestamp(Object obj) {
-		Timestamp timestamp = null;
+	private void rollbackWork() {
+		Statement stmt = null;
 		try {
-			timestamp = Timestamp.valueOf((String)obj);
-		} catch (IllegalArgumentException | ClassCastException e) {
-			throw new IllegalArgumentException(ExceptionMessages.MSG_INVALID_TIMESTAMP_FORMAT);
+			stmt = conn.createStatement();
+			stmt.execute("ROLLBACK WORK");
+		} catch (SQLException e) {
+			// No transaction was open.
+		} finally {
+			if (stmt != null) {
+				try {
+					stmt.close();
+				} catch (SQLException e) {
+					e.printStackTrace();
+				}
+			}
 		}
-		return timestamp;
 	}
 
-	private void throwInvalidTupleFormat(String[] format) {
+	static void throwInvalidTupleFormat(String[] format) {
 		String tupleFormat = "[ " + ExceptionMessages.VALID_TIMESTAMP_FORMAT + " (or null), ";
 		for (String strFormat: format) {
 			tupleFormat += strFormat + ", ";
@@ -1205,16 +1393,6 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 		throw new IllegalArgumentException("Invalid tuple data type. Expected tuple format: " + tupleFormat);
 	}
 
-	private class TimestampValues {
-		public Timestamp timestamp;
-		public List<Object> values;
-
-		public TimestampValues(Timestamp timestamp, List<Object> values) {
-			this.timestamp = timestamp;
-			this.values = values;
-		}
-	}
-
 	protected String newUUIDString() {
 		String tmp = UUID.randomUUID().toString();
 		return tmp.replaceAll("-", "");
@@ -1234,9 +1412,77 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 			int skipEveryNth,
 			boolean isUpdateNumSamples,
 			String streamForRules) throws SQLException, ClassNotFoundException {
+		return prepareQuery(requestingUser, streamOwner, streamName, startTime, endTime, aggregator, filter, limit, offset, null, skipEveryNth, isUpdateNumSamples, streamForRules);
+	}
+
+	@Override
+	public synchronized boolean prepareQuery(
+			String requestingUser,
+			String streamOwner, 
+			String streamName, 
+			String startTime, 
+			String endTime, 
+			String aggregator,
+			String filter,
+			int limit, 
+			int offset,
+			StreamCursor cursor,
+			int skipEveryNth,
+			boolean isUpdateNumSamples,
+			String streamForRules) throws SQLException, ClassNotFoundException {
+
+		// Temp objects of a failed query are dropped right away rather than when the driver is closed.
+		try {
+			beginWork();
+			return prepareQueryUnderDeadline(requestingUser, streamOwner, streamName, startTime, endTime, aggregator, filter, 
+					limit, offset, cursor, skipEveryNth, isUpdateNumSamples, streamForRules);
+		} catch (SQLException e) {
+			cleanUpAfterFailure();
+			throw toTimeoutIfInterrupted(e);
+		} catch (ClassNotFoundException | RuntimeException e) {
+			cleanUpAfterFailure();
+			throw e;
+		} finally {
+			endWork();
+		}
+	}
+
+	private void cleanUpAfterFailure() {
+		try {
+			cleanUpStoredInfo();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// Epoch milliseconds and nanos of a query bound, so that bounds within a millisecond get their own keys.
+	private static String getCacheKeyTime(Timestamp ts) {
+		return ts == null ? null : ts.getTime() + "." + ts.getNanos();
+	}
+
+	private boolean prepareQueryUnderDeadline(
+			String requestingUser,
+			String streamOwner, 
+			String streamName, 
+			String startTime, 
+			String endTime, 
+			String aggregator,
+			String filter,
+			int limit, 
+			int offset,
+			StreamCursor cursor,
+			int skipEveryNth,
+			boolean isUpdateNumSamples,
+			String streamForRules) throws SQLException, ClassNotFoundException {
+
+		if (cursor != null && offset > 0) {
+			throw new IllegalArgumentException("Offset cannot be used with a cursor.");
+		}
+		queryOtherStreamIds.clear();
 
 		// Check if stream name exists.
-		if ( !isStreamNameExist(streamOwner, streamName) )
+		Stream stream = findStreamDescriptor(streamOwner, streamName);
+		if (stream == null)
 			throw new IllegalArgumentException("Stream (" + streamName + ") of owner (" + streamOwner + ") does not exists.");
 
 		// Check valid timestamps
@@ -1252,13 +1498,34 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 		}
 		checkStartBeforeEndTime(startDateTime, endDateTime);
 
-		// Get some basic information.
-		Stream stream = getStream(streamOwner, streamName);
-
+		// Serve repeated queries from the cache.
+		String cacheKey = null;
+		long cacheGeneration = 0;
+		if (QueryResultCache.isEnabled()) {
+			String cursorPosition = cursor != null && cursor.hasPosition() ? cursor.getTimestamp() + "/" + cursor.getNumAtTimestamp() : null;
+			cacheKey = QueryResultCache.getKey(requestingUser, streamOwner, streamName, 
+					getCacheKeyTime(startTs), getCacheKeyTime(endTs), 
+					aggregator, filter, limit, offset, cursorPosition, skipEveryNth, isUpdateNumSamples, streamForRules);
+			QueryResultCache.Result cached = QueryResultCache.get(cacheKey);
+			if (cached != null) {
+				storedStream = cached.stream;
+				storedStreamDescriptor = cached.descriptor;
+				storedCachedTuples = cached.tuples;
+				storedCachedRow = 0;
+				isStoredNumSamplesUpdated = isUpdateNumSamples;
+				return true;
+			}
+			cacheGeneration = QueryResultCache.getGeneration();
+		}
+
+		// Keep the original descriptor since aggregation rewrites the stream's channels.
+		Stream descriptor = new Stream(stream);
+
 		// Build SQL
 		SqlBuilder sql = new SqlBuilder(offset, limit, startTs, endTs, filter, skipEveryNth, stream);
 
 		// Apply rule condition.
+		boolean isRawStream = true;
 		if (!streamOwner.equals(requestingUser)) {
 			String ruleTargetStream;
 			if (streamForRules != null) {
@@ -1285,6 +1552,7 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 			}
 			
 			if (ruleAggregator != null) {
+				isRawStream = false;
 				Aggregator agg = new Aggregator(ruleAggregator, stream.channels);
 
 				String tempCondFilter = sql.condFilter;
@@ -1307,6 +1575,48 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 
 		if (aggregator != null) {
 			Aggregator agg = new Aggregator(aggregator, stream.channels);
+			// skipEveryNth picks rows of the aggregated result, so it stays in SQL.
+			StreamingAggregator streamingAgg = IS_STREAMING_AGGREGATION_ENABLED && skipEveryNth <= 0 
+					? StreamingAggregator.create(agg, startTs == null ? Long.MIN_VALUE : TupleBatch.toMicros(startTs)) : null;
+			if (streamingAgg == null && agg.isSketchAggregator) {
+				throw new IllegalArgumentException(ExceptionMessages.MSG_UNSUPPORTED_SKETCH_AGGREGATE);
+			}
+			if (streamingAgg != null && agg.isNoisy()) {
+				Stream aggStream = new Stream(descriptor);
+				aggStream.channels = agg.channels;
+				streamingAgg.setNoiseGenerators(getNoiseGenerators(aggStream, agg.epsilon));
+			}
+			TupleBatch result = null;
+			if (streamingAgg != null) {
+				if (isRawStream && sql.condFilter == null && sql.condRules == null) {
+					result = aggregateFromRollups(streamingAgg, agg, descriptor, startTs, endTs);
+				}
+				int numPartitions = getNumPartitions(streamingAgg, sql, descriptor);
+				if (result == null && numPartitions > 1) {
+					result = aggregateInPartitions(streamingAgg, agg, sql, numPartitions);
+				} else if (result == null) {
+					result = aggregateWhileReading(streamingAgg, agg, sql, descriptor);
+				}
+			}
+			// A null result means that a median bucket had more values than the aggregator buffers, so the
+			// database evaluates the query instead.
+			if (streamingAgg != null && result == null && agg.isSketchAggregator) {
+				throw new IllegalArgumentException(ExceptionMessages.MSG_UNSUPPORTED_SKETCH_AGGREGATE);
+			}
+			if (result != null) {
+				serveAggregatedResult(result, agg, stream, descriptor, cursor, sql.offset, sql.limit, isUpdateNumSamples);
+				if (cacheKey != null) {
+					QueryResultCache.Recorder recorder = QueryResultCache.newRecorder(cacheKey, cacheGeneration, streamOwner, descriptor.id, queryOtherStreamIds, 
+							startTs == null ? Long.MIN_VALUE : TupleBatch.toMicros(startTs), endTs == null ? Long.MAX_VALUE : TupleBatch.toMicros(endTs), 
+							storedStream, descriptor);
+					TupleBatch page = new TupleBatch(agg.channels);
+					page.addRows(storedCachedTuples, storedCachedRow, storedCachedTuples.getSize() - storedCachedRow);
+					if (recorder.record(page)) {
+						recorder.finish();
+					}
+				}
+				return true;
+			}
 
 			// If aggregator with no filter, no rules, we can skip creating temporary filtered result.
 			if (sql.condFilter != null || sql.condRules != null) {
@@ -1315,7 +1625,20 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 			sql = processAggregate(agg, sql);
 		}
 
+		// Applied to the final select only, so that aggregation still covers the whole range.
+		if (cursor != null && cursor.hasPosition()) {
+			sql.setCursor(TupleBatch.toTimestamp(cursor.getTimestamp(), new Timestamp(0)), cursor.getNumAtTimestamp());
+		}
+
 		executeQuery(sql, stream, isUpdateNumSamples);
+		storedStreamDescriptor = descriptor;
+		isStoredNumSamplesUpdated = isUpdateNumSamples;
+
+		if (cacheKey != null) {
+			storedRecorder = QueryResultCache.newRecorder(cacheKey, cacheGeneration, streamOwner, descriptor.id, queryOtherStreamIds, 
+					startTs == null ? Long.MIN_VALUE : TupleBatch.toMicros(startTs), endTs == null ? Long.MAX_VALUE : TupleBatch.toMicros(endTs), 
+					storedStream, descriptor);
+		}
 
 		return true;
 	}
@@ -1365,7 +1688,8 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 			// Query actual data.
 			String sqlStr = sql.buildSqlStatement(); 
 			Log.info(sqlStr);
-			pstmt = sql.getPreparedStatement(conn, sqlStr);
+			pstmt = track(sql.getPreparedStatement(conn, sqlStr));
+			pstmt.setFetchSize(QUERY_FETCH_SIZE);
 			ResultSet rset = pstmt.executeQuery();
 
 			storedPstmt = pstmt;
@@ -1383,6 +1707,195 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 		}
 	}
 
+	// Evaluates agg from the rollup tiers of the stream, or returns null if they can't answer it. The
+	// statements on the tiers are tracked like the query's own, so they keep its deadline and can be cancelled.
+	private TupleBatch aggregateFromRollups(StreamingAggregator agg, Aggregator aggregator, Stream descriptor, Timestamp startTs, Timestamp endTs) throws SQLException {
+		checkDeadline();
+		try {
+			return RollupTiers.aggregate(conn, rollupTracker, descriptor, aggregator, agg, 
+					startTs == null ? Long.MIN_VALUE : TupleBatch.toMicros(startTs), endTs == null ? Long.MAX_VALUE : TupleBatch.toMicros(endTs));
+		} catch (SQLException e) {
+			// E.g., rollup rows locked by ingest. The raw tuples give the same result.
+			SQLException timeout = toTimeoutIfInterrupted(e);
+			if (timeout instanceof SQLTimeoutException) {
+				throw timeout;
+			}
+			Log.error("Failed to aggregate from rollups: " + e.getMessage());
+			return null;
+		}
+	}
+
+	// Whether the AggregateRange of sql is worth reading in time partitions. Partitions read on their own
+	// connections, which don't see the session's temp tables, so sql must read the stream's own tables, with
+	// a time range that conditions on other streams or rule aggregators have not removed.
+	private int getNumPartitions(StreamingAggregator agg, SqlBuilder sql, Stream descriptor) {
+		if (agg.getCalendar() != null || sql.startTime == null || sql.endTime == null || PARTITION_MIN_MS <= 0) {
+			return 1;
+		}
+		if (!sql.streamTableName.equals(descriptor.getStreamTableName()) || !sql.virtualTableName.equals(descriptor.getVirtualTableName())) {
+			return 1;
+		}
+		long span = sql.endTime.getTime() - sql.startTime.getTime();
+		return (int)Math.max(1, Math.min(PARTITIONS, span / PARTITION_MIN_MS));
+	}
+
+	// Same as aggregateWhileReading() for AggregateRange, with [sql.startTime, sql.endTime] split into
+	// numPartitions time partitions that are read and aggregated concurrently, and merged in time order.
+	// Returns null if a median bucket overflowed.
+	private TupleBatch aggregateInPartitions(final StreamingAggregator agg, final Aggregator aggregator, SqlBuilder sql, int numPartitions) throws SQLException {
+		long start = sql.startTime.getTime();
+		long span = sql.endTime.getTime() - start;
+		final long rangeStart = TupleBatch.toMicros(sql.startTime);
+		List<Future<StreamingAggregator>> futures = new ArrayList<Future<StreamingAggregator>>();
+		try {
+			for (int i = 0; i < numPartitions; i++) {
+				// Partitions end 10 microseconds, the timestamp precision, before the next one starts.
+				Timestamp partStart = i == 0 ? sql.startTime : new Timestamp(start + span * i / numPartitions);
+				Timestamp partEnd = i == numPartitions - 1 ? sql.endTime
+						: TupleBatch.toTimestamp((start + span * (i + 1) / numPartitions) * 1000 - 10, new Timestamp(0));
+				final SqlBuilder part = sql.withTimeRange(partStart, partEnd);
+				part.offset = 0;
+				part.limit = 0;
+				futures.add(partitionPool.submit(new Callable<StreamingAggregator>() {
+					@Override
+					public StreamingAggregator call() throws Exception {
+						return aggregatePartition(aggregator, part, rangeStart);
+					}
+				}));
+			}
+
+			TupleBatch result = new TupleBatch(aggregator.channels);
+			for (Future<StreamingAggregator> future : futures) {
+				long timeout = queryTimeoutMs > 0 ? Math.max(1, getRemainingMs()) : Long.MAX_VALUE;
+				try {
+					agg.merge(future.get(timeout, TimeUnit.MILLISECONDS));
+				} catch (TimeoutException e) {
+					throw new SQLTimeoutException("Query exceeded its deadline.");
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new SQLTimeoutException("Query was cancelled.");
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof SQLException) {
+						throw toTimeoutIfInterrupted((SQLException)cause);
+					} else if (cause instanceof RuntimeException) {
+						throw (RuntimeException)cause;
+					}
+					throw new IllegalStateException(cause);
+				}
+				if (agg.isOverflowed()) {
+					return null;
+				}
+			}
+			agg.finish(result);
+			return result;
+		} finally {
+			for (Future<StreamingAggregator> future : futures) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	// Reads one partition on its own connection. The returned aggregator is not finished.
+	private StreamingAggregator aggregatePartition(Aggregator aggregator, SqlBuilder part, long rangeStart) throws SQLException {
+		StreamingAggregator agg = StreamingAggregator.create(aggregator, rangeStart);
+		TupleBatch raw = new TupleBatch(aggregator.targetStreamChannels, TupleBatch.FETCH_ROWS);
+		TupleBatch unused = new TupleBatch(aggregator.channels);
+		Connection partConn = null;
+		PreparedStatement pstmt = null;
+		try {
+			checkDeadline();
+			partConn = dataSource.getConnection();
+			String sqlStr = part.buildSqlStatement();
+			Log.info(sqlStr);
+			pstmt = part.getPreparedStatement(partConn, sqlStr);
+			partitionStmts.add(pstmt);
+			setStatementTimeout(pstmt);
+			pstmt.setFetchSize(QUERY_FETCH_SIZE);
+			ResultSet rset = pstmt.executeQuery();
+			boolean isEnd = false;
+			while (!isEnd && !agg.isOverflowed()) {
+				checkDeadline();
+				raw.clear();
+				isEnd = readRows(rset, raw, TupleBatch.FETCH_ROWS);
+				agg.add(raw, unused);
+			}
+			return agg;
+		} finally {
+			if (pstmt != null) {
+				partitionStmts.remove(pstmt);
+				pstmt.close();
+			}
+			if (partConn != null) {
+				partConn.close();
+			}
+		}
+	}
+
+	// Reads the raw tuples that pass the filter and rule conditions, and aggregates them with agg in the same pass.
+	// Returns null if a median bucket overflowed, without reading the rest.
+	private TupleBatch aggregateWhileReading(StreamingAggregator agg, Aggregator aggregator, SqlBuilder sql, Stream descriptor) throws SQLException {
+		int offset = sql.offset;
+		int limit = sql.limit;
+		sql.offset = 0;
+		sql.limit = 0;
+		try {
+			executeQuery(sql, new Stream(descriptor), false);
+		} finally {
+			sql.offset = offset;
+			sql.limit = limit;
+		}
+
+		TupleBatch raw = new TupleBatch(aggregator.targetStreamChannels, TupleBatch.FETCH_ROWS);
+		TupleBatch result = new TupleBatch(aggregator.channels);
+		boolean isEnd = false;
+		while (!isEnd && !agg.isOverflowed()) {
+			checkDeadline();
+			raw.clear();
+			isEnd = readRows(storedResultSet, raw, TupleBatch.FETCH_ROWS);
+			agg.add(raw, result);
+		}
+		storedResultSet = null;
+		storedStream = null;
+		try {
+			storedPstmt.close();
+		} finally {
+			storedPstmt = null;
+		}
+		if (agg.isOverflowed()) {
+			return null;
+		}
+		agg.finish(result);
+		return result;
+	}
+
+	// Serves the aggregated result like a cached one, with limit, offset and cursor applied to it.
+	private void serveAggregatedResult(TupleBatch result, Aggregator aggregator, Stream stream, Stream descriptor, StreamCursor cursor, 
+			int offset, int limit, boolean isUpdateNumSamples) {
+		int start = offset;
+		if (cursor != null && cursor.hasPosition()) {
+			start = 0;
+			while (start < result.getSize() && result.getTimestamp(start) < cursor.getTimestamp()) {
+				start++;
+			}
+			start += cursor.getNumAtTimestamp();
+		}
+		start = Math.min(start, result.getSize());
+		if (limit > 0) {
+			result.truncate(start + limit);
+		}
+
+		stream.channels = aggregator.channels;
+		if (isUpdateNumSamples) {
+			stream.num_samples = result.getSize() - start;
+		}
+		storedStream = stream;
+		storedStreamDescriptor = descriptor;
+		isStoredNumSamplesUpdated = isUpdateNumSamples;
+		storedCachedTuples = result;
+		storedCachedRow = start;
+	}
+
 	private SqlBuilder processAggregate(Aggregator agg, SqlBuilder sql) throws SQLException, ClassNotFoundException {
 
 		// Create row type if not exists.
@@ -1413,7 +1926,7 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 		// Execute Aggregate SQL
 		PreparedStatement pstmt = null;
 		try {
-			pstmt = conn.prepareStatement(aggregateSql);
+			pstmt = track(conn.prepareStatement(aggregateSql));
 			pstmt.executeUpdate();
 		} catch (SQLException e) {
 			String msg = e.getMessage();
@@ -1431,7 +1944,6 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 		} 
 
 		// Save table names for Noisy aggreates.
-		String aggTargetStreamTableName = sql.streamTableName;
 		String aggTargetVirtualTableName = sql.virtualTableName;
 
 		// Modify original sql to refer to the temporary virtual table
@@ -1441,7 +1953,7 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 
 		// Add noise.
 		if (agg.isNoisy()) {
-			sql = processNoisyAggregate(sql, agg, aggTargetStreamTableName, aggTargetVirtualTableName);
+			sql = processNoisyAggregate(sql, agg, aggTargetVirtualTableName);
 		}
 
 		// Time range condition no needed anymore since we create new temp table with the time range.
@@ -1450,7 +1962,7 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 		return sql;
 	}
 
-	private SqlBuilder processNoisyAggregate(SqlBuilder sql, Aggregator agg, String aggTargetStreamTableName, String aggTargetVirtualTableName) throws SQLException {
+	private SqlBuilder processNoisyAggregate(SqlBuilder sql, Aggregator agg, String aggTargetVirtualTableName) throws SQLException {
 
 		// Get temporary UUID
 		String tempName = newUUIDString();
@@ -1470,7 +1982,7 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 
 		PreparedStatement pstmt = null;
 		try {
-			pstmt = conn.prepareStatement(insertSql);
+			pstmt = track(conn.prepareStatement(insertSql));
 			pstmt.executeUpdate();
 		} finally {
 			if (pstmt != null) { 
@@ -1481,31 +1993,20 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 		// Get noise generatros
 		List<DiffPrivNoiseGenerator> noiseGenerators = getNoiseGenerators(sql.stream, agg.epsilon); 
 
-		// Add noise
+		// Read the aggregates, which are few compared to the tuples they summarize.
 		String selectSql = "SELECT * FROM " + sql.virtualTableName + " WHERE id = ?;";
 
 		Log.info(selectSql);
 
-		String noiseInsertSql = "INSERT INTO " + tempVTable + " VALUES (?,?,";
-		for (int i = 1; i <= agg.channels.size(); i++) {
-			noiseInsertSql += "?,";
-		}
-		noiseInsertSql = noiseInsertSql.substring(0, noiseInsertSql.length() - 1) + ")";
-
-		Log.info(noiseInsertSql);
-
-		pstmt = null;		
-		PreparedStatement pstmt2 = null;
+		List<Timestamp> timestamps = new ArrayList<Timestamp>();
+		List<List<Double>> aggregates = new ArrayList<List<Double>>();
+		pstmt = null;
 		try {
-			pstmt = conn.prepareStatement(selectSql);
-			pstmt2 = conn.prepareStatement(noiseInsertSql);
+			pstmt = track(conn.prepareStatement(selectSql));
 			pstmt.setInt(1, sql.stream.id);
-			pstmt2.setInt(1, sql.stream.id);
 			ResultSet rset = pstmt.executeQuery();
-			Timestamp prevTs = null;
-			List<Double> prevValues = null;
 			while (rset.next()) {
-				Timestamp timestamp = rset.getTimestamp(2);
+				timestamps.add(rset.getTimestamp(2));
 				List<Double> values = new ArrayList<Double>();				
 				int idx = 3;
 				for (Channel channel : agg.channels) {
@@ -1515,32 +2016,47 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 						throw new IllegalStateException("Aggregate channel type is not float.");
 					}
 				}
+				aggregates.add(values);
+			}
+		} finally {
+			if (pstmt != null) {
+				pstmt.close();
+			}
+		}
 
-				if (prevTs != null && prevValues != null) {
-					long n = -1;
-					if (agg.isAvgAggregator) {
-						n = executeGetCountSql(conn, aggTargetStreamTableName, sql.stream.id, prevTs, timestamp);
-					}
-					addNoiseAndExecuteUpdate(pstmt2, agg, prevTs, prevValues, noiseGenerators, n);
-				}
+		long[] counts = null;
+		if (agg.isAvgAggregator && !timestamps.isEmpty()) {
+			counts = countTuplesPerAggregate(aggTargetVirtualTableName, sql.stream.id, timestamps, sql.startTime, sql.endTime);
+		}
+
+		// Add noise
+		String noiseInsertSql = "INSERT INTO " + tempVTable + " VALUES (?,?,";
+		for (int i = 1; i <= agg.channels.size(); i++) {
+			noiseInsertSql += "?,";
+		}
+		noiseInsertSql = noiseInsertSql.substring(0, noiseInsertSql.length() - 1) + ")";
+
+		Log.info(noiseInsertSql);
 
-				prevTs = timestamp;
-				prevValues = values;
+		pstmt = null;
+		try {
+			pstmt = track(conn.prepareStatement(noiseInsertSql));
+			pstmt.setInt(1, sql.stream.id);
+			for (int i = 0; i < timestamps.size(); i++) {
+				addNoiseToValues(aggregates.get(i), agg.channels, noiseGenerators, counts == null ? -1 : counts[i]);
+				pstmt.setTimestamp(2, timestamps.get(i));
+				for (int j = 0; j < agg.channels.size(); j++) {
+					pstmt.setDouble(j + 3, aggregates.get(i).get(j));
+				}
+				pstmt.addBatch();
 			}
-			// Process last aggregate
-			long n = -1;
-			if (agg.isAvgAggregator) {
-				n = executeGetCountSql(conn, aggTargetStreamTableName, sql.stream.id, prevTs, sql.endTime);
+			if (!timestamps.isEmpty()) {
+				pstmt.executeBatch();
 			}
-			addNoiseAndExecuteUpdate(pstmt2, agg, prevTs, prevValues, noiseGenerators, n);
-
 		} finally {
 			if (pstmt != null) {
 				pstmt.close();
 			}
-			if (pstmt2 != null) {
-				pstmt2.close();
-			}
 		}
 
 		sql.streamTableName = tempTable;
@@ -1549,7 +2065,50 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 		return sql;
 	}
 
-	private static long executeGetCountSql(Connection conn, String streamTableName, int streamId, Timestamp startTs, Timestamp endTs) throws SQLException {
+	// Counts the tuples of the aggregate target in one pass. The aggregate at timestamps[i] covers the tuples
+	// from timestamps[i] until timestamps[i + 1], and the last one those until the end of the range.
+	private long[] countTuplesPerAggregate(String virtualTableName, int streamId, List<Timestamp> timestamps, Timestamp startTs, Timestamp endTs) throws SQLException {
+		String countSql = "SELECT timestamp FROM " + virtualTableName + " WHERE id = ?";
+		if (startTs != null) {
+			countSql += " AND timestamp >= ?";
+		}
+		if (endTs != null) {
+			countSql += " AND timestamp <= ?";
+		}
+
+		Log.info(countSql);
+
+		long[] counts = new long[timestamps.size()];
+		PreparedStatement pstmt = null;
+		try {
+			pstmt = track(conn.prepareStatement(countSql));
+			int i = 1;
+			pstmt.setInt(i++, streamId);
+			if (startTs != null) {
+				pstmt.setTimestamp(i++, startTs);
+			}
+			if (endTs != null) {
+				pstmt.setTimestamp(i++, endTs);
+			}
+			pstmt.setFetchSize(QUERY_FETCH_SIZE);
+			ResultSet rset = pstmt.executeQuery();
+			int aggregate = 0;
+			while (rset.next()) {
+				Timestamp timestamp = rset.getTimestamp(1);
+				while (aggregate + 1 < counts.length && !timestamp.before(timestamps.get(aggregate + 1))) {
+					aggregate++;
+				}
+				counts[aggregate]++;
+			}
+		} finally {
+			if (pstmt != null) {
+				pstmt.close();
+			}
+		}
+		return counts;
+	}
+
+	private long executeGetCountSql(Connection conn, String streamTableName, int streamId, Timestamp startTs, Timestamp endTs) throws SQLException {
 		int numSamples;
 		PreparedStatement pstmt = null;
 		String countSql;
@@ -1562,7 +2121,7 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 		Log.info(countSql);
 
 		try {
-			pstmt = conn.prepareStatement(countSql);
+			pstmt = track(conn.prepareStatement(countSql));
 			if (startTs != null || endTs != null) {
 				pstmt.setTimestamp(1, startTs);
 				pstmt.setTimestamp(2, endTs);
@@ -1584,16 +2143,6 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 		return numSamples;
 	}
 
-	private void addNoiseAndExecuteUpdate(PreparedStatement pstmt, Aggregator agg, Timestamp timestamp, List<Double> values, List<DiffPrivNoiseGenerator> noiseGenerators, long n) throws SQLException {
-		addNoiseToValues(values, agg.channels, noiseGenerators, n);
-
-		pstmt.setTimestamp(2, timestamp);
-		for (int i = 3; i < agg.channels.size() + 3; i++) {
-			pstmt.setDouble(i, values.get(i - 3));
-		}
-		pstmt.executeUpdate();
-	}
-
 	private List<DiffPrivNoiseGenerator> getNoiseGenerators(Stream stream, double epsilon) throws SQLException {
 		// find out original channel's statistics
 		Stream oriStream = getStream(stream.owner, stream.name);
@@ -1627,7 +2176,6 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 		for (int i = 0; i < values.size(); i++) {
 			double value = values.get(i);
 			double noise = getNoise(channels.get(i).name, noiseGenerators.get(i), n);
-			Log.info("value:" + value + ", noise:" + noise);
 			values.set(i, value + noise);
 		}
 	}
@@ -1658,7 +2206,7 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 
 		PreparedStatement pstmt = null;
 		try {
-			pstmt = conn.prepareStatement(insertSql);
+			pstmt = track(conn.prepareStatement(insertSql));
 			pstmt.executeUpdate();
 		} finally {
 			if (pstmt != null) { 
@@ -1728,7 +2276,7 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 
 		PreparedStatement pstmt = null;
 		try {
-			pstmt = conn.prepareStatement(newTsSql);
+			pstmt = track(conn.prepareStatement(newTsSql));
 			pstmt.executeUpdate();
 		} finally {
 			if (pstmt != null) { 
@@ -1739,7 +2287,7 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 		// Insert result of existing filter into the new timeseries
 		pstmt = null;
 		try {
-			pstmt = sql.getPreparedStatementInsertPrefix(conn, tempVTable);
+			pstmt = track(sql.getPreparedStatementInsertPrefix(conn, tempVTable));
 			pstmt.executeUpdate();
 		} finally {
 			if (pstmt != null) {
@@ -1818,14 +2366,15 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 			String otherStreamName = splitExpr[0];
 			String otherChannel = splitExpr[1];
 
-			Stream otherStream = getStream(streamOwner, otherStreamName);
+			Stream otherStream = getStreamDescriptor(streamOwner, otherStreamName);
+			queryOtherStreamIds.add(otherStream.id);
 
 			if (otherStreamMap.containsKey(otherStream)) {
 				otherStreamMap.get(otherStream).add(otherChannel);
 			} else {
 				Set<String> channelSet = new HashSet<String>();
 				channelSet.add(otherChannel);
-				otherStreamMap.put(getStream(streamOwner, otherStreamName), channelSet);				
+				otherStreamMap.put(otherStream, channelSet);				
 			}
 		}		
 
@@ -1889,13 +2438,13 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 
 		PreparedStatement pstmt = null;
 		try {
-			pstmt = conn.prepareStatement(createRowtype);
+			pstmt = track(conn.prepareStatement(createRowtype));
 			pstmt.execute();
 		} finally {
 			if (pstmt != null)
 				pstmt.close();
 		}
-		storedTempRowTypeName = tempRowType;
+		addCleanup("DROP ROW TYPE IF EXISTS " + tempRowType + " RESTRICT;");
 
 		// Create temporary stream table.
 		createTempStreamTable(tempTable, tempRowType);
@@ -1930,7 +2479,7 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 		// Execute Union()
 		pstmt = null;
 		try {
-			pstmt = conn.prepareStatement(executeUnion);
+			pstmt = track(conn.prepareStatement(executeUnion));
 			pstmt.executeUpdate();
 		} finally {
 			if (pstmt != null) 
@@ -1963,7 +2512,7 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 		try {
 			String sql = "EXECUTE PROCEDURE TSCreateVirtualTab(?,?)";
 			Log.info(sql);
-			pstmt = conn.prepareStatement(sql);
+			pstmt = track(conn.prepareStatement(sql));
 			pstmt.setString(1, tempVTable);
 			pstmt.setString(2, tempTable);
 			pstmt.execute();
@@ -1971,7 +2520,7 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 			if (pstmt != null)
 				pstmt.close();
 		}		
-		storedTempTables.add(tempVTable);
+		addCleanup("DROP TABLE IF EXISTS " + tempVTable);
 	}
 
 	private void createTempStreamTable(String tempTable, String tempRowType) throws SQLException {
@@ -1979,32 +2528,47 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 		try {
 			String sql = "CREATE TEMP TABLE " + tempTable + " ( id int, tuples TimeSeries(" + tempRowType + "))";
 			Log.info(sql);
-			pstmt = conn.prepareStatement(sql);
+			pstmt = track(conn.prepareStatement(sql));
 			pstmt.execute();
 		} finally {
 			if (pstmt != null) 
 				pstmt.close();
 		}
-	}
-
-	private void dropTemps() throws SQLException {
-		dropStoredTempTables();
-		dropStoredTempView();
-		dropStoredTempRowTypeName();
+		// Pooled connections keep their session, and so their temp tables.
+		addCleanup("DROP TABLE IF EXISTS " + tempTable);
 	}
 
 	private void cleanUpStoredInfo() throws SQLException {
-		if (storedPstmt != null) { 
-			storedPstmt.close();
-		}
-		dropTemps();
+		PreparedStatement pstmt = storedPstmt;
 		storedResultSet = null;
 		storedPstmt = null;
 		storedStream = null;
+		storedStreamDescriptor = null;
+		isStoredNumSamplesUpdated = false;
+		storedCachedTuples = null;
+		storedCachedRow = 0;
+		storedRecorder = null;
+		runningStmt = null;
+		try {
+			if (pstmt != null) { 
+				pstmt.close();
+			}
+		} finally {
+			dropTemps();
+		}
 	}
 
 	@Override
-	public Object[] getNextTuple() throws SQLException {
+	public synchronized Object[] getNextTuple() throws SQLException {
+		storedRecorder = null;
+		if (isAbandoned) {
+			checkDeadline();
+		}
+		if (storedCachedTuples != null) {
+			Object[] tuple = new Object[storedStream.channels.size() + 1];
+			return getNextCachedTuple(tuple) ? tuple : null;
+		}
+
 		if (storedResultSet == null) {
 			cleanUpStoredInfo();
 			return null;
@@ -2015,7 +2579,7 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 			return null;
 		}
 
-		if (storedResultSet.next()) {
+		if (nextStoredRow()) {
 			Object[] tuple = new Object[storedStream.channels.size() + 1];
 			tuple[0] = storedResultSet.getTimestamp(2).getTime(); // epoch in ms.
 			int startColIdx = 3;
@@ -2030,13 +2594,12 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 	}
 
 	@Override
-	public boolean getNextTuple(Object[] tuple) throws SQLException {
-		if (storedResultSet == null) {
-			cleanUpStoredInfo();
-			return false;
+	public synchronized boolean getNextTuple(Object[] tuple) throws SQLException {
+		storedRecorder = null;
+		if (isAbandoned) {
+			checkDeadline();
 		}
-
-		if (storedResultSet.isClosed() || storedResultSet.isAfterLast()) {
+		if (storedResultSet == null && storedCachedTuples == null) {
 			cleanUpStoredInfo();
 			return false;
 		}
@@ -2045,8 +2608,17 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 		if (tupleSize > tuple.length) {
 			throw new UnsupportedOperationException("Passed tuple[] length is not sufficient.");
 		}
+
+		if (storedCachedTuples != null) {
+			return getNextCachedTuple(tuple);
+		}
+
+		if (storedResultSet.isClosed() || storedResultSet.isAfterLast()) {
+			cleanUpStoredInfo();
+			return false;
+		}
 		
-		if (storedResultSet.next()) {
+		if (nextStoredRow()) {
 			tuple[0] = storedResultSet.getTimestamp(2).getTime(); // epoch in ms.
 			int startColIdx = 3;
 			for (int i = 0; i < storedStream.channels.size(); i++) {
@@ -2059,6 +2631,142 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 		}
 	}
 
+	// Moves to the next row of the stored result set, counting the fetch against the query timeout.
+	private boolean nextStoredRow() throws SQLException {
+		try {
+			beginWork();
+			return storedResultSet.next();
+		} catch (SQLException e) {
+			cleanUpAfterFailure();
+			throw toTimeoutIfInterrupted(e);
+		} finally {
+			endWork();
+		}
+	}
+
+	// Same values as read from the result set: epoch milliseconds, then Double, Integer or String.
+	private boolean getNextCachedTuple(Object[] tuple) throws SQLException {
+		if (storedCachedRow >= storedCachedTuples.getSize()) {
+			cleanUpStoredInfo();
+			return false;
+		}
+		int row = storedCachedRow++;
+		tuple[0] = TupleBatch.toMillis(storedCachedTuples.getTimestamp(row));
+		for (int i = 0; i < storedCachedTuples.getNumChannels(); i++) {
+			if (storedCachedTuples.isNull(row, i)) {
+				tuple[i + 1] = null;
+			} else if (storedCachedTuples.getType(i) == TupleBatch.TYPE_FLOAT) {
+				tuple[i + 1] = storedCachedTuples.getDouble(row, i);
+			} else if (storedCachedTuples.getType(i) == TupleBatch.TYPE_INT) {
+				tuple[i + 1] = storedCachedTuples.getInt(row, i);
+			} else {
+				tuple[i + 1] = storedCachedTuples.getText(row, i);
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public synchronized int getNextTuples(TupleBatch batch, int maxRows) throws SQLException {
+		batch.clear();
+		if (isAbandoned) {
+			checkDeadline();
+		}
+		if (storedCachedTuples != null) {
+			int numRows = Math.min(maxRows, storedCachedTuples.getSize() - storedCachedRow);
+			if (numRows <= 0) {
+				cleanUpStoredInfo();
+				return 0;
+			}
+			if (!batch.isSchemaOf(storedStream.channels)) {
+				throw new UnsupportedOperationException("Passed TupleBatch does not match the stream channels.");
+			}
+			batch.addRows(storedCachedTuples, storedCachedRow, numRows);
+			storedCachedRow += numRows;
+			return numRows;
+		}
+
+		if (storedResultSet == null) {
+			cleanUpStoredInfo();
+			return 0;
+		}
+
+		if (storedResultSet.isClosed() || storedResultSet.isAfterLast()) {
+			cleanUpStoredInfo();
+			return 0;
+		}
+
+		if (!batch.isSchemaOf(storedStream.channels)) {
+			throw new UnsupportedOperationException("Passed TupleBatch does not match the stream channels.");
+		}
+
+		try {
+			beginWork();
+			return fetchTuples(batch, maxRows);
+		} catch (SQLException e) {
+			cleanUpAfterFailure();
+			throw toTimeoutIfInterrupted(e);
+		} finally {
+			endWork();
+		}
+	}
+
+	private int fetchTuples(TupleBatch batch, int maxRows) throws SQLException {
+		boolean isEnd = readRows(storedResultSet, batch, maxRows);
+		if (storedRecorder != null && !storedRecorder.record(batch)) {
+			storedRecorder = null;
+		}
+		if (isEnd) {
+			if (storedRecorder != null) {
+				storedRecorder.finish();
+			}
+			cleanUpStoredInfo();
+		}
+		return batch.getSize();
+	}
+
+	// Appends up to maxRows rows of the result set to batch, whose channels are the first columns after the
+	// timestamp. Returns true at the end of the result set.
+	private static boolean readRows(ResultSet rset, TupleBatch batch, int maxRows) throws SQLException {
+		int numChannels = batch.getNumChannels();
+		int startColIdx = 3;
+		while (batch.getSize() < maxRows) {
+			if (!rset.next()) {
+				return true;
+			}
+			int row = batch.addRow(TupleBatch.toMicros(rset.getTimestamp(2)));
+			for (int i = 0; i < numChannels; i++) {
+				int col = startColIdx + i;
+				switch (batch.getType(i)) {
+				case TupleBatch.TYPE_FLOAT:
+					double doubleValue = rset.getDouble(col);
+					if (rset.wasNull()) {
+						batch.setNull(row, i);
+					} else {
+						batch.setDouble(row, i, doubleValue);
+					}
+					break;
+				case TupleBatch.TYPE_INT:
+					int intValue = rset.getInt(col);
+					if (rset.wasNull()) {
+						batch.setNull(row, i);
+					} else {
+						batch.setInt(row, i, intValue);
+					}
+					break;
+				default:
+					String text = rset.getString(col);
+					if (text == null) {
+						batch.setNull(row, i);
+					} else {
+						batch.setText(row, i, text);
+					}
+				}
+			}
+		}
+		return false;
+	}
+
 	private String getRuleCondition(String streamOwner, String requestingUser, String streamName) throws SQLException {
 
 		PreparedStatement pstmt = null;
@@ -2196,11 +2904,13 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 		}
 	}
 
-	@Override
-	public Stream getStream(String owner, String streamName) throws SQLException {
+	private Stream findStreamDescriptor(String owner, String streamName) throws SQLException {
+		Stream stream = StreamRegistry.get(owner, streamName);
+		if (stream != null) {
+			return stream;
+		}
+
 		PreparedStatement pstmt = null;
-		PreparedStatement pstmt2 = null;
-		Stream stream = null;
 		try {
 			String sql = "SELECT tags, channels, id FROM streams WHERE owner = ? AND name = ?";
 			pstmt = conn.prepareStatement(sql);
@@ -2208,36 +2918,73 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 			pstmt.setString(2, streamName);
 			ResultSet rset = pstmt.executeQuery();
 			if (!rset.next()) {
-				throw new IllegalArgumentException("No such stream (" + streamName + ") of owner (" + owner + ")");
+				return null;
 			}
-			String tags = rset.getString(1);
-			Array channels = rset.getArray(2);			
-			int id = rset.getInt(3);
-			stream = new Stream(id, streamName, owner, tags, channels);
+			stream = new Stream(rset.getInt(3), streamName, owner, rset.getString(1), rset.getArray(2));
+		} finally {
+			if (pstmt != null)
+				pstmt.close();
+		}
 
-			pstmt2 = conn.prepareStatement("SELECT GetNelems(tuples) FROM " + stream.getStreamTableName() + " WHERE id = ?");
-			pstmt2.setInt(1, id);
-			ResultSet rset2 = pstmt2.executeQuery();
-			if (!rset2.next()) {
-				throw new IllegalStateException("ResultSet is null.");
-			}
-			int numSamples = rset2.getInt(1);
-			stream.setNumSamples(numSamples);
+		StreamRegistry.put(stream);
+		return stream;
+	}
 
-			// get channel statistics
-			for (Channel channel : stream.channels) {
-				getChannelStatistics(conn, stream, channel);
+	private Stream getStreamDescriptor(String owner, String streamName) throws SQLException {
+		Stream stream = findStreamDescriptor(owner, streamName);
+		if (stream == null) {
+			throw new IllegalArgumentException("No such stream (" + streamName + ") of owner (" + owner + ")");
+		}
+		return stream;
+	}
+
+	private int getNumSamples(Stream stream) throws SQLException {
+		PreparedStatement pstmt = null;
+		try {
+			pstmt = conn.prepareStatement("SELECT GetNelems(tuples) FROM " + stream.getStreamTableName() + " WHERE id = ?");
+			pstmt.setInt(1, stream.id);
+			ResultSet rset = pstmt.executeQuery();
+			if (!rset.next()) {
+				throw new IllegalStateException("ResultSet is null.");
 			}
+			return rset.getInt(1);
 		} finally {
 			if (pstmt != null)
 				pstmt.close();
-			if (pstmt2 != null)
-				pstmt2.close();
-		}		
+		}
+	}
+
+	@Override
+	public Stream getStream(String owner, String streamName) throws SQLException {
+		Stream stream = getStreamDescriptor(owner, streamName);
+
+		stream.setNumSamples(getNumSamples(stream));
+
+		// get channel statistics
+		for (Channel channel : stream.channels) {
+			getChannelStatistics(conn, stream, channel);
+		}
 
 		return stream;
 	}
 
+	@Override
+	public Stream getStoredStreamInfoWithStatistics() throws SQLException {
+		if (storedStream == null || storedStreamDescriptor == null) {
+			return storedStream;
+		}
+
+		// num_samples is already set for the query range when prepareQuery() was asked to count it.
+		if (!isStoredNumSamplesUpdated) {
+			storedStream.setNumSamples(getNumSamples(storedStreamDescriptor));
+		}
+		for (Channel channel : storedStream.channels) {
+			getChannelStatistics(conn, storedStreamDescriptor, channel);
+		}
+
+		return storedStream;
+	}
+
 	@Override
 	public List<Stream> getStreamList(String owner) throws SQLException {
 		return getStreamList(conn, owner);
@@ -2303,6 +3050,7 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 				pstmt.close();
 			}
 		}
+		ChannelStatisticsAccumulator.merge(stream.id, channel);
 	}
 
 	@Override
@@ -2347,6 +3095,12 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 				pstmt.setString(2, streamName);
 				pstmt.executeUpdate();
 
+				RollupTiers.deleteStream(conn, id);
+
+				StreamRegistry.invalidate(owner, streamName);
+				ChannelStatisticsAccumulator.discard(id);
+				QueryResultCache.invalidateStream(id);
+
 			} else if (startTime != null && endTime != null) {
 				// Delete some portions of the stream.
 				Timestamp startTs = null, endTs = null;
@@ -2359,16 +3113,37 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 					throw new IllegalArgumentException(ExceptionMessages.MSG_INVALID_TIMESTAMP_FORMAT);
 				}
 
-				sql = "UPDATE " + prefix + "streams SET tuples = "
-						+ "DelRange(tuples, ?, ?) WHERE id = ?";
-				pstmt = conn.prepareStatement(sql);
-				pstmt.setTimestamp(1, startTs);
-				pstmt.setTimestamp(2, endTs);
-				pstmt.setInt(3, id);
-				pstmt.executeUpdate();
+				// The rollups of the range are rebuilt after the delete commits.
+				boolean isCommitted = false;
+				try {
+					pstmt = conn.prepareStatement("BEGIN WORK");
+					pstmt.execute();
+					pstmt.close();
+
+					sql = "UPDATE " + prefix + "streams SET tuples = "
+							+ "DelRange(tuples, ?, ?) WHERE id = ?";
+					pstmt = conn.prepareStatement(sql);
+					pstmt.setTimestamp(1, startTs);
+					pstmt.setTimestamp(2, endTs);
+					pstmt.setInt(3, id);
+					pstmt.executeUpdate();
+					pstmt.close();
+
+					RollupTiers.queueRepair(conn, id, TupleBatch.toMicros(startTs), TupleBatch.toMicros(endTs));
+
+					pstmt = conn.prepareStatement("COMMIT WORK");
+					pstmt.execute();
+					isCommitted = true;
+				} finally {
+					if (!isCommitted) {
+						rollbackWork();
+					}
+				}
+				QueryResultCache.invalidateRange(id, TupleBatch.toMicros(startTs), TupleBatch.toMicros(endTs));
 
 				// update channel statistics.
 				Log.info("Re-calculating channel statistics..");
+				ChannelStatisticsAccumulator.discard(id);
 				Stream stream = getStream(owner, streamName);
 				int i = 1;
 				for (Channel channel : stream.channels){
@@ -2399,6 +3174,11 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 				pstmt2 = conn.prepareStatement(sql);
 				pstmt2.setInt(1, id);
 				pstmt2.executeUpdate();
+				pstmt2.close();
+				pstmt2 = null;
+				RollupTiers.deleteStream(conn, id);
+				ChannelStatisticsAccumulator.discard(id);
+				QueryResultCache.invalidateStream(id);
 			}
 			pstmt.close();
 			pstmt = conn.prepareStatement("DELETE FROM streams WHERE owner = ?");
@@ -2408,6 +3188,8 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 
 			pstmt = conn.prepareStatement("DELETE FROM channel_statistics");
 			pstmt.executeUpdate();
+
+			StreamRegistry.invalidateOwner(owner);
 		} finally {
 			if (pstmt != null)
 				pstmt.close();
@@ -2453,7 +3235,7 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 				} catch (IllegalArgumentException e2) {
 					// If first line fails, try for 2nd line because CSV file might have header line.
 					lines[0] = null;
-					timestamp = lines[1].split(delimiter, 2)[0];
+					timestamp = lines[1] == null ? "" : lines[1].split(delimiter, 2)[0];
 					try {
 						dt = sqlFmtFraction.parseDateTime(timestamp);
 						returnFmt = sqlFmtFraction;
@@ -2480,56 +3262,52 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 		return returnFmt;
 	}
 
-	private File createBulkloadFileAndUpdatePendingStatistics(Stream stream, String data) throws IOException, NoSuchAlgorithmException {
+	// Writes up to maxRows lines of the reader to a new bulkload file. Returns null if the reader is exhausted.
+	// Lines are handed to the parallel parser in blocks, and min/max of the numeric channels are folded into min and max.
+	// timeRange is widened to the first and last timestamp in epoch milliseconds.
+	private File createBulkloadFile(BulkLoadParser parser, BufferedReader reader, String[] block, long[] lineNumber, int maxRows, double[] min, double[] max, long[] timeRange) throws IOException, NoSuchAlgorithmException {
 		FileWriter fw = null;
 		BufferedWriter bw = null;
 		File file = null;
 		boolean isSuccessful = false;
 		
 		try {
-			String fileName = BULK_LOAD_DATA_FILE_NAME_PREFIX + newUUIDString();
-			file = new File(fileName);
-			if (file.exists()) {
-				file.delete();				
-			}
-			file.createNewFile();
-			fw = new FileWriter(file.getAbsoluteFile());
-			bw = new BufferedWriter(fw);
-
 			String lineSeparator = System.getProperty("line.separator");
-			String[] lines = data.split(lineSeparator);
-
-			// Determine delimiter
-			String delimiter = findDelimiter(lines[0]);
-
-			// Determine date time format
-			DateTimeFormatter fmt = findDateTimeFormat(lines, delimiter);
-			DateTimeFormatter sqlFmt = DateTimeFormat.forPattern(SQL_DATE_TIME_PATTERN_WITH_FRACTION);
-
-			for (String line: lines) {
-				if (line == null) {
-					continue;
+			int numRows = 0;
+			boolean isEndOfData = false;
+			while (numRows < maxRows && !isEndOfData) {
+				int numLines = 0;
+				while (numLines < block.length && numRows + numLines < maxRows) {
+					String line = reader.readLine();
+					if (line == null) {
+						isEndOfData = true;
+						break;
+					}
+					block[numLines++] = line;
 				}
-
-				String[] cols = line.split(delimiter, 2);
-				
-				if (cols.length != 2) {
-					throw new IllegalArgumentException("Malformed input line: " + line);
+				if (numLines == 0) {
+					break;
 				}
-				
-				String timestamp = cols[0];
-				String values = cols[1];
 
-				DateTime dt = null;
-				try {
-					dt = fmt.parseDateTime(timestamp);
-				} catch (IllegalArgumentException e) {
-					throw new IllegalArgumentException("Unable to parse timestamp: " + timestamp);
-				}
-
-				updatePendingStatistics(stream, values.split(delimiter));
+				parser.parse(block, numLines, lineNumber[0], min, max, timeRange);
+				lineNumber[0] += numLines;
+				numRows += numLines;
 
-				bw.write(dt.toString(sqlFmt) + delimiter + values + lineSeparator);
+				if (file == null) {
+					String fileName = BULK_LOAD_DATA_FILE_NAME_PREFIX + newUUIDString();
+					file = new File(fileName);
+					if (file.exists()) {
+						file.delete();				
+					}
+					file.createNewFile();
+					fw = new FileWriter(file.getAbsoluteFile());
+					bw = new BufferedWriter(fw);
+				}
+				for (int i = 0; i < numLines; i++) {
+					bw.write(block[i]);
+					bw.write(lineSeparator);
+					block[i] = null;
+				}
 			}
 			isSuccessful = true;
 		} finally {
@@ -2544,59 +3322,69 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 		return file;
 	}
 
-	private void updatePendingStatistics(Stream stream, String[] values) {
-		int i = 0;
-		for (Channel c : stream.channels) {
-			if (isNumeric(c)) {
-				double value;
-				if (c.type.equals("float")) {
-					value = Double.valueOf(values[i]);
-				} else if (c.type.equals("int")) {
-					value = Integer.valueOf(values[i].trim());
-				} else {
-					throw new IllegalStateException("Invalid channel type.");
-				}
-				if (c.statistics == null) {
-					c.statistics = new Statistics(value, value);
-				} else {
-					double min = c.statistics.min;
-					double max = c.statistics.max;
-					if (min > value) {
-						c.statistics.min = value;
-					}
-					if (max < value) {
-						c.statistics.max = value;
-					}
-				}
-			}
-			i++;
-		}
-	} 
-
 	@Override
 	public void bulkLoad(String ownerName, String streamName, String data) throws SQLException, IOException, NoSuchAlgorithmException {
-		Stream stream = getStream(ownerName, streamName);
+		bulkLoad(ownerName, streamName, new StringReader(data));
+	}
+
+	@Override
+	public void bulkLoad(String ownerName, String streamName, Reader data) throws SQLException, IOException, NoSuchAlgorithmException {
+		Stream stream = getStreamDescriptor(ownerName, streamName);
+
+		BufferedReader reader = new BufferedReader(data);
+
+		// Peek at the first two lines to determine delimiter and date time format.
+		reader.mark(BULK_LOAD_PEEK_LIMIT);
+		String[] lines = new String[] { reader.readLine(), reader.readLine() };
+		reader.reset();
+		if (lines[0] == null) {
+			throw new IllegalArgumentException("Empty data.");
+		}
+		String delimiter = findDelimiter(lines[0]);
+		DateTimeFormatter fmt = findDateTimeFormat(lines, delimiter);
+		long[] lineNumber = new long[] { 1 };
+		if (lines[0] == null) {
+			// Skip header line.
+			reader.readLine();
+			lineNumber[0]++;
+		}
+
+		BulkLoadParser parser = new BulkLoadParser(stream.channels, delimiter, fmt, SQL_DATE_TIME_PATTERN_WITH_FRACTION);
+		String[] block = new String[BULK_LOAD_PARSE_BLOCK_ROWS];
+		double[] min = new double[stream.channels.size()];
+		double[] max = new double[stream.channels.size()];
+		Arrays.fill(min, Double.POSITIVE_INFINITY);
+		Arrays.fill(max, Double.NEGATIVE_INFINITY);
+		long[] timeRange = new long[] { Long.MAX_VALUE, Long.MIN_VALUE };
 
-		// new channel statistics will be stored in stream.channels
 		File file = null;
 		PreparedStatement pstmt = null;
+		boolean isCommitted = false;
 
 		try {
-			file = createBulkloadFileAndUpdatePendingStatistics(stream, data);
-			
 			pstmt = conn.prepareStatement("BEGIN WORK");
 			pstmt.execute();
 			pstmt.close();
 
 			pstmt = conn.prepareStatement("UPDATE " + stream.getStreamTableName() + " SET tuples = BulkLoad(tuples, ?, ?) WHERE id = ?");
-			pstmt.setString(1, file.getAbsolutePath());
-			pstmt.setInt(2, BULKLOAD_FLAG);
-			pstmt.setInt(3, stream.id);
-			pstmt.executeUpdate();
+			while ((file = createBulkloadFile(parser, reader, block, lineNumber, BULK_LOAD_CHUNK_ROWS, min, max, timeRange)) != null) {
+				pstmt.setString(1, file.getAbsolutePath());
+				pstmt.setInt(2, BULKLOAD_FLAG);
+				pstmt.setInt(3, stream.id);
+				pstmt.executeUpdate();
+				file.delete();
+				file = null;
+			}
 			pstmt.close();
+			pstmt = null;
+
+			if (timeRange[0] <= timeRange[1]) {
+				RollupTiers.queueRepair(conn, stream.id, timeRange[0] * 1000, timeRange[1] * 1000 + 999);
+			}
 
 			pstmt = conn.prepareStatement("COMMIT WORK");
 			pstmt.execute();
+			isCommitted = true;
 
 		} catch (SQLException e) {
 			if (e.getMessage().contains("Too many data values")) {
@@ -2609,33 +3397,20 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 				pstmt.close();
 			if (file != null)
 				file.delete();
+			if (!isCommitted)
+				rollbackWork();
 		}
 
-		// update channel statistics
-		Stream oriStream = getStream(ownerName, streamName);
-
-		for (int i = 0; i < oriStream.channels.size(); i++) {
-			Statistics stat = stream.channels.get(i).statistics;
-			
-			if (stat == null) {
-				continue;
-			}
-			
-			double newMin = stat.min;
-			double newMax = stat.max;
-			if (oriStream.channels.get(i).statistics == null) {
-				insertOrUpdateChannelStatistics(oriStream.id, oriStream.name, oriStream.channels.get(i).name, newMin, newMax);
-			} else {
-				double oriMin = oriStream.channels.get(i).statistics.min;
-				double oriMax = oriStream.channels.get(i).statistics.max;
-				if (oriMin != newMin) {
-					updateChannelStatisticsMin(streamName, stream.channels.get(i).name, newMin);
-				}
-				if (oriMax != newMax) {
-					updateChannelStatisticsMax(streamName, stream.channels.get(i).name, newMax);
-				}
+		// hand pending channel statistics to the write-behind accumulator
+		for (int i = 0; i < stream.channels.size(); i++) {
+			if (min[i] <= max[i]) {
+				ChannelStatisticsAccumulator.update(stream.id, stream.name, stream.channels.get(i).name, min[i], max[i]);
 			}
 		}
+
+		if (timeRange[0] <= timeRange[1]) {
+			QueryResultCache.invalidateRange(stream.id, timeRange[0] * 1000, timeRange[1] * 1000 + 999);
+		}
 	}
 
 	@Override
@@ -2679,6 +3454,7 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 			if (pstmt != null)
 				pstmt.close();
 		}
+		QueryResultCache.invalidatePolicies(owner);
 	}
 
 	@Override
@@ -2713,6 +3489,7 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 			if (pstmt != null)
 				pstmt.close();
 		}
+		QueryResultCache.invalidatePolicies(owner);
 	}
 
 	@Override
@@ -2747,6 +3524,7 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 			if (pstmt != null)
 				pstmt.close();
 		}
+		QueryResultCache.invalidatePolicies(owner);
 	}
 
 	@Override
@@ -2781,6 +3559,7 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 			if (pstmt != null)
 				pstmt.close();
 		}
+		QueryResultCache.invalidatePolicies(ownerName);
 	}
 
 	@Override
@@ -2794,6 +3573,7 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 			if (pstmt != null)
 				pstmt.close();
 		}
+		QueryResultCache.invalidatePolicies(ownerName);
 	}
 
 	@Override
@@ -2863,6 +3643,7 @@ public class InformixStreamDatabase extends InformixDatabaseDriver implements St
 			if (pstmt != null) 
 				pstmt.close();
 		}
+		QueryResultCache.invalidatePolicies(ownerName);
 	}
 
 	private String applyTemplateParams(List<TemplateParameter> params, String expr) {
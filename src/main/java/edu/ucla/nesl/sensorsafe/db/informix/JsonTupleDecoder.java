@@ -0,0 +1,276 @@
+package edu.ucla.nesl.sensorsafe.db.informix;
+
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import edu.ucla.nesl.sensorsafe.db.TupleBatch;
+import edu.ucla.nesl.sensorsafe.model.Channel;
+import edu.ucla.nesl.sensorsafe.model.Stream;
+
+// JSON tuple decoder for one stream schema, built once per channel format and shared.
+// Pull-parses a request body straight into a TupleBatch, without a JSON DOM or boxed values.
+// Accepted input is a tuple, i.e., [ timestamp, values.. ] or { "timestamp": .., "tuple": [ values.. ] },
+// or an array of tuples.
+class JsonTupleDecoder {
+
+	private static final JsonFactory jsonFactory = new JsonFactory();
+
+	private static final char[] TIMESTAMP_SEPARATORS = { '-', '-', ' ', ':', ':' };
+	private static final int[] TIMESTAMP_MAX_DIGITS = { 4, 2, 2, 2, 2, 2 };
+
+	// A batch that grew larger than this is not kept for reuse.
+	private static final long MAX_REUSED_BATCH_BYTES = 1024 * 1024;
+
+	// Per-thread scratch space, reused by every request the thread decodes.
+	private static class Scratch {
+		final Calendar cal = Calendar.getInstance();
+		final int[] fields = new int[TIMESTAMP_MAX_DIGITS.length];
+		TupleBatch batch;
+	}
+
+	private static final ThreadLocal<Scratch> scratches = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	private static final ConcurrentMap<String, JsonTupleDecoder> decoders = new ConcurrentHashMap<String, JsonTupleDecoder>();
+
+	private final String[] format;
+	private final byte[] types;
+
+	private JsonTupleDecoder(List<Channel> channels) {
+		format = Stream.getChannelFormatPrefix(channels).split("_");
+		types = new byte[channels.size()];
+		for (int i = 0; i < types.length; i++) {
+			String type = channels.get(i).type;
+			if (type.equals("int")) {
+				types[i] = TupleBatch.TYPE_INT;
+			} else if (type.equals("float")) {
+				types[i] = TupleBatch.TYPE_FLOAT;
+			} else {
+				types[i] = TupleBatch.TYPE_TEXT;
+			}
+		}
+	}
+
+	static JsonTupleDecoder get(Stream stream) {
+		String key = stream.getChannelFormatPrefix();
+		JsonTupleDecoder decoder = decoders.get(key);
+		if (decoder == null) {
+			decoder = new JsonTupleDecoder(stream.channels);
+			JsonTupleDecoder prev = decoders.putIfAbsent(key, decoder);
+			if (prev != null) {
+				decoder = prev;
+			}
+		}
+		return decoder;
+	}
+
+	// Returns an empty batch of the schema, reusing the last one released by this thread if it matches.
+	static TupleBatch borrowBatch(List<Channel> channels) {
+		Scratch scratch = scratches.get();
+		TupleBatch batch = scratch.batch;
+		if (batch != null && batch.isSchemaOf(channels)) {
+			scratch.batch = null;
+			return batch;
+		}
+		return new TupleBatch(channels);
+	}
+
+	static void releaseBatch(TupleBatch batch) {
+		if (batch.estimateBytes() <= MAX_REUSED_BATCH_BYTES) {
+			batch.clear();
+			scratches.get().batch = batch;
+		}
+	}
+
+	// Appends the tuples of data to batch.
+	void decode(String data, TupleBatch batch) {
+		JsonParser parser = null;
+		try {
+			parser = jsonFactory.createParser(data);
+			Scratch scratch = scratches.get();
+
+			JsonToken token = parser.nextToken();
+			if (token == JsonToken.START_OBJECT) {
+				decodeObjectTuple(parser, batch, scratch);
+			} else if (token == JsonToken.START_ARRAY) {
+				token = parser.nextToken();
+				if (token == JsonToken.START_ARRAY || token == JsonToken.START_OBJECT) {
+					// A batch of tuples.
+					while (token != JsonToken.END_ARRAY) {
+						if (token == JsonToken.START_ARRAY) {
+							decodeArrayTuple(parser, parser.nextToken(), batch, scratch);
+						} else if (token == JsonToken.START_OBJECT) {
+							decodeObjectTuple(parser, batch, scratch);
+						} else {
+							InformixStreamDatabase.throwInvalidTupleFormat(format);
+						}
+						token = parser.nextToken();
+					}
+				} else {
+					decodeArrayTuple(parser, token, batch, scratch);
+				}
+			} else {
+				InformixStreamDatabase.throwInvalidTupleFormat(format);
+			}
+
+			if (parser.nextToken() != null) {
+				InformixStreamDatabase.throwInvalidTupleFormat(format);
+			}
+		} catch (IOException e) {
+			InformixStreamDatabase.throwInvalidTupleFormat(format);
+		} finally {
+			if (parser != null) {
+				try {
+					parser.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	// Parser is positioned after START_ARRAY of the tuple and token is the timestamp token.
+	private void decodeArrayTuple(JsonParser parser, JsonToken token, TupleBatch batch, Scratch scratch) throws IOException {
+		if (token == JsonToken.END_ARRAY) {
+			InformixStreamDatabase.throwInvalidTupleFormat(format);
+		}
+		int row = batch.addRow(parseTimestamp(parser, token, scratch));
+		decodeValues(parser, batch, row);
+	}
+
+	// Parser is positioned at START_OBJECT of the tuple.
+	private void decodeObjectTuple(JsonParser parser, TupleBatch batch, Scratch scratch) throws IOException {
+		int row = batch.addRow(0);
+		boolean isTimestamp = false;
+		boolean isTuple = false;
+		JsonToken token;
+		while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+			String name = parser.getCurrentName();
+			token = parser.nextToken();
+			if (name.equals("timestamp")) {
+				batch.setTimestamp(row, parseTimestamp(parser, token, scratch));
+				isTimestamp = true;
+			} else if (name.equals("tuple")) {
+				if (token != JsonToken.START_ARRAY) {
+					InformixStreamDatabase.throwInvalidTupleFormat(format);
+				}
+				decodeValues(parser, batch, row);
+				isTuple = true;
+			} else {
+				parser.skipChildren();
+			}
+		}
+		if (token != JsonToken.END_OBJECT || !isTuple) {
+			InformixStreamDatabase.throwInvalidTupleFormat(format);
+		}
+		if (!isTimestamp) {
+			batch.setTimestamp(row, System.currentTimeMillis() * 1000);
+		}
+	}
+
+	// Reads one value per channel and the closing END_ARRAY.
+	private void decodeValues(JsonParser parser, TupleBatch batch, int row) throws IOException {
+		for (int i = 0; i < types.length; i++) {
+			JsonToken token = parser.nextToken();
+			switch (types[i]) {
+			case TupleBatch.TYPE_INT:
+				if (token != JsonToken.VALUE_NUMBER_INT || parser.getNumberType() != JsonParser.NumberType.INT) {
+					InformixStreamDatabase.throwInvalidTupleFormat(format);
+				}
+				batch.setInt(row, i, parser.getIntValue());
+				break;
+			case TupleBatch.TYPE_FLOAT:
+				if (token != JsonToken.VALUE_NUMBER_FLOAT && token != JsonToken.VALUE_NUMBER_INT) {
+					InformixStreamDatabase.throwInvalidTupleFormat(format);
+				}
+				batch.setDouble(row, i, parser.getDoubleValue());
+				break;
+			default:
+				if (token != JsonToken.VALUE_STRING) {
+					InformixStreamDatabase.throwInvalidTupleFormat(format);
+				}
+				batch.setText(row, i, parser.getText());
+			}
+		}
+		if (parser.nextToken() != JsonToken.END_ARRAY) {
+			InformixStreamDatabase.throwInvalidTupleFormat(format);
+		}
+	}
+
+	// Returns epoch microseconds. A null timestamp means the current time.
+	private long parseTimestamp(JsonParser parser, JsonToken token, Scratch scratch) throws IOException {
+		if (token == JsonToken.VALUE_NULL) {
+			return System.currentTimeMillis() * 1000;
+		}
+		if (token != JsonToken.VALUE_STRING) {
+			throw new IllegalArgumentException(ExceptionMessages.MSG_INVALID_TIMESTAMP_FORMAT);
+		}
+		long micros = parseTimestamp(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength(), scratch.cal, scratch.fields);
+		if (micros == Long.MIN_VALUE) {
+			throw new IllegalArgumentException(ExceptionMessages.MSG_INVALID_TIMESTAMP_FORMAT);
+		}
+		return micros;
+	}
+
+	// Parses "yyyy-[m]m-[d]d hh:mm:ss[.f...]" in the local time zone, as Timestamp.valueOf() does.
+	// Returns Long.MIN_VALUE if the text is malformed. fields is scratch space for the six date and time fields.
+	static long parseTimestamp(char[] buf, int offset, int length, Calendar cal, int[] fields) {
+		int end = offset + length;
+		int pos = offset;
+		for (int f = 0; f < TIMESTAMP_MAX_DIGITS.length; f++) {
+			int start = pos;
+			int value = 0;
+			while (pos < end && pos - start < TIMESTAMP_MAX_DIGITS[f] && buf[pos] >= '0' && buf[pos] <= '9') {
+				value = value * 10 + (buf[pos++] - '0');
+			}
+			if (pos == start || (f == 0 && pos - start != 4)) {
+				return Long.MIN_VALUE;
+			}
+			fields[f] = value;
+			if (f < TIMESTAMP_SEPARATORS.length) {
+				if (pos >= end || buf[pos] != TIMESTAMP_SEPARATORS[f]) {
+					return Long.MIN_VALUE;
+				}
+				pos++;
+			}
+		}
+
+		int nanos = 0;
+		if (pos < end) {
+			if (buf[pos++] != '.' || pos == end || end - pos > 9) {
+				return Long.MIN_VALUE;
+			}
+			int numDigits = end - pos;
+			while (pos < end) {
+				if (buf[pos] < '0' || buf[pos] > '9') {
+					return Long.MIN_VALUE;
+				}
+				nanos = nanos * 10 + (buf[pos++] - '0');
+			}
+			for (int i = numDigits; i < 9; i++) {
+				nanos *= 10;
+			}
+		}
+
+		int month = fields[1];
+		int day = fields[2];
+		if (month < 1 || month > 12 || day < 1 || day > 31) {
+			return Long.MIN_VALUE;
+		}
+
+		cal.clear();
+		cal.set(fields[0], month - 1, day, fields[3], fields[4], fields[5]);
+		return cal.getTimeInMillis() * 1000 + nanos / 1000;
+	}
+}
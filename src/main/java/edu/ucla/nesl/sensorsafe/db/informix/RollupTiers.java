@@ -0,0 +1,1368 @@
+package edu.ucla.nesl.sensorsafe.db.informix;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.NamingException;
+
+import org.joda.time.DateTime;
+
+import edu.ucla.nesl.sensorsafe.db.DistinctCountSketch;
+import edu.ucla.nesl.sensorsafe.db.QuantileSketch;
+import edu.ucla.nesl.sensorsafe.db.TupleBatch;
+import edu.ucla.nesl.sensorsafe.model.Channel;
+import edu.ucla.nesl.sensorsafe.model.Stream;
+import edu.ucla.nesl.sensorsafe.tools.Log;
+
+// Count, sum, min, max, first, last and a QuantileSketch per numeric channel of every stream, and the count
+// and a DistinctCountSketch per channel, in the buckets of the ts_1min, ts_15min, ts_1hour and ts_1day
+// calendars, so that aggregates over long ranges read a few rows per bucket instead of the raw tuples.
+//
+// Ingest merges a batch into the minute tier in its own transaction, while it holds the lock on the stream's
+// time series row, and queues the hours of the batch in rollup_pending. A background thread rolls the
+// minutes of the queued hours up into the coarser tiers, so that a batch rewrites a few minute rows instead
+// of the rows and sketches of every tier. Writes that may replace stored tuples (a timestamp within the time
+// range of a stored minute bucket, or twice in the batch), bulk loads and range deletes queue their range in
+// rollup_repairs instead, and the background thread rebuilds the tiers of the queued days from the raw
+// tuples. Queries use the tiers only if no repair is pending for their days, and the coarser tiers only for
+// buckets without pending hours; the parts of the range that are not whole buckets come from the next finer
+// tier, and below a minute from the raw tuples.
+public class RollupTiers {
+
+	private static final long REPAIR_INTERVAL_MS = Long.getLong("sensorsafe.rollups.repair_interval_ms", 10000);
+	private static final int REPAIR_CHUNK_DAYS = Integer.getInteger("sensorsafe.rollups.repair_chunk_days", 7);
+	private static final int ROLLUP_CHUNK_HOURS = Integer.getInteger("sensorsafe.rollups.rollup_chunk_hours", 168);
+	private static final int INSERT_BATCH_ROWS = 1000;
+
+	// From the coarsest to the finest. Every bucket is a whole number of buckets of the finer tiers.
+	private static final String[] TIERS = { "ts_1day", "ts_1hour", "ts_15min", "ts_1min" };
+	private static final int FINEST_TIER = TIERS.length - 1;
+	private static final int HOUR_TIER = 1;
+
+	private static final String COLUMNS = "stream_id, calendar, channel_name, bucket, num_values, sum_value, min_value, max_value, "
+			+ "first_value, first_value_time, last_value, last_value_time, first_time, last_time, quantile_sketch, distinct_sketch";
+
+	private static ScheduledExecutorService repairer;
+	private static volatile boolean isStopping;
+
+	// Applies the deadline of the query that reads the tiers to each of its statements, and makes it the
+	// statement that cancelling the query interrupts.
+	interface StatementTracker {
+		<T extends Statement> T track(T stmt) throws SQLException;
+	}
+
+	// For the background thread, whose statements run without a deadline.
+	private static final StatementTracker UNTRACKED = new StatementTracker() {
+		@Override
+		public <T extends Statement> T track(T stmt) {
+			return stmt;
+		}
+	};
+
+	// Of the tuples of a bucket, for one channel. Times are epoch microseconds. Of text channels, only the
+	// number of values and the distinct values.
+	static class Summary {
+		final boolean isNumeric;
+		long numValues;
+		double sum;
+		double min;
+		double max;
+		double first;
+		long firstValueTime = Long.MAX_VALUE;
+		double last;
+		long lastValueTime = Long.MIN_VALUE;
+
+		// Of all tuples, including the ones where the channel is null.
+		long firstTime = Long.MAX_VALUE;
+		long lastTime = Long.MIN_VALUE;
+
+		// Null if read from a row without them, and then in every merge with it.
+		QuantileSketch quantiles;
+		DistinctCountSketch distinct = new DistinctCountSketch();
+
+		Summary(boolean isNumeric) {
+			this.isNumeric = isNumeric;
+			if (isNumeric) {
+				quantiles = new QuantileSketch();
+			}
+		}
+
+		void addTuple(long time) {
+			firstTime = Math.min(firstTime, time);
+			lastTime = Math.max(lastTime, time);
+		}
+
+		void addValue(long time, double value) {
+			if (numValues == 0) {
+				sum = value;
+				min = value;
+				max = value;
+			} else {
+				sum += value;
+				min = Math.min(min, value);
+				max = Math.max(max, value);
+			}
+			numValues++;
+			if (time < firstValueTime) {
+				first = value;
+				firstValueTime = time;
+			}
+			if (time >= lastValueTime) {
+				last = value;
+				lastValueTime = time;
+			}
+			quantiles.add(value);
+			distinct.add(value);
+		}
+
+		void addText(String value) {
+			numValues++;
+			distinct.add(value);
+		}
+
+		void merge(Summary other) {
+			firstTime = Math.min(firstTime, other.firstTime);
+			lastTime = Math.max(lastTime, other.lastTime);
+			if (other.numValues == 0) {
+				return;
+			}
+			if (distinct != null && other.distinct != null) {
+				distinct.merge(other.distinct);
+			} else {
+				distinct = null;
+			}
+			if (!isNumeric) {
+				numValues += other.numValues;
+				return;
+			}
+			if (quantiles != null && other.quantiles != null) {
+				quantiles.merge(other.quantiles);
+			} else {
+				quantiles = null;
+			}
+			if (numValues == 0) {
+				sum = other.sum;
+				min = other.min;
+				max = other.max;
+			} else {
+				sum += other.sum;
+				min = Math.min(min, other.min);
+				max = Math.max(max, other.max);
+			}
+			numValues += other.numValues;
+			if (other.firstValueTime < firstValueTime) {
+				first = other.first;
+				firstValueTime = other.firstValueTime;
+			}
+			if (other.lastValueTime >= lastValueTime) {
+				last = other.last;
+				lastValueTime = other.lastValueTime;
+			}
+		}
+	}
+
+	// Summaries per tier, bucket start and channel of the stream.
+	private static class TierBuilder {
+		private final Stream stream;
+		private final int firstTier;
+		private final boolean[] isNumeric;
+		private final List<TreeMap<Long, Summary[]>> tiers = new ArrayList<TreeMap<Long, Summary[]>>();
+
+		// The bucket of the last tuple per tier, since tuples mostly come in time order.
+		private final long[] bucketStarts = new long[TIERS.length];
+		private final long[] bucketEnds = new long[TIERS.length];
+		private final Summary[][] buckets = new Summary[TIERS.length][];
+
+		TierBuilder(Stream stream) {
+			this(stream, 0);
+		}
+
+		// Only the tiers from firstTier on are built.
+		TierBuilder(Stream stream, int firstTier) {
+			this.stream = stream;
+			this.firstTier = firstTier;
+			isNumeric = new boolean[stream.channels.size()];
+			for (int i = 0; i < isNumeric.length; i++) {
+				isNumeric[i] = isNumeric(stream.channels.get(i));
+			}
+			for (int tier = 0; tier < TIERS.length; tier++) {
+				tiers.add(new TreeMap<Long, Summary[]>());
+			}
+		}
+
+		// Returns the summaries of the bucket of time in tier, for the channels of the stream.
+		Summary[] getBucket(int tier, long time) {
+			if (buckets[tier] == null || time < bucketStarts[tier] || time >= bucketEnds[tier]) {
+				bucketStarts[tier] = getBucketStart(TIERS[tier], time);
+				bucketEnds[tier] = getBucketEnd(TIERS[tier], bucketStarts[tier]);
+				buckets[tier] = tiers.get(tier).get(bucketStarts[tier]);
+				if (buckets[tier] == null) {
+					buckets[tier] = new Summary[isNumeric.length];
+					for (int i = 0; i < isNumeric.length; i++) {
+						buckets[tier][i] = new Summary(isNumeric[i]);
+					}
+					tiers.get(tier).put(bucketStarts[tier], buckets[tier]);
+				}
+			}
+			return buckets[tier];
+		}
+
+		// Adds a tuple. values[i] is used for numeric channels and texts[i] for text ones, unless isNull[i].
+		void add(long time, double[] values, String[] texts, boolean[] isNull) {
+			for (int tier = firstTier; tier < TIERS.length; tier++) {
+				Summary[] summaries = getBucket(tier, time);
+				for (int i = 0; i < isNumeric.length; i++) {
+					summaries[i].addTuple(time);
+					if (isNull[i]) {
+						continue;
+					}
+					if (isNumeric[i]) {
+						summaries[i].addValue(time, values[i]);
+					} else {
+						summaries[i].addText(texts[i]);
+					}
+				}
+			}
+		}
+
+		// Merges the summary of a channel of a finer bucket into the bucket of time in tier.
+		void merge(int tier, long time, int channel, Summary summary) {
+			long bucketStart = getBucketStart(TIERS[tier], time);
+			Summary[] summaries = tiers.get(tier).get(bucketStart);
+			if (summaries == null) {
+				summaries = new Summary[isNumeric.length];
+				tiers.get(tier).put(bucketStart, summaries);
+			}
+			if (summaries[channel] == null) {
+				summaries[channel] = new Summary(isNumeric[channel]);
+			}
+			summaries[channel].merge(summary);
+		}
+
+		boolean isEmpty() {
+			return tiers.get(FINEST_TIER).isEmpty();
+		}
+	}
+
+	private static boolean isNumeric(Channel channel) {
+		return channel.type.equals("float") || channel.type.equals("int");
+	}
+
+	private static long getBucketStart(String calendar, long micros) {
+		return StreamingAggregator.getBucketStart(calendar, TupleBatch.toMillis(micros)).getMillis() * 1000;
+	}
+
+	private static long getBucketEnd(String calendar, long bucketStartMicros) {
+		DateTime start = new DateTime(bucketStartMicros / 1000);
+		return StreamingAggregator.getBucketEnd(calendar, start).getMillis() * 1000;
+	}
+
+	private static long ceilToBucket(String calendar, long micros) {
+		long start = getBucketStart(calendar, micros);
+		return start == micros ? micros : getBucketEnd(calendar, start);
+	}
+
+	// The days that contain the range, with unbounded ends kept.
+	private static long getDayStart(long micros) {
+		return micros == Long.MIN_VALUE ? micros : getBucketStart(TIERS[0], micros);
+	}
+
+	private static long getDayEnd(long micros) {
+		return micros == Long.MAX_VALUE ? micros : getBucketEnd(TIERS[0], getBucketStart(TIERS[0], micros));
+	}
+
+	static void createTables(Connection conn) throws SQLException {
+		Statement stmt = null;
+		try {
+			stmt = conn.createStatement();
+			stmt.execute("CREATE TABLE rollups ("
+					+ "stream_id INT NOT NULL, "
+					+ "calendar VARCHAR(16) NOT NULL, "
+					+ "channel_name VARCHAR(100) NOT NULL, "
+					+ "bucket DATETIME YEAR TO FRACTION(5) NOT NULL, "
+					+ "num_values INT8 NOT NULL, "
+					+ "sum_value FLOAT, "
+					+ "min_value FLOAT, "
+					+ "max_value FLOAT, "
+					+ "first_value FLOAT, "
+					+ "first_value_time DATETIME YEAR TO FRACTION(5), "
+					+ "last_value FLOAT, "
+					+ "last_value_time DATETIME YEAR TO FRACTION(5), "
+					+ "first_time DATETIME YEAR TO FRACTION(5) NOT NULL, "
+					+ "last_time DATETIME YEAR TO FRACTION(5) NOT NULL, "
+					+ "quantile_sketch BYTE, "
+					+ "distinct_sketch BYTE, "
+					+ "PRIMARY KEY (stream_id, calendar, bucket, channel_name)) LOCK MODE ROW;");
+			stmt.execute("CREATE TABLE rollup_repairs ("
+					+ "id SERIAL PRIMARY KEY NOT NULL, "
+					+ "stream_id INT NOT NULL, "
+					+ "start_time DATETIME YEAR TO FRACTION(5), "
+					+ "end_time DATETIME YEAR TO FRACTION(5)) LOCK MODE ROW;");
+			createPendingTable(conn);
+
+			// The streams that already have tuples are rolled up in the background.
+			stmt.execute("INSERT INTO rollup_repairs (stream_id) SELECT id FROM streams");
+		} finally {
+			if (stmt != null) {
+				stmt.close();
+			}
+		}
+	}
+
+	private static void createPendingTable(Connection conn) throws SQLException {
+		execute(conn, "CREATE TABLE rollup_pending ("
+				+ "stream_id INT NOT NULL, "
+				+ "hour_start DATETIME YEAR TO FRACTION(5) NOT NULL, "
+				+ "PRIMARY KEY (stream_id, hour_start)) LOCK MODE ROW;");
+	}
+
+	// Adds the sketch columns to rollups created without them, and rebuilds the rollups of every stream.
+	// Creates rollup_pending for rollups that were updated in every tier on ingest.
+	static void upgradeTables(Connection conn) throws SQLException {
+		PreparedStatement pstmt = null;
+		try {
+			pstmt = conn.prepareStatement("SELECT 1 FROM systables WHERE tabname = ?");
+			pstmt.setString(1, "rollup_pending");
+			if (!pstmt.executeQuery().next()) {
+				createPendingTable(conn);
+			}
+		} finally {
+			if (pstmt != null) {
+				pstmt.close();
+			}
+		}
+		pstmt = null;
+		try {
+			pstmt = conn.prepareStatement("SELECT 1 FROM syscolumns c, systables t WHERE c.tabid = t.tabid AND t.tabname = ? AND c.colname = ?");
+			pstmt.setString(1, "rollups");
+			pstmt.setString(2, "quantile_sketch");
+			if (pstmt.executeQuery().next()) {
+				return;
+			}
+		} finally {
+			if (pstmt != null) {
+				pstmt.close();
+			}
+		}
+		execute(conn, "ALTER TABLE rollups ADD (quantile_sketch BYTE, distinct_sketch BYTE)");
+		execute(conn, "INSERT INTO rollup_repairs (stream_id) SELECT id FROM streams");
+	}
+
+	static void dropTables(Connection conn) throws SQLException {
+		Statement stmt = null;
+		try {
+			stmt = conn.createStatement();
+			stmt.execute("DROP TABLE IF EXISTS rollups;");
+			stmt.execute("DROP TABLE IF EXISTS rollup_repairs;");
+			stmt.execute("DROP TABLE IF EXISTS rollup_pending;");
+		} finally {
+			if (stmt != null) {
+				stmt.close();
+			}
+		}
+	}
+
+	static void deleteStream(Connection conn, int streamId) throws SQLException {
+		deleteRollups(conn, streamId, null, Long.MIN_VALUE, Long.MAX_VALUE);
+		for (String table : new String[] { "rollup_repairs", "rollup_pending" }) {
+			PreparedStatement pstmt = null;
+			try {
+				pstmt = conn.prepareStatement("DELETE FROM " + table + " WHERE stream_id = ?");
+				pstmt.setInt(1, streamId);
+				pstmt.executeUpdate();
+			} finally {
+				if (pstmt != null) {
+					pstmt.close();
+				}
+			}
+		}
+	}
+
+	// Queues the rebuild of the tiers for the days of [start, end] (epoch microseconds, Long.MIN_VALUE and
+	// Long.MAX_VALUE for unbounded). Call it in the transaction that changes the tuples.
+	static void queueRepair(Connection conn, int streamId, long start, long end) throws SQLException {
+		PreparedStatement pstmt = null;
+		try {
+			pstmt = conn.prepareStatement("INSERT INTO rollup_repairs (stream_id, start_time, end_time) VALUES (?,?,?)");
+			pstmt.setInt(1, streamId);
+			pstmt.setTimestamp(2, start == Long.MIN_VALUE ? null : TupleBatch.toTimestamp(start, new Timestamp(0)));
+			pstmt.setTimestamp(3, end == Long.MAX_VALUE ? null : TupleBatch.toTimestamp(end, new Timestamp(0)));
+			pstmt.executeUpdate();
+		} finally {
+			if (pstmt != null) {
+				pstmt.close();
+			}
+		}
+	}
+
+	// Merges the batch, just written to the stream in the current transaction, into the minute tier, and
+	// queues its hours for the coarser tiers.
+	static void add(Connection conn, Stream stream, TupleBatch batch) throws SQLException {
+		if (batch.getSize() == 0) {
+			return;
+		}
+
+		long[] times = new long[batch.getSize()];
+		for (int row = 0; row < times.length; row++) {
+			times[row] = batch.getTimestamp(row);
+		}
+		Arrays.sort(times);
+		long minTime = times[0];
+		long maxTime = times[times.length - 1];
+		boolean isReplacing = false;
+		for (int i = 1; i < times.length && !isReplacing; i++) {
+			isReplacing = times[i] == times[i - 1];
+		}
+
+		TierBuilder stored = load(conn, stream, minTime, maxTime);
+		for (int row = 0; row < times.length && !isReplacing; row++) {
+			Summary[] summaries = stored.tiers.get(FINEST_TIER).get(getBucketStart(TIERS[FINEST_TIER], times[row]));
+			if (summaries != null) {
+				Summary summary = getAny(summaries);
+				isReplacing = summary.firstTime <= times[row] && times[row] <= summary.lastTime;
+			}
+		}
+		if (isReplacing) {
+			queueRepair(conn, stream.id, minTime, maxTime);
+			return;
+		}
+
+		// Stored as putTimeseriesElements() writes them, i.e., numeric null as 0.
+		TierBuilder added = new TierBuilder(stream, FINEST_TIER);
+		double[] values = new double[batch.getNumChannels()];
+		String[] texts = new String[batch.getNumChannels()];
+		boolean[] isNull = new boolean[batch.getNumChannels()];
+		for (int row = 0; row < batch.getSize(); row++) {
+			for (int i = 0; i < values.length; i++) {
+				if (batch.isNumeric(i)) {
+					values[i] = batch.getDouble(row, i);
+				} else {
+					texts[i] = batch.getText(row, i);
+					isNull[i] = texts[i] == null;
+				}
+			}
+			added.add(batch.getTimestamp(row), values, texts, isNull);
+		}
+
+		PreparedStatement update = null;
+		PreparedStatement insert = null;
+		try {
+			update = conn.prepareStatement("UPDATE rollups SET num_values = ?, sum_value = ?, min_value = ?, max_value = ?, "
+					+ "first_value = ?, first_value_time = ?, last_value = ?, last_value_time = ?, first_time = ?, last_time = ?, "
+					+ "quantile_sketch = ?, distinct_sketch = ? "
+					+ "WHERE stream_id = ? AND calendar = ? AND bucket = ? AND channel_name = ?");
+			insert = conn.prepareStatement("INSERT INTO rollups (" + COLUMNS + ") VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)");
+			boolean hasUpdate = false;
+			boolean hasInsert = false;
+			Timestamp ts = new Timestamp(0);
+			for (Map.Entry<Long, Summary[]> entry : added.tiers.get(FINEST_TIER).entrySet()) {
+				Summary[] storedSummaries = stored.tiers.get(FINEST_TIER).get(entry.getKey());
+				for (int i = 0; i < stream.channels.size(); i++) {
+					Summary summary = entry.getValue()[i];
+					String channelName = stream.channels.get(i).name;
+					if (storedSummaries != null && storedSummaries[i] != null) {
+						storedSummaries[i].merge(summary);
+						setValues(update, 1, storedSummaries[i]);
+						update.setInt(13, stream.id);
+						update.setString(14, TIERS[FINEST_TIER]);
+						update.setTimestamp(15, TupleBatch.toTimestamp(entry.getKey(), ts));
+						update.setString(16, channelName);
+						update.addBatch();
+						hasUpdate = true;
+					} else {
+						insert.setInt(1, stream.id);
+						insert.setString(2, TIERS[FINEST_TIER]);
+						insert.setString(3, channelName);
+						insert.setTimestamp(4, TupleBatch.toTimestamp(entry.getKey(), ts));
+						setValues(insert, 5, summary);
+						insert.addBatch();
+						hasInsert = true;
+					}
+				}
+			}
+			if (hasUpdate) {
+				update.executeBatch();
+			}
+			if (hasInsert) {
+				insert.executeBatch();
+			}
+		} finally {
+			if (update != null) {
+				update.close();
+			}
+			if (insert != null) {
+				insert.close();
+			}
+		}
+
+		queuePending(conn, stream.id, added.tiers.get(FINEST_TIER).keySet());
+	}
+
+	// Queues the hours of the given minute buckets for the coarser tiers, unless they already are. Ingest
+	// holds the lock on the stream, so no other transaction queues the same hour meanwhile.
+	private static void queuePending(Connection conn, int streamId, Iterable<Long> minutes) throws SQLException {
+		PreparedStatement pstmt = null;
+		try {
+			pstmt = conn.prepareStatement("INSERT INTO rollup_pending (stream_id, hour_start) SELECT ?, ? FROM systables WHERE tabid = 1 "
+					+ "AND NOT EXISTS (SELECT 1 FROM rollup_pending WHERE stream_id = ? AND hour_start = ?)");
+			Timestamp ts = new Timestamp(0);
+			long lastHour = Long.MIN_VALUE;
+			boolean hasHour = false;
+			for (long minute : minutes) {
+				long hour = getBucketStart(TIERS[HOUR_TIER], minute);
+				if (hour == lastHour) {
+					continue;
+				}
+				lastHour = hour;
+				TupleBatch.toTimestamp(hour, ts);
+				pstmt.setInt(1, streamId);
+				pstmt.setTimestamp(2, ts);
+				pstmt.setInt(3, streamId);
+				pstmt.setTimestamp(4, ts);
+				pstmt.addBatch();
+				hasHour = true;
+			}
+			if (hasHour) {
+				pstmt.executeBatch();
+			}
+		} finally {
+			if (pstmt != null) {
+				pstmt.close();
+			}
+		}
+	}
+
+	private static Summary getAny(Summary[] summaries) {
+		for (Summary summary : summaries) {
+			if (summary != null) {
+				return summary;
+			}
+		}
+		return null;
+	}
+
+	// Sets num_values .. distinct_sketch from the parameter index.
+	private static void setValues(PreparedStatement pstmt, int index, Summary summary) throws SQLException {
+		pstmt.setLong(index, summary.numValues);
+		if (summary.numValues > 0 && summary.isNumeric) {
+			pstmt.setDouble(index + 1, summary.sum);
+			pstmt.setDouble(index + 2, summary.min);
+			pstmt.setDouble(index + 3, summary.max);
+			pstmt.setDouble(index + 4, summary.first);
+			pstmt.setTimestamp(index + 5, TupleBatch.toTimestamp(summary.firstValueTime, new Timestamp(0)));
+			pstmt.setDouble(index + 6, summary.last);
+			pstmt.setTimestamp(index + 7, TupleBatch.toTimestamp(summary.lastValueTime, new Timestamp(0)));
+		} else {
+			for (int i = 1; i <= 7; i++) {
+				pstmt.setNull(index + i, i == 5 || i == 7 ? Types.TIMESTAMP : Types.DOUBLE);
+			}
+		}
+		pstmt.setTimestamp(index + 8, TupleBatch.toTimestamp(summary.firstTime, new Timestamp(0)));
+		pstmt.setTimestamp(index + 9, TupleBatch.toTimestamp(summary.lastTime, new Timestamp(0)));
+		if (summary.quantiles != null) {
+			pstmt.setBytes(index + 10, summary.quantiles.toBytes());
+		} else {
+			pstmt.setNull(index + 10, Types.LONGVARBINARY);
+		}
+		if (summary.distinct != null) {
+			pstmt.setBytes(index + 11, summary.distinct.toBytes());
+		} else {
+			pstmt.setNull(index + 11, Types.LONGVARBINARY);
+		}
+	}
+
+	// The stored summaries of the minute buckets that contain [minTime, maxTime].
+	private static TierBuilder load(Connection conn, Stream stream, long minTime, long maxTime) throws SQLException {
+		TierBuilder stored = new TierBuilder(stream, FINEST_TIER);
+		PreparedStatement pstmt = null;
+		try {
+			pstmt = conn.prepareStatement("SELECT " + COLUMNS + " FROM rollups WHERE stream_id = ? AND calendar = ? AND bucket BETWEEN ? AND ?");
+			pstmt.setInt(1, stream.id);
+			pstmt.setString(2, TIERS[FINEST_TIER]);
+			pstmt.setTimestamp(3, TupleBatch.toTimestamp(getBucketStart(TIERS[FINEST_TIER], minTime), new Timestamp(0)));
+			pstmt.setTimestamp(4, TupleBatch.toTimestamp(getBucketStart(TIERS[FINEST_TIER], maxTime), new Timestamp(0)));
+			ResultSet rset = pstmt.executeQuery();
+			while (rset.next()) {
+				int channel = getChannelIndex(stream, rset.getString(3));
+				if (channel < 0) {
+					continue;
+				}
+				long bucket = TupleBatch.toMicros(rset.getTimestamp(4));
+				Summary[] summaries = stored.tiers.get(FINEST_TIER).get(bucket);
+				if (summaries == null) {
+					summaries = new Summary[stream.channels.size()];
+					stored.tiers.get(FINEST_TIER).put(bucket, summaries);
+				}
+				summaries[channel] = readSummary(rset, 5, isNumeric(stream.channels.get(channel)));
+			}
+		} finally {
+			if (pstmt != null) {
+				pstmt.close();
+			}
+		}
+		return stored;
+	}
+
+	private static int getChannelIndex(Stream stream, String channelName) {
+		for (int i = 0; i < stream.channels.size(); i++) {
+			if (stream.channels.get(i).name.equals(channelName)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	// Reads num_values .. distinct_sketch from the column index.
+	private static Summary readSummary(ResultSet rset, int index, boolean isNumeric) throws SQLException {
+		Summary summary = new Summary(isNumeric);
+		summary.numValues = rset.getLong(index);
+		if (summary.numValues > 0 && isNumeric) {
+			summary.sum = rset.getDouble(index + 1);
+			summary.min = rset.getDouble(index + 2);
+			summary.max = rset.getDouble(index + 3);
+			summary.first = rset.getDouble(index + 4);
+			summary.firstValueTime = TupleBatch.toMicros(rset.getTimestamp(index + 5));
+			summary.last = rset.getDouble(index + 6);
+			summary.lastValueTime = TupleBatch.toMicros(rset.getTimestamp(index + 7));
+		}
+		summary.firstTime = TupleBatch.toMicros(rset.getTimestamp(index + 8));
+		summary.lastTime = TupleBatch.toMicros(rset.getTimestamp(index + 9));
+
+		// Rows without sketches are rebuilt before queries use the rollups, see upgradeTables().
+		byte[] bytes = rset.getBytes(index + 10);
+		summary.quantiles = isNumeric && bytes != null ? QuantileSketch.fromBytes(bytes) : null;
+		bytes = rset.getBytes(index + 11);
+		summary.distinct = bytes != null ? DistinctCountSketch.fromBytes(bytes) : null;
+		return summary;
+	}
+
+	private static boolean isRepairPending(Connection conn, StatementTracker tracker, int streamId, long start, long end) throws SQLException {
+		String sql = "SELECT FIRST 1 id FROM rollup_repairs WHERE stream_id = ?";
+		if (end != Long.MAX_VALUE) {
+			sql += " AND (start_time IS NULL OR start_time < ?)";
+		}
+		if (start != Long.MIN_VALUE) {
+			sql += " AND (end_time IS NULL OR end_time >= ?)";
+		}
+		PreparedStatement pstmt = null;
+		try {
+			pstmt = tracker.track(conn.prepareStatement(sql));
+			int i = 1;
+			pstmt.setInt(i++, streamId);
+			if (end != Long.MAX_VALUE) {
+				pstmt.setTimestamp(i++, TupleBatch.toTimestamp(end, new Timestamp(0)));
+			}
+			if (start != Long.MIN_VALUE) {
+				pstmt.setTimestamp(i++, TupleBatch.toTimestamp(start, new Timestamp(0)));
+			}
+			return pstmt.executeQuery().next();
+		} finally {
+			if (pstmt != null) {
+				pstmt.close();
+			}
+		}
+	}
+
+	// The tier whose buckets the calendar's buckets are made of, or -1. AggregateRange (null) uses days.
+	private static int getTier(String calendar) {
+		if (calendar == null) {
+			return 0;
+		}
+		switch (calendar) {
+		case "ts_1min":
+			return 3;
+		case "ts_15min":
+		case "ts_30min":
+			return 2;
+		case "ts_1hour":
+			return 1;
+		case "ts_1day":
+		case "ts_1month":
+		case "ts_1year":
+			return 0;
+		default:
+			return -1;
+		}
+	}
+
+	// Evaluates agg over the raw tuples of the stream in [start, end] (epoch microseconds, Long.MIN_VALUE and
+	// Long.MAX_VALUE for unbounded) from the tiers, with every statement passed through tracker. Returns null
+	// if agg can't be answered exactly from them, or a repair is pending for the range.
+	static TupleBatch aggregate(Connection conn, StatementTracker tracker, Stream stream, Aggregator aggregator, StreamingAggregator agg, 
+			long start, long end) throws SQLException {
+		int tier = getTier(agg.getCalendar());
+		if (tier < 0 || !agg.isSummarizable()) {
+			return null;
+		}
+		if (isRepairPending(conn, tracker, stream.id, getDayStart(start), getDayEnd(end))) {
+			return null;
+		}
+
+		Cover cover = new Cover(conn, tracker, stream, agg.getCalendar(), end);
+		if (tier < FINEST_TIER) {
+			cover.pending = loadPending(conn, tracker, stream.id, start, end);
+		}
+		cover.add(tier, start, end == Long.MAX_VALUE ? end : end + 1);
+
+		TupleBatch out = new TupleBatch(aggregator.channels);
+		for (Map.Entry<Long, Summary[]> entry : cover.buckets.entrySet()) {
+			long timestamp = entry.getKey();
+			if (agg.getCalendar() == null) {
+				timestamp = agg.getRangeStart();
+				if (timestamp == Long.MIN_VALUE) {
+					timestamp = getAny(entry.getValue()).firstTime;
+				}
+			}
+			agg.emitSummaries(timestamp, entry.getValue(), out);
+		}
+		return out;
+	}
+
+	// The queued hours of the stream that overlap [start, end].
+	private static TreeSet<Long> loadPending(Connection conn, StatementTracker tracker, int streamId, long start, long end) throws SQLException {
+		String sql = "SELECT hour_start FROM rollup_pending WHERE stream_id = ?";
+		if (start != Long.MIN_VALUE) {
+			sql += " AND hour_start >= ?";
+		}
+		if (end != Long.MAX_VALUE) {
+			sql += " AND hour_start <= ?";
+		}
+		TreeSet<Long> hours = new TreeSet<Long>();
+		PreparedStatement pstmt = null;
+		try {
+			pstmt = tracker.track(conn.prepareStatement(sql));
+			int i = 1;
+			pstmt.setInt(i++, streamId);
+			if (start != Long.MIN_VALUE) {
+				pstmt.setTimestamp(i++, TupleBatch.toTimestamp(getBucketStart(TIERS[HOUR_TIER], start), new Timestamp(0)));
+			}
+			if (end != Long.MAX_VALUE) {
+				pstmt.setTimestamp(i++, TupleBatch.toTimestamp(end, new Timestamp(0)));
+			}
+			ResultSet rset = pstmt.executeQuery();
+			while (rset.next()) {
+				hours.add(TupleBatch.toMicros(rset.getTimestamp(1)));
+			}
+		} finally {
+			if (pstmt != null) {
+				pstmt.close();
+			}
+		}
+		return hours;
+	}
+
+	// Merges tier rows and raw tuples into the buckets of the requested calendar.
+	private static class Cover {
+		private final Connection conn;
+		private final StatementTracker tracker;
+		private final Stream stream;
+		private final String calendar;
+		private final long end;
+		private final TreeMap<Long, Summary[]> buckets = new TreeMap<Long, Summary[]>();
+
+		// Hours whose buckets of the coarser tiers are not rolled up yet, and come from the minute tier.
+		private TreeSet<Long> pending = new TreeSet<Long>();
+
+		Cover(Connection conn, StatementTracker tracker, Stream stream, String calendar, long end) {
+			this.conn = conn;
+			this.tracker = tracker;
+			this.stream = stream;
+			this.calendar = calendar;
+			this.end = end;
+		}
+
+		private Summary[] getBucket(long time) {
+			long key = calendar == null ? 0 : getBucketStart(calendar, time);
+			Summary[] summaries = buckets.get(key);
+			if (summaries == null) {
+				summaries = new Summary[stream.channels.size()];
+				buckets.put(key, summaries);
+			}
+			return summaries;
+		}
+
+		private void merge(long time, int channel, Summary summary) {
+			Summary[] summaries = getBucket(time);
+			if (summaries[channel] == null) {
+				summaries[channel] = new Summary(summary.isNumeric);
+			}
+			summaries[channel].merge(summary);
+		}
+
+		// Covers [lo, hi) with the whole buckets of tier, and the rest with the finer tiers.
+		void add(int tier, long lo, long hi) throws SQLException {
+			if (tier > FINEST_TIER) {
+				addRaw(lo, hi);
+				return;
+			}
+			long first = lo == Long.MIN_VALUE ? lo : ceilToBucket(TIERS[tier], lo);
+			long last = hi == Long.MAX_VALUE ? hi : getBucketStart(TIERS[tier], hi);
+			if (first >= last) {
+				add(tier + 1, lo, hi);
+				return;
+			}
+			addClean(tier, first, last);
+			if (lo < first) {
+				add(tier + 1, lo, first);
+			}
+			if (last < hi) {
+				add(tier + 1, last, hi);
+			}
+		}
+
+		// Covers the whole buckets [first, last) of tier from its rows, except for the buckets of pending
+		// hours, which come from the finer tiers. Pending hours are whole buckets of the 15 minute tier.
+		private void addClean(int tier, long first, long last) throws SQLException {
+			long pos = first;
+			if (tier < FINEST_TIER) {
+				long from = first == Long.MIN_VALUE ? first : getBucketStart(TIERS[HOUR_TIER], first);
+				for (long hour : pending.subSet(from, last)) {
+					long dirtyStart = hour;
+					long dirtyEnd = getBucketEnd(TIERS[HOUR_TIER], hour);
+					if (tier < HOUR_TIER) {
+						dirtyStart = getBucketStart(TIERS[tier], hour);
+						dirtyEnd = getBucketEnd(TIERS[tier], dirtyStart);
+					}
+					dirtyStart = Math.max(dirtyStart, pos);
+					dirtyEnd = Math.min(dirtyEnd, last);
+					if (dirtyStart >= dirtyEnd) {
+						continue;
+					}
+					if (pos < dirtyStart) {
+						addTier(tier, pos, dirtyStart);
+					}
+					add(tier + 1, dirtyStart, dirtyEnd);
+					pos = dirtyEnd;
+				}
+			}
+			if (pos < last) {
+				addTier(tier, pos, last);
+			}
+		}
+
+		private void addTier(int tier, long first, long last) throws SQLException {
+			for (Map.Entry<Long, Summary[]> entry : readTier(conn, tracker, stream, tier, first, last).entrySet()) {
+				Summary[] summaries = entry.getValue();
+				for (int i = 0; i < summaries.length; i++) {
+					if (summaries[i] != null) {
+						merge(entry.getKey(), i, summaries[i]);
+					}
+				}
+			}
+		}
+
+		private void addRaw(long lo, long hi) throws SQLException {
+			// The end of the query is inclusive, and may not be representable one microsecond later.
+			boolean isEnd = end != Long.MAX_VALUE && hi == end + 1;
+			TierBuilder raw = new TierBuilder(stream);
+			readRaw(conn, tracker, stream, lo, isEnd ? end : hi, isEnd, raw);
+			for (Map.Entry<Long, Summary[]> entry : raw.tiers.get(FINEST_TIER).entrySet()) {
+				Summary[] summaries = entry.getValue();
+				for (int i = 0; i < summaries.length; i++) {
+					if (summaries[i] != null) {
+						merge(entry.getKey(), i, summaries[i]);
+					}
+				}
+			}
+		}
+	}
+
+	// The stored summaries of the buckets [first, last) of tier, per channel of the stream.
+	private static TreeMap<Long, Summary[]> readTier(Connection conn, StatementTracker tracker, Stream stream, int tier, long first, long last) throws SQLException {
+		String sql = "SELECT " + COLUMNS + " FROM rollups WHERE stream_id = ? AND calendar = ?";
+		if (first != Long.MIN_VALUE) {
+			sql += " AND bucket >= ?";
+		}
+		if (last != Long.MAX_VALUE) {
+			sql += " AND bucket < ?";
+		}
+		TreeMap<Long, Summary[]> buckets = new TreeMap<Long, Summary[]>();
+		PreparedStatement pstmt = null;
+		try {
+			pstmt = tracker.track(conn.prepareStatement(sql));
+			int i = 1;
+			pstmt.setInt(i++, stream.id);
+			pstmt.setString(i++, TIERS[tier]);
+			if (first != Long.MIN_VALUE) {
+				pstmt.setTimestamp(i++, TupleBatch.toTimestamp(first, new Timestamp(0)));
+			}
+			if (last != Long.MAX_VALUE) {
+				pstmt.setTimestamp(i++, TupleBatch.toTimestamp(last, new Timestamp(0)));
+			}
+			ResultSet rset = pstmt.executeQuery();
+			while (rset.next()) {
+				int channel = getChannelIndex(stream, rset.getString(3));
+				if (channel < 0) {
+					continue;
+				}
+				long bucket = TupleBatch.toMicros(rset.getTimestamp(4));
+				Summary[] summaries = buckets.get(bucket);
+				if (summaries == null) {
+					summaries = new Summary[stream.channels.size()];
+					buckets.put(bucket, summaries);
+				}
+				summaries[channel] = readSummary(rset, 5, isNumeric(stream.channels.get(channel)));
+			}
+		} finally {
+			if (pstmt != null) {
+				pstmt.close();
+			}
+		}
+		return buckets;
+	}
+
+	// Adds the raw tuples of [lo, hi) (or [lo, hi] if isHiInclusive) to builder.
+	private static void readRaw(Connection conn, StatementTracker tracker, Stream stream, long lo, long hi, boolean isHiInclusive, TierBuilder builder) throws SQLException {
+		String sql = "SELECT * FROM " + stream.getVirtualTableName() + " WHERE id = ?";
+		if (lo != Long.MIN_VALUE) {
+			sql += " AND timestamp >= ?";
+		}
+		if (hi != Long.MAX_VALUE) {
+			sql += isHiInclusive ? " AND timestamp <= ?" : " AND timestamp < ?";
+		}
+		PreparedStatement pstmt = null;
+		try {
+			pstmt = tracker.track(conn.prepareStatement(sql));
+			int i = 1;
+			pstmt.setInt(i++, stream.id);
+			if (lo != Long.MIN_VALUE) {
+				pstmt.setTimestamp(i++, TupleBatch.toTimestamp(lo, new Timestamp(0)));
+			}
+			if (hi != Long.MAX_VALUE) {
+				pstmt.setTimestamp(i++, TupleBatch.toTimestamp(hi, new Timestamp(0)));
+			}
+			pstmt.setFetchSize(TupleBatch.FETCH_ROWS);
+			ResultSet rset = pstmt.executeQuery();
+			int numChannels = stream.channels.size();
+			double[] values = new double[numChannels];
+			String[] texts = new String[numChannels];
+			boolean[] isNull = new boolean[numChannels];
+			while (rset.next()) {
+				long time = TupleBatch.toMicros(rset.getTimestamp(2));
+				for (int j = 0; j < numChannels; j++) {
+					if (builder.isNumeric[j]) {
+						values[j] = rset.getDouble(j + 3);
+					} else {
+						texts[j] = rset.getString(j + 3);
+					}
+					isNull[j] = rset.wasNull();
+				}
+				builder.add(time, values, texts, isNull);
+			}
+		} finally {
+			if (pstmt != null) {
+				pstmt.close();
+			}
+		}
+	}
+
+	// Of all tiers if calendar is null.
+	private static void deleteRollups(Connection conn, int streamId, String calendar, long lo, long hi) throws SQLException {
+		String sql = "DELETE FROM rollups WHERE stream_id = ?";
+		if (calendar != null) {
+			sql += " AND calendar = ?";
+		}
+		if (lo != Long.MIN_VALUE) {
+			sql += " AND bucket >= ?";
+		}
+		if (hi != Long.MAX_VALUE) {
+			sql += " AND bucket < ?";
+		}
+		PreparedStatement pstmt = null;
+		try {
+			pstmt = conn.prepareStatement(sql);
+			int i = 1;
+			pstmt.setInt(i++, streamId);
+			if (calendar != null) {
+				pstmt.setString(i++, calendar);
+			}
+			if (lo != Long.MIN_VALUE) {
+				pstmt.setTimestamp(i++, TupleBatch.toTimestamp(lo, new Timestamp(0)));
+			}
+			if (hi != Long.MAX_VALUE) {
+				pstmt.setTimestamp(i++, TupleBatch.toTimestamp(hi, new Timestamp(0)));
+			}
+			pstmt.executeUpdate();
+		} finally {
+			if (pstmt != null) {
+				pstmt.close();
+			}
+		}
+	}
+
+	private static void insertRollups(Connection conn, TierBuilder builder) throws SQLException {
+		PreparedStatement pstmt = null;
+		try {
+			pstmt = conn.prepareStatement("INSERT INTO rollups (" + COLUMNS + ") VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)");
+			Timestamp ts = new Timestamp(0);
+			int numRows = 0;
+			for (int tier = 0; tier < TIERS.length; tier++) {
+				for (Map.Entry<Long, Summary[]> entry : builder.tiers.get(tier).entrySet()) {
+					for (int i = 0; i < entry.getValue().length; i++) {
+						if (entry.getValue()[i] == null) {
+							continue;
+						}
+						pstmt.setInt(1, builder.stream.id);
+						pstmt.setString(2, TIERS[tier]);
+						pstmt.setString(3, builder.stream.channels.get(i).name);
+						pstmt.setTimestamp(4, TupleBatch.toTimestamp(entry.getKey(), ts));
+						setValues(pstmt, 5, entry.getValue()[i]);
+						pstmt.addBatch();
+						if (++numRows % INSERT_BATCH_ROWS == 0) {
+							pstmt.executeBatch();
+						}
+					}
+				}
+			}
+			if (numRows % INSERT_BATCH_ROWS != 0) {
+				pstmt.executeBatch();
+			}
+		} finally {
+			if (pstmt != null) {
+				pstmt.close();
+			}
+		}
+	}
+
+	private static void execute(Connection conn, String sql) throws SQLException {
+		Statement stmt = null;
+		try {
+			stmt = conn.createStatement();
+			stmt.execute(sql);
+		} finally {
+			if (stmt != null) {
+				stmt.close();
+			}
+		}
+	}
+
+	private static Stream findStream(Connection conn, int streamId) throws SQLException {
+		PreparedStatement pstmt = null;
+		try {
+			pstmt = conn.prepareStatement("SELECT name, owner, tags, channels FROM streams WHERE id = ?");
+			pstmt.setInt(1, streamId);
+			ResultSet rset = pstmt.executeQuery();
+			if (!rset.next()) {
+				return null;
+			}
+			return new Stream(streamId, rset.getString(1), rset.getString(2), rset.getString(3), rset.getArray(4));
+		} finally {
+			if (pstmt != null) {
+				pstmt.close();
+			}
+		}
+	}
+
+	// Takes the lock that ingest, bulk loads and deletes hold on the stream until they commit.
+	private static boolean lockStream(Connection conn, Stream stream) throws SQLException {
+		PreparedStatement pstmt = null;
+		try {
+			pstmt = conn.prepareStatement("UPDATE " + stream.getStreamTableName() + " SET id = id WHERE id = ?");
+			pstmt.setInt(1, stream.id);
+			return pstmt.executeUpdate() > 0;
+		} finally {
+			if (pstmt != null) {
+				pstmt.close();
+			}
+		}
+	}
+
+	// Epoch microseconds of the first tuple at or after time, or Long.MAX_VALUE.
+	private static long getNextTupleTime(Connection conn, Stream stream, long time) throws SQLException {
+		String sql = "SELECT FIRST 1 timestamp FROM " + stream.getVirtualTableName() + " WHERE id = ?";
+		if (time != Long.MIN_VALUE) {
+			sql += " AND timestamp >= ?";
+		}
+		PreparedStatement pstmt = null;
+		try {
+			pstmt = conn.prepareStatement(sql);
+			pstmt.setInt(1, stream.id);
+			if (time != Long.MIN_VALUE) {
+				pstmt.setTimestamp(2, TupleBatch.toTimestamp(time, new Timestamp(0)));
+			}
+			ResultSet rset = pstmt.executeQuery();
+			return rset.next() ? TupleBatch.toMicros(rset.getTimestamp(1)) : Long.MAX_VALUE;
+		} finally {
+			if (pstmt != null) {
+				pstmt.close();
+			}
+		}
+	}
+
+	// Rebuilds up to REPAIR_CHUNK_DAYS days of the queued repairs of the stream in one transaction. Returns
+	// true if more remain.
+	private static boolean repairChunk(Connection conn, int streamId) throws SQLException {
+		boolean isCommitted = false;
+		try {
+			execute(conn, "BEGIN WORK");
+			boolean hasMore = false;
+
+			Stream stream = findStream(conn, streamId);
+			if (stream == null || !lockStream(conn, stream)) {
+				deleteStream(conn, streamId);
+			} else {
+				// The queued ranges of the stream, merged.
+				long start = Long.MAX_VALUE;
+				long end = Long.MIN_VALUE;
+				PreparedStatement pstmt = null;
+				try {
+					pstmt = conn.prepareStatement("SELECT start_time, end_time FROM rollup_repairs WHERE stream_id = ?");
+					pstmt.setInt(1, streamId);
+					ResultSet rset = pstmt.executeQuery();
+					while (rset.next()) {
+						Timestamp startTs = rset.getTimestamp(1);
+						Timestamp endTs = rset.getTimestamp(2);
+						start = Math.min(start, startTs == null ? Long.MIN_VALUE : TupleBatch.toMicros(startTs));
+						end = Math.max(end, endTs == null ? Long.MAX_VALUE : TupleBatch.toMicros(endTs));
+					}
+				} finally {
+					if (pstmt != null) {
+						pstmt.close();
+					}
+				}
+
+				if (start <= end) {
+					long lo = getDayStart(start);
+					long hi = getDayEnd(end);
+					long next = getNextTupleTime(conn, stream, start);
+					if (next <= end) {
+						// Skip to the day of the next tuple, and rebuild from there.
+						long dataLo = getDayStart(next);
+						long chunkEnd = new DateTime(dataLo / 1000).plusDays(REPAIR_CHUNK_DAYS).getMillis() * 1000;
+						hasMore = chunkEnd < hi;
+						hi = Math.min(hi, chunkEnd);
+
+						TierBuilder builder = new TierBuilder(stream);
+						readRaw(conn, UNTRACKED, stream, dataLo, hi, false, builder);
+						deleteRollups(conn, streamId, null, lo, hi);
+						if (!builder.isEmpty()) {
+							insertRollups(conn, builder);
+						}
+					} else {
+						deleteRollups(conn, streamId, null, lo, hi);
+					}
+
+					pstmt = null;
+					try {
+						pstmt = conn.prepareStatement("DELETE FROM rollup_repairs WHERE stream_id = ?");
+						pstmt.setInt(1, streamId);
+						pstmt.executeUpdate();
+					} finally {
+						if (pstmt != null) {
+							pstmt.close();
+						}
+					}
+					if (hasMore) {
+						queueRepair(conn, streamId, hi, end);
+					}
+				}
+			}
+
+			execute(conn, "COMMIT WORK");
+			isCommitted = true;
+			return hasMore;
+		} finally {
+			if (!isCommitted) {
+				try {
+					execute(conn, "ROLLBACK WORK");
+				} catch (SQLException e) {
+					// No transaction was open.
+				}
+			}
+		}
+	}
+
+	// Rolls up to ROLLUP_CHUNK_HOURS of the queued hours of the stream up from their minutes into the coarser
+	// tiers, and then their days, in one transaction. Returns true if more remain.
+	private static boolean rollUpChunk(Connection conn, int streamId) throws SQLException {
+		boolean isCommitted = false;
+		try {
+			execute(conn, "BEGIN WORK");
+			boolean hasMore = false;
+
+			Stream stream = findStream(conn, streamId);
+			if (stream == null || !lockStream(conn, stream)) {
+				deleteStream(conn, streamId);
+			} else {
+				List<Long> hours = new ArrayList<Long>();
+				PreparedStatement pstmt = null;
+				try {
+					pstmt = conn.prepareStatement("SELECT FIRST " + (ROLLUP_CHUNK_HOURS + 1) + " hour_start FROM rollup_pending WHERE stream_id = ? ORDER BY hour_start");
+					pstmt.setInt(1, streamId);
+					ResultSet rset = pstmt.executeQuery();
+					while (rset.next()) {
+						hours.add(TupleBatch.toMicros(rset.getTimestamp(1)));
+					}
+				} finally {
+					if (pstmt != null) {
+						pstmt.close();
+					}
+				}
+				if (hours.size() > ROLLUP_CHUNK_HOURS) {
+					hours.remove(hours.size() - 1);
+					hasMore = true;
+				}
+
+				TierBuilder builder = new TierBuilder(stream);
+				TreeSet<Long> days = new TreeSet<Long>();
+				for (long hour : hours) {
+					long hourEnd = getBucketEnd(TIERS[HOUR_TIER], hour);
+					for (Map.Entry<Long, Summary[]> entry : readTier(conn, UNTRACKED, stream, FINEST_TIER, hour, hourEnd).entrySet()) {
+						Summary[] summaries = entry.getValue();
+						for (int i = 0; i < summaries.length; i++) {
+							if (summaries[i] != null) {
+								builder.merge(HOUR_TIER + 1, entry.getKey(), i, summaries[i]);
+								builder.merge(HOUR_TIER, entry.getKey(), i, summaries[i]);
+							}
+						}
+					}
+					for (int tier = HOUR_TIER; tier < FINEST_TIER; tier++) {
+						deleteRollups(conn, streamId, TIERS[tier], hour, hourEnd);
+					}
+					days.add(getDayStart(hour));
+				}
+				insertRollups(conn, builder);
+
+				builder = new TierBuilder(stream);
+				for (long day : days) {
+					long dayEnd = getDayEnd(day);
+					for (Map.Entry<Long, Summary[]> entry : readTier(conn, UNTRACKED, stream, HOUR_TIER, day, dayEnd).entrySet()) {
+						Summary[] summaries = entry.getValue();
+						for (int i = 0; i < summaries.length; i++) {
+							if (summaries[i] != null) {
+								builder.merge(0, entry.getKey(), i, summaries[i]);
+							}
+						}
+					}
+					deleteRollups(conn, streamId, TIERS[0], day, dayEnd);
+				}
+				insertRollups(conn, builder);
+
+				pstmt = null;
+				try {
+					pstmt = conn.prepareStatement("DELETE FROM rollup_pending WHERE stream_id = ? AND hour_start = ?");
+					Timestamp ts = new Timestamp(0);
+					for (long hour : hours) {
+						pstmt.setInt(1, streamId);
+						pstmt.setTimestamp(2, TupleBatch.toTimestamp(hour, ts));
+						pstmt.addBatch();
+					}
+					if (!hours.isEmpty()) {
+						pstmt.executeBatch();
+					}
+				} finally {
+					if (pstmt != null) {
+						pstmt.close();
+					}
+				}
+			}
+
+			execute(conn, "COMMIT WORK");
+			isCommitted = true;
+			return hasMore;
+		} finally {
+			if (!isCommitted) {
+				try {
+					execute(conn, "ROLLBACK WORK");
+				} catch (SQLException e) {
+					// No transaction was open.
+				}
+			}
+		}
+	}
+
+	private static List<Integer> getStreamIds(Connection conn, String table) throws SQLException {
+		List<Integer> streamIds = new ArrayList<Integer>();
+		PreparedStatement pstmt = null;
+		try {
+			pstmt = conn.prepareStatement("SELECT DISTINCT stream_id FROM " + table);
+			ResultSet rset = pstmt.executeQuery();
+			while (rset.next()) {
+				streamIds.add(rset.getInt(1));
+			}
+		} finally {
+			if (pstmt != null) {
+				pstmt.close();
+			}
+		}
+		return streamIds;
+	}
+
+	// Works through the queued repairs, and then the queued hours.
+	static void repair(Connection conn) throws SQLException {
+		for (int streamId : getStreamIds(conn, "rollup_repairs")) {
+			while (!isStopping && repairChunk(conn, streamId)) {
+				Log.info("Rebuilt a chunk of the rollups of stream " + streamId + ".");
+			}
+		}
+		for (int streamId : getStreamIds(conn, "rollup_pending")) {
+			while (!isStopping && rollUpChunk(conn, streamId)) {
+				Log.info("Rolled up a chunk of the rollups of stream " + streamId + ".");
+			}
+		}
+	}
+
+	private static void runRepairs() {
+		InformixStreamDatabase db = null;
+		try {
+			db = new InformixStreamDatabase();
+			db.repairRollups();
+		} catch (SQLException | IOException | NamingException | ClassNotFoundException e) {
+			Log.error("Failed to repair rollups: " + e.getMessage());
+		} finally {
+			if (db != null) {
+				try {
+					db.close();
+				} catch (SQLException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	public static synchronized void start() {
+		if (repairer != null) {
+			return;
+		}
+		isStopping = false;
+		repairer = Executors.newSingleThreadScheduledExecutor();
+		repairer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				runRepairs();
+			}
+		}, 0, REPAIR_INTERVAL_MS, TimeUnit.MILLISECONDS);
+	}
+
+	public static void stop() {
+		ScheduledExecutorService executor;
+		synchronized (RollupTiers.class) {
+			executor = repairer;
+			repairer = null;
+			isStopping = true;
+		}
+		if (executor != null) {
+			executor.shutdown();
+			try {
+				executor.awaitTermination(REPAIR_INTERVAL_MS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -41,12 +41,14 @@ public class SqlBuilder {
 	public String condFilter;
 	public String condRules;
 	public String condSkipEveryNth;
+	public String condCursor;
 	
 	public int offset;
 	public int limit;
 	public Timestamp startTime;
 	public Timestamp endTime;
 	public int skipEveryNth;
+	public Timestamp cursorTime;
 	
 	public Stream stream;
 	
@@ -103,6 +105,7 @@ public class SqlBuilder {
 				new String[] { 
 					putParenthesis(condStreamID), 
 					putParenthesis(condTimeRange), 
+					putParenthesis(condCursor),
 					putParenthesis(condFilter),
 					putParenthesis(condRules),
 					putParenthesis(condSkipEveryNth)
@@ -143,9 +146,34 @@ public class SqlBuilder {
 			pstmt.setTimestamp(i, endTime);
 			i += 1;
 		}
+		if (condCursor != null) {
+			pstmt.setTimestamp(i, cursorTime);
+			i += 1;
+		}
 		return pstmt;
 	}
 
+	// Keyset pagination: start at the cursor's timestamp and skip the rows at that timestamp that were
+	// already returned, instead of skipping every row before the page.
+	public void setCursor(Timestamp timestamp, int numAtTimestamp) {
+		this.cursorTime = timestamp;
+		this.condCursor = "timestamp >= ?";
+		this.offset = numAtTimestamp;
+	}
+
+	// A copy of the query restricted to [startTime, endTime], e.g., for one partition of a parallel query.
+	public SqlBuilder withTimeRange(Timestamp startTime, Timestamp endTime) {
+		SqlBuilder copy = new SqlBuilder(offset, limit, startTime, endTime, condFilter, skipEveryNth, stream);
+		copy.virtualTableName = virtualTableName;
+		copy.streamTableName = streamTableName;
+		copy.condStreamID = condStreamID;
+		copy.condRules = condRules;
+		copy.condSkipEveryNth = condSkipEveryNth;
+		copy.condCursor = condCursor;
+		copy.cursorTime = cursorTime;
+		return copy;
+	}
+
 	public void removeTimeRange() {
 		this.startTime = null;
 		this.endTime = null;
@@ -0,0 +1,50 @@
+package edu.ucla.nesl.sensorsafe.db.informix;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import edu.ucla.nesl.sensorsafe.model.Stream;
+
+// Stream descriptors (id, channels, row type, table names) cached by (owner, name).
+// Sample counts and channel statistics are not part of a descriptor.
+// Callers get a private copy because query processing rewrites stream channels in place.
+public class StreamRegistry {
+
+	private static final int MAX_ENTRIES = 1024;
+
+	private static final Map<String, Stream> descriptors = new LinkedHashMap<String, Stream>(16, 0.75f, true) {
+		private static final long serialVersionUID = -2283962455137826870L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Stream> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	private static String getKey(String owner, String streamName) {
+		return owner + "/" + streamName;
+	}
+
+	public static synchronized Stream get(String owner, String streamName) {
+		Stream stream = descriptors.get(getKey(owner, streamName));
+		return stream == null ? null : new Stream(stream);
+	}
+
+	public static synchronized void put(Stream stream) {
+		descriptors.put(getKey(stream.owner, stream.name), new Stream(stream));
+	}
+
+	public static synchronized void invalidate(String owner, String streamName) {
+		descriptors.remove(getKey(owner, streamName));
+	}
+
+	public static synchronized void invalidateOwner(String owner) {
+		Iterator<Stream> iter = descriptors.values().iterator();
+		while (iter.hasNext()) {
+			if (owner.equals(iter.next().owner)) {
+				iter.remove();
+			}
+		}
+	}
+}
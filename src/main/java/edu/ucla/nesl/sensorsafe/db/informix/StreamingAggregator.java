@@ -0,0 +1,500 @@
+package edu.ucla.nesl.sensorsafe.db.informix;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.joda.time.DateTime;
+
+import edu.ucla.nesl.sensorsafe.db.DistinctCountSketch;
+import edu.ucla.nesl.sensorsafe.db.QuantileSketch;
+import edu.ucla.nesl.sensorsafe.db.TupleBatch;
+import edu.ucla.nesl.sensorsafe.tools.DiffPrivNoiseGenerator;
+
+// Evaluates the expression of an Aggregator while the raw tuples are read, instead of running AggregateBy or
+// AggregateRange in the database, which needs a temp row type, table and virtual table per query.
+//
+// Supported are min, max, sum, avg, median, first, last, nth($channel, k) (the k-th value of the bucket,
+// 1-based, negative from the end), pN($channel) (the N-th percentile, e.g., p50, p90 or p99.9, from a
+// QuantileSketch) and distinct($channel) (the number of distinct values, also of text channels, from a
+// DistinctCountSketch) on the ts_1min, ts_15min, ts_30min, ts_1hour, ts_1day, ts_1month and ts_1year
+// calendars; create() returns null for anything else. Median and nth can't use the rollups; percentiles and
+// distinct counts merge from the rollup sketches, within their error bounds. Null values are skipped and
+// buckets without tuples are not output. Timestamps are the bucket starts in the server's time zone, as for
+// the Informix calendars, and for AggregateRange the start of the range or else the first tuple.
+//
+// For noisy aggregators, setNoiseGenerators() adds Laplace noise to every output value as it is emitted;
+// the sensitivity of avg uses the number of values of the bucket, counted in the same pass.
+//
+// Nth keeps only the first k or the last -k values of a bucket, and create() returns null for |k| over
+// MAX_BUFFERED_VALUES. Median keeps all values of a bucket, and merge() concatenates them, so partitions give
+// the exact median of the whole range. A bucket of more than MAX_BUFFERED_VALUES values stops the aggregation:
+// add() ignores further tuples and isOverflowed() tells the caller to evaluate the query in the database
+// instead.
+public class StreamingAggregator {
+
+	static final int MAX_BUFFERED_VALUES = Integer.getInteger("sensorsafe.query.max_buffered_values", 1 << 20);
+
+	private static final Pattern OPERATOR_PATTERN = Pattern.compile(
+			"\\s*(min|max|sum|avg|median|first|last|nth|distinct|p([0-9]+(?:\\.[0-9]+)?))\\s*\\(\\s*\\$channel([0-9]+)\\s*(?:,\\s*(-?[0-9]+)\\s*)?\\)\\s*(,|$)");
+
+	private static final int MIN = 0;
+	private static final int MAX = 1;
+	private static final int SUM = 2;
+	private static final int AVG = 3;
+	private static final int MEDIAN = 4;
+	private static final int FIRST = 5;
+	private static final int LAST = 6;
+	private static final int NTH = 7;
+	private static final int DISTINCT = 8;
+	private static final int PERCENTILE = 9;
+	private static final String[] OPERATOR_NAMES = { "min", "max", "sum", "avg", "median", "first", "last", "nth", "distinct" };
+
+	private final int[] operators;
+	private final int[] inputChannels;
+	private final int[] nths;
+	private final double[] quantiles;
+	private final String calendar;
+	private final long rangeStart;
+	private List<DiffPrivNoiseGenerator> noiseGenerators;
+
+	// Per output channel state of the current bucket. Median keeps the values of the bucket; nth keeps the
+	// first k values, or the last -k values in a ring from values[n % -k].
+	private final double[] results;
+	private final long[] counts;
+	private final double[][] values;
+	private final QuantileSketch[] quantileSketches;
+	private final DistinctCountSketch[] distinctSketches;
+	private boolean hasBucket;
+	private boolean isOverflowed;
+	private long bucketStart;
+	private long bucketEnd;
+
+	private StreamingAggregator(int[] operators, int[] inputChannels, int[] nths, double[] quantiles, String calendar, long rangeStart) {
+		this.operators = operators;
+		this.inputChannels = inputChannels;
+		this.nths = nths;
+		this.quantiles = quantiles;
+		this.calendar = calendar;
+		this.rangeStart = rangeStart;
+		results = new double[operators.length];
+		counts = new long[operators.length];
+		values = new double[operators.length][];
+		for (int i = 0; i < operators.length; i++) {
+			if (operators[i] == MEDIAN) {
+				values[i] = new double[16];
+			} else if (operators[i] == NTH) {
+				values[i] = new double[Math.abs(nths[i])];
+			}
+		}
+		quantileSketches = new QuantileSketch[operators.length];
+		distinctSketches = new DistinctCountSketch[operators.length];
+		resetSketches();
+	}
+
+	// Returns null if the expression or the calendar is not supported. rangeStart is the start of the query
+	// range in epoch microseconds, or Long.MIN_VALUE.
+	public static StreamingAggregator create(Aggregator agg, long rangeStart) {
+		if (agg.aggregator == Aggregator.Type.AGGREGATE_BY && getBucketStart(agg.calendar, 0) == null) {
+			return null;
+		}
+
+		int numChannels = agg.channels.size();
+		int[] operators = new int[numChannels];
+		int[] inputChannels = new int[numChannels];
+		int[] nths = new int[numChannels];
+		double[] quantiles = new double[numChannels];
+		Matcher matcher = OPERATOR_PATTERN.matcher(agg.sqlExpression.toLowerCase());
+		int i = 0;
+		int end = 0;
+		while (end < agg.sqlExpression.length()) {
+			if (!matcher.find(end) || matcher.start() != end || i >= numChannels) {
+				return null;
+			}
+			if (matcher.group(2) != null) {
+				operators[i] = PERCENTILE;
+				quantiles[i] = Double.valueOf(matcher.group(2)) / 100;
+				if (quantiles[i] > 1) {
+					return null;
+				}
+			} else {
+				operators[i] = Arrays.asList(OPERATOR_NAMES).indexOf(matcher.group(1));
+			}
+			inputChannels[i] = Integer.valueOf(matcher.group(3)) - 1;
+			if ((operators[i] == NTH) != (matcher.group(4) != null)) {
+				return null;
+			}
+			if (operators[i] == NTH) {
+				long nth = Long.valueOf(matcher.group(4));
+				if (nth == 0 || Math.abs(nth) > MAX_BUFFERED_VALUES) {
+					return null;
+				}
+				nths[i] = (int)nth;
+			}
+			if (inputChannels[i] < 0 || inputChannels[i] >= agg.targetStreamChannels.size()) {
+				return null;
+			}
+			i++;
+			end = matcher.end();
+		}
+		if (i != numChannels) {
+			return null;
+		}
+
+		String calendar = agg.aggregator == Aggregator.Type.AGGREGATE_BY ? agg.calendar : null;
+		return new StreamingAggregator(operators, inputChannels, nths, quantiles, calendar, rangeStart);
+	}
+
+	// Start of the calendar interval of the given epoch milliseconds, or null if the calendar is not supported.
+	static DateTime getBucketStart(String calendar, long millis) {
+		DateTime time = new DateTime(millis);
+		switch (calendar) {
+		case "ts_1min":
+			return time.minuteOfDay().roundFloorCopy();
+		case "ts_15min":
+			return time.minuteOfDay().roundFloorCopy().withMinuteOfHour(time.getMinuteOfHour() / 15 * 15);
+		case "ts_30min":
+			return time.minuteOfDay().roundFloorCopy().withMinuteOfHour(time.getMinuteOfHour() / 30 * 30);
+		case "ts_1hour":
+			return time.hourOfDay().roundFloorCopy();
+		case "ts_1day":
+			return time.withTimeAtStartOfDay();
+		case "ts_1month":
+			return time.monthOfYear().roundFloorCopy();
+		case "ts_1year":
+			return time.year().roundFloorCopy();
+		default:
+			return null;
+		}
+	}
+
+	static DateTime getBucketEnd(String calendar, DateTime start) {
+		switch (calendar) {
+		case "ts_1min":
+			return start.plusMinutes(1);
+		case "ts_15min":
+			return start.plusMinutes(15);
+		case "ts_30min":
+			return start.plusMinutes(30);
+		case "ts_1hour":
+			return start.plusHours(1);
+		case "ts_1day":
+			return start.plusDays(1);
+		case "ts_1month":
+			return start.plusMonths(1);
+		default:
+			return start.plusYears(1);
+		}
+	}
+
+	// One generator per output channel, for noisy aggregators.
+	public void setNoiseGenerators(List<DiffPrivNoiseGenerator> noiseGenerators) {
+		this.noiseGenerators = noiseGenerators;
+	}
+
+	// Sets output channel i of row to value, with noise for the operator if the aggregator is noisy.
+	private void setValue(TupleBatch out, int row, int i, double value, long numValues) {
+		if (noiseGenerators != null) {
+			DiffPrivNoiseGenerator generator = noiseGenerators.get(i);
+			switch (operators[i]) {
+			case AVG:
+				value += generator.getAvgNoise(numValues);
+				break;
+			case MIN:
+			case MAX:
+				value += generator.getMinMaxNoise();
+				break;
+			case MEDIAN:
+				value += generator.getMedianNoise();
+				break;
+			case SUM:
+				value += generator.getSumNoise();
+				break;
+			default:
+				// First, last, nth and percentiles, which may be any value of the channel.
+				value += generator.getNthNoise();
+			}
+		}
+		out.setDouble(row, i, value);
+	}
+
+	// The calendar of AggregateBy, or null for AggregateRange.
+	String getCalendar() {
+		return calendar;
+	}
+
+	long getRangeStart() {
+		return rangeStart;
+	}
+
+	// Whether the expression can be evaluated from RollupTiers summaries.
+	boolean isSummarizable() {
+		for (int operator : operators) {
+			if (operator == MEDIAN || operator == NTH) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Appends a bucket to out from the summaries of its tuples per channel of the target stream.
+	void emitSummaries(long timestamp, RollupTiers.Summary[] summaries, TupleBatch out) {
+		int row = out.addRow(timestamp);
+		for (int i = 0; i < operators.length; i++) {
+			RollupTiers.Summary summary = summaries[inputChannels[i]];
+			if (summary == null || summary.numValues == 0) {
+				out.setNull(row, i);
+				continue;
+			}
+			double value;
+			switch (operators[i]) {
+			case MIN:
+				value = summary.min;
+				break;
+			case MAX:
+				value = summary.max;
+				break;
+			case SUM:
+				value = summary.sum;
+				break;
+			case AVG:
+				value = summary.sum / summary.numValues;
+				break;
+			case FIRST:
+				value = summary.first;
+				break;
+			case LAST:
+				value = summary.last;
+				break;
+			case PERCENTILE:
+				value = summary.quantiles.getQuantile(quantiles[i]);
+				break;
+			default:
+				value = summary.distinct.estimate();
+			}
+			setValue(out, row, i, value, summary.numValues);
+		}
+	}
+
+	// Whether a median bucket had more than MAX_BUFFERED_VALUES values, so that the result is incomplete.
+	boolean isOverflowed() {
+		return isOverflowed;
+	}
+
+	// Aggregates the time-ordered rows of raw, which has the channels of the target stream, and appends the
+	// completed buckets to out, which has the aggregate channels.
+	public void add(TupleBatch raw, TupleBatch out) {
+		for (int row = 0; row < raw.getSize() && !isOverflowed; row++) {
+			long timestamp = raw.getTimestamp(row);
+			if (!hasBucket) {
+				startBucket(timestamp);
+			} else if (calendar != null && (timestamp >= bucketEnd || timestamp < bucketStart)) {
+				emit(out);
+				startBucket(timestamp);
+			}
+			for (int i = 0; i < operators.length; i++) {
+				int channel = inputChannels[i];
+				if (raw.isNull(row, channel)) {
+					continue;
+				}
+				if (raw.isNumeric(channel)) {
+					update(i, raw.getDouble(row, channel));
+				} else {
+					// Only distinct takes text channels.
+					counts[i]++;
+					distinctSketches[i].add(raw.getText(row, channel));
+				}
+			}
+		}
+	}
+
+	// Adds the state of an AggregateRange over a later, disjoint part of the range, e.g., one partition of a
+	// parallel query, as if its tuples had been added here.
+	void merge(StreamingAggregator later) {
+		if (later.isOverflowed) {
+			isOverflowed = true;
+		}
+		if (!later.hasBucket || isOverflowed) {
+			return;
+		}
+		if (!hasBucket) {
+			bucketStart = later.bucketStart;
+			bucketEnd = later.bucketEnd;
+			Arrays.fill(counts, 0);
+			resetSketches();
+			hasBucket = true;
+		}
+		for (int i = 0; i < operators.length; i++) {
+			long n = later.counts[i];
+			if (n == 0) {
+				continue;
+			}
+			boolean isEmpty = counts[i] == 0;
+			switch (operators[i]) {
+			case MIN:
+				results[i] = isEmpty ? later.results[i] : Math.min(results[i], later.results[i]);
+				break;
+			case MAX:
+				results[i] = isEmpty ? later.results[i] : Math.max(results[i], later.results[i]);
+				break;
+			case SUM:
+			case AVG:
+				results[i] = isEmpty ? later.results[i] : results[i] + later.results[i];
+				break;
+			case FIRST:
+				if (isEmpty) {
+					results[i] = later.results[i];
+				}
+				break;
+			case LAST:
+				results[i] = later.results[i];
+				break;
+			case PERCENTILE:
+				quantileSketches[i].merge(later.quantileSketches[i]);
+				break;
+			case DISTINCT:
+				distinctSketches[i].merge(later.distinctSketches[i]);
+				break;
+			case MEDIAN:
+				for (int j = 0; j < n; j++) {
+					update(i, later.values[i][j]);
+				}
+				continue;
+			default:
+				// Nth, adding the kept later values in order and counting the others where they were.
+				int m = values[i].length;
+				if (nths[i] > 0) {
+					for (int j = 0; j < Math.min(n, m); j++) {
+						update(i, later.values[i][j]);
+					}
+					counts[i] += n - Math.min(n, m);
+				} else {
+					long from = Math.max(0, n - m);
+					counts[i] += from;
+					for (long j = from; j < n; j++) {
+						update(i, later.values[i][(int)(j % m)]);
+					}
+				}
+				continue;
+			}
+			counts[i] += n;
+		}
+	}
+
+	// Appends the last bucket to out.
+	public void finish(TupleBatch out) {
+		if (hasBucket) {
+			emit(out);
+			hasBucket = false;
+		}
+	}
+
+	private void startBucket(long timestamp) {
+		if (calendar == null) {
+			bucketStart = rangeStart == Long.MIN_VALUE ? timestamp : rangeStart;
+			bucketEnd = Long.MAX_VALUE;
+		} else {
+			DateTime start = getBucketStart(calendar, TupleBatch.toMillis(timestamp));
+			bucketStart = start.getMillis() * 1000;
+			bucketEnd = getBucketEnd(calendar, start).getMillis() * 1000;
+		}
+		Arrays.fill(counts, 0);
+		resetSketches();
+		hasBucket = true;
+	}
+
+	private void resetSketches() {
+		for (int i = 0; i < operators.length; i++) {
+			if (operators[i] == PERCENTILE) {
+				quantileSketches[i] = new QuantileSketch();
+			} else if (operators[i] == DISTINCT) {
+				distinctSketches[i] = new DistinctCountSketch();
+			}
+		}
+	}
+
+	private void update(int i, double value) {
+		long n = counts[i]++;
+		switch (operators[i]) {
+		case MIN:
+			results[i] = n == 0 ? value : Math.min(results[i], value);
+			break;
+		case MAX:
+			results[i] = n == 0 ? value : Math.max(results[i], value);
+			break;
+		case SUM:
+		case AVG:
+			results[i] = n == 0 ? value : results[i] + value;
+			break;
+		case FIRST:
+			if (n == 0) {
+				results[i] = value;
+			}
+			break;
+		case LAST:
+			results[i] = value;
+			break;
+		case PERCENTILE:
+			quantileSketches[i].add(value);
+			break;
+		case DISTINCT:
+			distinctSketches[i].add(value);
+			break;
+		case MEDIAN:
+			if (n == MAX_BUFFERED_VALUES) {
+				isOverflowed = true;
+				break;
+			}
+			if (n == values[i].length) {
+				values[i] = Arrays.copyOf(values[i], (int)Math.min(2 * n, MAX_BUFFERED_VALUES));
+			}
+			values[i][(int)n] = value;
+			break;
+		default:
+			// Nth.
+			if (nths[i] < 0) {
+				values[i][(int)(n % values[i].length)] = value;
+			} else if (n < values[i].length) {
+				values[i][(int)n] = value;
+			}
+		}
+	}
+
+	private void emit(TupleBatch out) {
+		int row = out.addRow(bucketStart);
+		for (int i = 0; i < operators.length; i++) {
+			long n = counts[i];
+			if (n == 0) {
+				out.setNull(row, i);
+				continue;
+			}
+			switch (operators[i]) {
+			case AVG:
+				setValue(out, row, i, results[i] / n, n);
+				break;
+			case MEDIAN:
+				Arrays.sort(values[i], 0, (int)n);
+				double median = n % 2 == 1 ? values[i][(int)(n / 2)] : (values[i][(int)(n / 2) - 1] + values[i][(int)(n / 2)]) / 2;
+				setValue(out, row, i, median, n);
+				break;
+			case NTH:
+				long index = nths[i] > 0 ? nths[i] - 1 : n + nths[i];
+				if (index < 0 || index >= n) {
+					out.setNull(row, i);
+				} else {
+					setValue(out, row, i, values[i][(int)(index % values[i].length)], n);
+				}
+				break;
+			case PERCENTILE:
+				setValue(out, row, i, quantileSketches[i].getQuantile(quantiles[i]), n);
+				break;
+			case DISTINCT:
+				setValue(out, row, i, distinctSketches[i].estimate(), n);
+				break;
+			default:
+				setValue(out, row, i, results[i], n);
+			}
+		}
+	}
+}
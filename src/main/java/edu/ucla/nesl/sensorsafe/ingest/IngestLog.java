@@ -0,0 +1,355 @@
+package edu.ucla.nesl.sensorsafe.ingest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import edu.ucla.nesl.sensorsafe.tools.Log;
+
+// Append-only log of accepted ingest requests kept in memory-mapped segment files.
+//
+// Record layout: length(int) crc(int) seq(long) body, where body is
+// acceptTime(long) format(byte) owner(UTF) streamName(UTF) dataLength(int) data.
+// length counts the bytes after the crc field and crc covers the body. Segments are zero filled
+// and length is written last, so a zero length marks the end of the written part of a segment.
+//
+// Appends only write to the mapped buffers. sync() forces every segment written since the
+// previous call at once, so concurrent appenders share a single fsync (group commit).
+//
+// Records that cannot be applied are copied, one record per file in the same layout, to the
+// dead_letter directory before they are checkpointed away.
+public class IngestLog {
+
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final String CHECKPOINT_FILE_NAME = "checkpoint";
+	private static final String DEAD_LETTER_DIR_NAME = "dead_letter";
+	private static final String DEAD_LETTER_SUFFIX = ".rec";
+	private static final int RECORD_HEADER_SIZE = 16;
+
+	private static class Segment {
+		final File file;
+		final RandomAccessFile raf;
+		final MappedByteBuffer buffer;
+		long lastSeq;
+
+		Segment(File file, int size) throws IOException {
+			this.file = file;
+			this.raf = new RandomAccessFile(file, "rw");
+			this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, raf.length()));
+		}
+
+		void close() throws IOException {
+			raf.close();
+		}
+	}
+
+	private final File dir;
+	private final int segmentSize;
+	private final LinkedList<Segment> segments = new LinkedList<Segment>();
+	private final Set<Segment> unsyncedSegments = new LinkedHashSet<Segment>();
+	private Segment current;
+	private long lastSeq;
+	private long syncedSeq;
+	private boolean isOpen;
+
+	public IngestLog(File dir, int segmentSize) {
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+	}
+
+	// Opens the log and returns the records appended after the last checkpoint, in order.
+	public synchronized List<IngestRecord> open() throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Unable to create ingest log directory: " + dir.getAbsolutePath());
+		}
+
+		long checkpoint = readCheckpoint();
+		lastSeq = checkpoint;
+
+		File[] files = dir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		Arrays.sort(files);
+
+		List<IngestRecord> records = new ArrayList<IngestRecord>();
+		for (File file : files) {
+			Segment segment = new Segment(file, segmentSize);
+			scanSegment(segment, checkpoint, records);
+			segments.add(segment);
+		}
+
+		if (segments.isEmpty()) {
+			rollSegment();
+		} else {
+			current = segments.getLast();
+		}
+		syncedSeq = lastSeq;
+		isOpen = true;
+
+		return records;
+	}
+
+	private void scanSegment(Segment segment, long checkpoint, List<IngestRecord> records) throws IOException {
+		ByteBuffer buffer = segment.buffer;
+		int pos = 0;
+		while (pos + RECORD_HEADER_SIZE <= buffer.limit()) {
+			int length = buffer.getInt(pos);
+			if (length <= 8 || pos + 8 + length > buffer.limit()) {
+				break;
+			}
+			int crc = buffer.getInt(pos + 4);
+			long seq = buffer.getLong(pos + 8);
+			byte[] body = new byte[length - 8];
+			ByteBuffer dup = buffer.duplicate();
+			dup.position(pos + RECORD_HEADER_SIZE);
+			dup.get(body);
+
+			CRC32 crc32 = new CRC32();
+			crc32.update(body);
+			if ((int)crc32.getValue() != crc || seq <= segment.lastSeq) {
+				// Torn write at the end of the segment.
+				Log.error("Ignoring corrupted ingest log record at " + segment.file.getName() + ":" + pos);
+				break;
+			}
+
+			if (seq > checkpoint) {
+				records.add(decodeRecord(seq, body));
+			}
+			segment.lastSeq = seq;
+			if (seq > lastSeq) {
+				lastSeq = seq;
+			}
+			pos += 8 + length;
+		}
+		buffer.position(pos);
+	}
+
+	private IngestRecord decodeRecord(long seq, byte[] body) {
+		ByteBuffer buffer = ByteBuffer.wrap(body);
+		long acceptTime = buffer.getLong();
+		byte format = buffer.get();
+		String owner = getUTF(buffer);
+		String streamName = getUTF(buffer);
+		byte[] data = new byte[buffer.getInt()];
+		buffer.get(data);
+		return new IngestRecord(seq, acceptTime, format, owner, streamName, data);
+	}
+
+	private String getUTF(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getShort() & 0xffff];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private byte[] encodeBody(long acceptTime, byte format, String owner, String streamName, byte[] data) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length + 64);
+		DataOutputStream dos = new DataOutputStream(bos);
+		dos.writeLong(acceptTime);
+		dos.writeByte(format);
+		dos.writeUTF(owner);
+		dos.writeUTF(streamName);
+		dos.writeInt(data.length);
+		dos.write(data);
+		dos.flush();
+		return bos.toByteArray();
+	}
+
+	private void rollSegment() throws IOException {
+		File file = new File(dir, String.format("%020d", lastSeq + 1) + SEGMENT_SUFFIX);
+		current = new Segment(file, segmentSize);
+		segments.add(current);
+	}
+
+	// The largest data that fits in a record of the given owner and stream.
+	public int getMaxDataSize(String owner, String streamName) {
+		return segmentSize - RECORD_HEADER_SIZE - 8 - 1 - 2 - 2 - 4
+				- owner.getBytes(StandardCharsets.UTF_8).length - streamName.getBytes(StandardCharsets.UTF_8).length;
+	}
+
+	public IngestRecord append(long acceptTime, byte format, String owner, String streamName, byte[] data) throws IOException {
+		byte[] body = encodeBody(acceptTime, format, owner, streamName, data);
+		if (RECORD_HEADER_SIZE + body.length > segmentSize) {
+			throw new IllegalArgumentException("Data is too large for asynchronous ingest.");
+		}
+		CRC32 crc32 = new CRC32();
+		crc32.update(body);
+		int crc = (int)crc32.getValue();
+
+		long seq;
+		synchronized (this) {
+			if (!isOpen) {
+				throw new IOException("Ingest log is closed.");
+			}
+			if (current.buffer.remaining() < RECORD_HEADER_SIZE + body.length) {
+				rollSegment();
+			}
+			seq = lastSeq + 1;
+
+			MappedByteBuffer buffer = current.buffer;
+			int pos = buffer.position();
+			buffer.position(pos + 4);
+			buffer.putInt(crc);
+			buffer.putLong(seq);
+			buffer.put(body);
+			// Write length last so that a partially written record is never taken as complete.
+			buffer.putInt(pos, 8 + body.length);
+
+			current.lastSeq = seq;
+			lastSeq = seq;
+			unsyncedSegments.add(current);
+			notifyAll();
+		}
+		return new IngestRecord(seq, acceptTime, format, owner, streamName, data);
+	}
+
+	// Forces all appended records to disk and returns the synced sequence number.
+	public long sync() {
+		List<Segment> toForce;
+		long seq;
+		synchronized (this) {
+			if (syncedSeq == lastSeq) {
+				return syncedSeq;
+			}
+			toForce = new ArrayList<Segment>(unsyncedSegments);
+			unsyncedSegments.clear();
+			seq = lastSeq;
+		}
+
+		for (Segment segment : toForce) {
+			segment.buffer.force();
+		}
+
+		synchronized (this) {
+			if (seq > syncedSeq) {
+				syncedSeq = seq;
+			}
+			notifyAll();
+		}
+		return seq;
+	}
+
+	public synchronized void awaitUnsynced() throws InterruptedException {
+		while (isOpen && syncedSeq == lastSeq) {
+			wait();
+		}
+	}
+
+	public synchronized void awaitSynced(long seq) throws IOException, InterruptedException {
+		while (syncedSeq < seq) {
+			if (!isOpen) {
+				throw new IOException("Ingest log is closed.");
+			}
+			wait();
+		}
+	}
+
+	public synchronized long getLastSeq() {
+		return lastSeq;
+	}
+
+	public synchronized long getSyncedSeq() {
+		return syncedSeq;
+	}
+
+	// Records the applied sequence number and deletes segments that are fully applied.
+	public void checkpoint(long appliedSeq) throws IOException {
+		File tmpFile = new File(dir, CHECKPOINT_FILE_NAME + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmpFile);
+		try {
+			fos.write(Long.toString(appliedSeq).getBytes(StandardCharsets.UTF_8));
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		if (!tmpFile.renameTo(new File(dir, CHECKPOINT_FILE_NAME))) {
+			throw new IOException("Unable to write ingest log checkpoint.");
+		}
+
+		synchronized (this) {
+			Iterator<Segment> iter = segments.iterator();
+			while (iter.hasNext()) {
+				Segment segment = iter.next();
+				if (segment == current || segment.lastSeq > appliedSeq) {
+					break;
+				}
+				iter.remove();
+				unsyncedSegments.remove(segment);
+				segment.close();
+				segment.file.delete();
+			}
+		}
+	}
+
+	public void deadLetter(IngestRecord record) throws IOException {
+		File deadLetterDir = new File(dir, DEAD_LETTER_DIR_NAME);
+		if (!deadLetterDir.isDirectory() && !deadLetterDir.mkdirs()) {
+			throw new IOException("Unable to create ingest dead letter directory: " + deadLetterDir.getAbsolutePath());
+		}
+		byte[] body = encodeBody(record.acceptTime, record.format, record.owner, record.streamName, record.data);
+		CRC32 crc32 = new CRC32();
+		crc32.update(body);
+
+		File file = new File(deadLetterDir, String.format("%020d", record.seq) + DEAD_LETTER_SUFFIX);
+		FileOutputStream fos = new FileOutputStream(file);
+		try {
+			DataOutputStream dos = new DataOutputStream(fos);
+			dos.writeInt(8 + body.length);
+			dos.writeInt((int)crc32.getValue());
+			dos.writeLong(record.seq);
+			dos.write(body);
+			dos.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+	}
+
+	private long readCheckpoint() throws IOException {
+		File file = new File(dir, CHECKPOINT_FILE_NAME);
+		if (!file.exists()) {
+			return 0;
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			byte[] bytes = new byte[(int)raf.length()];
+			raf.readFully(bytes);
+			return Long.parseLong(new String(bytes, StandardCharsets.UTF_8).trim());
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid ingest log checkpoint: " + e.getMessage());
+		} finally {
+			raf.close();
+		}
+	}
+
+	public void close() throws IOException {
+		sync();
+		synchronized (this) {
+			isOpen = false;
+			notifyAll();
+			for (Segment segment : segments) {
+				segment.close();
+			}
+			segments.clear();
+			unsyncedSegments.clear();
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package edu.ucla.nesl.sensorsafe.ingest;
+
+// An ingest request accepted into the log.
+public class IngestRecord {
+
+	public static final byte FORMAT_JSON = 1;
+	public static final byte FORMAT_CSV = 2;
+
+	public final long seq;
+	public final long acceptTime;
+	public final byte format;
+	public final String owner;
+	public final String streamName;
+	public final byte[] data;
+
+	public IngestRecord(long seq, long acceptTime, byte format, String owner, String streamName, byte[] data) {
+		this.seq = seq;
+		this.acceptTime = acceptTime;
+		this.format = format;
+		this.owner = owner;
+		this.streamName = streamName;
+		this.data = data;
+	}
+}
@@ -0,0 +1,464 @@
+package edu.ucla.nesl.sensorsafe.ingest;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.NamingException;
+
+import net.minidev.json.JSONArray;
+import net.minidev.json.JSONObject;
+import net.minidev.json.JSONValue;
+
+import edu.ucla.nesl.sensorsafe.db.DatabaseConnector;
+import edu.ucla.nesl.sensorsafe.db.StreamDatabaseDriver;
+import edu.ucla.nesl.sensorsafe.tools.Log;
+
+// Asynchronous ingest. Requests are appended to the durable IngestLog and acknowledged once synced.
+// Per-stream writers then apply them in order, coalescing consecutive JSON requests into one batched
+// addTuple() call. Records not applied before shutdown are replayed from the log at the next start.
+// Records with invalid data, or that still fail after MAX_RETRIES attempts, go to the dead letter
+// directory of the log, so that the watermarks move on and applied segments are deleted.
+//
+// Watermarks are reported per owner. They are sequence numbers of the owner's own requests.
+public class IngestService {
+
+	private static final String INGEST_DIR = System.getProperty("sensorsafe.ingest.dir", "/tmp/sensorsafe_ingest");
+	private static final int SEGMENT_SIZE = Integer.getInteger("sensorsafe.ingest.segment_size", 64 * 1024 * 1024);
+	private static final int NUM_WRITER_THREADS = Integer.getInteger("sensorsafe.ingest.writer_threads", 4);
+	private static final int MAX_COALESCED_RECORDS = Integer.getInteger("sensorsafe.ingest.max_coalesced_records", 1000);
+	private static final int MAX_RETRIES = Integer.getInteger("sensorsafe.ingest.max_retries", 10);
+	private static final int CSV_CHUNK_SIZE = Integer.getInteger("sensorsafe.ingest.csv_chunk_size", 4 * 1024 * 1024);
+	private static final long CHECKPOINT_INTERVAL_MS = 1000;
+	private static final long RETRY_DELAY_MS = 5000;
+	private static final long SHUTDOWN_TIMEOUT_MS = 30000;
+
+	private static final Object appendLock = new Object();
+	private static final ConcurrentMap<String, StreamWriter> writers = new ConcurrentHashMap<String, StreamWriter>();
+	private static final ConcurrentSkipListSet<Long> unappliedSeqs = new ConcurrentSkipListSet<Long>();
+	private static final ConcurrentMap<String, OwnerState> owners = new ConcurrentHashMap<String, OwnerState>();
+
+	private static IngestLog log;
+	private static ExecutorService writerPool;
+	private static ScheduledExecutorService checkpointer;
+	private static Thread syncThread;
+	private static volatile boolean isRunning;
+
+	private static class OwnerState {
+		final ConcurrentSkipListSet<Long> unappliedSeqs = new ConcurrentSkipListSet<Long>();
+		final AtomicLong durableSeq = new AtomicLong();
+		final AtomicLong numRejected = new AtomicLong();
+		final AtomicLong numFailed = new AtomicLong();
+		// Guarded by appendLock.
+		long lastSeq;
+	}
+
+	private static class StreamWriter implements Runnable {
+		final String owner;
+		final String streamName;
+		final Queue<IngestRecord> queue = new ConcurrentLinkedQueue<IngestRecord>();
+		final AtomicBoolean isScheduled = new AtomicBoolean(false);
+
+		StreamWriter(String owner, String streamName) {
+			this.owner = owner;
+			this.streamName = streamName;
+		}
+
+		void enqueue(IngestRecord record) {
+			queue.add(record);
+			schedule();
+		}
+
+		void schedule() {
+			if (isRunning && isScheduled.compareAndSet(false, true)) {
+				writerPool.execute(this);
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (isRunning) {
+					List<IngestRecord> batch = takeBatch();
+					if (batch.isEmpty()) {
+						break;
+					}
+					apply(batch);
+				}
+			} finally {
+				isScheduled.set(false);
+				if (!queue.isEmpty()) {
+					schedule();
+				}
+			}
+		}
+
+		// A CSV request is applied alone; consecutive JSON requests are coalesced.
+		private List<IngestRecord> takeBatch() {
+			List<IngestRecord> batch = new ArrayList<IngestRecord>();
+			IngestRecord record;
+			while (batch.size() < MAX_COALESCED_RECORDS && (record = queue.peek()) != null) {
+				if (record.format != IngestRecord.FORMAT_JSON && !batch.isEmpty()) {
+					break;
+				}
+				batch.add(queue.poll());
+				if (record.format != IngestRecord.FORMAT_JSON) {
+					break;
+				}
+			}
+			return batch;
+		}
+
+		private void apply(List<IngestRecord> batch) {
+			int numAttempts = 0;
+			while (true) {
+				try {
+					write(batch);
+					markApplied(batch);
+					return;
+				} catch (IllegalArgumentException e) {
+					if (batch.size() > 1) {
+						// Isolate the offending requests.
+						for (IngestRecord record : batch) {
+							apply(Collections.singletonList(record));
+						}
+					} else {
+						Log.error("Rejected ingest request " + batch.get(0).seq + " (" + owner + "/" + streamName + "): " + e.getMessage());
+						getOwnerState(owner).numRejected.incrementAndGet();
+						deadLetter(batch);
+					}
+					return;
+				} catch (SQLException | IOException | NamingException | ClassNotFoundException | NoSuchAlgorithmException | RuntimeException e) {
+					Log.error("Failed to apply ingest requests (" + owner + "/" + streamName + "): " + e);
+					if (!isRunning) {
+						// Replayed at the next start.
+						return;
+					}
+					if (++numAttempts > MAX_RETRIES) {
+						Log.error("Giving up on " + batch.size() + " ingest requests (" + owner + "/" + streamName + ") after " + numAttempts + " attempts.");
+						getOwnerState(owner).numFailed.addAndGet(batch.size());
+						deadLetter(batch);
+						return;
+					}
+					try {
+						Thread.sleep(RETRY_DELAY_MS);
+					} catch (InterruptedException e1) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+			}
+		}
+
+		private void write(List<IngestRecord> batch) throws SQLException, IOException, NamingException, ClassNotFoundException, NoSuchAlgorithmException {
+			StreamDatabaseDriver db = null;
+			try {
+				db = DatabaseConnector.getStreamDatabase();
+				if (batch.size() == 1 && batch.get(0).format == IngestRecord.FORMAT_CSV) {
+					db.bulkLoad(owner, streamName, new InputStreamReader(new ByteArrayInputStream(batch.get(0).data), StandardCharsets.UTF_8));
+				} else {
+					JSONArray tuples = new JSONArray();
+					for (IngestRecord record : batch) {
+						addTuples(tuples, record);
+					}
+					db.addTuple(owner, streamName, tuples.toJSONString());
+				}
+			} finally {
+				if (db != null) {
+					db.close();
+				}
+			}
+		}
+	}
+
+	private static void addTuples(JSONArray tuples, IngestRecord record) {
+		Object obj = JSONValue.parse(new String(record.data, StandardCharsets.UTF_8));
+		if (obj instanceof JSONArray && !((JSONArray)obj).isEmpty()
+				&& (((JSONArray)obj).get(0) instanceof JSONArray || ((JSONArray)obj).get(0) instanceof JSONObject)) {
+			for (Object tuple : (JSONArray)obj) {
+				tuples.add(fillTimestamp(tuple, record.acceptTime));
+			}
+		} else {
+			tuples.add(fillTimestamp(obj, record.acceptTime));
+		}
+	}
+
+	// A null timestamp means the time the request was accepted, not the time it is applied.
+	private static Object fillTimestamp(Object tuple, long acceptTime) {
+		if (tuple instanceof JSONArray) {
+			JSONArray array = (JSONArray)tuple;
+			if (!array.isEmpty() && array.get(0) == null) {
+				array.set(0, new Timestamp(acceptTime).toString());
+			}
+		} else if (tuple instanceof JSONObject) {
+			JSONObject json = (JSONObject)tuple;
+			if (json.get("timestamp") == null) {
+				json.put("timestamp", new Timestamp(acceptTime).toString());
+			}
+		} else {
+			throw new IllegalArgumentException("Invalid tuple format.");
+		}
+		return tuple;
+	}
+
+	private static void markApplied(List<IngestRecord> batch) {
+		for (IngestRecord record : batch) {
+			getOwnerState(record.owner).unappliedSeqs.remove(record.seq);
+			unappliedSeqs.remove(record.seq);
+		}
+	}
+
+	private static void deadLetter(List<IngestRecord> batch) {
+		for (IngestRecord record : batch) {
+			try {
+				log.deadLetter(record);
+			} catch (IOException e) {
+				Log.error("Failed to keep dead ingest request " + record.seq + ": " + e.getMessage());
+			}
+		}
+		markApplied(batch);
+	}
+
+	private static OwnerState getOwnerState(String owner) {
+		OwnerState state = owners.get(owner);
+		if (state == null) {
+			OwnerState newState = new OwnerState();
+			state = owners.putIfAbsent(owner, newState);
+			if (state == null) {
+				state = newState;
+			}
+		}
+		return state;
+	}
+
+	// Tracks an accepted record until it is applied. Called with appendLock held, or by start() before
+	// requests are accepted.
+	private static void addUnapplied(IngestRecord record) {
+		OwnerState state = getOwnerState(record.owner);
+		state.unappliedSeqs.add(record.seq);
+		state.lastSeq = record.seq;
+		unappliedSeqs.add(record.seq);
+	}
+
+	private static StreamWriter getWriter(String owner, String streamName) {
+		String key = owner + "/" + streamName;
+		StreamWriter writer = writers.get(key);
+		if (writer == null) {
+			StreamWriter newWriter = new StreamWriter(owner, streamName);
+			writer = writers.putIfAbsent(key, newWriter);
+			if (writer == null) {
+				writer = newWriter;
+			}
+		}
+		return writer;
+	}
+
+	// Appends the request to the log and returns its sequence number once it is durable.
+	public static long submit(String owner, String streamName, byte format, byte[] data) throws IOException, InterruptedException {
+		if (!isRunning) {
+			throw new IllegalStateException("Asynchronous ingest is not available.");
+		}
+
+		IngestRecord record;
+		synchronized (appendLock) {
+			record = log.append(System.currentTimeMillis(), format, owner, streamName, data);
+			addUnapplied(record);
+		}
+		log.awaitSynced(record.seq);
+		updateMax(getOwnerState(owner).durableSeq, record.seq);
+
+		getWriter(owner, streamName).enqueue(record);
+		return record.seq;
+	}
+
+	// Splits CSV data at line boundaries into records of at most CSV_CHUNK_SIZE bytes, so that the
+	// data is never held in memory as a whole. Each record is applied as a separate bulk load, and
+	// records submitted before a failure are still applied. Returns the sequence number of the last one.
+	public static long submitCsv(String owner, String streamName, InputStream in) throws IOException, InterruptedException {
+		if (!isRunning) {
+			throw new IllegalStateException("Asynchronous ingest is not available.");
+		}
+
+		byte[] buffer = new byte[Math.min(CSV_CHUNK_SIZE, log.getMaxDataSize(owner, streamName))];
+		int length = 0;
+		long seq = 0;
+		while (true) {
+			int size = in.read(buffer, length, buffer.length - length);
+			if (size > 0) {
+				length += size;
+				if (length < buffer.length) {
+					continue;
+				}
+			}
+			if (size < 0 && length == 0) {
+				break;
+			}
+
+			// Cut after the last newline, or at the end of the data.
+			int end = length;
+			if (size >= 0) {
+				while (end > 0 && buffer[end - 1] != '\n') {
+					end--;
+				}
+				if (end == 0) {
+					throw new IllegalArgumentException("A line is too large for asynchronous ingest.");
+				}
+			}
+			seq = submit(owner, streamName, IngestRecord.FORMAT_CSV, Arrays.copyOf(buffer, end));
+			System.arraycopy(buffer, end, buffer, 0, length - end);
+			length -= end;
+			if (size < 0) {
+				break;
+			}
+		}
+		if (seq == 0) {
+			throw new IllegalArgumentException("Empty data.");
+		}
+		return seq;
+	}
+
+	private static void updateMax(AtomicLong value, long newValue) {
+		long curValue;
+		while ((curValue = value.get()) < newValue && !value.compareAndSet(curValue, newValue)) {
+		}
+	}
+
+	// The owner's requests up to the returned sequence number are stored on disk.
+	public static long getDurableSeq(String owner) {
+		OwnerState state = owners.get(owner);
+		return state == null ? 0 : state.durableSeq.get();
+	}
+
+	// Every request of the owner with a sequence number up to the returned one has been applied.
+	public static long getAppliedSeq(String owner) {
+		synchronized (appendLock) {
+			OwnerState state = owners.get(owner);
+			if (state == null) {
+				return 0;
+			}
+			return state.unappliedSeqs.isEmpty() ? state.lastSeq : state.unappliedSeqs.first() - 1;
+		}
+	}
+
+	public static long getNumRejected(String owner) {
+		OwnerState state = owners.get(owner);
+		return state == null ? 0 : state.numRejected.get();
+	}
+
+	public static long getNumFailed(String owner) {
+		OwnerState state = owners.get(owner);
+		return state == null ? 0 : state.numFailed.get();
+	}
+
+	// Every request with a sequence number up to the returned one has been applied or dead lettered.
+	private static long getAppliedSeq() {
+		synchronized (appendLock) {
+			return unappliedSeqs.isEmpty() ? log.getLastSeq() : unappliedSeqs.first() - 1;
+		}
+	}
+
+	private static void checkpoint() {
+		try {
+			log.checkpoint(getAppliedSeq());
+		} catch (IOException e) {
+			Log.error("Failed to checkpoint ingest log: " + e.getMessage());
+		}
+	}
+
+	public static synchronized void start() throws IOException {
+		if (isRunning) {
+			return;
+		}
+
+		log = new IngestLog(new File(INGEST_DIR), SEGMENT_SIZE);
+		List<IngestRecord> records = log.open();
+		for (IngestRecord record : records) {
+			addUnapplied(record);
+			updateMax(getOwnerState(record.owner).durableSeq, record.seq);
+		}
+
+		writerPool = Executors.newFixedThreadPool(NUM_WRITER_THREADS);
+		isRunning = true;
+
+		syncThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (isRunning) {
+					try {
+						log.awaitUnsynced();
+					} catch (InterruptedException e) {
+						break;
+					}
+					log.sync();
+				}
+			}
+		}, "IngestLogSync");
+		syncThread.setDaemon(true);
+		syncThread.start();
+
+		checkpointer = Executors.newSingleThreadScheduledExecutor();
+		checkpointer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				checkpoint();
+			}
+		}, CHECKPOINT_INTERVAL_MS, CHECKPOINT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+		if (!records.isEmpty()) {
+			Log.info("Replaying " + records.size() + " ingest requests..");
+		}
+		for (IngestRecord record : records) {
+			getWriter(record.owner, record.streamName).enqueue(record);
+		}
+	}
+
+	public static synchronized void stop() {
+		if (!isRunning) {
+			return;
+		}
+		isRunning = false;
+
+		writerPool.shutdown();
+		checkpointer.shutdown();
+		try {
+			if (!writerPool.awaitTermination(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+				writerPool.shutdownNow();
+			}
+			checkpointer.awaitTermination(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		checkpoint();
+		try {
+			log.close();
+		} catch (IOException e) {
+			Log.error("Failed to close ingest log: " + e.getMessage());
+		}
+		syncThread.interrupt();
+		writers.clear();
+		unappliedSeqs.clear();
+		owners.clear();
+	}
+}
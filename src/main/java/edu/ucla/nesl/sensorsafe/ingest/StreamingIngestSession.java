@@ -0,0 +1,237 @@
+package edu.ucla.nesl.sensorsafe.ingest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.NamingException;
+
+import edu.ucla.nesl.sensorsafe.db.DatabaseConnector;
+import edu.ucla.nesl.sensorsafe.db.StreamDatabaseDriver;
+import edu.ucla.nesl.sensorsafe.db.TupleBatch;
+import edu.ucla.nesl.sensorsafe.model.IngestAck;
+import edu.ucla.nesl.sensorsafe.tools.BinaryTupleFormat;
+import edu.ucla.nesl.sensorsafe.tools.JsonMapper;
+
+// Long-lived ingest connection for one stream.
+// A reader thread takes newline-delimited JSON tuples (or binary tuple frames) off the request body and
+// puts them in a bounded queue. The request thread groups them into micro-batches, bounded by size and
+// delay, and writes them through a single database connection. An IngestAck line is written to the
+// response after every micro-batch and at least every ACK_INTERVAL_MS. If the database falls behind, the
+// queue fills up and the reader stops reading, so TCP flow control slows down the client.
+public class StreamingIngestSession {
+
+	private static final int QUEUE_CAPACITY = Integer.getInteger("sensorsafe.ingest.stream.queue_capacity", 4096);
+	private static final int MAX_BATCH_TUPLES = Integer.getInteger("sensorsafe.ingest.stream.max_batch_tuples", 5000);
+	private static final long MAX_BATCH_DELAY_MS = Long.getLong("sensorsafe.ingest.stream.max_batch_delay_ms", 200);
+	private static final long ACK_INTERVAL_MS = 1000;
+	private static final int BUFFER_SIZE = 65536;
+
+	private static final ExecutorService readerPool = Executors.newCachedThreadPool();
+
+	// A line or a frame, or the end of the request body.
+	private static class Chunk {
+		final String line;
+		final ByteBuffer frame;
+		final String error;
+
+		Chunk(String line, ByteBuffer frame, String error) {
+			this.line = line;
+			this.frame = frame;
+			this.error = error;
+		}
+	}
+
+	private static final Chunk END = new Chunk(null, null, null);
+
+	private final String owner;
+	private final String streamName;
+	private final boolean isBinary;
+	private final InputStream in;
+	private final BlockingQueue<Chunk> queue = new ArrayBlockingQueue<Chunk>(QUEUE_CAPACITY);
+	private volatile boolean isClosed;
+
+	private final IngestAck ack = new IngestAck();
+	private TupleBatch batch;
+	private int batchChunks;
+	private int batchRejected;
+	private long numChunks;
+
+	public StreamingIngestSession(String owner, String streamName, boolean isBinary, InputStream in) {
+		this.owner = owner;
+		this.streamName = streamName;
+		this.isBinary = isBinary;
+		this.in = in;
+	}
+
+	// Runs until the client ends the request body. Acknowledgements are written to out.
+	public void run(OutputStream out) throws IOException, SQLException, ClassNotFoundException, NamingException {
+		StreamDatabaseDriver db = null;
+		try {
+			db = DatabaseConnector.getStreamDatabase();
+			batch = db.createTupleBatch(owner, streamName);
+
+			readerPool.execute(new Runnable() {
+				@Override
+				public void run() {
+					read();
+				}
+			});
+
+			long lastAckTime = System.currentTimeMillis();
+			long batchDeadline = Long.MAX_VALUE;
+			while (true) {
+				long timeout = Math.min(batchDeadline, lastAckTime + ACK_INTERVAL_MS) - System.currentTimeMillis();
+				Chunk chunk = timeout > 0 ? queue.poll(timeout, TimeUnit.MILLISECONDS) : queue.poll();
+
+				if (chunk == END || (chunk != null && chunk.error != null)) {
+					flush(db);
+					if (chunk.error != null) {
+						ack.error = chunk.error;
+					}
+					ack.isDone = true;
+					writeAck(out);
+					return;
+				}
+
+				if (chunk != null) {
+					if (batchChunks == 0) {
+						batchDeadline = System.currentTimeMillis() + MAX_BATCH_DELAY_MS;
+					}
+					decode(db, chunk);
+				}
+
+				long now = System.currentTimeMillis();
+				if (batch.getSize() >= MAX_BATCH_TUPLES || now >= batchDeadline) {
+					flush(db);
+					batchDeadline = Long.MAX_VALUE;
+					writeAck(out);
+					lastAckTime = now;
+				} else if (now >= lastAckTime + ACK_INTERVAL_MS) {
+					writeAck(out);
+					lastAckTime = now;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (SQLException e) {
+			// Let the client know how far it got before the connection is dropped.
+			ack.error = e.getMessage();
+			ack.isDone = true;
+			try {
+				writeAck(out);
+			} catch (IOException e1) {
+				e1.printStackTrace();
+			}
+			throw e;
+		} finally {
+			isClosed = true;
+			if (db != null) {
+				try {
+					db.close();
+				} catch (SQLException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private void read() {
+		try {
+			if (isBinary) {
+				DataInputStream din = new DataInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+				ByteBuffer frame;
+				while ((frame = BinaryTupleFormat.readFrame(din, null)) != null) {
+					if (!put(new Chunk(null, frame, null))) {
+						return;
+					}
+				}
+			} else {
+				BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), BUFFER_SIZE);
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (!line.isEmpty() && !put(new Chunk(line, null, null))) {
+						return;
+					}
+				}
+			}
+			put(END);
+		} catch (IOException | IllegalArgumentException e) {
+			try {
+				put(new Chunk(null, null, e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName()));
+			} catch (InterruptedException e1) {
+				Thread.currentThread().interrupt();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// Blocks while the queue is full. Returns false if the session is closed meanwhile.
+	private boolean put(Chunk chunk) throws InterruptedException {
+		while (!queue.offer(chunk, ACK_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+			if (isClosed) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void decode(StreamDatabaseDriver db, Chunk chunk) throws SQLException {
+		numChunks++;
+		batchChunks++;
+		int size = batch.getSize();
+		try {
+			if (chunk.frame != null) {
+				BinaryTupleFormat.decodeFrame(chunk.frame, batch);
+			} else {
+				db.decodeTuples(owner, streamName, chunk.line, batch);
+			}
+		} catch (IllegalArgumentException e) {
+			batch.truncate(size);
+			batchRejected++;
+			ack.error = (isBinary ? "Frame " : "Line ") + numChunks + ": " + e.getMessage();
+		}
+	}
+
+	// Writes the current micro-batch in one transaction. If the database rejects it, every line (or frame)
+	// of the micro-batch is counted as rejected.
+	private void flush(StreamDatabaseDriver db) throws SQLException {
+		if (batchChunks == 0) {
+			return;
+		}
+		try {
+			if (batch.getSize() > 0) {
+				ack.added += db.addTuples(owner, streamName, batch);
+			}
+			ack.rejected += batchRejected;
+		} catch (IllegalArgumentException e) {
+			ack.rejected += batchChunks;
+			ack.error = (isBinary ? "Frames " : "Lines ") + (numChunks - batchChunks + 1) + " to " + numChunks + ": " + e.getMessage();
+		}
+		ack.acked += batchChunks;
+		batch.clear();
+		batchChunks = 0;
+		batchRejected = 0;
+	}
+
+	private void writeAck(OutputStream out) throws IOException {
+		ack.pending = queue.size();
+		out.write(JsonMapper.get().writeValueAsBytes(ack));
+		out.write('\n');
+		out.flush();
+		ack.error = null;
+	}
+}
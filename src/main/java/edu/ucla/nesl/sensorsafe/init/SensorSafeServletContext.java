@@ -1,12 +1,16 @@
 package edu.ucla.nesl.sensorsafe.init;
 
+import java.io.IOException;
 import java.sql.SQLException;
 
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 
+import edu.ucla.nesl.sensorsafe.db.informix.ChannelStatisticsAccumulator;
 import edu.ucla.nesl.sensorsafe.db.informix.InformixStreamDatabase;
 import edu.ucla.nesl.sensorsafe.db.informix.InformixUserDatabase;
+import edu.ucla.nesl.sensorsafe.db.informix.RollupTiers;
+import edu.ucla.nesl.sensorsafe.ingest.IngestService;
 import edu.ucla.nesl.sensorsafe.tools.Log;
 
 public class SensorSafeServletContext implements ServletContextListener {
@@ -17,13 +21,23 @@ public class SensorSafeServletContext implements ServletContextListener {
 		try {
 			InformixStreamDatabase.initializeDatabase();
 			InformixUserDatabase.initializeDatabase();
+			ChannelStatisticsAccumulator.start();
+			RollupTiers.start();
 		} catch (SQLException | ClassNotFoundException e) {
 			e.printStackTrace();
 		}
+		try {
+			IngestService.start();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 	}
 
 	@Override
 	public void contextDestroyed(ServletContextEvent arg0) {
 		Log.info("SensorSafe is being closed...");
+		IngestService.stop();
+		RollupTiers.stop();
+		ChannelStatisticsAccumulator.stop();
 	}
 }
@@ -0,0 +1,38 @@
+package edu.ucla.nesl.sensorsafe.model;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+import com.wordnik.swagger.annotations.ApiModel;
+import com.wordnik.swagger.annotations.ApiModelProperty;
+
+@ApiModel(value = "Progress of a streaming ingest connection.")
+@XmlRootElement
+public class IngestAck {
+
+	@XmlElement(name = "acked")
+	@ApiModelProperty(value = "Number of lines (or frames) received so far that are either added or rejected.")
+	public long acked;
+
+	@XmlElement(name = "added")
+	@ApiModelProperty(value = "Number of tuples added so far.")
+	public long added;
+
+	@XmlElement(name = "rejected")
+	@ApiModelProperty(value = "Number of lines (or frames) rejected so far.")
+	public long rejected;
+
+	@XmlElement(name = "pending")
+	@ApiModelProperty(value = "Number of received lines (or frames) waiting to be written.")
+	public int pending;
+
+	@XmlElement(name = "error")
+	@ApiModelProperty(value = "Why the last rejected lines (or frames) were rejected.")
+	public String error;
+
+	@XmlElement(name = "done")
+	@ApiModelProperty(value = "True on the last acknowledgement of the connection.")
+	public boolean isDone;
+
+	public IngestAck() {}
+}
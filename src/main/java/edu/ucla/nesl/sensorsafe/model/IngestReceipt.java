@@ -0,0 +1,27 @@
+package edu.ucla.nesl.sensorsafe.model;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+import com.wordnik.swagger.annotations.ApiModel;
+import com.wordnik.swagger.annotations.ApiModelProperty;
+
+@ApiModel(value = "Receipt of an asynchronously accepted ingest request.")
+@XmlRootElement
+public class IngestReceipt {
+
+	@XmlElement(name = "message")
+	@ApiModelProperty(value = "Response message.")
+	public String message;
+
+	@XmlElement(name = "sequence")
+	@ApiModelProperty(value = "Sequence number of the request. The data is applied once applied_sequence reaches it.")
+	public long sequence;
+
+	public IngestReceipt() {}
+
+	public IngestReceipt(String message, long sequence) {
+		this.message = message;
+		this.sequence = sequence;
+	}
+}
@@ -0,0 +1,37 @@
+package edu.ucla.nesl.sensorsafe.model;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+import com.wordnik.swagger.annotations.ApiModel;
+import com.wordnik.swagger.annotations.ApiModelProperty;
+
+@ApiModel(value = "Sequence watermarks of asynchronous ingest.")
+@XmlRootElement
+public class IngestWatermarks {
+
+	@XmlElement(name = "durable_sequence")
+	@ApiModelProperty(value = "The owner's requests up to this sequence number are stored on disk.")
+	public long durableSequence;
+
+	@XmlElement(name = "applied_sequence")
+	@ApiModelProperty(value = "The owner's requests up to this sequence number are written to the streams, or dropped.")
+	public long appliedSequence;
+
+	@XmlElement(name = "rejected")
+	@ApiModelProperty(value = "Number of accepted requests dropped because of invalid data.")
+	public long rejected;
+
+	@XmlElement(name = "failed")
+	@ApiModelProperty(value = "Number of accepted requests dropped because they could not be written after retries.")
+	public long failed;
+
+	public IngestWatermarks() {}
+
+	public IngestWatermarks(long durableSequence, long appliedSequence, long rejected, long failed) {
+		this.durableSequence = durableSequence;
+		this.appliedSequence = appliedSequence;
+		this.rejected = rejected;
+		this.failed = failed;
+	}
+}
@@ -0,0 +1,46 @@
+package edu.ucla.nesl.sensorsafe.model;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+import com.wordnik.swagger.annotations.ApiModel;
+import com.wordnik.swagger.annotations.ApiModelProperty;
+
+@ApiModel(value = "Metrics of the query result cache.")
+@XmlRootElement
+public class QueryCacheStats {
+
+	@XmlElement(name = "hits")
+	@ApiModelProperty(value = "Number of queries answered from the cache.")
+	public long hits;
+
+	@XmlElement(name = "misses")
+	@ApiModelProperty(value = "Number of queries run against the database.")
+	public long misses;
+
+	@XmlElement(name = "hit_ratio")
+	@ApiModelProperty(value = "hits / (hits + misses)")
+	public double hitRatio;
+
+	@XmlElement(name = "entries")
+	@ApiModelProperty(value = "Number of cached results.")
+	public int entries;
+
+	@XmlElement(name = "used_bytes")
+	@ApiModelProperty(value = "Estimated memory used by the cached results.")
+	public long usedBytes;
+
+	@XmlElement(name = "max_bytes")
+	@ApiModelProperty(value = "Memory limit of the cache.")
+	public long maxBytes;
+
+	@XmlElement(name = "evictions")
+	@ApiModelProperty(value = "Number of results dropped to stay within the memory limit.")
+	public long evictions;
+
+	@XmlElement(name = "invalidations")
+	@ApiModelProperty(value = "Number of results dropped because of writes or rule changes.")
+	public long invalidations;
+
+	public QueryCacheStats() {}
+}
@@ -3,15 +3,11 @@ package edu.ucla.nesl.sensorsafe.model;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
 
-import net.minidev.json.JSONObject;
-import net.minidev.json.JSONValue;
-
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.AnnotationIntrospector;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.module.jaxb.JaxbAnnotationIntrospector;
 import com.wordnik.swagger.annotations.ApiModelProperty;
 
+import edu.ucla.nesl.sensorsafe.tools.JsonMapper;
+
 @XmlRootElement
 public class ResponseMsg {
 
@@ -26,10 +22,6 @@ public class ResponseMsg {
 	}
 	
 	public String encodeJson() throws JsonProcessingException {
-		ObjectMapper mapper = new ObjectMapper();
-		AnnotationIntrospector introspector = new JaxbAnnotationIntrospector();
-		mapper.setAnnotationIntrospector(introspector);
-		JSONObject json = (JSONObject)JSONValue.parse(mapper.writeValueAsString(this));
-		return json.toString();
+		return JsonMapper.get().writeValueAsString(this);
 	}
 }
@@ -3,6 +3,7 @@ package edu.ucla.nesl.sensorsafe.model;
 import java.sql.Array;
 import java.sql.SQLException;
 import java.sql.Struct;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -54,6 +55,17 @@ public class Stream {
 		this.channels = getListChannelFromSqlArray(channels);
 	}
 
+	public Stream(Stream stream) {
+		this.id = stream.id;
+		this.name = stream.name;
+		this.owner = stream.owner;
+		this.tags = stream.tags;
+		this.channels = new ArrayList<Channel>();
+		for (Channel channel: stream.channels) {
+			this.channels.add(new Channel(channel.name, channel.type));
+		}
+	}
+
 	@Override
 	public int hashCode() {
 		final int prime = 31;
@@ -0,0 +1,103 @@
+package edu.ucla.nesl.sensorsafe.tools;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import edu.ucla.nesl.sensorsafe.db.TupleBatch;
+
+// Binary tuple upload format (application/x-sensorsafe-tuples).
+//
+// A request body is one or more frames:
+//   frame_length  int32, number of bytes that follow in this frame
+//   num_tuples    varint
+//   base_time     int64, epoch microseconds
+//   num_tuples times:
+//     time_delta  zigzag varint, microseconds since the previous tuple (base_time for the first)
+//     values      one per channel in stream order: float as 8-byte IEEE 754 double,
+//                 int as int32, text as varint byte length followed by UTF-8 bytes
+// All fixed-width fields are big-endian.
+public class BinaryTupleFormat {
+
+	public static final String MEDIA_TYPE = "application/x-sensorsafe-tuples";
+
+	private static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+	// Reads the next frame into buf (grown if needed). Returns null at the end of the input.
+	public static ByteBuffer readFrame(DataInputStream in, ByteBuffer buf) throws IOException {
+		int length;
+		try {
+			length = in.readInt();
+		} catch (EOFException e) {
+			return null;
+		}
+		if (length < 0 || length > MAX_FRAME_LENGTH) {
+			throw new IllegalArgumentException("Invalid frame length: " + length);
+		}
+		if (buf == null || buf.capacity() < length) {
+			buf = ByteBuffer.allocate(Math.max(length, 4096));
+		}
+		buf.clear();
+		try {
+			in.readFully(buf.array(), 0, length);
+		} catch (EOFException e) {
+			throw new IllegalArgumentException("Truncated frame.");
+		}
+		buf.limit(length);
+		return buf;
+	}
+
+	// Decodes one frame (without its length prefix) and appends its tuples to batch.
+	public static void decodeFrame(ByteBuffer buf, TupleBatch batch) {
+		try {
+			long numTuples = readVarLong(buf);
+			long timestamp = buf.getLong();
+			int numChannels = batch.getNumChannels();
+			for (long n = 0; n < numTuples; n++) {
+				timestamp += decodeZigZag(readVarLong(buf));
+				int row = batch.addRow(timestamp);
+				for (int i = 0; i < numChannels; i++) {
+					switch (batch.getType(i)) {
+					case TupleBatch.TYPE_FLOAT:
+						batch.setDouble(row, i, buf.getDouble());
+						break;
+					case TupleBatch.TYPE_INT:
+						batch.setInt(row, i, buf.getInt());
+						break;
+					default:
+						int length = (int)readVarLong(buf);
+						if (length < 0 || length > buf.remaining()) {
+							throw new IllegalArgumentException("Invalid text length in frame.");
+						}
+						batch.setText(row, i, new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8));
+						buf.position(buf.position() + length);
+					}
+				}
+			}
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("Frame is shorter than its tuples.");
+		}
+		if (buf.hasRemaining()) {
+			throw new IllegalArgumentException("Extra bytes at the end of frame.");
+		}
+	}
+
+	public static long decodeZigZag(long n) {
+		return (n >>> 1) ^ -(n & 1);
+	}
+
+	public static long readVarLong(ByteBuffer buf) {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = buf.get();
+			value |= (long)(b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Malformed varint in frame.");
+	}
+}
@@ -0,0 +1,60 @@
+package edu.ucla.nesl.sensorsafe.tools;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+// Reads a bit buffer written by BitOutput.
+class BitInput {
+
+	private byte[] buf;
+	private int limit;
+	private int pos;
+
+	void reset(byte[] buf, int length) {
+		this.buf = buf;
+		this.limit = length * 8;
+		this.pos = 0;
+	}
+
+	boolean readBit() throws EOFException {
+		return readBits(1) != 0;
+	}
+
+	long readBits(int numBits) throws EOFException {
+		if (pos + numBits > limit) {
+			throw new EOFException("Truncated block.");
+		}
+		long value = 0;
+		while (numBits > 0) {
+			int avail = 8 - (pos & 7);
+			int take = Math.min(avail, numBits);
+			int bits = (buf[pos >>> 3] >>> (avail - take)) & ((1 << take) - 1);
+			value = (value << take) | bits;
+			pos += take;
+			numBits -= take;
+		}
+		return value;
+	}
+
+	// Reads a value written by BitOutput.writeVarInt().
+	int readVarInt() throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int group = (int)readBits(8);
+			value |= (group & 0x7F) << shift;
+			if ((group & 0x80) == 0) {
+				if (value < 0) {
+					break;
+				}
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint in block.");
+	}
+
+	// Reads numBits bits as a two's complement number.
+	long readSignedBits(int numBits) throws EOFException {
+		long value = readBits(numBits);
+		return (value << (64 - numBits)) >> (64 - numBits);
+	}
+}
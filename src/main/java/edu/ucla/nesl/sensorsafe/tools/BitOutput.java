@@ -0,0 +1,53 @@
+package edu.ucla.nesl.sensorsafe.tools;
+
+import java.util.Arrays;
+
+// Growable bit buffer, written most significant bit first.
+class BitOutput {
+
+	private byte[] buf = new byte[4096];
+	private int numBits;
+
+	void clear() {
+		Arrays.fill(buf, 0, getByteLength(), (byte)0);
+		numBits = 0;
+	}
+
+	byte[] getBuffer() {
+		return buf;
+	}
+
+	int getByteLength() {
+		return (numBits + 7) >>> 3;
+	}
+
+	void writeBit(boolean bit) {
+		writeBits(bit ? 1 : 0, 1);
+	}
+
+	// Writes the low numBits bits of value.
+	void writeBits(long value, int numBits) {
+		while (numBits > 0) {
+			int index = this.numBits >>> 3;
+			if (index == buf.length) {
+				buf = Arrays.copyOf(buf, buf.length * 2);
+			}
+			int free = 8 - (this.numBits & 7);
+			int take = Math.min(free, numBits);
+			int bits = (int)(value >>> (numBits - take)) & ((1 << take) - 1);
+			buf[index] |= bits << (free - take);
+			this.numBits += take;
+			numBits -= take;
+		}
+	}
+
+	// Writes a non-negative value in 8-bit groups of 7 value bits, least significant group first.
+	// The high bit of a group is set if more groups follow.
+	void writeVarInt(int value) {
+		while ((value & ~0x7F) != 0) {
+			writeBits((value & 0x7F) | 0x80, 8);
+			value >>>= 7;
+		}
+		writeBits(value, 8);
+	}
+}
@@ -0,0 +1,18 @@
+package edu.ucla.nesl.sensorsafe.tools;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.module.jaxb.JaxbAnnotationIntrospector;
+
+// ObjectMapper that follows the JAXB annotations of the models.
+// Configured once and shared; ObjectMapper is thread-safe after configuration.
+public class JsonMapper {
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+	static {
+		mapper.setAnnotationIntrospector(new JaxbAnnotationIntrospector());
+	}
+
+	public static ObjectMapper get() {
+		return mapper;
+	}
+}
@@ -0,0 +1,84 @@
+package edu.ucla.nesl.sensorsafe.tools;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+// Reads the content of a zip archive that holds exactly one file, without staging it on disk.
+// A second entry is reported when the first one is exhausted, i.e., before the reader's consumer
+// gets to the end of its input.
+public class SingleEntryZipInputStream extends FilterInputStream {
+
+	private final ZipInputStream zin;
+	private boolean isEntryDone = false;
+
+	public SingleEntryZipInputStream(InputStream in) throws IOException {
+		this(new ZipInputStream(in));
+	}
+
+	private SingleEntryZipInputStream(ZipInputStream zin) throws IOException {
+		super(zin);
+		this.zin = zin;
+
+		ZipEntry ze = zin.getNextEntry();
+		if (ze == null) {
+			throw new IllegalArgumentException("Problem with Zip file.");
+		}
+		checkEntry(ze);
+	}
+
+	private void checkEntry(ZipEntry ze) {
+		if (ze.isDirectory()) {
+			throw new IllegalArgumentException("Error: The zip file contains directory.");
+		}
+	}
+
+	private void checkNoMoreEntries() throws IOException {
+		if (isEntryDone) {
+			return;
+		}
+		isEntryDone = true;
+		zin.closeEntry();
+		ZipEntry ze = zin.getNextEntry();
+		if (ze != null) {
+			checkEntry(ze);
+			throw new IllegalArgumentException("Error: The zip file contains more than a single file.");
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (isEntryDone) {
+			return -1;
+		}
+		int b = zin.read();
+		if (b == -1) {
+			checkNoMoreEntries();
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (isEntryDone) {
+			return -1;
+		}
+		int size = zin.read(b, off, len);
+		if (size == -1) {
+			checkNoMoreEntries();
+		}
+		return size;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		return zin.skip(n);
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+}
@@ -0,0 +1,85 @@
+package edu.ucla.nesl.sensorsafe.tools;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+// Formats epoch milliseconds exactly like Timestamp.toString(), i.e., "yyyy-mm-dd hh:mm:ss.f" in the
+// local time zone, into a reused char buffer. Date and hour fields are computed once per local hour, so
+// formatting a run of nearby timestamps does not go through Calendar. Not thread-safe.
+public class TimestampFormatter {
+
+	private static final long MS_PER_HOUR = 3600000;
+
+	private final char[] buf = new char[23];
+	private final Calendar cal = Calendar.getInstance();
+	private final TimeZone timeZone = cal.getTimeZone();
+
+	// buf holds the date and hour of [hourStart, hourEnd).
+	private long hourStart = Long.MAX_VALUE;
+	private long hourEnd = Long.MIN_VALUE;
+
+	public char[] getBuffer() {
+		return buf;
+	}
+
+	// Formats millis into getBuffer() and returns the length.
+	public int format(long millis) {
+		int minute;
+		int second;
+		int milli;
+		if (millis >= hourStart && millis < hourEnd) {
+			int msOfHour = (int)(millis - hourStart);
+			minute = msOfHour / 60000;
+			second = msOfHour / 1000 % 60;
+			milli = msOfHour % 1000;
+		} else {
+			cal.setTimeInMillis(millis);
+			putDigits(cal.get(Calendar.YEAR), 0, 4);
+			buf[4] = '-';
+			putDigits(cal.get(Calendar.MONTH) + 1, 5, 2);
+			buf[7] = '-';
+			putDigits(cal.get(Calendar.DAY_OF_MONTH), 8, 2);
+			buf[10] = ' ';
+			putDigits(cal.get(Calendar.HOUR_OF_DAY), 11, 2);
+			buf[13] = ':';
+			buf[16] = ':';
+			buf[19] = '.';
+			minute = cal.get(Calendar.MINUTE);
+			second = cal.get(Calendar.SECOND);
+			milli = cal.get(Calendar.MILLISECOND);
+
+			hourStart = millis - (minute * 60000L + second * 1000L + milli);
+			hourEnd = hourStart + MS_PER_HOUR;
+			if (timeZone.getOffset(hourStart) != timeZone.getOffset(hourEnd - 1)) {
+				// The UTC offset changes within this hour.
+				hourStart = Long.MAX_VALUE;
+				hourEnd = Long.MIN_VALUE;
+			}
+		}
+		putDigits(minute, 14, 2);
+		putDigits(second, 17, 2);
+
+		// Fraction without trailing zeros, but at least one digit.
+		if (milli == 0) {
+			buf[20] = '0';
+			return 21;
+		}
+		putDigits(milli, 20, 3);
+		int length = 23;
+		while (buf[length - 1] == '0') {
+			length--;
+		}
+		return length;
+	}
+
+	public String toString(long millis) {
+		return new String(buf, 0, format(millis));
+	}
+
+	private void putDigits(int value, int offset, int numDigits) {
+		for (int i = offset + numDigits - 1; i >= offset; i--) {
+			buf[i] = (char)('0' + value % 10);
+			value /= 10;
+		}
+	}
+}
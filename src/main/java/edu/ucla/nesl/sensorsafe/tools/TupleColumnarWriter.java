@@ -0,0 +1,120 @@
+package edu.ucla.nesl.sensorsafe.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import edu.ucla.nesl.sensorsafe.db.TupleBatch;
+import edu.ucla.nesl.sensorsafe.model.Stream;
+
+// Columnar binary output (application/x-sensorsafe-columnar), modeled on Arrow IPC record batches so that
+// each column can be loaded as an array, e.g., with numpy.frombuffer(), without parsing rows.
+//
+//   magic         int32 0x53534331 ("SSC1")
+//   header_length int32, followed by the stream object as UTF-8 JSON (channels and their types)
+//   record batches, each:
+//     num_rows    int32 (> 0), at most the fetch size of the query cursor
+//     timestamps  int64[num_rows], epoch microseconds
+//     per channel in stream order:
+//       validity  ceil(num_rows / 8) bytes, bit (row % 8) of byte (row / 8) is set if the value is not null
+//       values    float: float64[num_rows], int: int32[num_rows],
+//                 text: int32[num_rows + 1] offsets into the following UTF-8 bytes, then the bytes
+//   cursor        only if a paginated read has more tuples: int32 -1, then int32 length and the UTF-8
+//                 next_cursor
+//   end           int32 0
+// All fixed-width fields are big-endian. Null values are written as 0 (or empty text).
+public class TupleColumnarWriter implements TupleWriter {
+
+	public static final String MEDIA_TYPE = "application/x-sensorsafe-columnar";
+
+	private static final int MAGIC = 0x53534331;
+	private static final int CURSOR = -1;
+	private static final int BUFFER_SIZE = 65536;
+
+	private final DataOutputStream out;
+	private byte[] validity = new byte[0];
+	private String nextCursor;
+
+	public TupleColumnarWriter(OutputStream out, Stream stream) throws IOException {
+		this.out = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+
+		byte[] header = JsonMapper.get().writeValueAsBytes(stream);
+		this.out.writeInt(MAGIC);
+		this.out.writeInt(header.length);
+		this.out.write(header);
+	}
+
+	// Each batch is written as one record batch.
+	@Override
+	public void writeTuples(TupleBatch batch) throws IOException {
+		int numRows = batch.getSize();
+		if (numRows == 0) {
+			return;
+		}
+
+		out.writeInt(numRows);
+		for (int row = 0; row < numRows; row++) {
+			out.writeLong(batch.getTimestamp(row));
+		}
+
+		int validityLength = (numRows + 7) / 8;
+		if (validity.length < validityLength) {
+			validity = new byte[validityLength];
+		}
+		for (int i = 0; i < batch.getNumChannels(); i++) {
+			Arrays.fill(validity, 0, validityLength, (byte)0);
+			for (int row = 0; row < numRows; row++) {
+				if (!batch.isNull(row, i)) {
+					validity[row >> 3] |= 1 << (row & 7);
+				}
+			}
+			out.write(validity, 0, validityLength);
+
+			switch (batch.getType(i)) {
+			case TupleBatch.TYPE_FLOAT:
+				for (int row = 0; row < numRows; row++) {
+					out.writeDouble(batch.getDouble(row, i));
+				}
+				break;
+			case TupleBatch.TYPE_INT:
+				for (int row = 0; row < numRows; row++) {
+					out.writeInt(batch.getInt(row, i));
+				}
+				break;
+			default:
+				byte[][] bytes = new byte[numRows][];
+				int offset = 0;
+				out.writeInt(offset);
+				for (int row = 0; row < numRows; row++) {
+					String text = batch.getText(row, i);
+					bytes[row] = text == null ? new byte[0] : text.getBytes(StandardCharsets.UTF_8);
+					offset += bytes[row].length;
+					out.writeInt(offset);
+				}
+				for (int row = 0; row < numRows; row++) {
+					out.write(bytes[row]);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void setNextCursor(String cursor) {
+		nextCursor = cursor;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (nextCursor != null) {
+			byte[] bytes = nextCursor.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(CURSOR);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+		out.writeInt(0);
+		out.flush();
+	}
+}
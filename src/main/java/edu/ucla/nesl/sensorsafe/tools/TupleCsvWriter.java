@@ -0,0 +1,98 @@
+package edu.ucla.nesl.sensorsafe.tools;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import edu.ucla.nesl.sensorsafe.db.TupleBatch;
+import edu.ucla.nesl.sensorsafe.model.Channel;
+import edu.ucla.nesl.sensorsafe.model.Stream;
+
+// Writes text/csv with a header line, "timestamp,channel1,channel2,..", followed by one line per tuple. A
+// paginated read with more tuples ends with a "# next_cursor=.." line.
+public class TupleCsvWriter implements TupleWriter {
+
+	public static final String MEDIA_TYPE = "text/csv";
+
+	private static final int BUFFER_SIZE = 65536;
+
+	private final Writer writer;
+	private final TimestampFormatter tsFormatter = new TimestampFormatter();
+	private String nextCursor;
+
+	public TupleCsvWriter(OutputStream out, Stream stream) throws IOException {
+		this.writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+
+		writer.write("timestamp");
+		for (Channel channel : stream.channels) {
+			writer.write(',');
+			writeText(channel.name);
+		}
+		writer.write('\n');
+	}
+
+	@Override
+	public void writeTuples(TupleBatch batch) throws IOException {
+		for (int row = 0; row < batch.getSize(); row++) {
+			int length = tsFormatter.format(TupleBatch.toMillis(batch.getTimestamp(row)));
+			writer.write(tsFormatter.getBuffer(), 0, length);
+			for (int i = 0; i < batch.getNumChannels(); i++) {
+				writer.write(',');
+				if (batch.isNull(row, i)) {
+					continue;
+				}
+				switch (batch.getType(i)) {
+				case TupleBatch.TYPE_FLOAT:
+					writer.write(Double.toString(batch.getDouble(row, i)));
+					break;
+				case TupleBatch.TYPE_INT:
+					writer.write(Integer.toString(batch.getInt(row, i)));
+					break;
+				default:
+					writeText(batch.getText(row, i));
+				}
+			}
+			writer.write('\n');
+		}
+	}
+
+	// Quotes text only when it contains a delimiter, a quote or a line break.
+	private void writeText(String text) throws IOException {
+		boolean isQuoted = false;
+		for (int i = 0; i < text.length() && !isQuoted; i++) {
+			char c = text.charAt(i);
+			isQuoted = c == ',' || c == '"' || c == '\n' || c == '\r';
+		}
+		if (!isQuoted) {
+			writer.write(text);
+			return;
+		}
+		writer.write('"');
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == '"') {
+				writer.write('"');
+			}
+			writer.write(c);
+		}
+		writer.write('"');
+	}
+
+	@Override
+	public void setNextCursor(String cursor) {
+		nextCursor = cursor;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (nextCursor != null) {
+			writer.write("# next_cursor=");
+			writer.write(nextCursor);
+			writer.write('\n');
+		}
+		writer.flush();
+	}
+}
@@ -0,0 +1,184 @@
+package edu.ucla.nesl.sensorsafe.tools;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import edu.ucla.nesl.sensorsafe.db.TupleBatch;
+import edu.ucla.nesl.sensorsafe.model.Stream;
+
+// Reference decoder of the TupleGorillaWriter format, e.g., for Java clients:
+//
+//   TupleGorillaReader reader = new TupleGorillaReader(in);
+//   TupleBatch batch = new TupleBatch(reader.getStream().channels);
+//   while (reader.readTuples(batch)) { .. }
+//   String cursor = reader.getNextCursor();
+public class TupleGorillaReader {
+
+	private static final int BUFFER_SIZE = 65536;
+
+	private final DataInputStream in;
+	private final Stream stream;
+	private final BitInput bits = new BitInput();
+	private byte[] block = new byte[0];
+	private boolean[] isValid = new boolean[0];
+	private String nextCursor;
+
+	public TupleGorillaReader(InputStream in) throws IOException {
+		this.in = new DataInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+		if (this.in.readInt() != TupleGorillaWriter.MAGIC) {
+			throw new IOException("Not a " + TupleGorillaWriter.MEDIA_TYPE + " stream.");
+		}
+		byte[] header = new byte[this.in.readInt()];
+		this.in.readFully(header);
+		stream = JsonMapper.get().readValue(header, Stream.class);
+	}
+
+	public Stream getStream() {
+		return stream;
+	}
+
+	// The cursor of the next page, once readTuples() has returned false, or null if there are no more tuples.
+	public String getNextCursor() {
+		return nextCursor;
+	}
+
+	// Replaces the content of batch with the next block. Returns false after the last block.
+	public boolean readTuples(TupleBatch batch) throws IOException {
+		batch.clear();
+		int numRows = in.readInt();
+		if (numRows == TupleGorillaWriter.CURSOR) {
+			byte[] bytes = new byte[in.readInt()];
+			in.readFully(bytes);
+			nextCursor = new String(bytes, StandardCharsets.UTF_8);
+			numRows = in.readInt();
+		}
+		if (numRows == 0) {
+			return false;
+		}
+		int length = in.readInt();
+		if (block.length < length) {
+			block = new byte[length];
+		}
+		in.readFully(block, 0, length);
+		bits.reset(block, length);
+
+		long timestamp = bits.readBits(64);
+		long delta = 0;
+		batch.addRow(timestamp);
+		for (int row = 1; row < numRows; row++) {
+			delta += readDeltaOfDelta();
+			timestamp += delta;
+			batch.addRow(timestamp);
+		}
+
+		if (isValid.length < numRows) {
+			isValid = new boolean[numRows];
+		}
+		for (int i = 0; i < batch.getNumChannels(); i++) {
+			boolean hasNull = bits.readBit();
+			for (int row = 0; row < numRows; row++) {
+				isValid[row] = !hasNull || bits.readBit();
+				if (!isValid[row]) {
+					batch.setNull(row, i);
+				}
+			}
+			switch (batch.getType(i)) {
+			case TupleBatch.TYPE_FLOAT:
+				readDoubles(batch, i, numRows);
+				break;
+			case TupleBatch.TYPE_INT:
+				readInts(batch, i, numRows);
+				break;
+			default:
+				readTexts(batch, i, numRows);
+			}
+		}
+		return true;
+	}
+
+	private long readDeltaOfDelta() throws EOFException {
+		if (!bits.readBit()) {
+			return 0;
+		} else if (!bits.readBit()) {
+			return bits.readSignedBits(7);
+		} else if (!bits.readBit()) {
+			return bits.readSignedBits(9);
+		} else if (!bits.readBit()) {
+			return bits.readSignedBits(12);
+		} else if (!bits.readBit()) {
+			return bits.readSignedBits(32);
+		}
+		return bits.readBits(64);
+	}
+
+	private void readDoubles(TupleBatch batch, int channel, int numRows) throws EOFException {
+		boolean isFirst = true;
+		long value = 0;
+		int leading = 0;
+		int trailing = 0;
+		for (int row = 0; row < numRows; row++) {
+			if (!isValid[row]) {
+				continue;
+			}
+			if (isFirst) {
+				value = bits.readBits(64);
+				isFirst = false;
+			} else if (bits.readBit()) {
+				if (bits.readBit()) {
+					leading = (int)bits.readBits(5);
+					int length = (int)bits.readBits(6) + 1;
+					trailing = 64 - leading - length;
+				}
+				value ^= bits.readBits(64 - leading - trailing) << trailing;
+			}
+			batch.setDouble(row, channel, Double.longBitsToDouble(value));
+		}
+	}
+
+	private void readInts(TupleBatch batch, int channel, int numRows) throws EOFException {
+		boolean isFirst = true;
+		long value = 0;
+		long delta = 0;
+		for (int row = 0; row < numRows; row++) {
+			if (!isValid[row]) {
+				continue;
+			}
+			if (isFirst) {
+				value = (int)bits.readBits(32);
+				isFirst = false;
+			} else {
+				delta += readDeltaOfDelta();
+				value += delta;
+			}
+			batch.setInt(row, channel, (int)value);
+		}
+	}
+
+	private void readTexts(TupleBatch batch, int channel, int numRows) throws IOException {
+		String value = null;
+		byte[] bytes = new byte[0];
+		for (int row = 0; row < numRows; row++) {
+			if (!isValid[row]) {
+				continue;
+			}
+			if (bits.readBit()) {
+				int length = bits.readVarInt();
+				if (length > block.length) {
+					throw new EOFException("Truncated block.");
+				}
+				if (bytes.length < length) {
+					bytes = new byte[length];
+				}
+				for (int j = 0; j < length; j++) {
+					bytes[j] = (byte)bits.readBits(8);
+				}
+				value = new String(bytes, 0, length, StandardCharsets.UTF_8);
+			}
+			batch.setText(row, channel, value);
+		}
+	}
+}
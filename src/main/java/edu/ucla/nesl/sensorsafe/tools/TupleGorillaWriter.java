@@ -0,0 +1,230 @@
+package edu.ucla.nesl.sensorsafe.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import edu.ucla.nesl.sensorsafe.db.TupleBatch;
+import edu.ucla.nesl.sensorsafe.model.Stream;
+
+// Compressed binary output (application/x-sensorsafe-gorilla) after the Gorilla time series encoding:
+// delta-of-delta timestamps and XOR-ed doubles, in independently decodable blocks. TupleGorillaReader is
+// the reference decoder.
+//
+//   magic         int32 0x53534731 ("SSG1")
+//   header_length int32, followed by the stream object as UTF-8 JSON (channels and their types)
+//   blocks, each:
+//     num_rows    int32 (> 0)
+//     length      int32, followed by that many bytes of bits, most significant bit first:
+//       timestamps  epoch microseconds, the first as 64 bits, then delta-of-delta coded
+//       per channel in stream order:
+//         validity  '0' if no value is null, else '1' and one bit per row, set if the value is not null
+//         values    of the non-null rows only
+//                   float: the first as 64 bits, then XOR with the previous value coded as
+//                          '0'                                     same value
+//                          '10' bits                               within the previous leading/trailing zeros
+//                          '11' 5 bits leading zeros, 6 bits (length - 1), bits
+//                   int:   the first as 32 bits, then delta-of-delta coded
+//                   text:  '0' same as the previous value, else '1', UTF-8 length, bytes
+//   cursor        only if a paginated read has more tuples: int32 -1, then int32 length and the UTF-8
+//                 next_cursor
+//   end           int32 0
+//
+// Lengths are varints: 8-bit groups of 7 value bits, least significant group first, with the high bit set if
+// more groups follow.
+//
+// Delta-of-delta, with the delta of the first value taken as 0:
+//   '0' zero, '10' 7 bits, '110' 9 bits, '1110' 12 bits, '11110' 32 bits, '11111' 64 bits (two's complement)
+public class TupleGorillaWriter implements TupleWriter {
+
+	public static final String MEDIA_TYPE = "application/x-sensorsafe-gorilla";
+
+	static final int MAGIC = 0x53534731;
+	static final int CURSOR = -1;
+
+	private static final int BUFFER_SIZE = 65536;
+
+	private final DataOutputStream out;
+	private final BitOutput bits = new BitOutput();
+	private String nextCursor;
+
+	public TupleGorillaWriter(OutputStream out, Stream stream) throws IOException {
+		this.out = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+
+		byte[] header = JsonMapper.get().writeValueAsBytes(stream);
+		this.out.writeInt(MAGIC);
+		this.out.writeInt(header.length);
+		this.out.write(header);
+	}
+
+	// Each batch is written as one block.
+	@Override
+	public void writeTuples(TupleBatch batch) throws IOException {
+		int numRows = batch.getSize();
+		if (numRows == 0) {
+			return;
+		}
+
+		bits.clear();
+		bits.writeBits(batch.getTimestamp(0), 64);
+		long prev = batch.getTimestamp(0);
+		long prevDelta = 0;
+		for (int row = 1; row < numRows; row++) {
+			long delta = batch.getTimestamp(row) - prev;
+			writeDeltaOfDelta(delta - prevDelta);
+			prev = batch.getTimestamp(row);
+			prevDelta = delta;
+		}
+
+		for (int i = 0; i < batch.getNumChannels(); i++) {
+			writeValidity(batch, i);
+			switch (batch.getType(i)) {
+			case TupleBatch.TYPE_FLOAT:
+				writeDoubles(batch, i);
+				break;
+			case TupleBatch.TYPE_INT:
+				writeInts(batch, i);
+				break;
+			default:
+				writeTexts(batch, i);
+			}
+		}
+
+		out.writeInt(numRows);
+		out.writeInt(bits.getByteLength());
+		out.write(bits.getBuffer(), 0, bits.getByteLength());
+	}
+
+	private void writeDeltaOfDelta(long dod) {
+		if (dod == 0) {
+			bits.writeBits(0, 1);
+		} else if (dod >= -64 && dod < 64) {
+			bits.writeBits(0b10, 2);
+			bits.writeBits(dod, 7);
+		} else if (dod >= -256 && dod < 256) {
+			bits.writeBits(0b110, 3);
+			bits.writeBits(dod, 9);
+		} else if (dod >= -2048 && dod < 2048) {
+			bits.writeBits(0b1110, 4);
+			bits.writeBits(dod, 12);
+		} else if (dod >= Integer.MIN_VALUE && dod <= Integer.MAX_VALUE) {
+			bits.writeBits(0b11110, 5);
+			bits.writeBits(dod, 32);
+		} else {
+			bits.writeBits(0b11111, 5);
+			bits.writeBits(dod, 64);
+		}
+	}
+
+	private void writeValidity(TupleBatch batch, int channel) {
+		boolean hasNull = false;
+		for (int row = 0; row < batch.getSize() && !hasNull; row++) {
+			hasNull = batch.isNull(row, channel);
+		}
+		bits.writeBit(hasNull);
+		if (hasNull) {
+			for (int row = 0; row < batch.getSize(); row++) {
+				bits.writeBit(!batch.isNull(row, channel));
+			}
+		}
+	}
+
+	private void writeDoubles(TupleBatch batch, int channel) {
+		boolean isFirst = true;
+		long prev = 0;
+		int prevLeading = -1;
+		int prevTrailing = 0;
+		for (int row = 0; row < batch.getSize(); row++) {
+			if (batch.isNull(row, channel)) {
+				continue;
+			}
+			long value = Double.doubleToRawLongBits(batch.getDouble(row, channel));
+			if (isFirst) {
+				bits.writeBits(value, 64);
+				isFirst = false;
+			} else {
+				long xor = value ^ prev;
+				if (xor == 0) {
+					bits.writeBits(0, 1);
+				} else {
+					int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+					int trailing = Long.numberOfTrailingZeros(xor);
+					if (prevLeading >= 0 && leading >= prevLeading && trailing >= prevTrailing) {
+						bits.writeBits(0b10, 2);
+						bits.writeBits(xor >>> prevTrailing, 64 - prevLeading - prevTrailing);
+					} else {
+						int length = 64 - leading - trailing;
+						bits.writeBits(0b11, 2);
+						bits.writeBits(leading, 5);
+						bits.writeBits(length - 1, 6);
+						bits.writeBits(xor >>> trailing, length);
+						prevLeading = leading;
+						prevTrailing = trailing;
+					}
+				}
+			}
+			prev = value;
+		}
+	}
+
+	private void writeInts(TupleBatch batch, int channel) {
+		boolean isFirst = true;
+		long prev = 0;
+		long prevDelta = 0;
+		for (int row = 0; row < batch.getSize(); row++) {
+			if (batch.isNull(row, channel)) {
+				continue;
+			}
+			int value = batch.getInt(row, channel);
+			if (isFirst) {
+				bits.writeBits(value, 32);
+				isFirst = false;
+			} else {
+				long delta = value - prev;
+				writeDeltaOfDelta(delta - prevDelta);
+				prevDelta = delta;
+			}
+			prev = value;
+		}
+	}
+
+	private void writeTexts(TupleBatch batch, int channel) {
+		String prev = null;
+		for (int row = 0; row < batch.getSize(); row++) {
+			if (batch.isNull(row, channel)) {
+				continue;
+			}
+			String value = batch.getText(row, channel);
+			if (value.equals(prev)) {
+				bits.writeBits(0, 1);
+			} else {
+				byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+				bits.writeBits(1, 1);
+				bits.writeVarInt(bytes.length);
+				for (byte b : bytes) {
+					bits.writeBits(b, 8);
+				}
+				prev = value;
+			}
+		}
+	}
+
+	@Override
+	public void setNextCursor(String cursor) {
+		nextCursor = cursor;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (nextCursor != null) {
+			byte[] bytes = nextCursor.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(CURSOR);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+		out.writeInt(0);
+		out.flush();
+	}
+}
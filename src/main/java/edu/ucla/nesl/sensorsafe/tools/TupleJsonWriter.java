@@ -0,0 +1,91 @@
+package edu.ucla.nesl.sensorsafe.tools;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import edu.ucla.nesl.sensorsafe.db.TupleBatch;
+import edu.ucla.nesl.sensorsafe.model.Stream;
+
+// Writes a stream as { stream fields.., "tuples": [ [ timestamp, values.. ], .. ] } through one buffered
+// JSON generator.
+public class TupleJsonWriter implements TupleWriter {
+
+	private static final byte[] TUPLES_FIELD = ",\"tuples\":".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] NEXT_CURSOR_FIELD = ",\"next_cursor\":\"".getBytes(StandardCharsets.UTF_8);
+
+	private final OutputStream out;
+	private final JsonGenerator gen;
+	private final TimestampFormatter tsFormatter = new TimestampFormatter();
+	private String nextCursor;
+
+	public TupleJsonWriter(OutputStream out, Stream stream) throws IOException {
+		this.out = out;
+
+		// Leave the stream object open for the tuples.
+		byte[] prefix = JsonMapper.get().writeValueAsBytes(stream);
+		int end = prefix.length - 1;
+		while (end > 0 && prefix[end] != '}') {
+			end--;
+		}
+		out.write(prefix, 0, end);
+		out.write(TUPLES_FIELD);
+
+		gen = JsonMapper.get().getFactory().createGenerator(out, JsonEncoding.UTF8);
+		gen.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+		gen.writeStartArray();
+	}
+
+	@Override
+	public void writeTuples(TupleBatch batch) throws IOException {
+		for (int row = 0; row < batch.getSize(); row++) {
+			gen.writeStartArray();
+			int length = tsFormatter.format(TupleBatch.toMillis(batch.getTimestamp(row)));
+			gen.writeString(tsFormatter.getBuffer(), 0, length);
+			for (int i = 0; i < batch.getNumChannels(); i++) {
+				writeValue(gen, batch, row, i);
+			}
+			gen.writeEndArray();
+		}
+	}
+
+	static void writeValue(JsonGenerator gen, TupleBatch batch, int row, int channel) throws IOException {
+		if (batch.isNull(row, channel)) {
+			gen.writeNull();
+			return;
+		}
+		switch (batch.getType(channel)) {
+		case TupleBatch.TYPE_FLOAT:
+			gen.writeNumber(batch.getDouble(row, channel));
+			break;
+		case TupleBatch.TYPE_INT:
+			gen.writeNumber(batch.getInt(row, channel));
+			break;
+		default:
+			gen.writeString(batch.getText(row, channel));
+		}
+	}
+
+	@Override
+	public void setNextCursor(String cursor) {
+		nextCursor = cursor;
+	}
+
+	// Closes the tuples array and the stream object. The underlying stream is flushed, not closed.
+	@Override
+	public void close() throws IOException {
+		gen.writeEndArray();
+		gen.close();
+		if (nextCursor != null) {
+			// The token is URL-safe base64, so it needs no escaping.
+			out.write(NEXT_CURSOR_FIELD);
+			out.write(nextCursor.getBytes(StandardCharsets.US_ASCII));
+			out.write('"');
+		}
+		out.write('}');
+		out.flush();
+	}
+}
@@ -0,0 +1,64 @@
+package edu.ucla.nesl.sensorsafe.tools;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import edu.ucla.nesl.sensorsafe.db.TupleBatch;
+import edu.ucla.nesl.sensorsafe.model.Stream;
+
+// Writes newline-delimited JSON (application/x-ndjson). The first line is the stream object and every
+// following line is a tuple, [ timestamp, values.. ], so the output can be consumed line by line. A paginated
+// read ends with a { "next_cursor": .. } line if there are more tuples.
+public class TupleNdjsonWriter implements TupleWriter {
+
+	public static final String MEDIA_TYPE = "application/x-ndjson";
+
+	private final OutputStream out;
+	private final JsonGenerator gen;
+	private final TimestampFormatter tsFormatter = new TimestampFormatter();
+	private String nextCursor;
+
+	public TupleNdjsonWriter(OutputStream out, Stream stream) throws IOException {
+		this.out = out;
+
+		out.write(JsonMapper.get().writeValueAsBytes(stream));
+		out.write('\n');
+
+		gen = JsonMapper.get().getFactory().createGenerator(out, JsonEncoding.UTF8);
+		gen.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+	}
+
+	@Override
+	public void writeTuples(TupleBatch batch) throws IOException {
+		for (int row = 0; row < batch.getSize(); row++) {
+			gen.writeStartArray();
+			int length = tsFormatter.format(TupleBatch.toMillis(batch.getTimestamp(row)));
+			gen.writeString(tsFormatter.getBuffer(), 0, length);
+			for (int i = 0; i < batch.getNumChannels(); i++) {
+				TupleJsonWriter.writeValue(gen, batch, row, i);
+			}
+			gen.writeEndArray();
+			gen.writeRaw('\n');
+		}
+	}
+
+	@Override
+	public void setNextCursor(String cursor) {
+		nextCursor = cursor;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (nextCursor != null) {
+			gen.writeStartObject();
+			gen.writeStringField("next_cursor", nextCursor);
+			gen.writeEndObject();
+			gen.writeRaw('\n');
+		}
+		gen.close();
+		out.flush();
+	}
+}
@@ -0,0 +1,16 @@
+package edu.ucla.nesl.sensorsafe.tools;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import edu.ucla.nesl.sensorsafe.db.TupleBatch;
+
+// Output format of stream reads, fed with batches from StreamDatabaseDriver.getNextTuples().
+// close() ends the output and flushes the underlying stream without closing it.
+public interface TupleWriter extends Closeable {
+
+	public void writeTuples(TupleBatch batch) throws IOException;
+
+	// Continuation token of a paginated read, written by close() where the format has room for it.
+	public void setNextCursor(String cursor);
+}
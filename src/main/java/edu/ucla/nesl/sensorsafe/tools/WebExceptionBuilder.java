@@ -22,6 +22,16 @@ public class WebExceptionBuilder {
 				);
 	}
 
+	public static WebApplicationException buildServiceUnavailable(Exception e) throws JsonProcessingException {
+		return new WebApplicationException(
+				Response
+					.status(Response.Status.SERVICE_UNAVAILABLE)
+					.type(MediaType.APPLICATION_JSON)
+					.entity(new ResponseMsg(e.getMessage()).encodeJson())
+					.build()
+				);
+	}
+
 	public static WebApplicationException buildNotImplemented() throws JsonProcessingException {
 		return new WebApplicationException(
 				Response
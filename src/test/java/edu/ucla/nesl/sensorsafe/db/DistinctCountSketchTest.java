@@ -0,0 +1,94 @@
+package edu.ucla.nesl.sensorsafe.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class DistinctCountSketchTest {
+
+	// The standard error is about 1.6%; three of them keep the test from being flaky.
+	private static final double MAX_RELATIVE_ERROR = 0.05;
+
+	private static void assertEstimate(long expected, DistinctCountSketch sketch) {
+		double error = Math.abs(sketch.estimate() - expected) / (double)expected;
+		assertTrue("estimate " + sketch.estimate() + " of " + expected, error <= MAX_RELATIVE_ERROR);
+	}
+
+	@Test
+	public void testSmallCounts() {
+		DistinctCountSketch sketch = new DistinctCountSketch();
+		assertEquals(0, sketch.estimate());
+		for (int i = 0; i < 100; i++) {
+			sketch.add(i);
+			sketch.add(i);
+		}
+		assertEquals(100, sketch.estimate(), 1);
+	}
+
+	@Test
+	public void testLargeCounts() {
+		for (int n : new int[] { 1000, 10000, 100000, 1000000 }) {
+			DistinctCountSketch sketch = new DistinctCountSketch();
+			for (int i = 0; i < n; i++) {
+				sketch.add(i * 0.5);
+			}
+			assertEstimate(n, sketch);
+		}
+	}
+
+	@Test
+	public void testTexts() {
+		DistinctCountSketch sketch = new DistinctCountSketch();
+		for (int i = 0; i < 50000; i++) {
+			sketch.add("value " + i % 20000);
+		}
+		assertEstimate(20000, sketch);
+	}
+
+	@Test
+	public void testZeros() {
+		DistinctCountSketch sketch = new DistinctCountSketch();
+		sketch.add(0.0);
+		sketch.add(-0.0);
+		assertEquals(1, sketch.estimate());
+	}
+
+	@Test
+	public void testMergeOverlapping() {
+		DistinctCountSketch a = new DistinctCountSketch();
+		DistinctCountSketch b = new DistinctCountSketch();
+		for (int i = 0; i < 60000; i++) {
+			a.add(i);
+		}
+		for (int i = 30000; i < 90000; i++) {
+			b.add(i);
+		}
+		a.merge(b);
+		assertEstimate(90000, a);
+	}
+
+	@Test
+	public void testMergeSparse() {
+		DistinctCountSketch merged = new DistinctCountSketch();
+		for (int part = 0; part < 100; part++) {
+			DistinctCountSketch sketch = new DistinctCountSketch();
+			for (int i = 0; i < 100; i++) {
+				sketch.add(part * 100 + i);
+			}
+			merged.merge(sketch);
+		}
+		assertEstimate(10000, merged);
+	}
+
+	@Test
+	public void testSerialization() {
+		for (int n : new int[] { 10, 100000 }) {
+			DistinctCountSketch sketch = new DistinctCountSketch();
+			for (int i = 0; i < n; i++) {
+				sketch.add(i);
+			}
+			assertEquals(sketch.estimate(), DistinctCountSketch.fromBytes(sketch.toBytes()).estimate());
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package edu.ucla.nesl.sensorsafe.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class QuantileSketchTest {
+
+	private static final double[] QUANTILES = { 0.01, 0.1, 0.25, 0.5, 0.75, 0.9, 0.99 };
+
+	// The documented bound is 1.65% with 99% confidence; the margin keeps the test from being flaky.
+	private static final double MAX_RANK_ERROR = 0.025;
+
+	// The largest error of the rank of the sketch's quantiles against the sorted values.
+	private static double getMaxRankError(QuantileSketch sketch, double[] sorted) {
+		double maxError = 0;
+		for (double q : QUANTILES) {
+			double value = sketch.getQuantile(q);
+			int lo = lowerBound(sorted, value);
+			int hi = upperBound(sorted, value);
+			double target = q * sorted.length;
+			double error = target < lo ? lo - target : target > hi ? target - hi : 0;
+			maxError = Math.max(maxError, error / sorted.length);
+		}
+		return maxError;
+	}
+
+	private static int lowerBound(double[] sorted, double value) {
+		int i = Arrays.binarySearch(sorted, value);
+		if (i < 0) {
+			return -i - 1;
+		}
+		while (i > 0 && sorted[i - 1] == value) {
+			i--;
+		}
+		return i;
+	}
+
+	private static int upperBound(double[] sorted, double value) {
+		int i = Arrays.binarySearch(sorted, value);
+		if (i < 0) {
+			return -i - 1;
+		}
+		while (i < sorted.length - 1 && sorted[i + 1] == value) {
+			i++;
+		}
+		return i + 1;
+	}
+
+	@Test
+	public void testRankError() {
+		Random random = new Random(1);
+		double[] values = new double[200000];
+		QuantileSketch sketch = new QuantileSketch();
+		for (int i = 0; i < values.length; i++) {
+			values[i] = random.nextGaussian() * 100;
+			sketch.add(values[i]);
+		}
+		Arrays.sort(values);
+		assertEquals(values.length, sketch.getNumValues());
+		assertTrue(getMaxRankError(sketch, values) <= MAX_RANK_ERROR);
+		assertEquals(values[0], sketch.getQuantile(0), 0);
+		assertEquals(values[values.length - 1], sketch.getQuantile(1), 0);
+		assertTrue(sketch.toBytes().length < 8 * 1000);
+	}
+
+	@Test
+	public void testSortedInput() {
+		double[] values = new double[100000];
+		QuantileSketch sketch = new QuantileSketch();
+		for (int i = 0; i < values.length; i++) {
+			values[i] = i;
+			sketch.add(i);
+		}
+		assertTrue(getMaxRankError(sketch, values) <= MAX_RANK_ERROR);
+	}
+
+	@Test
+	public void testExactForFewValues() {
+		QuantileSketch sketch = new QuantileSketch();
+		for (int i = 100; i >= 1; i--) {
+			sketch.add(i);
+		}
+		assertEquals(50, sketch.getQuantile(0.5), 0);
+		assertEquals(90, sketch.getQuantile(0.9), 0);
+		assertEquals(1, sketch.getQuantile(0.001), 0);
+	}
+
+	@Test
+	public void testEmpty() {
+		assertTrue(Double.isNaN(new QuantileSketch().getQuantile(0.5)));
+	}
+
+	@Test
+	public void testMerge() {
+		Random random = new Random(2);
+		double[] values = new double[100000];
+		QuantileSketch merged = new QuantileSketch();
+		QuantileSketch part = new QuantileSketch();
+		for (int i = 0; i < values.length; i++) {
+			values[i] = random.nextDouble();
+			part.add(values[i]);
+			if (i % 1000 == 999) {
+				merged.merge(part);
+				part = new QuantileSketch();
+			}
+		}
+		Arrays.sort(values);
+		assertEquals(values.length, merged.getNumValues());
+		assertTrue(getMaxRankError(merged, values) <= MAX_RANK_ERROR);
+	}
+
+	@Test
+	public void testSerialization() {
+		Random random = new Random(3);
+		QuantileSketch sketch = new QuantileSketch();
+		for (int i = 0; i < 50000; i++) {
+			sketch.add(random.nextDouble());
+		}
+		QuantileSketch copy = QuantileSketch.fromBytes(sketch.toBytes());
+		assertEquals(sketch.getNumValues(), copy.getNumValues());
+		for (double q : QUANTILES) {
+			assertEquals(sketch.getQuantile(q), copy.getQuantile(q), 0);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownFormat() {
+		QuantileSketch.fromBytes(new byte[] { 99 });
+	}
+}
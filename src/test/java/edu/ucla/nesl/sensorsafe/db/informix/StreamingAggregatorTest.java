@@ -0,0 +1,233 @@
+package edu.ucla.nesl.sensorsafe.db.informix;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import edu.ucla.nesl.sensorsafe.db.TupleBatch;
+import edu.ucla.nesl.sensorsafe.model.Channel;
+
+// Checks the streaming evaluation against the values that AggregateBy and AggregateRange compute in the
+// database, computed here from all values of each bucket.
+public class StreamingAggregatorTest {
+
+	private static final String EXPRESSION = "min($a), max($a), sum($b), avg($b), median($a), median($b), first($b), last($a), nth($a, 2), nth($b, -3)";
+	private static final long START = new DateTime(2014, 1, 1, 0, 0).getMillis() * 1000;
+
+	private static List<Channel> newChannels() {
+		List<Channel> channels = new ArrayList<Channel>();
+		channels.add(new Channel("a", "float"));
+		channels.add(new Channel("b", "int"));
+		return channels;
+	}
+
+	// Tuples over about five hours at irregular times, with some nulls.
+	private static TupleBatch newTuples(List<Channel> channels, int numTuples) {
+		Random random = new Random(1);
+		TupleBatch batch = new TupleBatch(channels);
+		int maxStep = (int)(2 * 5 * 3600 * 1000000L / numTuples);
+		long time = START;
+		for (int r = 0; r < numTuples; r++) {
+			time += 1 + random.nextInt(maxStep);
+			int row = batch.addRow(time);
+			if (random.nextInt(10) == 0) {
+				batch.setNull(row, 0);
+			} else {
+				batch.setDouble(row, 0, Math.round(random.nextGaussian() * 1000) / 10.0);
+			}
+			if (random.nextInt(10) == 0) {
+				batch.setNull(row, 1);
+			} else {
+				batch.setInt(row, 1, random.nextInt(100));
+			}
+		}
+		return batch;
+	}
+
+	// The non-null values of channel i of the rows, in time order.
+	private static double[] getValues(TupleBatch batch, List<Integer> rows, int i) {
+		double[] values = new double[rows.size()];
+		int n = 0;
+		for (int row : rows) {
+			if (!batch.isNull(row, i)) {
+				values[n++] = batch.getDouble(row, i);
+			}
+		}
+		return Arrays.copyOf(values, n);
+	}
+
+	// The expected values of EXPRESSION over the rows, null where the database returns null.
+	private static Double[] evaluate(TupleBatch batch, List<Integer> rows) {
+		double[] a = getValues(batch, rows, 0);
+		double[] b = getValues(batch, rows, 1);
+		double[] sortedA = a.clone();
+		double[] sortedB = b.clone();
+		Arrays.sort(sortedA);
+		Arrays.sort(sortedB);
+		double sumB = 0;
+		for (double value : b) {
+			sumB += value;
+		}
+		return new Double[] {
+				a.length == 0 ? null : sortedA[0],
+				a.length == 0 ? null : sortedA[a.length - 1],
+				b.length == 0 ? null : sumB,
+				b.length == 0 ? null : sumB / b.length,
+				median(sortedA),
+				median(sortedB),
+				b.length == 0 ? null : b[0],
+				a.length == 0 ? null : a[a.length - 1],
+				a.length < 2 ? null : a[1],
+				b.length < 3 ? null : b[b.length - 3]
+		};
+	}
+
+	private static Double median(double[] sorted) {
+		int n = sorted.length;
+		if (n == 0) {
+			return null;
+		}
+		return n % 2 == 1 ? sorted[n / 2] : (sorted[n / 2 - 1] + sorted[n / 2]) / 2;
+	}
+
+	private static void assertRow(Double[] expected, long expectedTimestamp, TupleBatch out, int row) {
+		assertEquals(expectedTimestamp, out.getTimestamp(row));
+		for (int i = 0; i < expected.length; i++) {
+			if (expected[i] == null) {
+				assertTrue("channel " + i + " of row " + row, out.isNull(row, i));
+			} else {
+				assertEquals("channel " + i + " of row " + row, expected[i], out.getDouble(row, i), 1e-9 * Math.max(1, Math.abs(expected[i])));
+			}
+		}
+	}
+
+	// Adds the rows to agg in batches of batchSize.
+	private static void add(StreamingAggregator agg, TupleBatch tuples, int from, int to, int batchSize, TupleBatch out) {
+		TupleBatch batch = new TupleBatch(newChannels());
+		for (int row = from; row < to; row += batchSize) {
+			batch.clear();
+			batch.addRows(tuples, row, Math.min(batchSize, to - row));
+			agg.add(batch, out);
+		}
+	}
+
+	@Test
+	public void testAggregateBy() {
+		List<Channel> channels = newChannels();
+		Aggregator aggregator = new Aggregator("AggregateBy(\"" + EXPRESSION + "\", \"1hour\")", channels);
+		StreamingAggregator agg = StreamingAggregator.create(aggregator, Long.MIN_VALUE);
+		assertNotNull(agg);
+
+		TupleBatch tuples = newTuples(channels, 5000);
+		TreeMap<Long, List<Integer>> buckets = new TreeMap<Long, List<Integer>>();
+		for (int row = 0; row < tuples.getSize(); row++) {
+			long bucket = new DateTime(TupleBatch.toMillis(tuples.getTimestamp(row))).hourOfDay().roundFloorCopy().getMillis() * 1000;
+			if (!buckets.containsKey(bucket)) {
+				buckets.put(bucket, new ArrayList<Integer>());
+			}
+			buckets.get(bucket).add(row);
+		}
+
+		TupleBatch out = new TupleBatch(aggregator.channels);
+		add(agg, tuples, 0, tuples.getSize(), 333, out);
+		agg.finish(out);
+
+		assertEquals(buckets.size(), out.getSize());
+		int row = 0;
+		for (Map.Entry<Long, List<Integer>> bucket : buckets.entrySet()) {
+			assertRow(evaluate(tuples, bucket.getValue()), bucket.getKey(), out, row++);
+		}
+	}
+
+	@Test
+	public void testAggregateRangeInPartitions() {
+		List<Channel> channels = newChannels();
+		Aggregator aggregator = new Aggregator("AggregateRange(\"" + EXPRESSION + "\")", channels);
+		TupleBatch tuples = newTuples(channels, 3000);
+		List<Integer> rows = new ArrayList<Integer>();
+		for (int row = 0; row < tuples.getSize(); row++) {
+			rows.add(row);
+		}
+		Double[] expected = evaluate(tuples, rows);
+
+		// As aggregateInPartitions() merges them, in time order.
+		StreamingAggregator agg = StreamingAggregator.create(aggregator, START);
+		assertNotNull(agg);
+		TupleBatch unused = new TupleBatch(aggregator.channels);
+		int[] bounds = { 0, 1, 700, 700, 2999, 3000 };
+		for (int i = 0; i + 1 < bounds.length; i++) {
+			StreamingAggregator part = StreamingAggregator.create(aggregator, START);
+			add(part, tuples, bounds[i], bounds[i + 1], 100, unused);
+			agg.merge(part);
+		}
+		assertEquals(0, unused.getSize());
+
+		TupleBatch out = new TupleBatch(aggregator.channels);
+		agg.finish(out);
+		assertEquals(1, out.getSize());
+		assertRow(expected, START, out, 0);
+	}
+
+	@Test
+	public void testNthOfFewValues() {
+		List<Channel> channels = newChannels();
+		Aggregator aggregator = new Aggregator("AggregateBy(\"nth($a, 3), nth($a, -3), nth($a, -1)\", \"1day\")", channels);
+		StreamingAggregator agg = StreamingAggregator.create(aggregator, Long.MIN_VALUE);
+		TupleBatch tuples = new TupleBatch(channels);
+		for (int r = 0; r < 2; r++) {
+			int row = tuples.addRow(START + r * 1000000L);
+			tuples.setDouble(row, 0, r + 1);
+			tuples.setInt(row, 1, 0);
+		}
+		TupleBatch out = new TupleBatch(aggregator.channels);
+		agg.add(tuples, out);
+		agg.finish(out);
+		assertEquals(1, out.getSize());
+		assertTrue(out.isNull(0, 0));
+		assertTrue(out.isNull(0, 1));
+		assertEquals(2, out.getDouble(0, 2), 0);
+	}
+
+	@Test
+	public void testMedianOverflow() {
+		List<Channel> channels = newChannels();
+		Aggregator aggregator = new Aggregator("AggregateBy(\"median($a), max($b)\", \"1day\")", channels);
+		StreamingAggregator agg = StreamingAggregator.create(aggregator, Long.MIN_VALUE);
+		TupleBatch batch = new TupleBatch(channels);
+		TupleBatch out = new TupleBatch(aggregator.channels);
+		for (int r = 0; r <= StreamingAggregator.MAX_BUFFERED_VALUES && !agg.isOverflowed(); r++) {
+			int row = batch.addRow(START + r * 10L);
+			batch.setDouble(row, 0, r);
+			batch.setInt(row, 1, r);
+			if (batch.getSize() == TupleBatch.FETCH_ROWS) {
+				agg.add(batch, out);
+				batch.clear();
+			}
+		}
+		agg.add(batch, out);
+		// No estimate: the caller has to evaluate the query in the database.
+		assertTrue(agg.isOverflowed());
+		assertEquals(0, out.getSize());
+	}
+
+	@Test
+	public void testUnsupported() {
+		List<Channel> channels = newChannels();
+		assertNull(StreamingAggregator.create(new Aggregator("AggregateBy(\"nth($a, 100000000)\", \"1hour\")", channels), Long.MIN_VALUE));
+		assertNull(StreamingAggregator.create(new Aggregator("AggregateBy(\"min($a) + 1\", \"1hour\")", channels), Long.MIN_VALUE));
+		assertNull(StreamingAggregator.create(new Aggregator("AggregateBy(\"min($a)\", \"1week\")", channels), Long.MIN_VALUE));
+		assertNotNull(StreamingAggregator.create(new Aggregator("AggregateBy(\"nth($a, -5)\", \"1year\")", channels), Long.MIN_VALUE));
+		assertNotNull(StreamingAggregator.create(new Aggregator("AggregateRange(\"median($a)\")", channels), Long.MIN_VALUE));
+	}
+}
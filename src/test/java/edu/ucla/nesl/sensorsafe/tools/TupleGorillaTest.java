@@ -0,0 +1,157 @@
+package edu.ucla.nesl.sensorsafe.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import edu.ucla.nesl.sensorsafe.db.TupleBatch;
+import edu.ucla.nesl.sensorsafe.model.Channel;
+import edu.ucla.nesl.sensorsafe.model.Stream;
+
+public class TupleGorillaTest {
+
+	private static Stream newStream() {
+		Stream stream = new Stream();
+		stream.name = "test";
+		stream.channels = new ArrayList<Channel>();
+		stream.channels.add(new Channel("text", "text"));
+		stream.channels.add(new Channel("float", "float"));
+		stream.channels.add(new Channel("int", "int"));
+		return stream;
+	}
+
+	private static TupleBatch roundTrip(Stream stream, TupleBatch... batches) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		TupleGorillaWriter writer = new TupleGorillaWriter(out, stream);
+		for (TupleBatch batch : batches) {
+			writer.writeTuples(batch);
+		}
+		writer.close();
+
+		TupleGorillaReader reader = new TupleGorillaReader(new ByteArrayInputStream(out.toByteArray()));
+		TupleBatch all = new TupleBatch(reader.getStream().channels);
+		TupleBatch batch = new TupleBatch(reader.getStream().channels);
+		while (reader.readTuples(batch)) {
+			all.addRows(batch, 0, batch.getSize());
+			batch.clear();
+		}
+		return all;
+	}
+
+	private static void assertSameTuples(TupleBatch expected, TupleBatch actual) {
+		assertEquals(expected.getSize(), actual.getSize());
+		for (int row = 0; row < expected.getSize(); row++) {
+			assertEquals("timestamp of row " + row, expected.getTimestamp(row), actual.getTimestamp(row));
+			for (int i = 0; i < expected.getNumChannels(); i++) {
+				assertEquals("null of row " + row, expected.isNull(row, i), actual.isNull(row, i));
+				if (expected.isNull(row, i)) {
+					continue;
+				}
+				if (expected.isNumeric(i)) {
+					// Bitwise, so that NaN and -0.0 count.
+					assertEquals("row " + row, Double.doubleToRawLongBits(expected.getDouble(row, i)), Double.doubleToRawLongBits(actual.getDouble(row, i)));
+				} else {
+					assertEquals("row " + row, expected.getText(row, i), actual.getText(row, i));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		Stream stream = newStream();
+		TupleBatch batch = new TupleBatch(stream.channels);
+		for (int r = 0; r < 5000; r++) {
+			// Irregular deltas, repeated values and nulls.
+			int row = batch.addRow(1388534400000000L + 1000000L * r + (r % 7) * 10);
+			if (r % 11 == 0) {
+				batch.setNull(row, 0);
+			} else {
+				batch.setText(row, 0, "value " + r / 3);
+			}
+			batch.setDouble(row, 1, r % 13 == 0 ? Double.NaN : r % 17 == 0 ? -0.0 : Math.sin(r) * 1e6);
+			if (r % 5 == 0) {
+				batch.setNull(row, 2);
+			} else {
+				batch.setInt(row, 2, r % 4 == 0 ? Integer.MIN_VALUE : r * r);
+			}
+		}
+		assertSameTuples(batch, roundTrip(stream, batch));
+	}
+
+	@Test
+	public void testLongTexts() throws IOException {
+		Stream stream = newStream();
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 100000; i++) {
+			text.append((char)('a' + i % 26));
+		}
+		TupleBatch batch = new TupleBatch(stream.channels);
+		for (int r = 0; r < 100; r++) {
+			int row = batch.addRow(1000000L * r);
+			batch.setText(row, 0, r % 3 == 0 ? text.toString() + r : "\u00e9\u4e2d" + r);
+			batch.setDouble(row, 1, r);
+			batch.setInt(row, 2, r);
+		}
+		assertSameTuples(batch, roundTrip(stream, batch));
+	}
+
+	@Test
+	public void testSeveralBatches() throws IOException {
+		Stream stream = newStream();
+		TupleBatch first = new TupleBatch(stream.channels);
+		TupleBatch second = new TupleBatch(stream.channels);
+		TupleBatch all = new TupleBatch(stream.channels);
+		for (int r = 0; r < 200; r++) {
+			TupleBatch batch = r < 120 ? first : second;
+			int row = batch.addRow(5000000L * r);
+			batch.setText(row, 0, "t");
+			batch.setDouble(row, 1, r * 0.5);
+			batch.setInt(row, 2, -r);
+			all.addRows(batch, row, 1);
+		}
+		assertSameTuples(all, roundTrip(stream, first, second));
+	}
+
+	@Test
+	public void testNextCursor() throws IOException {
+		Stream stream = newStream();
+		TupleBatch batch = new TupleBatch(stream.channels);
+		int row = batch.addRow(1000000L);
+		batch.setText(row, 0, "t");
+		batch.setDouble(row, 1, 1.5);
+		batch.setInt(row, 2, 1);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		TupleGorillaWriter writer = new TupleGorillaWriter(out, stream);
+		writer.writeTuples(batch);
+		writer.setNextCursor("AAAB/w==");
+		writer.close();
+
+		TupleGorillaReader reader = new TupleGorillaReader(new ByteArrayInputStream(out.toByteArray()));
+		TupleBatch read = new TupleBatch(reader.getStream().channels);
+		assertTrue(reader.readTuples(read));
+		assertSameTuples(batch, read);
+		assertNull(reader.getNextCursor());
+		assertFalse(reader.readTuples(read));
+		assertEquals("AAAB/w==", reader.getNextCursor());
+	}
+
+	@Test
+	public void testEmpty() throws IOException {
+		Stream stream = newStream();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new TupleGorillaWriter(out, stream).close();
+		TupleGorillaReader reader = new TupleGorillaReader(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals(stream.channels.size(), reader.getStream().channels.size());
+		assertFalse(reader.readTuples(new TupleBatch(reader.getStream().channels)));
+		assertTrue(out.size() > 0);
+	}
+}